@@ -83,22 +83,23 @@ public abstract class AbstractAtmosApi implements AtmosApi {
         String path = uri.getPath().toLowerCase();
         long expiresTime = expirationDate.getTime() / 1000;
 
-        String hashString = "GET\n"
-                            + path + '\n'
-                            + config.getTokenId() + '\n'
-                            + expiresTime;
+        StringBuilder hashString = new StringBuilder( 128 );
+        hashString.append( "GET\n" ).append( path ).append( '\n' );
+        hashString.append( config.getTokenId() ).append( '\n' ).append( expiresTime );
         if ( disposition != null )
-            hashString += '\n' + disposition;
+            hashString.append( '\n' ).append( disposition );
 
-        String hash = RestUtil.sign( hashString, config.getSecretKey() );
+        String hash = RestUtil.sign( hashString.toString(), config.getSecretKey() );
 
-        String query = "uid=" + HttpUtil.encodeUtf8( config.getTokenId() ) + "&expires=" + expiresTime
-                       + "&signature=" + HttpUtil.encodeUtf8( hash );
+        // we must manually append the query string to ensure the equals sign in the signature gets encoded properly
+        StringBuilder url = new StringBuilder( 256 );
+        url.append( uri ).append( "?uid=" ).append( HttpUtil.encodeUtf8( config.getTokenId() ) );
+        url.append( "&expires=" ).append( expiresTime );
+        url.append( "&signature=" ).append( HttpUtil.encodeUtf8( hash ) );
         if ( disposition != null )
-            query += "&disposition=" + HttpUtil.encodeUtf8( disposition );
+            url.append( "&disposition=" ).append( HttpUtil.encodeUtf8( disposition ) );
 
-        // we must manually append the query string to ensure the equals sign in the signature gets encoded properly
-        return new URL( uri + "?" + query );
+        return new URL( url.toString() );
     }
 
     @Override
@@ -0,0 +1,250 @@
+/*
+ * Copyright 2014 EMC Corporation. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.emc.atmos.api;
+
+import com.emc.atmos.AtmosException;
+import com.emc.atmos.api.bean.CreateAccessTokenResponse;
+import com.emc.atmos.api.request.CreateAccessTokenRequest;
+import com.emc.atmos.api.request.PreSignedRequest;
+import com.emc.atmos.api.request.Request;
+import com.emc.vipr.transform.util.DaemonThreadFactory;
+import org.apache.log4j.Logger;
+
+import java.net.URL;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generates large numbers of shareable URLs, pre-signed requests and access tokens in parallel. Inputs are pulled
+ * lazily from an iterator and results are handed to a {@link Callback} as they are produced, so arbitrarily large
+ * catalogs can be processed without holding them in memory.
+ * <p/>
+ * Shareable URLs and pre-signed requests are computed locally (no server round-trip), so they are spread across all of
+ * the presigner's threads. Access tokens require a call to Atmos for each token, so at most
+ * {@link #getTokenConcurrency()} createAccessToken calls are in flight at any time.
+ * <p/>
+ * Callbacks are invoked from the worker threads and must be thread-safe. Each bulk method blocks until every input has
+ * been processed. A failure for one input is reported to {@link Callback#failed(Object, Throwable)} and does not stop
+ * the rest of the batch.
+ */
+public class BulkPresigner {
+    private static final Logger l4j = Logger.getLogger( BulkPresigner.class );
+
+    public static final int DEFAULT_THREADS = 8;
+    public static final int DEFAULT_TOKEN_CONCURRENCY = 4;
+
+    private AtmosApi api;
+    private ExecutorService executor;
+    private int threads;
+    private int tokenConcurrency = DEFAULT_TOKEN_CONCURRENCY;
+
+    public BulkPresigner( AtmosApi api ) {
+        this( api, DEFAULT_THREADS );
+    }
+
+    public BulkPresigner( AtmosApi api, int threads ) {
+        if ( threads < 1 ) throw new IllegalArgumentException( "threads must be at least 1" );
+        this.api = api;
+        this.threads = threads;
+        this.executor = Executors.newFixedThreadPool( threads, new DaemonThreadFactory( "bulk-presigner" ) );
+    }
+
+    /**
+     * Generates a shareable URL for each spec. The callback receives the spec and its URL.
+     *
+     * @return the number of URLs successfully generated.
+     */
+    public long getShareableUrls( Iterator<ShareableUrlSpec> specs, Callback<ShareableUrlSpec, URL> callback ) {
+        return run( specs, new Task<ShareableUrlSpec, URL>() {
+            @Override
+            public URL execute( ShareableUrlSpec spec ) throws Exception {
+                return api.getShareableUrl( spec.getIdentifier(), spec.getExpiration(), spec.getDisposition() );
+            }
+        }, callback, threads * 2 );
+    }
+
+    /**
+     * Generates a shareable URL for each identifier, all expiring at the same time.
+     *
+     * @return the number of URLs successfully generated.
+     */
+    public long getShareableUrls( final Iterator<? extends ObjectIdentifier> identifiers, final Date expiration,
+                                  final Callback<ObjectIdentifier, URL> callback ) {
+        return run( identifiers, new Task<ObjectIdentifier, URL>() {
+            @Override
+            public URL execute( ObjectIdentifier identifier ) throws Exception {
+                return api.getShareableUrl( identifier, expiration );
+            }
+        }, callback, threads * 2 );
+    }
+
+    /**
+     * Pre-signs each request so that it expires at the given date.
+     *
+     * @return the number of requests successfully signed.
+     */
+    public long preSignRequests( Iterator<? extends Request> requests, final Date expiration,
+                                 Callback<Request, PreSignedRequest> callback ) {
+        return run( requests, new Task<Request, PreSignedRequest>() {
+            @Override
+            public PreSignedRequest execute( Request request ) throws Exception {
+                return api.preSignRequest( request, expiration );
+            }
+        }, callback, threads * 2 );
+    }
+
+    /**
+     * Creates an access token for each request, with at most {@link #getTokenConcurrency()} calls in flight.
+     *
+     * @return the number of tokens successfully created.
+     */
+    public long createAccessTokens( Iterator<? extends CreateAccessTokenRequest> requests,
+                                    Callback<CreateAccessTokenRequest, CreateAccessTokenResponse> callback ) {
+        return run( requests, new Task<CreateAccessTokenRequest, CreateAccessTokenResponse>() {
+            @Override
+            public CreateAccessTokenResponse execute( CreateAccessTokenRequest request ) throws Exception {
+                return api.createAccessToken( request );
+            }
+        }, callback, Math.min( tokenConcurrency, threads ) );
+    }
+
+    /**
+     * Stops the worker threads. The presigner cannot be used after it is shut down.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * Returns the maximum number of createAccessToken calls that will be in flight at once.
+     */
+    public int getTokenConcurrency() {
+        return tokenConcurrency;
+    }
+
+    /**
+     * Sets the maximum number of createAccessToken calls that will be in flight at once. Values larger than the number
+     * of threads are capped at the thread count. Default is 4.
+     */
+    public void setTokenConcurrency( int tokenConcurrency ) {
+        if ( tokenConcurrency < 1 ) throw new IllegalArgumentException( "tokenConcurrency must be at least 1" );
+        this.tokenConcurrency = tokenConcurrency;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Feeds the inputs to the executor, never allowing more than maxInFlight to be queued or running, then waits for
+     * all of them to finish.
+     */
+    protected <I, T extends I, R> long run( Iterator<T> inputs, final Task<I, R> task,
+                                            final Callback<? super I, ? super R> callback, int maxInFlight ) {
+        final Semaphore inFlight = new Semaphore( maxInFlight );
+        final AtomicLong succeeded = new AtomicLong();
+        try {
+            while ( inputs.hasNext() ) {
+                final T input = inputs.next();
+                inFlight.acquire();
+                try {
+                    executor.execute( new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                R result;
+                                try {
+                                    result = task.execute( input );
+                                } catch ( Throwable t ) {
+                                    l4j.debug( "Bulk presign failed for " + input, t );
+                                    callback.failed( input, t );
+                                    return;
+                                }
+                                succeeded.incrementAndGet();
+                                callback.completed( input, result );
+                            } finally {
+                                inFlight.release();
+                            }
+                        }
+                    } );
+                } catch ( RuntimeException e ) {
+                    inFlight.release();
+                    throw e;
+                }
+            }
+
+            // wait for the stragglers
+            inFlight.acquire( maxInFlight );
+            inFlight.release( maxInFlight );
+        } catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new AtmosException( "Interrupted while waiting for bulk presign to complete", e );
+        }
+        return succeeded.get();
+    }
+
+    /**
+     * Receives the results of a bulk operation. Implementations must be thread-safe.
+     */
+    public interface Callback<I, R> {
+        void completed( I input, R result );
+
+        void failed( I input, Throwable t );
+    }
+
+    protected interface Task<I, R> {
+        R execute( I input ) throws Exception;
+    }
+
+    /**
+     * Describes a single shareable URL to generate.
+     */
+    public static class ShareableUrlSpec {
+        private ObjectIdentifier identifier;
+        private Date expiration;
+        private String disposition;
+
+        public ShareableUrlSpec( ObjectIdentifier identifier, Date expiration ) {
+            this( identifier, expiration, null );
+        }
+
+        public ShareableUrlSpec( ObjectIdentifier identifier, Date expiration, String disposition ) {
+            this.identifier = identifier;
+            this.expiration = expiration;
+            this.disposition = disposition;
+        }
+
+        public ObjectIdentifier getIdentifier() {
+            return identifier;
+        }
+
+        public Date getExpiration() {
+            return expiration;
+        }
+
+        public String getDisposition() {
+            return disposition;
+        }
+
+        @Override
+        public String toString() {
+            return identifier + " (expires " + expiration + ")";
+        }
+    }
+}
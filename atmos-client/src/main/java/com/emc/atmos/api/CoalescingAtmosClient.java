@@ -0,0 +1,493 @@
+/*
+ * Copyright 2014 EMC Corporation. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.emc.atmos.api;
+
+import com.emc.atmos.AtmosException;
+import com.emc.atmos.api.bean.BasicResponse;
+import com.emc.atmos.api.bean.CreateObjectResponse;
+import com.emc.atmos.api.bean.DirectoryEntry;
+import com.emc.atmos.api.bean.ListDirectoryResponse;
+import com.emc.atmos.api.bean.Metadata;
+import com.emc.atmos.api.bean.ObjectMetadata;
+import com.emc.atmos.api.bean.ReadObjectResponse;
+import com.emc.atmos.api.request.CreateObjectRequest;
+import com.emc.atmos.api.request.ListDirectoryRequest;
+import com.emc.atmos.api.request.ReadObjectRequest;
+import com.emc.atmos.api.request.Request;
+import com.emc.atmos.api.request.UpdateObjectRequest;
+import org.apache.log4j.Logger;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces identical idempotent requests that are in flight at the same time ("single-flight"). When several threads
+ * issue the same read for the same object (same method, identifier, range and headers) while a previous identical call
+ * is still running, they wait for that call instead of sending their own and each receives a copy of its result.
+ * Requests are only coalesced while they are in flight; nothing is cached after a call completes.
+ * <p/>
+ * The following calls are coalesced:
+ * <ul>
+ * <li>readObject when reading byte[] content. The content is read once and each caller gets its own copy.</li>
+ * <li>readObject/readObjectStream reading an InputStream of a single range no larger than
+ * {@link #getMaxBufferSize()}. The range is buffered once and each caller gets its own stream over the buffer.</li>
+ * <li>getObjectMetadata, getSystemMetadata, getUserMetadata and getUserMetadataNames (each caller gets a copy of the
+ * metadata map)</li>
+ * <li>listDirectory (each caller gets a copy of the response; the next-page token is set on each caller's
+ * request)</li>
+ * <li>objectExists</li>
+ * </ul>
+ * Everything else, including all writes, is passed straight through to the delegate. If the shared call fails, every
+ * waiting caller receives the same exception.
+ * <p/>
+ * When a write through this client completes, in-flight calls for the written identifier (and, for paths, the listing
+ * of its parent directory) are no longer joined, so a read issued after a write never receives a result fetched
+ * before it. Writes to the same object through a different identifier (e.g. its ObjectId instead of its path) are not
+ * detected.
+ */
+public class CoalescingAtmosClient extends DelegatingAtmosApi {
+    private static final Logger l4j = Logger.getLogger( CoalescingAtmosClient.class );
+
+    public static final int DEFAULT_MAX_BUFFER_SIZE = 4 * 1024 * 1024; // 4MB
+
+    private ConcurrentMap<String, FutureTask<?>> inFlight = new ConcurrentHashMap<String, FutureTask<?>>();
+    private int maxBufferSize = DEFAULT_MAX_BUFFER_SIZE;
+    private AtomicLong coalescedCount = new AtomicLong();
+
+    public CoalescingAtmosClient( AtmosApi delegate ) {
+        super( delegate );
+    }
+
+    @Override
+    public <T> T readObject( ObjectIdentifier identifier, Class<T> objectType ) throws IOException {
+        return readObject( new ReadObjectRequest().identifier( identifier ), objectType ).getObject();
+    }
+
+    @Override
+    public <T> T readObject( ObjectIdentifier identifier, Range range, Class<T> objectType ) throws IOException {
+        return readObject( new ReadObjectRequest().identifier( identifier ).ranges( range ), objectType ).getObject();
+    }
+
+    @Override
+    public <T> ReadObjectResponse<T> readObject( final ReadObjectRequest request, Class<T> objectType )
+            throws IOException {
+        if ( !isBufferable( request, objectType ) ) return delegate.readObject( request, objectType );
+
+        ReadObjectResponse<byte[]> shared;
+        try {
+            shared = coalesce( request.getIdentifier(), requestKey( request ),
+                               new Callable<ReadObjectResponse<byte[]>>() {
+                                   @Override
+                                   public ReadObjectResponse<byte[]> call() throws Exception {
+                                       return delegate.readObject( request, byte[].class );
+                                   }
+                               } );
+        } catch ( IOException e ) {
+            throw e;
+        } catch ( RuntimeException e ) {
+            throw e;
+        } catch ( Exception e ) {
+            throw new AtmosException( e.getMessage(), e );
+        }
+
+        // every caller gets its own copy of the content
+        Object content;
+        if ( InputStream.class.equals( objectType ) ) content = new ByteArrayInputStream( shared.getObject() );
+        else content = shared.getObject().clone();
+
+        ReadObjectResponse<T> response = new ReadObjectResponse<T>( objectType.cast( content ) );
+        copyResponse( shared, response );
+        // the delegate may have set the metadata directly (i.e. a cache hit or decoded metadata)
+        response.setMetadata( copy( shared.getMetadata() ) );
+        return response;
+    }
+
+    @Override
+    public ReadObjectResponse<InputStream> readObjectStream( ObjectIdentifier identifier, Range range ) {
+        ReadObjectRequest request = new ReadObjectRequest().identifier( identifier ).ranges( range );
+        if ( !isBufferable( request, InputStream.class ) ) return delegate.readObjectStream( identifier, range );
+
+        try {
+            return readObject( request, InputStream.class );
+        } catch ( IOException e ) {
+            throw new AtmosException( "Error reading object", e );
+        }
+    }
+
+    @Override
+    public ObjectMetadata getObjectMetadata( final ObjectIdentifier identifier ) {
+        ObjectMetadata shared = coalesceUnchecked( identifier, "getObjectMetadata",
+                                                   new Callable<ObjectMetadata>() {
+                                                       @Override
+                                                       public ObjectMetadata call() throws Exception {
+                                                           return delegate.getObjectMetadata( identifier );
+                                                       }
+                                                   } );
+        return copy( shared );
+    }
+
+    @Override
+    public Map<String, Metadata> getSystemMetadata( final ObjectIdentifier identifier,
+                                                    final String... metadataNames ) {
+        return new TreeMap<String, Metadata>( coalesceUnchecked(
+                identifier, "getSystemMetadata " + Arrays.toString( metadataNames ),
+                new Callable<Map<String, Metadata>>() {
+                    @Override
+                    public Map<String, Metadata> call() throws Exception {
+                        return delegate.getSystemMetadata( identifier, metadataNames );
+                    }
+                } ) );
+    }
+
+    @Override
+    public Map<String, Metadata> getUserMetadata( final ObjectIdentifier identifier, final String... metadataNames ) {
+        return new TreeMap<String, Metadata>( coalesceUnchecked(
+                identifier, "getUserMetadata " + Arrays.toString( metadataNames ),
+                new Callable<Map<String, Metadata>>() {
+                    @Override
+                    public Map<String, Metadata> call() throws Exception {
+                        return delegate.getUserMetadata( identifier, metadataNames );
+                    }
+                } ) );
+    }
+
+    @Override
+    public Map<String, Boolean> getUserMetadataNames( final ObjectIdentifier identifier ) {
+        return new TreeMap<String, Boolean>( coalesceUnchecked(
+                identifier, "getUserMetadataNames",
+                new Callable<Map<String, Boolean>>() {
+                    @Override
+                    public Map<String, Boolean> call() throws Exception {
+                        return delegate.getUserMetadataNames( identifier );
+                    }
+                } ) );
+    }
+
+    @Override
+    public boolean objectExists( final ObjectIdentifier identifier ) {
+        return coalesceUnchecked( identifier, "objectExists", new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return delegate.objectExists( identifier );
+            }
+        } );
+    }
+
+    @Override
+    public ListDirectoryResponse listDirectory( final ListDirectoryRequest request ) {
+        DirectoryPage page = coalesceUnchecked( request.getPath(), requestKey( request ),
+                                                new Callable<DirectoryPage>() {
+                                                    @Override
+                                                    public DirectoryPage call() throws Exception {
+                                                        DirectoryPage page = new DirectoryPage();
+                                                        page.response = delegate.listDirectory( request );
+                                                        page.token = request.getToken();
+                                                        return page;
+                                                    }
+                                                } );
+
+        // the delegate sets the next-page token on the leader's request; pass it along to everyone else
+        request.setToken( page.token );
+        return copy( page.response );
+    }
+
+    @Override
+    public ObjectId createObject( ObjectIdentifier identifier, Object content, String contentType ) {
+        try {
+            return delegate.createObject( identifier, content, contentType );
+        } finally {
+            invalidate( identifier );
+        }
+    }
+
+    @Override
+    public CreateObjectResponse createObject( CreateObjectRequest request ) {
+        try {
+            return delegate.createObject( request );
+        } finally {
+            if ( request.getIdentifier() != null ) invalidate( request.getIdentifier() );
+        }
+    }
+
+    @Override
+    public void updateObject( ObjectIdentifier identifier, Object content ) {
+        try {
+            delegate.updateObject( identifier, content );
+        } finally {
+            invalidate( identifier );
+        }
+    }
+
+    @Override
+    public void updateObject( ObjectIdentifier identifier, Object content, Range range ) {
+        try {
+            delegate.updateObject( identifier, content, range );
+        } finally {
+            invalidate( identifier );
+        }
+    }
+
+    @Override
+    public BasicResponse updateObject( UpdateObjectRequest request ) {
+        try {
+            return delegate.updateObject( request );
+        } finally {
+            invalidate( request.getIdentifier() );
+        }
+    }
+
+    @Override
+    public void delete( ObjectIdentifier identifier ) {
+        try {
+            delegate.delete( identifier );
+        } finally {
+            invalidate( identifier );
+        }
+    }
+
+    @Override
+    public ObjectId createDirectory( ObjectPath path ) {
+        try {
+            return delegate.createDirectory( path );
+        } finally {
+            invalidate( path );
+        }
+    }
+
+    @Override
+    public ObjectId createDirectory( ObjectPath path, Acl acl, Metadata... metadata ) {
+        try {
+            return delegate.createDirectory( path, acl, metadata );
+        } finally {
+            invalidate( path );
+        }
+    }
+
+    @Override
+    public void move( ObjectPath oldPath, ObjectPath newPath, boolean overwrite ) {
+        try {
+            delegate.move( oldPath, newPath, overwrite );
+        } finally {
+            invalidate( oldPath );
+            invalidate( newPath );
+        }
+    }
+
+    @Override
+    public void setUserMetadata( ObjectIdentifier identifier, Metadata... metadata ) {
+        try {
+            delegate.setUserMetadata( identifier, metadata );
+        } finally {
+            invalidate( identifier );
+        }
+    }
+
+    @Override
+    public void deleteUserMetadata( ObjectIdentifier identifier, String... names ) {
+        try {
+            delegate.deleteUserMetadata( identifier, names );
+        } finally {
+            invalidate( identifier );
+        }
+    }
+
+    @Override
+    public void setAcl( ObjectIdentifier identifier, Acl acl ) {
+        try {
+            delegate.setAcl( identifier, acl );
+        } finally {
+            invalidate( identifier );
+        }
+    }
+
+    @Override
+    public void restoreVersion( ObjectId objectId, ObjectId versionId ) {
+        try {
+            delegate.restoreVersion( objectId, versionId );
+        } finally {
+            invalidate( objectId );
+        }
+    }
+
+    @Override
+    public void deleteVersion( ObjectId versionId ) {
+        try {
+            delegate.deleteVersion( versionId );
+        } finally {
+            invalidate( versionId );
+        }
+    }
+
+    /**
+     * Stops new callers from joining any in-flight call for the given identifier; they will send their own request
+     * instead. Callers already waiting still receive the in-flight result. For a path, the listing of its parent
+     * directory is included.
+     */
+    public void invalidate( ObjectIdentifier identifier ) {
+        String prefix = keyPrefix( identifier );
+        for ( String key : inFlight.keySet() ) {
+            if ( key.startsWith( prefix ) ) inFlight.remove( key );
+        }
+        if ( identifier instanceof ObjectPath ) {
+            String path = ((ObjectPath) identifier).getPath();
+            if ( path.length() > 1 ) {
+                if ( path.endsWith( "/" ) ) path = path.substring( 0, path.length() - 1 );
+                invalidate( new ObjectPath( path.substring( 0, path.lastIndexOf( '/' ) + 1 ) ) );
+            }
+        }
+    }
+
+    /**
+     * Returns the number of calls that were answered by another thread's in-flight call.
+     */
+    public long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+
+    /**
+     * Returns the largest range that will be buffered in memory to share an InputStream read.
+     */
+    public int getMaxBufferSize() {
+        return maxBufferSize;
+    }
+
+    /**
+     * Sets the largest range that will be buffered in memory to share an InputStream read. Stream reads of whole
+     * objects or of larger ranges are not coalesced. Default is 4MB.
+     */
+    public void setMaxBufferSize( int maxBufferSize ) {
+        this.maxBufferSize = maxBufferSize;
+    }
+
+    /**
+     * Runs the callable, unless a call with the same key for the same identifier is already in flight, in which case
+     * waits for that call and returns its result.
+     */
+    @SuppressWarnings("unchecked")
+    protected <R> R coalesce( ObjectIdentifier identifier, String key, Callable<R> callable ) throws Exception {
+        key = keyPrefix( identifier ) + key;
+        FutureTask<R> task = new FutureTask<R>( callable );
+        FutureTask<R> existing = (FutureTask<R>) inFlight.putIfAbsent( key, task );
+        if ( existing != null ) {
+            coalescedCount.incrementAndGet();
+            l4j.debug( "Joining in-flight call: " + key );
+            task = existing;
+        } else {
+            try {
+                task.run();
+            } finally {
+                inFlight.remove( key, task );
+            }
+        }
+
+        try {
+            return task.get();
+        } catch ( ExecutionException e ) {
+            Throwable t = e.getCause();
+            if ( t instanceof Error ) throw (Error) t;
+            throw (Exception) t;
+        } catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new AtmosException( "Interrupted while waiting for in-flight call: " + key, e );
+        }
+    }
+
+    protected <R> R coalesceUnchecked( ObjectIdentifier identifier, String key, Callable<R> callable ) {
+        try {
+            return coalesce( identifier, key, callable );
+        } catch ( RuntimeException e ) {
+            throw e;
+        } catch ( Exception e ) {
+            throw new AtmosException( e.getMessage(), e );
+        }
+    }
+
+    /**
+     * Two requests with the same key are interchangeable: same method, resource, query and headers.
+     */
+    protected String requestKey( Request request ) {
+        return request.getMethod() + " " + request.getServiceRelativePath() + "?" + request.getQuery() + " "
+               + request.generateHeaders();
+    }
+
+    protected boolean isBufferable( ReadObjectRequest request, Class<?> objectType ) {
+        if ( byte[].class.equals( objectType ) ) return true;
+        if ( !InputStream.class.equals( objectType ) ) return false;
+
+        // streams could be arbitrarily large; only buffer small, single ranges
+        List<Range> ranges = request.getRanges();
+        return ranges != null && ranges.size() == 1 && ranges.get( 0 ).getSize() <= maxBufferSize;
+    }
+
+    private String keyPrefix( ObjectIdentifier identifier ) {
+        return (identifier == null ? "" : identifier.getRelativeResourcePath()) + " ";
+    }
+
+    private ListDirectoryResponse copy( ListDirectoryResponse shared ) {
+        ListDirectoryResponse response = new ListDirectoryResponse();
+        copyResponse( shared, response );
+        if ( shared.getEntries() != null ) {
+            List<DirectoryEntry> entries = new ArrayList<DirectoryEntry>();
+            for ( DirectoryEntry sharedEntry : shared.getEntries() ) {
+                DirectoryEntry entry = new DirectoryEntry();
+                entry.setObjectId( sharedEntry.getObjectId() );
+                entry.setFilename( sharedEntry.getFilename() );
+                entry.setFileType( sharedEntry.getFileType() );
+                if ( sharedEntry.getSystemMetadata() != null )
+                    entry.setSystemMetadata( new ArrayList<Metadata>( sharedEntry.getSystemMetadata() ) );
+                if ( sharedEntry.getUserMetadata() != null )
+                    entry.setUserMetadata( new ArrayList<Metadata>( sharedEntry.getUserMetadata() ) );
+                entries.add( entry );
+            }
+            response.setEntries( entries );
+        }
+        return response;
+    }
+
+    private ObjectMetadata copy( ObjectMetadata shared ) {
+        Map<String, Metadata> metadata = null;
+        if ( shared.getMetadata() != null ) metadata = new TreeMap<String, Metadata>( shared.getMetadata() );
+        return new ObjectMetadata( metadata, shared.getAcl(), shared.getContentType(), shared.getWsChecksum(),
+                                   shared.getServerChecksum() );
+    }
+
+    private void copyResponse( BasicResponse from, BasicResponse to ) {
+        to.setHttpStatus( from.getHttpStatus() );
+        to.setHttpMessage( from.getHttpMessage() );
+        to.setHeaders( from.getHeaders() );
+        to.setContentType( from.getContentType() );
+        to.setContentLength( from.getContentLength() );
+        to.setLocation( from.getLocation() );
+        to.setLastModified( from.getLastModified() );
+        to.setDate( from.getDate() );
+    }
+
+    private static class DirectoryPage {
+        ListDirectoryResponse response;
+        String token;
+    }
+}
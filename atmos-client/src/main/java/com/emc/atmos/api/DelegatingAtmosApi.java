@@ -0,0 +1,269 @@
+/*
+ * Copyright 2014 EMC Corporation. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.emc.atmos.api;
+
+import com.emc.atmos.api.bean.*;
+import com.emc.atmos.api.request.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.Date;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Base class for client layers that wrap another AtmosApi instance. Every call is passed through to the delegate;
+ * subclasses override only the operations they need to intercept.
+ */
+public class DelegatingAtmosApi implements AtmosApi {
+    protected AtmosApi delegate;
+
+    public DelegatingAtmosApi( AtmosApi delegate ) {
+        this.delegate = delegate;
+    }
+
+    /**
+     * Returns the wrapped AtmosApi instance.
+     */
+    public AtmosApi getDelegate() {
+        return delegate;
+    }
+
+    @Override
+    public ServiceInformation getServiceInformation() {
+        return delegate.getServiceInformation();
+    }
+
+    @Override
+    public long calculateServerClockSkew() {
+        return delegate.calculateServerClockSkew();
+    }
+
+    @Override
+    public ObjectId createObject( Object content, String contentType ) {
+        return delegate.createObject( content, contentType );
+    }
+
+    @Override
+    public ObjectId createObject( ObjectIdentifier identifier, Object content, String contentType ) {
+        return delegate.createObject( identifier, content, contentType );
+    }
+
+    @Override
+    public CreateObjectResponse createObject( CreateObjectRequest request ) {
+        return delegate.createObject( request );
+    }
+
+    @Override
+    public <T> T readObject( ObjectIdentifier identifier, Class<T> objectType ) throws IOException {
+        return delegate.readObject( identifier, objectType );
+    }
+
+    @Override
+    public <T> T readObject( ObjectIdentifier identifier, Range range, Class<T> objectType ) throws IOException {
+        return delegate.readObject( identifier, range, objectType );
+    }
+
+    @Override
+    public <T> ReadObjectResponse<T> readObject( ReadObjectRequest request, Class<T> objectType ) throws IOException {
+        return delegate.readObject( request, objectType );
+    }
+
+    @Override
+    public ReadObjectResponse<InputStream> readObjectStream( ObjectIdentifier identifier, Range range ) {
+        return delegate.readObjectStream( identifier, range );
+    }
+
+    @Override
+    public void updateObject( ObjectIdentifier identifier, Object content ) {
+        delegate.updateObject( identifier, content );
+    }
+
+    @Override
+    public void updateObject( ObjectIdentifier identifier, Object content, Range range ) {
+        delegate.updateObject( identifier, content, range );
+    }
+
+    @Override
+    public BasicResponse updateObject( UpdateObjectRequest request ) {
+        return delegate.updateObject( request );
+    }
+
+    @Override
+    public void delete( ObjectIdentifier identifier ) {
+        delegate.delete( identifier );
+    }
+
+    @Override
+    public ObjectId createDirectory( ObjectPath path ) {
+        return delegate.createDirectory( path );
+    }
+
+    @Override
+    public ObjectId createDirectory( ObjectPath path, Acl acl, Metadata... metadata ) {
+        return delegate.createDirectory( path, acl, metadata );
+    }
+
+    @Override
+    public ListDirectoryResponse listDirectory( ListDirectoryRequest request ) {
+        return delegate.listDirectory( request );
+    }
+
+    @Override
+    public void move( ObjectPath oldPath, ObjectPath newPath, boolean overwrite ) {
+        delegate.move( oldPath, newPath, overwrite );
+    }
+
+    @Override
+    public Map<String, Boolean> getUserMetadataNames( ObjectIdentifier identifier ) {
+        return delegate.getUserMetadataNames( identifier );
+    }
+
+    @Override
+    public Map<String, Metadata> getUserMetadata( ObjectIdentifier identifier, String... metadataNames ) {
+        return delegate.getUserMetadata( identifier, metadataNames );
+    }
+
+    @Override
+    public Map<String, Metadata> getSystemMetadata( ObjectIdentifier identifier, String... metadataNames ) {
+        return delegate.getSystemMetadata( identifier, metadataNames );
+    }
+
+    @Override
+    public boolean objectExists( ObjectIdentifier identifier ) {
+        return delegate.objectExists( identifier );
+    }
+
+    @Override
+    public ObjectMetadata getObjectMetadata( ObjectIdentifier identifier ) {
+        return delegate.getObjectMetadata( identifier );
+    }
+
+    @Override
+    public void setUserMetadata( ObjectIdentifier identifier, Metadata... metadata ) {
+        delegate.setUserMetadata( identifier, metadata );
+    }
+
+    @Override
+    public void deleteUserMetadata( ObjectIdentifier identifier, String... names ) {
+        delegate.deleteUserMetadata( identifier, names );
+    }
+
+    @Override
+    public Set<String> listMetadata( String metadataName ) {
+        return delegate.listMetadata( metadataName );
+    }
+
+    @Override
+    public ListObjectsResponse listObjects( ListObjectsRequest request ) {
+        return delegate.listObjects( request );
+    }
+
+    @Override
+    public Acl getAcl( ObjectIdentifier identifier ) {
+        return delegate.getAcl( identifier );
+    }
+
+    @Override
+    public void setAcl( ObjectIdentifier identifier, Acl acl ) {
+        delegate.setAcl( identifier, acl );
+    }
+
+    @Override
+    public ObjectInfo getObjectInfo( ObjectIdentifier identifier ) {
+        return delegate.getObjectInfo( identifier );
+    }
+
+    @Override
+    public ObjectId createVersion( ObjectIdentifier identifier ) {
+        return delegate.createVersion( identifier );
+    }
+
+    @Override
+    public ListVersionsResponse listVersions( ListVersionsRequest request ) {
+        return delegate.listVersions( request );
+    }
+
+    @Override
+    public void restoreVersion( ObjectId objectId, ObjectId versionId ) {
+        delegate.restoreVersion( objectId, versionId );
+    }
+
+    @Override
+    public void deleteVersion( ObjectId versionId ) {
+        delegate.deleteVersion( versionId );
+    }
+
+    @Override
+    public URL getShareableUrl( ObjectIdentifier identifier, Date expirationDate ) throws MalformedURLException {
+        return delegate.getShareableUrl( identifier, expirationDate );
+    }
+
+    @Override
+    public URL getShareableUrl( ObjectIdentifier identifier, Date expirationDate, String disposition )
+            throws MalformedURLException {
+        return delegate.getShareableUrl( identifier, expirationDate, disposition );
+    }
+
+    @Override
+    public CreateAccessTokenResponse createAccessToken( CreateAccessTokenRequest request )
+            throws MalformedURLException {
+        return delegate.createAccessToken( request );
+    }
+
+    @Override
+    public GetAccessTokenResponse getAccessToken( URL url ) {
+        return delegate.getAccessToken( url );
+    }
+
+    @Override
+    public GetAccessTokenResponse getAccessToken( String accessTokenId ) {
+        return delegate.getAccessToken( accessTokenId );
+    }
+
+    @Override
+    public void deleteAccessToken( URL url ) {
+        delegate.deleteAccessToken( url );
+    }
+
+    @Override
+    public void deleteAccessToken( String accessTokenId ) {
+        delegate.deleteAccessToken( accessTokenId );
+    }
+
+    @Override
+    public ListAccessTokensResponse listAccessTokens( ListAccessTokensRequest request ) {
+        return delegate.listAccessTokens( request );
+    }
+
+    @Override
+    public PreSignedRequest preSignRequest( Request request, Date expiration ) throws MalformedURLException {
+        return delegate.preSignRequest( request, expiration );
+    }
+
+    @Override
+    public <T> GenericResponse<T> execute( PreSignedRequest request, Class<T> resultType, Object content )
+            throws URISyntaxException {
+        return delegate.execute( request, resultType, content );
+    }
+
+    @Override
+    public String createSubtenant( CreateSubtenantRequest request ) {
+        return delegate.createSubtenant( request );
+    }
+}
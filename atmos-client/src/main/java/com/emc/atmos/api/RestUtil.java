@@ -23,6 +23,7 @@ import org.apache.log4j.Logger;
 
 import javax.crypto.Mac;
 import javax.crypto.spec.SecretKeySpec;
+import java.security.GeneralSecurityException;
 import java.util.*;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -76,6 +77,9 @@ public final class RestUtil {
 
     private static final Pattern OBJECTID_PATTERN = Pattern.compile( "/\\w+/objects/([0-9a-f]{44,})" );
 
+    // signing is done in tight loops when generating shareable URLs, so keep an initialized Mac per thread
+    private static final ThreadLocal<CachedMac> cachedMac = new ThreadLocal<CachedMac>();
+
     public static String sign( String string, byte[] hashKey ) {
         try {
             // Compute the signature hash
@@ -83,9 +87,7 @@ public final class RestUtil {
 
             byte[] input = string.getBytes( "UTF-8" );
 
-            Mac mac = Mac.getInstance( "HmacSHA1" );
-            SecretKeySpec key = new SecretKeySpec( hashKey, "HmacSHA1" );
-            mac.init( key );
+            Mac mac = getMac( hashKey );
 
             byte[] hashBytes = mac.doFinal( input );
 
@@ -100,6 +102,21 @@ public final class RestUtil {
         }
     }
 
+    /**
+     * Returns an HmacSHA1 Mac initialized with the given key. The Mac is cached per thread and only re-initialized when
+     * the key changes (doFinal() resets the Mac for the next use).
+     */
+    private static Mac getMac( byte[] hashKey ) throws GeneralSecurityException {
+        CachedMac cached = cachedMac.get();
+        if ( cached == null || !Arrays.equals( cached.key, hashKey ) ) {
+            Mac mac = Mac.getInstance( "HmacSHA1" );
+            mac.init( new SecretKeySpec( hashKey, "HmacSHA1" ) );
+            cached = new CachedMac( hashKey.clone(), mac );
+            cachedMac.set( cached );
+        }
+        return cached.mac;
+    }
+
     /**
      * Generates the HMAC-SHA1 signature used to authenticate the request using
      * the Java security APIs, then adds the uid and signature to the headers.
@@ -246,4 +263,14 @@ public final class RestUtil {
 
     private RestUtil() {
     }
+
+    private static class CachedMac {
+        byte[] key;
+        Mac mac;
+
+        CachedMac( byte[] key, Mac mac ) {
+            this.key = key;
+            this.mac = mac;
+        }
+    }
 }
@@ -61,6 +61,14 @@ public class ReadObjectResponse<T> extends BasicResponse {
         return metadata;
     }
 
+    /**
+     * Overrides the metadata parsed from the response headers. Used by client layers that answer reads without
+     * contacting Atmos (i.e. from a local cache).
+     */
+    public synchronized void setMetadata( ObjectMetadata metadata ) {
+        this.metadata = metadata;
+    }
+
     public ChecksumValue getWsChecksum() {
         return getMetadata().getWsChecksum();
     }
@@ -0,0 +1,456 @@
+/*
+ * Copyright 2014 EMC Corporation. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.emc.atmos.api.cache;
+
+import com.emc.atmos.api.*;
+import com.emc.atmos.api.bean.BasicResponse;
+import com.emc.atmos.api.bean.Metadata;
+import com.emc.atmos.api.bean.ObjectMetadata;
+import com.emc.atmos.api.bean.ReadObjectResponse;
+import com.emc.atmos.api.request.ReadObjectRequest;
+import com.emc.atmos.api.request.UpdateObjectRequest;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Read-through local disk cache for object content. Reads of objects identified by {@link ObjectId} are served from a
+ * {@link DiskContentCache}; any segments that are not cached are fetched from the delegate with ranged reads and
+ * stored for next time. Cached content is keyed by the object's size and mtime, so an object modified by another
+ * client is simply fetched again. Writes through this client (update, delete, restore) invalidate the object's cached
+ * segments immediately.
+ * <p/>
+ * Before serving a cached read, the object's metadata is fetched (a HEAD request) to check its version. For content
+ * that rarely changes, set a validation interval ({@link #setValidationInterval(long)}) to reuse the last check for a
+ * period of time.
+ * <p/>
+ * Only reads that return byte[] or InputStream content are cached. Reads of other types, multi-range reads, reads by
+ * path or key and objects larger than the cache are passed straight through to the delegate. Objects found to be larger
+ * than the cache are remembered, so later reads skip the version check; call {@link #invalidate(ObjectIdentifier)} if
+ * such an object is replaced by a smaller one through another client.
+ * <pre>
+ *     AtmosApi atmos = new CachingAtmosClient( new AtmosApiClient( config ),
+ *                                              new DiskContentCache( new File( "/var/cache/atmos" ) ) );
+ * </pre>
+ */
+public class CachingAtmosClient extends DelegatingAtmosApi {
+    private static final Logger l4j = Logger.getLogger( CachingAtmosClient.class );
+
+    private static final String SIZE_META = "size";
+    private static final String MTIME_META = "mtime";
+    private static final int MAX_UNCACHEABLE = 10000;
+
+    private DiskContentCache cache;
+    private long validationInterval = 0;
+    private Map<ObjectId, Validation> validations = new ConcurrentHashMap<ObjectId, Validation>();
+    private Map<ObjectId, Boolean> uncacheable = Collections.synchronizedMap(
+            new LinkedHashMap<ObjectId, Boolean>( 256, 0.75f, true ) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry( Map.Entry<ObjectId, Boolean> eldest ) {
+                    return size() > MAX_UNCACHEABLE;
+                }
+            } );
+
+    public CachingAtmosClient( AtmosApi delegate, DiskContentCache cache ) {
+        super( delegate );
+        this.cache = cache;
+    }
+
+    @Override
+    public <T> T readObject( ObjectIdentifier identifier, Class<T> objectType ) throws IOException {
+        return readObject( new ReadObjectRequest().identifier( identifier ), objectType ).getObject();
+    }
+
+    @Override
+    public <T> T readObject( ObjectIdentifier identifier, Range range, Class<T> objectType ) throws IOException {
+        return readObject( new ReadObjectRequest().identifier( identifier ).ranges( range ), objectType ).getObject();
+    }
+
+    @Override
+    public <T> ReadObjectResponse<T> readObject( ReadObjectRequest request, Class<T> objectType )
+            throws IOException {
+        if ( !isCacheable( request, objectType ) ) return delegate.readObject( request, objectType );
+
+        ReadObjectResponse<List<ByteBuffer>> cached = readCached( (ObjectId) request.getIdentifier(),
+                                                                  getRange( request ) );
+        if ( cached == null ) return delegate.readObject( request, objectType );
+
+        ReadObjectResponse<T> response = new ReadObjectResponse<T>( objectType.cast( convert( cached.getObject(),
+                                                                                               objectType ) ) );
+        copyResponse( cached, response );
+        return response;
+    }
+
+    @Override
+    public ReadObjectResponse<InputStream> readObjectStream( ObjectIdentifier identifier, Range range ) {
+        if ( !(identifier instanceof ObjectId) ) return delegate.readObjectStream( identifier, range );
+
+        ReadObjectResponse<List<ByteBuffer>> cached = readCached( (ObjectId) identifier, range );
+        if ( cached == null ) return delegate.readObjectStream( identifier, range );
+
+        ReadObjectResponse<InputStream> response = new ReadObjectResponse<InputStream>(
+                new ByteBufferListInputStream( cached.getObject() ) );
+        copyResponse( cached, response );
+        return response;
+    }
+
+    @Override
+    public void updateObject( ObjectIdentifier identifier, Object content ) {
+        try {
+            delegate.updateObject( identifier, content );
+        } finally {
+            invalidate( identifier );
+        }
+    }
+
+    @Override
+    public void updateObject( ObjectIdentifier identifier, Object content, Range range ) {
+        try {
+            delegate.updateObject( identifier, content, range );
+        } finally {
+            invalidate( identifier );
+        }
+    }
+
+    @Override
+    public BasicResponse updateObject( UpdateObjectRequest request ) {
+        try {
+            return delegate.updateObject( request );
+        } finally {
+            invalidate( request.getIdentifier() );
+        }
+    }
+
+    @Override
+    public void delete( ObjectIdentifier identifier ) {
+        try {
+            delegate.delete( identifier );
+        } finally {
+            invalidate( identifier );
+        }
+    }
+
+    @Override
+    public void setUserMetadata( ObjectIdentifier identifier, Metadata... metadata ) {
+        // content is unchanged, but the cached metadata returned with reads is stale
+        try {
+            delegate.setUserMetadata( identifier, metadata );
+        } finally {
+            if ( identifier instanceof ObjectId ) validations.remove( identifier );
+        }
+    }
+
+    @Override
+    public void deleteUserMetadata( ObjectIdentifier identifier, String... names ) {
+        try {
+            delegate.deleteUserMetadata( identifier, names );
+        } finally {
+            if ( identifier instanceof ObjectId ) validations.remove( identifier );
+        }
+    }
+
+    @Override
+    public void setAcl( ObjectIdentifier identifier, Acl acl ) {
+        try {
+            delegate.setAcl( identifier, acl );
+        } finally {
+            if ( identifier instanceof ObjectId ) validations.remove( identifier );
+        }
+    }
+
+    @Override
+    public void restoreVersion( ObjectId objectId, ObjectId versionId ) {
+        try {
+            delegate.restoreVersion( objectId, versionId );
+        } finally {
+            invalidate( objectId );
+        }
+    }
+
+    @Override
+    public void deleteVersion( ObjectId versionId ) {
+        try {
+            delegate.deleteVersion( versionId );
+        } finally {
+            invalidate( versionId );
+        }
+    }
+
+    /**
+     * Removes any cached content for the given object. Only has an effect if the identifier is an ObjectId; cached
+     * content of objects modified by path or key is detected as stale by its version on the next read.
+     */
+    public void invalidate( ObjectIdentifier identifier ) {
+        if ( !(identifier instanceof ObjectId) ) return;
+        validations.remove( identifier );
+        uncacheable.remove( identifier );
+        cache.invalidate( (ObjectId) identifier );
+    }
+
+    public DiskContentCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Returns the number of milliseconds a version check is trusted before the object's metadata is fetched again.
+     */
+    public long getValidationInterval() {
+        return validationInterval;
+    }
+
+    /**
+     * Sets the number of milliseconds a version check is trusted before the object's metadata is fetched again. With
+     * the default of 0, the version is checked on every read. Set this higher only for objects that are not modified
+     * by other clients, or when serving slightly stale content is acceptable.
+     */
+    public void setValidationInterval( long validationInterval ) {
+        this.validationInterval = validationInterval;
+    }
+
+    protected boolean isCacheable( ReadObjectRequest request, Class<?> objectType ) {
+        if ( !(request.getIdentifier() instanceof ObjectId) ) return false;
+        if ( request.getRanges() != null && request.getRanges().size() > 1 ) return false;
+        return byte[].class.equals( objectType ) || InputStream.class.equals( objectType );
+    }
+
+    /**
+     * Returns the requested content as a list of buffers, fetching any missing segments from the delegate, or null if
+     * the object can't be served from the cache.
+     */
+    protected ReadObjectResponse<List<ByteBuffer>> readCached( ObjectId oid, Range range ) {
+        Validation validation = validate( oid );
+        if ( validation == null ) return null;
+
+        long size = validation.size;
+        long first = 0, last = size - 1;
+        if ( range != null ) {
+            first = range.getFirst();
+            last = Math.min( range.getLast(), size - 1 );
+            if ( first >= size ) return null; // let Atmos report the invalid range
+        }
+        if ( last - first + 1 > Integer.MAX_VALUE ) return null;
+
+        List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+        if ( size > 0 ) {
+            int segmentSize = cache.getSegmentSize();
+            int firstSegment = (int) (first / segmentSize), lastSegment = (int) (last / segmentSize);
+            ByteBuffer[] segments = new ByteBuffer[lastSegment - firstSegment + 1];
+
+            // collect cached segments, fetching each run of missing segments with a single ranged read
+            int runStart = -1;
+            for ( int i = firstSegment; i <= lastSegment + 1; i++ ) {
+                ByteBuffer segment = null;
+                if ( i <= lastSegment ) {
+                    segment = cache.getSegment( oid, validation.version, i );
+                    segments[i - firstSegment] = segment;
+                }
+                if ( segment == null && i <= lastSegment ) {
+                    if ( runStart < 0 ) runStart = i;
+                } else if ( runStart >= 0 ) {
+                    if ( !fetch( oid, validation, runStart, i - 1, segments, firstSegment ) ) return null;
+                    runStart = -1;
+                }
+            }
+
+            // trim the first and last segments to the requested range
+            for ( int i = 0; i < segments.length; i++ ) {
+                ByteBuffer segment = segments[i].duplicate();
+                long segmentStart = (long) (firstSegment + i) * segmentSize;
+                if ( i == 0 ) segment.position( (int) (first - segmentStart) );
+                if ( i == segments.length - 1 ) segment.limit( (int) (last - segmentStart + 1) );
+                buffers.add( segment.slice() );
+            }
+        }
+
+        ReadObjectResponse<List<ByteBuffer>> response = new ReadObjectResponse<List<ByteBuffer>>( buffers );
+        response.setMetadata( validation.metadata );
+        response.setContentType( validation.metadata.getContentType() );
+        response.setContentLength( size == 0 ? 0 : last - first + 1 );
+        response.setHttpStatus( range == null ? 200 : 206 );
+        return response;
+    }
+
+    private boolean fetch( ObjectId oid, Validation validation, int startSegment, int endSegment,
+                           ByteBuffer[] segments, int firstSegment ) {
+        int segmentSize = cache.getSegmentSize();
+        long start = (long) startSegment * segmentSize;
+        long end = Math.min( (long) (endSegment + 1) * segmentSize, validation.size ) - 1;
+
+        // stream the run, holding no more than one segment in memory
+        l4j.debug( "Fetching segments " + startSegment + "-" + endSegment + " of " + oid );
+        InputStream in = delegate.readObjectStream( oid, new Range( start, end ) ).getObject();
+        try {
+            byte[] buffer = new byte[(int) Math.min( segmentSize, end - start + 1 )];
+            for ( int i = startSegment; i <= endSegment; i++ ) {
+                int length = (int) Math.min( segmentSize, end - (long) i * segmentSize + 1 );
+                if ( readFully( in, buffer, length ) < length ) {
+                    // the object changed underneath us
+                    l4j.info( "Object " + oid + " changed while filling cache" );
+                    invalidate( oid );
+                    return false;
+                }
+                segments[i - firstSegment] = cache.putSegment( oid, validation.version, i, buffer, 0, length );
+            }
+            return true;
+        } catch ( IOException e ) {
+            l4j.warn( "Error filling cache for " + oid + ", reading directly", e );
+            return false;
+        } finally {
+            try {
+                in.close();
+            } catch ( IOException e ) {
+                l4j.warn( "Error closing stream for " + oid, e );
+            }
+        }
+    }
+
+    private int readFully( InputStream in, byte[] buffer, int length ) throws IOException {
+        int total = 0;
+        while ( total < length ) {
+            int count = in.read( buffer, total, length - total );
+            if ( count < 0 ) break;
+            total += count;
+        }
+        return total;
+    }
+
+    private Validation validate( ObjectId oid ) {
+        if ( uncacheable.containsKey( oid ) ) return null;
+
+        long now = System.currentTimeMillis();
+        Validation validation = validations.get( oid );
+        if ( validation != null && validationInterval > 0 && now - validation.time < validationInterval )
+            return validation;
+
+        ObjectMetadata metadata = delegate.getObjectMetadata( oid );
+        Metadata sizeMeta = metadata.getMetadata().get( SIZE_META );
+        Metadata mtimeMeta = metadata.getMetadata().get( MTIME_META );
+        if ( sizeMeta == null || sizeMeta.getValue() == null ) return null;
+
+        validation = new Validation();
+        validation.metadata = metadata;
+        validation.size = Long.parseLong( sizeMeta.getValue() );
+        validation.version = validation.size + "_" + (mtimeMeta == null || mtimeMeta.getValue() == null
+                                                       ? "0" : mtimeMeta.getValue().replaceAll( "[^0-9A-Za-z]", "" ));
+        validation.time = now;
+
+        if ( validation.size > cache.getMaxSize() ) {
+            validations.remove( oid );
+            uncacheable.put( oid, Boolean.TRUE );
+            return null;
+        }
+        validations.put( oid, validation );
+        return validation;
+    }
+
+    private Object convert( List<ByteBuffer> buffers, Class<?> objectType ) {
+        if ( InputStream.class.equals( objectType ) ) return new ByteBufferListInputStream( buffers );
+
+        int length = 0;
+        for ( ByteBuffer buffer : buffers ) length += buffer.remaining();
+        byte[] data = new byte[length];
+        int offset = 0;
+        for ( ByteBuffer buffer : buffers ) {
+            int count = buffer.remaining();
+            buffer.duplicate().get( data, offset, count );
+            offset += count;
+        }
+        return data;
+    }
+
+    private void copyResponse( BasicResponse from, BasicResponse to ) {
+        ((ReadObjectResponse<?>) to).setMetadata( ((ReadObjectResponse<?>) from).getMetadata() );
+        to.setContentType( from.getContentType() );
+        to.setContentLength( from.getContentLength() );
+        to.setHttpStatus( from.getHttpStatus() );
+    }
+
+    private Range getRange( ReadObjectRequest request ) {
+        if ( request.getRanges() == null || request.getRanges().isEmpty() ) return null;
+        return request.getRanges().get( 0 );
+    }
+
+    private static class Validation {
+        ObjectMetadata metadata;
+        long size;
+        String version;
+        long time;
+    }
+
+    /**
+     * Streams the content of a list of (memory-mapped) buffers.
+     */
+    private static class ByteBufferListInputStream extends InputStream {
+        private List<ByteBuffer> buffers;
+        private int current = 0;
+
+        ByteBufferListInputStream( List<ByteBuffer> buffers ) {
+            this.buffers = buffers;
+        }
+
+        @Override
+        public int read() throws IOException {
+            ByteBuffer buffer = nextBuffer();
+            return buffer == null ? -1 : buffer.get() & 0xff;
+        }
+
+        @Override
+        public int read( byte[] b, int off, int len ) throws IOException {
+            if ( len == 0 ) return 0;
+            ByteBuffer buffer = nextBuffer();
+            if ( buffer == null ) return -1;
+            int count = Math.min( len, buffer.remaining() );
+            buffer.get( b, off, count );
+            return count;
+        }
+
+        @Override
+        public long skip( long n ) throws IOException {
+            long skipped = 0;
+            ByteBuffer buffer;
+            while ( skipped < n && (buffer = nextBuffer()) != null ) {
+                int count = (int) Math.min( n - skipped, buffer.remaining() );
+                buffer.position( buffer.position() + count );
+                skipped += count;
+            }
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            ByteBuffer buffer = nextBuffer();
+            return buffer == null ? 0 : buffer.remaining();
+        }
+
+        private ByteBuffer nextBuffer() {
+            while ( current < buffers.size() ) {
+                ByteBuffer buffer = buffers.get( current );
+                if ( buffer.hasRemaining() ) return buffer;
+                current++;
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,339 @@
+/*
+ * Copyright 2014 EMC Corporation. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.emc.atmos.api.cache;
+
+import com.emc.atmos.AtmosException;
+import com.emc.atmos.api.ObjectId;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A size-bounded, least-recently-used store of object content segments on local disk. Objects are split into
+ * fixed-size segments so that range reads only need the segments they touch. Each segment is stored in its own file
+ * under a directory named for the object ID:
+ * <pre>
+ * &lt;cacheDir&gt;/&lt;objectId&gt;/&lt;version&gt;.&lt;segment&gt;
+ * </pre>
+ * The version is an opaque marker (i.e. size and mtime) supplied by the caller; a segment is only returned if it was
+ * stored under the same version. Only one version of each object is kept; storing a segment of a new version deletes
+ * the segments of the old one. Segments are returned as read-only memory-mapped buffers.
+ * <p/>
+ * The index is rebuilt from the directory when the cache is opened, so the cache survives restarts. All methods are
+ * thread-safe.
+ */
+public class DiskContentCache {
+    private static final Logger l4j = Logger.getLogger( DiskContentCache.class );
+
+    public static final int DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024; // 4MB
+    public static final long DEFAULT_MAX_SIZE = 1024L * 1024 * 1024; // 1GB
+
+    private static final String TEMP_PREFIX = ".tmp";
+
+    private File cacheDir;
+    private long maxSize;
+    private int segmentSize;
+    private long currentSize;
+    private LinkedHashMap<String, Long> index = new LinkedHashMap<String, Long>( 256, 0.75f, true );
+    private Map<String, CachedObject> objects = new HashMap<String, CachedObject>();
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    public DiskContentCache( File cacheDir ) {
+        this( cacheDir, DEFAULT_MAX_SIZE, DEFAULT_SEGMENT_SIZE );
+    }
+
+    /**
+     * Opens (or creates) a cache in the given directory.
+     *
+     * @param cacheDir    the directory to store segments in. Should not be used for anything else.
+     * @param maxSize     the maximum number of bytes to keep on disk.
+     * @param segmentSize the size of each cached segment.
+     */
+    public DiskContentCache( File cacheDir, long maxSize, int segmentSize ) {
+        if ( segmentSize < 1 ) throw new IllegalArgumentException( "segmentSize must be positive" );
+        if ( maxSize < segmentSize ) throw new IllegalArgumentException( "maxSize must be at least one segment" );
+        this.cacheDir = cacheDir;
+        this.maxSize = maxSize;
+        this.segmentSize = segmentSize;
+
+        if ( !cacheDir.exists() && !cacheDir.mkdirs() )
+            throw new AtmosException( "Could not create cache directory " + cacheDir );
+        load();
+    }
+
+    /**
+     * Returns the given segment as a read-only mapped buffer, or null if it is not cached under this version.
+     */
+    public synchronized ByteBuffer getSegment( ObjectId oid, String version, int segment ) {
+        String key = key( oid, version, segment );
+        if ( index.get( key ) == null ) {
+            misses++;
+            return null;
+        }
+        try {
+            ByteBuffer buffer = map( file( key ) );
+            hits++;
+            return buffer;
+        } catch ( IOException e ) {
+            // the file went missing or is unreadable; forget it
+            l4j.warn( "Dropping unreadable cache segment " + key, e );
+            remove( key );
+            misses++;
+            return null;
+        }
+    }
+
+    /**
+     * Stores a segment and returns it as a mapped buffer. Least-recently-used segments are evicted to make room.
+     *
+     * @param data   buffer holding the segment data.
+     * @param offset offset of the segment data in the buffer.
+     * @param length length of the segment.
+     */
+    public ByteBuffer putSegment( ObjectId oid, String version, int segment, byte[] data, int offset, int length ) {
+        String key = key( oid, version, segment );
+        File target = file( key );
+        File dir = target.getParentFile();
+        try {
+            if ( !dir.exists() && !dir.mkdirs() && !dir.exists() )
+                throw new IOException( "Could not create directory " + dir );
+
+            // write to a temp file first so readers never see a partial segment
+            File temp = File.createTempFile( TEMP_PREFIX, null, dir );
+            FileOutputStream out = new FileOutputStream( temp );
+            try {
+                out.write( data, offset, length );
+            } finally {
+                out.close();
+            }
+
+            synchronized ( this ) {
+                if ( !temp.renameTo( target ) ) {
+                    target.delete();
+                    if ( !temp.renameTo( target ) ) {
+                        temp.delete();
+                        throw new IOException( "Could not rename " + temp + " to " + target );
+                    }
+                }
+                discardOtherVersions( oid.toString(), version );
+                Long previous = index.put( key, (long) length );
+                if ( previous != null ) currentSize -= previous;
+                else added( key );
+                currentSize += length;
+                evict( key );
+                return map( target );
+            }
+        } catch ( IOException e ) {
+            throw new AtmosException( "Error writing cache segment " + target, e );
+        }
+    }
+
+    /**
+     * Removes every cached segment of the given object, regardless of version.
+     */
+    public synchronized void invalidate( ObjectId oid ) {
+        String prefix = oid.toString() + "/";
+        for ( Iterator<Map.Entry<String, Long>> i = index.entrySet().iterator(); i.hasNext(); ) {
+            Map.Entry<String, Long> entry = i.next();
+            if ( entry.getKey().startsWith( prefix ) ) {
+                deleteFile( file( entry.getKey() ) );
+                currentSize -= entry.getValue();
+                i.remove();
+            }
+        }
+        objects.remove( oid.toString() );
+        File dir = new File( cacheDir, oid.toString() );
+        dir.delete(); // only succeeds if empty
+    }
+
+    /**
+     * Removes every cached segment.
+     */
+    public synchronized void clear() {
+        for ( String key : new ArrayList<String>( index.keySet() ) ) {
+            remove( key );
+        }
+    }
+
+    public int getSegmentSize() {
+        return segmentSize;
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    public synchronized long getCurrentSize() {
+        return currentSize;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public File getCacheDir() {
+        return cacheDir;
+    }
+
+    private void evict( String keep ) {
+        Iterator<Map.Entry<String, Long>> i = index.entrySet().iterator();
+        while ( currentSize > maxSize && i.hasNext() ) {
+            Map.Entry<String, Long> eldest = i.next();
+            if ( eldest.getKey().equals( keep ) ) continue;
+            l4j.debug( "Evicting cache segment " + eldest.getKey() );
+            deleteFile( file( eldest.getKey() ) );
+            currentSize -= eldest.getValue();
+            evictions++;
+            i.remove();
+            removed( eldest.getKey() );
+        }
+    }
+
+    private void remove( String key ) {
+        Long size = index.remove( key );
+        if ( size != null ) {
+            currentSize -= size;
+            removed( key );
+        }
+        deleteFile( file( key ) );
+    }
+
+    /**
+     * Deletes the segments of any other version of the object; they can never be returned again.
+     */
+    private void discardOtherVersions( String oid, String version ) {
+        CachedObject object = objects.get( oid );
+        if ( object == null || object.version.equals( version ) ) return;
+        l4j.debug( "Discarding version " + object.version + " of " + oid );
+        String prefix = oid + "/" + object.version + ".";
+        for ( Iterator<Map.Entry<String, Long>> i = index.entrySet().iterator(); i.hasNext(); ) {
+            Map.Entry<String, Long> entry = i.next();
+            if ( entry.getKey().startsWith( prefix ) ) {
+                deleteFile( file( entry.getKey() ) );
+                currentSize -= entry.getValue();
+                i.remove();
+            }
+        }
+        objects.remove( oid );
+    }
+
+    private void added( String key ) {
+        String oid = key.substring( 0, key.indexOf( '/' ) );
+        CachedObject object = objects.get( oid );
+        if ( object == null ) {
+            object = new CachedObject();
+            object.version = key.substring( oid.length() + 1, key.lastIndexOf( '.' ) );
+            objects.put( oid, object );
+        }
+        object.segments++;
+    }
+
+    private void removed( String key ) {
+        String oid = key.substring( 0, key.indexOf( '/' ) );
+        CachedObject object = objects.get( oid );
+        if ( object != null && --object.segments == 0 ) objects.remove( oid );
+    }
+
+    private void load() {
+        List<File> segments = new ArrayList<File>();
+        File[] dirs = cacheDir.listFiles();
+        if ( dirs == null ) return;
+        for ( File dir : dirs ) {
+            if ( !dir.isDirectory() ) continue;
+            File[] files = dir.listFiles();
+            if ( files == null ) continue;
+            for ( File f : files ) {
+                if ( f.getName().startsWith( TEMP_PREFIX ) ) deleteFile( f ); // left behind by a crash
+                else segments.add( f );
+            }
+        }
+
+        // oldest first so the LRU order roughly matches the previous run
+        File[] sorted = segments.toArray( new File[segments.size()] );
+        Arrays.sort( sorted, new Comparator<File>() {
+            @Override
+            public int compare( File a, File b ) {
+                long diff = a.lastModified() - b.lastModified();
+                return diff < 0 ? -1 : (diff == 0 ? 0 : 1);
+            }
+        } );
+        for ( File f : sorted ) {
+            String oid = f.getParentFile().getName(), name = f.getName();
+            if ( name.lastIndexOf( '.' ) < 0 ) continue;
+            // the newest version wins
+            discardOtherVersions( oid, name.substring( 0, name.lastIndexOf( '.' ) ) );
+            String key = oid + "/" + name;
+            index.put( key, f.length() );
+            added( key );
+            currentSize += f.length();
+        }
+        evict( null );
+        l4j.debug( "Loaded " + index.size() + " cache segments (" + currentSize + " bytes) from " + cacheDir );
+    }
+
+    private String key( ObjectId oid, String version, int segment ) {
+        return oid + "/" + version + "." + segment;
+    }
+
+    private File file( String key ) {
+        return new File( cacheDir, key );
+    }
+
+    private static MappedByteBuffer map( File file ) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile( file, "r" );
+        try {
+            // the mapping stays valid after the channel is closed
+            return raf.getChannel().map( FileChannel.MapMode.READ_ONLY, 0, raf.length() );
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static void deleteFile( File file ) {
+        if ( file.exists() && !file.delete() ) l4j.warn( "Could not delete cache file " + file );
+    }
+
+    /**
+     * The version of an object that is cached and how many of its segments are stored.
+     */
+    private static class CachedObject {
+        String version;
+        int segments;
+    }
+}
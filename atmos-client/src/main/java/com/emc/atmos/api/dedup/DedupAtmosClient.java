@@ -0,0 +1,487 @@
+/*
+ * Copyright 2014 EMC Corporation. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.emc.atmos.api.dedup;
+
+import com.emc.atmos.AtmosException;
+import com.emc.atmos.api.*;
+import com.emc.atmos.api.bean.BasicResponse;
+import com.emc.atmos.api.bean.CreateObjectResponse;
+import com.emc.atmos.api.bean.Metadata;
+import com.emc.atmos.api.bean.ReadObjectResponse;
+import com.emc.atmos.api.request.CreateObjectRequest;
+import com.emc.atmos.api.request.PutObjectRequest;
+import com.emc.atmos.api.request.ReadObjectRequest;
+import com.emc.atmos.api.request.UpdateObjectRequest;
+import com.emc.vipr.transform.TransformConstants;
+import com.emc.vipr.transform.dedup.ChunkIndex;
+import com.emc.vipr.transform.dedup.ContentDefinedChunker;
+import com.emc.vipr.transform.dedup.DedupManifest;
+import com.emc.vipr.transform.dedup.DedupManifest.ChunkRef;
+import com.emc.vipr.transform.util.DaemonThreadFactory;
+import org.apache.log4j.Logger;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Deduplicates object content. Content written through this client is split into content-defined chunks (see
+ * {@link ContentDefinedChunker}) and each chunk is looked up by its hash in a local {@link ChunkIndex}. Only chunks
+ * that aren't in the index are uploaded, each as its own object. The object itself is written as a small manifest
+ * that lists its chunks. Reads of a manifest fetch its chunks in parallel and return the original content.
+ * <p/>
+ * Wrap an {@link com.emc.atmos.api.encryption.AtmosEncryptionClient} to compress and/or encrypt each chunk:
+ * <pre>
+ *     AtmosApi atmos = new DedupAtmosClient( new AtmosEncryptionClient( client, transforms ),
+ *                                            new ChunkIndex( new File( "/var/lib/atmos/chunks.idx" ) ) );
+ * </pre>
+ * Chunks may be shared by any number of objects, so deleting an object does not delete its chunks. Objects written
+ * with a range update can't be deduplicated, and range updates of manifests are not supported. Reads of types other
+ * than byte[] and InputStream return the manifest itself.
+ * <p/>
+ * Whether an object is a manifest is learned from the metadata returned with each read and from writes through this
+ * client, so range reads and updates don't need a separate metadata request. Only a range update of an object this
+ * client hasn't read or written checks the object's metadata first. If another client replaces a plain object with a
+ * manifest (or the reverse), read it once before updating a range of it.
+ */
+public class DedupAtmosClient extends DelegatingAtmosApi {
+    private static final Logger l4j = Logger.getLogger( DedupAtmosClient.class );
+
+    public static final int DEFAULT_THREADS = 4;
+    private static final int MAX_KNOWN_OBJECTS = 10000;
+
+    private static final String CHUNK_CONTENT_TYPE = "application/octet-stream";
+    private static final String PARTIAL_UPDATE_MSG = "Partial updates are not supported on deduplicated objects";
+    private static final String PARTIAL_READ_MSG = "Multiple ranges are not supported on deduplicated objects";
+
+    private ChunkIndex index;
+    private ExecutorService executor;
+    private int readAhead;
+    private int minChunkSize = ContentDefinedChunker.DEFAULT_MIN_SIZE;
+    private int averageChunkSize = ContentDefinedChunker.DEFAULT_AVERAGE_SIZE;
+    private int maxChunkSize = ContentDefinedChunker.DEFAULT_MAX_SIZE;
+    private AtomicLong bytesStored = new AtomicLong();
+    private AtomicLong bytesDeduplicated = new AtomicLong();
+    private Map<ObjectIdentifier, Boolean> manifests = Collections.synchronizedMap(
+            new LinkedHashMap<ObjectIdentifier, Boolean>( 256, 0.75f, true ) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry( Map.Entry<ObjectIdentifier, Boolean> eldest ) {
+                    return size() > MAX_KNOWN_OBJECTS;
+                }
+            } );
+
+    public DedupAtmosClient( AtmosApi delegate, ChunkIndex index ) {
+        this( delegate, index, DEFAULT_THREADS );
+    }
+
+    /**
+     * @param threads the number of chunks fetched in parallel when reading.
+     */
+    public DedupAtmosClient( AtmosApi delegate, ChunkIndex index, int threads ) {
+        super( delegate );
+        if ( threads < 1 ) throw new IllegalArgumentException( "threads must be at least 1" );
+        this.index = index;
+        this.readAhead = threads * 2;
+        this.executor = Executors.newFixedThreadPool( threads, new DaemonThreadFactory( "dedup-chunk" ) );
+    }
+
+    @Override
+    public ObjectId createObject( Object content, String contentType ) {
+        return createObject( new CreateObjectRequest().content( content ).contentType( contentType ) ).getObjectId();
+    }
+
+    @Override
+    public ObjectId createObject( ObjectIdentifier identifier, Object content, String contentType ) {
+        return createObject( new CreateObjectRequest().identifier( identifier ).content( content )
+                                                      .contentType( contentType ) ).getObjectId();
+    }
+
+    @Override
+    public CreateObjectResponse createObject( CreateObjectRequest request ) {
+        setManifest( request, storeChunks( request.getContent() ) );
+        CreateObjectResponse response = delegate.createObject( request );
+        manifests.put( response.getObjectId(), Boolean.TRUE );
+        if ( request.getIdentifier() != null ) manifests.put( request.getIdentifier(), Boolean.TRUE );
+        return response;
+    }
+
+    @Override
+    public void updateObject( ObjectIdentifier identifier, Object content ) {
+        updateObject( new UpdateObjectRequest().identifier( identifier ).content( content ) );
+    }
+
+    @Override
+    public void updateObject( ObjectIdentifier identifier, Object content, Range range ) {
+        updateObject( new UpdateObjectRequest().identifier( identifier ).content( content ).range( range ) );
+    }
+
+    @Override
+    public BasicResponse updateObject( UpdateObjectRequest request ) {
+        if ( request.getRange() != null ) {
+            Boolean manifest = manifests.get( request.getIdentifier() );
+            if ( manifest == null ) manifest = isManifest( request.getIdentifier() );
+            if ( manifest ) throw new UnsupportedOperationException( PARTIAL_UPDATE_MSG );
+            return delegate.updateObject( request );
+        }
+        setManifest( request, storeChunks( request.getContent() ) );
+        BasicResponse response = delegate.updateObject( request );
+        manifests.put( request.getIdentifier(), Boolean.TRUE );
+        return response;
+    }
+
+    @Override
+    public void delete( ObjectIdentifier identifier ) {
+        try {
+            delegate.delete( identifier );
+        } finally {
+            manifests.remove( identifier );
+        }
+    }
+
+    @Override
+    public <T> T readObject( ObjectIdentifier identifier, Class<T> objectType ) throws IOException {
+        return readObject( new ReadObjectRequest().identifier( identifier ), objectType ).getObject();
+    }
+
+    @Override
+    public <T> T readObject( ObjectIdentifier identifier, Range range, Class<T> objectType ) throws IOException {
+        return readObject( new ReadObjectRequest().identifier( identifier ).ranges( range ), objectType ).getObject();
+    }
+
+    @Override
+    public <T> ReadObjectResponse<T> readObject( ReadObjectRequest request, Class<T> objectType )
+            throws IOException {
+        if ( !byte[].class.equals( objectType ) && !InputStream.class.equals( objectType ) )
+            return delegate.readObject( request, objectType );
+
+        Range range = null;
+        ReadObjectResponse<InputStream> response = null;
+        AtmosException rangeError = null;
+        if ( request.getRanges() != null && !request.getRanges().isEmpty() ) {
+            // send the range as requested; the response metadata says whether it was a range of a manifest
+            try {
+                response = delegate.readObject( request, InputStream.class );
+            } catch ( AtmosException e ) {
+                // the range may only be past the end of the (much smaller) manifest
+                if ( e.getHttpCode() != 416 ) throw e;
+                rangeError = e;
+            }
+            if ( response != null && !isManifest( response ) ) {
+                manifests.put( request.getIdentifier(), Boolean.FALSE );
+                return convert( response, objectType );
+            }
+            if ( response != null ) response.getObject().close();
+
+            // a range of a manifest is meaningless; read the whole manifest instead
+            if ( request.getRanges().size() > 1 ) throw new UnsupportedOperationException( PARTIAL_READ_MSG );
+            range = request.getRanges().get( 0 );
+            request = new ReadObjectRequest().identifier( request.getIdentifier() );
+        }
+
+        response = delegate.readObject( request, InputStream.class );
+        InputStream in = response.getObject();
+        boolean hasManifest = isManifest( response );
+        manifests.put( request.getIdentifier(), hasManifest );
+        if ( rangeError != null && !hasManifest ) {
+            in.close();
+            throw rangeError;
+        }
+        if ( hasManifest ) {
+            DedupManifest manifest;
+            try {
+                manifest = DedupManifest.parse( in );
+            } finally {
+                in.close();
+            }
+            long first = 0, last = manifest.getSize() - 1;
+            if ( range != null ) {
+                first = range.getFirst();
+                last = Math.min( range.getLast(), last );
+                // same error Atmos gives for a plain object
+                if ( first > last ) throw new AtmosException( "Range " + range + " is past the end of "
+                                                              + request.getIdentifier(), 416 );
+            }
+            in = new ChunkInputStream( manifest, first, last );
+            response.setContentLength( last - first + 1 );
+            response.setHttpStatus( range == null ? 200 : 206 );
+            response.setObject( in );
+        }
+        return convert( response, objectType );
+    }
+
+    @Override
+    public ReadObjectResponse<InputStream> readObjectStream( ObjectIdentifier identifier, Range range ) {
+        try {
+            return readObject( new ReadObjectRequest().identifier( identifier ).ranges( range ), InputStream.class );
+        } catch ( IOException e ) {
+            throw new AtmosException( "Error getting response stream: " + e, e );
+        }
+    }
+
+    /**
+     * Returns true if the object was written by this client (its content is a manifest). Always checks the object's
+     * metadata.
+     */
+    public boolean isManifest( ObjectIdentifier identifier ) {
+        boolean manifest = delegate.getUserMetadata( identifier, TransformConstants.META_DEDUP_MANIFEST )
+                                   .get( TransformConstants.META_DEDUP_MANIFEST ) != null;
+        manifests.put( identifier, manifest );
+        return manifest;
+    }
+
+    private boolean isManifest( ReadObjectResponse<?> response ) {
+        return response.getMetadata().getMetadata().get( TransformConstants.META_DEDUP_MANIFEST ) != null;
+    }
+
+    /**
+     * Splits the content into chunks and uploads any that aren't in the index.
+     */
+    protected DedupManifest storeChunks( Object content ) {
+        InputStream in = toInputStream( content );
+        ContentDefinedChunker chunker = new ContentDefinedChunker( in, minChunkSize, averageChunkSize,
+                                                                   maxChunkSize );
+        DedupManifest manifest = new DedupManifest();
+        try {
+            byte[] chunk;
+            while ( (chunk = chunker.nextChunk()) != null ) {
+                String hash = DedupManifest.hash( chunk );
+                String location = index.get( hash );
+                if ( location == null ) {
+                    location = delegate.createObject( chunk, CHUNK_CONTENT_TYPE ).getId();
+                    index.put( hash, location );
+                    bytesStored.addAndGet( chunk.length );
+                } else {
+                    bytesDeduplicated.addAndGet( chunk.length );
+                }
+                manifest.addChunk( new ChunkRef( hash, chunk.length, location ) );
+            }
+            in.close();
+        } catch ( IOException e ) {
+            throw new AtmosException( "Error storing chunks: " + e, e );
+        }
+        l4j.debug( "Stored " + manifest.getChunks().size() + " chunks (" + manifest.getSize() + " bytes)" );
+        return manifest;
+    }
+
+    private void setManifest( PutObjectRequest<?> request, DedupManifest manifest ) {
+        byte[] content = manifest.toBytes();
+        request.setContent( content );
+        request.setContentLength( content.length );
+        request.setWsChecksum( null ); // covered the original content
+
+        List<Metadata> metadata = new ArrayList<Metadata>( request.getUserMetadata() );
+        metadata.add( new Metadata( TransformConstants.META_DEDUP_MANIFEST, DedupManifest.VERSION, false ) );
+        metadata.add( new Metadata( TransformConstants.META_DEDUP_SIZE, "" + manifest.getSize(), false ) );
+        metadata.add( new Metadata( TransformConstants.META_DEDUP_CHUNKS, "" + manifest.getChunks().size(),
+                                    false ) );
+        request.setUserMetadata( metadata );
+    }
+
+    private InputStream toInputStream( Object content ) {
+        if ( content == null ) return new ByteArrayInputStream( new byte[0] );
+        if ( content instanceof InputStream ) return (InputStream) content;
+        if ( content instanceof String ) return new ByteArrayInputStream( ((String) content).getBytes() );
+        if ( content instanceof byte[] ) return new ByteArrayInputStream( (byte[]) content );
+        throw new IllegalArgumentException( "Content must be a byte[], String or InputStream" );
+    }
+
+    private <T> ReadObjectResponse<T> convert( ReadObjectResponse<InputStream> response, Class<T> objectType )
+            throws IOException {
+        ReadObjectResponse<T> ret = new ReadObjectResponse<T>( objectType.cast( convert( response.getObject(),
+                                                                                         objectType ) ) );
+        ret.setMetadata( response.getMetadata() );
+        ret.setContentType( response.getContentType() );
+        ret.setContentLength( response.getContentLength() );
+        ret.setHttpStatus( response.getHttpStatus() );
+        return ret;
+    }
+
+    private Object convert( InputStream in, Class<?> objectType ) throws IOException {
+        if ( InputStream.class.equals( objectType ) ) return in;
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[64 * 1024];
+        try {
+            int c;
+            while ( (c = in.read( buffer )) != -1 ) {
+                out.write( buffer, 0, c );
+            }
+        } finally {
+            in.close();
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Stops the threads that fetch chunks. Call this when the client is no longer needed.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    public ChunkIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * Returns the number of chunks fetched ahead of the reader. Defaults to twice the number of threads.
+     */
+    public int getReadAhead() {
+        return readAhead;
+    }
+
+    public void setReadAhead( int readAhead ) {
+        if ( readAhead < 1 ) throw new IllegalArgumentException( "readAhead must be at least 1" );
+        this.readAhead = readAhead;
+    }
+
+    /**
+     * Sets the chunk sizes (see {@link ContentDefinedChunker}). Changing the sizes moves every chunk boundary, so
+     * content written before the change will no longer deduplicate. The average size must be a power of 2.
+     */
+    public void setChunkSizes( int minChunkSize, int averageChunkSize, int maxChunkSize ) {
+        this.minChunkSize = minChunkSize;
+        this.averageChunkSize = averageChunkSize;
+        this.maxChunkSize = maxChunkSize;
+    }
+
+    /**
+     * Returns the number of bytes of chunks uploaded.
+     */
+    public long getBytesStored() {
+        return bytesStored.get();
+    }
+
+    /**
+     * Returns the number of bytes of chunks that were already stored and not uploaded again.
+     */
+    public long getBytesDeduplicated() {
+        return bytesDeduplicated.get();
+    }
+
+    private class ChunkFetch implements Callable<byte[]> {
+        private ChunkRef chunk;
+
+        ChunkFetch( ChunkRef chunk ) {
+            this.chunk = chunk;
+        }
+
+        @Override
+        public byte[] call() throws Exception {
+            byte[] data = delegate.readObject( new ObjectId( chunk.getLocation() ), byte[].class );
+            if ( data.length != chunk.getLength() || !chunk.getHash().equals( DedupManifest.hash( data ) ) )
+                throw new IOException( "Chunk " + chunk.getLocation() + " does not match its hash "
+                                       + chunk.getHash() );
+            return data;
+        }
+    }
+
+    /**
+     * Streams the content of a manifest, fetching the next chunks in parallel while the current one is read.
+     */
+    private class ChunkInputStream extends InputStream {
+        private Iterator<ChunkRef> chunks;
+        private LinkedList<Future<byte[]>> fetches = new LinkedList<Future<byte[]>>();
+        private long skip;
+        private long remaining;
+        private byte[] current;
+        private int pos;
+
+        /**
+         * @param first the first byte to return.
+         * @param last the last byte to return (inclusive).
+         */
+        ChunkInputStream( DedupManifest manifest, long first, long last ) {
+            // find the chunks that hold the range
+            List<ChunkRef> needed = new ArrayList<ChunkRef>();
+            long offset = 0;
+            for ( ChunkRef chunk : manifest.getChunks() ) {
+                long end = offset + chunk.getLength();
+                if ( end > first && offset <= last ) {
+                    if ( needed.isEmpty() ) skip = first - offset;
+                    needed.add( chunk );
+                }
+                offset = end;
+            }
+            this.chunks = needed.iterator();
+            this.remaining = needed.isEmpty() ? 0 : last - first + 1;
+            fetchAhead();
+        }
+
+        private void fetchAhead() {
+            while ( fetches.size() < readAhead && chunks.hasNext() ) {
+                fetches.add( executor.submit( new ChunkFetch( chunks.next() ) ) );
+            }
+        }
+
+        private boolean nextChunk() throws IOException {
+            if ( remaining == 0 ) return false;
+            while ( current == null || pos == current.length ) {
+                if ( fetches.isEmpty() ) return false;
+                try {
+                    current = fetches.removeFirst().get();
+                } catch ( InterruptedException e ) {
+                    throw new InterruptedIOException( "Interrupted fetching chunk" );
+                } catch ( ExecutionException e ) {
+                    if ( e.getCause() instanceof IOException ) throw (IOException) e.getCause();
+                    throw new IOException( "Error fetching chunk: " + e.getCause(), e.getCause() );
+                }
+                pos = (int) skip;
+                skip = 0;
+                fetchAhead();
+            }
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if ( !nextChunk() ) return -1;
+            remaining--;
+            return current[pos++] & 0xff;
+        }
+
+        @Override
+        public int read( byte[] b, int off, int len ) throws IOException {
+            if ( len == 0 ) return 0;
+            if ( !nextChunk() ) return -1;
+            int count = (int) Math.min( Math.min( len, current.length - pos ), remaining );
+            System.arraycopy( current, pos, b, off, count );
+            pos += count;
+            remaining -= count;
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return current == null ? 0 : (int) Math.min( current.length - pos, remaining );
+        }
+
+        @Override
+        public void close() {
+            for ( Future<byte[]> fetch : fetches ) {
+                fetch.cancel( true );
+            }
+            fetches.clear();
+            remaining = 0;
+        }
+    }
+}
@@ -18,14 +18,23 @@ import com.emc.atmos.AtmosException;
 import com.emc.atmos.api.*;
 import com.emc.atmos.api.bean.*;
 import com.emc.atmos.api.request.*;
+import com.emc.util.StreamUtil;
 import com.emc.vipr.transform.*;
+import com.emc.vipr.transform.compression.CompressionLevelController;
+import com.emc.vipr.transform.compression.CompressionTransformFactory;
+import com.emc.vipr.transform.encryption.ChunkedCipher;
 import com.emc.vipr.transform.encryption.DoesNotNeedRekeyException;
 import com.emc.vipr.transform.encryption.EncryptionTransformFactory;
+import com.emc.vipr.transform.util.ReadAheadInputStream;
+import org.apache.log4j.Logger;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.io.SequenceInputStream;
 import java.net.MalformedURLException;
 import java.net.URISyntaxException;
 import java.net.URL;
@@ -96,27 +105,44 @@ import java.util.*;
  * After you have your AtmosEncryptionClient constructed, you may use it like any other
  * AtmosApi instance with the following limitations:
  * <ul>
- * <li>Byte range (partial) reads are not supported
- * <li>Byte range (partial) updates including appends are not supported.
+ * <li>Byte range (partial) reads are only supported for single ranges of objects that
+ * are not compressed and are either unencrypted or encrypted in the seekable or
+ * updatable mode (see {@link EncryptionConfig#setSeekable(boolean)} and
+ * {@link EncryptionConfig#setUpdatable(boolean)}).  Each range read gets the 
+ * object's metadata before its content, since the stored range depends on how the
+ * object was encrypted.
+ * <li>Byte range (partial) updates including appends are only supported for objects
+ * that are encrypted in the updatable mode (and not compressed), and only after they
+ * are enabled with {@link #setAllowPartialUpdates(boolean)}.
  * <li>Shareable URLs and access tokens are not supported because there is no way to
  * decompress and/or decrypt the content for the receiver.
  * </ul>
  */
 public class AtmosEncryptionClient implements AtmosApi {
+    private static final Logger l4j = Logger.getLogger(AtmosEncryptionClient.class);
     private static final String UNSUPPORTED_MSG = "This operation is not supported by "
             + "the encryption client";
     private static final String PARTIAL_UPDATE_MSG = "Partial object updates and/or "
-            + "appends are not supported by the encryption client";
-    private static final String PARTIAL_READ_MSG = "Partial object reads are not "
-            + "supported by the encryption client"; 
+            + "appends are only supported by the encryption client for objects that are "
+            + "not compressed and use updatable encryption, and must be enabled with "
+            + "setAllowPartialUpdates";
+    private static final String PARTIAL_READ_MSG = "Partial object reads are only "
+            + "supported by the encryption client for single ranges of objects that are "
+            + "not compressed and are unencrypted or use seekable or updatable encryption";
     private static final String UNSUPPORTED_TYPE_MSG = "Only InputStream, String, and "
             + "byte[] content are supported";
+    private static final String SIZE_META = "size";
 
     private static final int DEFAULT_BUFFER_SIZE = 4096*1024;
+    private static final int DEFAULT_PIPELINE_DEPTH = 1;
     
     private AtmosApi delegate;
     private TreeSet<TransformFactory<?, ?>> factories;
     private int bufferSize = DEFAULT_BUFFER_SIZE;
+    private boolean allowPartialUpdates = false;
+    private int pipelineDepth = DEFAULT_PIPELINE_DEPTH;
+    private int readAheadBuffers = 0;
+    private boolean intermediateDigests = false;
 
     /**
      * Creates a new AtmosEncryptionClient.
@@ -278,22 +304,7 @@ public class AtmosEncryptionClient implements AtmosApi {
     @Override
     public CreateObjectResponse createObject(CreateObjectRequest request) {
         // We can only handle input streams since we need to transform
-        InputStream in = null;
-        if(request.getContent() != null) {
-            Object content = request.getContent();
-            if(content instanceof InputStream) {
-                in = (InputStream)content;
-            } else if(content instanceof String) {
-                in = new ByteArrayInputStream(((String)content).getBytes());
-            } else if(content instanceof byte[]) {
-                in = new ByteArrayInputStream((byte[])content);
-            } else {
-                throw new IllegalArgumentException(UNSUPPORTED_TYPE_MSG);
-            }
-        } else {
-            // If there was no content, create an empty InputStream
-            in = new ByteArrayInputStream(new byte[0]);
-        }
+        InputStream in = toInputStream(request.getContent());
         
         // Make metadata into a Map.
         Map<String, String> mMeta = null;
@@ -315,78 +326,122 @@ public class AtmosEncryptionClient implements AtmosApi {
         
         try {
             for(TransformFactory<?, ?> t : revFactories) {
-                OutputTransform ot = t.getOutputTransform(in, mMeta);
+                OutputTransform ot = getOutputTransform(t, in, mMeta, 
+                        request.getContentType(), appliedTransforms.isEmpty());
                 appliedTransforms.add(ot);
                 in = ot.getEncodedInputStream();
             }
         } catch(TransformException e) {
+            closeAfterFailure(in);
             throw new AtmosException("Could not transform data: " + e, e);
         } catch (IOException e) {
+            closeAfterFailure(in);
             throw new AtmosException("Error transforming data: " + e, e);
         }
         
         // Create the object
         int c = 0;
-        int pos = 0;
         byte[] buffer = new byte[bufferSize];
         
         // Read the first chunk and send it with the create request.
         try {
             c = fillBuffer(buffer, in);
         } catch (IOException e) {
+            closeAfterFailure(in);
             throw new AtmosException("Error reading input data: " + e, e);
         }
-        if(c == -1) {
-            // EOF already
-            request.setContent(null);
-            
-            // Optmization -- send metadata now with create request and return
-            try {
-                in.close();
-            } catch (IOException e) {
-                throw new AtmosException("Error closing input: " + e, e);
-            }
-            for(OutputTransform ot : appliedTransforms) {
-                mMeta.putAll(ot.getEncodedMetadata());
-            }
-            Set<Metadata> metadata = request.getUserMetadata();
-            if(metadata == null) {
-                metadata = new HashSet<Metadata>();
-            }
-            updateMetadata(mMeta, metadata);
-            request.setUserMetadata(metadata);
-            
+        if(c < buffer.length) {
+            // The whole object fits in one buffer (fillBuffer only returns a short 
+            // read at EOF).  Optimization -- finish the transforms and send the 
+            // content and metadata with the create request.
+            finishTransforms(request, in, buffer, c, appliedTransforms, mMeta);
             return delegate.createObject(request);
-        } else {
-            request.setContent(new BufferSegment(buffer, 0, c));
         }
-        CreateObjectResponse resp = delegate.createObject(request);
+        request.setContent(new BufferSegment(buffer, 0, c));
         
-        pos = c;
-        
-        // Append until EOF.
+        // Start transforming the next buffer while the first one is sent.
+        in = startPipeline(in);
+        CreateObjectResponse resp;
         try {
-            while((c = fillBuffer(buffer, in)) != -1) {
-                UpdateObjectRequest uor = new UpdateObjectRequest();
-                uor.setIdentifier(resp.getObjectId());
-                uor.setContentType(request.getContentType());
-                uor.setRange(new Range(pos, pos+c-1));
-                uor.setContent(new BufferSegment(buffer, 0, c));
-                pos += c;
-                delegate.updateObject(uor);
-            }
-        } catch (IOException e) {
-            throw new AtmosException("Error reading input data: " + e, e);
+            long start = System.nanoTime();
+            resp = delegate.createObject(request);
+            recordUpload(c, start);
+            
+            // Append until EOF.
+            appendRemaining(resp.getObjectId(), request.getContentType(), in, c, buffer);
+        } catch(RuntimeException e) {
+            closeAfterFailure(in);
+            throw e;
         }
         
+        // Update the object with the transformed metadata.
+        Collection<Metadata> updatedMetadata = encodeMetadata(appliedTransforms, mMeta, 
+                request.getUserMetadata());
+        delegate.setUserMetadata(resp.getObjectId(), 
+                updatedMetadata.toArray(new Metadata[updatedMetadata.size()]));
+
+        return resp;
+    }
+
+    /**
+     * Gets a factory's "pull" mode transform.  The compression factory is also given
+     * the content type so it can skip compressing types that don't compress.  Only 
+     * the first transform digests the original data unless intermediateDigests is set.
+     * @param first true if the transform reads the original data.
+     */
+    private OutputTransform getOutputTransform(TransformFactory<?, ?> t, InputStream in,
+            Map<String, String> mMeta, String contentType, boolean first) 
+            throws IOException, TransformException {
+        if(!first && !intermediateDigests) {
+            return t.getIntermediateOutputTransform(in, mMeta);
+        }
+        if(t instanceof CompressionTransformFactory) {
+            return ((CompressionTransformFactory) t).getOutputTransform(in, mMeta, contentType);
+        }
+        return t.getOutputTransform(in, mMeta);
+    }
+
+    /**
+     * Completes the transforms of an object that fit in a single buffer and sets the
+     * request's content and metadata so the object can be written with one request.
+     * @param request the create or update request.
+     * @param in the transformed stream.  It must be at EOF.
+     * @param buffer the buffer holding the transformed content.
+     * @param c the number of bytes in the buffer, or -1 if the content is empty.
+     * @param appliedTransforms the transforms applied to the content.
+     * @param mMeta the user metadata.  Updated with the transform metadata.
+     */
+    private void finishTransforms(PutObjectRequest<?> request, InputStream in, 
+            byte[] buffer, int c, List<OutputTransform> appliedTransforms, 
+            Map<String, String> mMeta) {
+        // Closing the stream completes the transforms' digests and sizes.
         try {
             in.close();
         } catch (IOException e) {
-            throw new AtmosException("Error closing stream: " + e, e);
+            throw new AtmosException("Error closing input: " + e, e);
         }
         
+        if(c == -1) {
+            request.setContent(null);
+        } else {
+            request.setContent(new BufferSegment(buffer, 0, c));
+        }
+        request.setUserMetadata(new HashSet<Metadata>(encodeMetadata(appliedTransforms, 
+                mMeta, request.getUserMetadata())));
+    }
+
+    /**
+     * Adds the metadata from a completed set of transforms, including the transform
+     * mode, to the user metadata.
+     * @param appliedTransforms the transforms applied to the content.  Their streams
+     * must be closed.
+     * @param mMeta the user metadata.  Updated with the transform metadata.
+     * @param userMetadata the request's metadata, or null if it has none.
+     * @return the merged metadata to write to the object.
+     */
+    private Collection<Metadata> encodeMetadata(List<OutputTransform> appliedTransforms, 
+            Map<String, String> mMeta, Collection<Metadata> userMetadata) {
         String transformConfig = "";
-        // Update the object with the transformed metadata.
         for(OutputTransform ot : appliedTransforms) {
             mMeta.putAll(ot.getEncodedMetadata());
             if(transformConfig.length() != 0) {
@@ -396,15 +451,97 @@ public class AtmosEncryptionClient implements AtmosApi {
         }
         mMeta.put(TransformConstants.META_TRANSFORM_MODE, transformConfig);
         
-        Set<Metadata> metadata = request.getUserMetadata();
-        if(metadata == null) {
-            metadata = new HashSet<Metadata>();
+        if(userMetadata == null) {
+            userMetadata = new HashSet<Metadata>();
         }
-        Collection<Metadata> updatedMetadata = updateMetadata(mMeta, metadata);
-        delegate.setUserMetadata(resp.getObjectId(), 
-                updatedMetadata.toArray(new Metadata[updatedMetadata.size()]));
+        return updateMetadata(mMeta, userMetadata);
+    }
 
-        return resp;
+    /**
+     * Starts transforming the rest of the stream into buffers in the background.
+     * @return a stream of the transformed data, or in if pipelining is disabled.
+     */
+    private InputStream startPipeline(InputStream in) {
+        if(pipelineDepth < 1) {
+            return in;
+        }
+        return new ReadAheadInputStream(in, bufferSize, pipelineDepth);
+    }
+
+    /**
+     * Closes the transformed stream after a failed upload so the transforms
+     * release their pooled resources.  With a pipeline, this waits for the
+     * background transform to stop first.
+     */
+    private void closeAfterFailure(InputStream in) {
+        try {
+            in.close();
+        } catch(Exception e) {
+            l4j.warn("Error closing stream after failed upload: " + e);
+        }
+    }
+
+    /**
+     * Appends the rest of the transformed stream to an object, one buffer per 
+     * request, and closes the stream.  With a pipeline, the next buffer is 
+     * transformed while the previous one is being sent.
+     * @param identifier the object to append to.
+     * @param contentType the object's content type.
+     * @param in the transformed stream.
+     * @param pos the number of bytes already written.
+     * @param buffer the buffer to read into.
+     */
+    private void appendRemaining(ObjectIdentifier identifier, String contentType, 
+            InputStream in, long pos, byte[] buffer) {
+        try {
+            int c = 0;
+            while((c = fillBuffer(buffer, in)) != -1) {
+                appendBuffer(identifier, contentType, pos, buffer, c);
+                pos += c;
+            }
+        } catch (IOException e) {
+            throw new AtmosException("Error reading input data: " + e, e);
+        }
+        
+        try {
+            in.close();
+        } catch (IOException e) {
+            throw new AtmosException("Error closing stream: " + e, e);
+        }
+    }
+
+    private void appendBuffer(ObjectIdentifier identifier, String contentType, long pos,
+            byte[] buffer, int c) {
+        UpdateObjectRequest uor = new UpdateObjectRequest();
+        uor.setIdentifier(identifier);
+        uor.setContentType(contentType);
+        uor.setRange(new Range(pos, pos+c-1));
+        uor.setContent(new BufferSegment(buffer, 0, c));
+        long start = System.nanoTime();
+        delegate.updateObject(uor);
+        if(c == buffer.length) {
+            recordUpload(c, start);
+        }
+    }
+
+    /**
+     * Reports the time taken to send a full buffer to the compression level 
+     * controller, if there is one.  Only full buffers are reported since the 
+     * request latency dominates small ones.
+     * @param bytes the number of bytes sent.
+     * @param start the value of System.nanoTime() when the request was started.
+     */
+    private void recordUpload(int bytes, long start) {
+        long nanos = System.nanoTime() - start;
+        for(TransformFactory<?, ?> t : factories) {
+            if(t instanceof CompressionTransformFactory) {
+                CompressionLevelController controller = 
+                        ((CompressionTransformFactory) t).getLevelController();
+                if(controller != null) {
+                    controller.recordUpload(bytes, nanos);
+                }
+            }
+        }
     }
 
     /**
@@ -415,7 +552,7 @@ public class AtmosEncryptionClient implements AtmosApi {
      * @return a buffer as full as possible
      * @throws IOException if an error occurs reading from the stream.
      */
-    private int fillBuffer(byte[] buffer, InputStream in) throws IOException{
+    static int fillBuffer(byte[] buffer, InputStream in) throws IOException{
         int read = 0;
         while(read < buffer.length) {
             int c = in.read(buffer, read, buffer.length-read);
@@ -497,9 +634,13 @@ public class AtmosEncryptionClient implements AtmosApi {
     public <T> ReadObjectResponse<T> readObject(ReadObjectRequest request,
             Class<T> objectType) throws IOException {
         
-        // Partial reads not currently supported.
+        // Only single range reads are supported (and only for some objects).
+        Range range = null;
         if(request.getRanges() != null && request.getRanges().size() > 0) {
-            throw new UnsupportedOperationException(PARTIAL_READ_MSG);            
+            if(request.getRanges().size() > 1) {
+                throw new UnsupportedOperationException(PARTIAL_READ_MSG);
+            }
+            range = request.getRanges().get(0);
         }
         
         // Validate we have an object type we can handle.
@@ -513,7 +654,18 @@ public class AtmosEncryptionClient implements AtmosApi {
         // Execute the request, getting it as an InputStream
         ReadObjectResponse<InputStream> rawResponse = null;
         try {
-            rawResponse = delegate.readObjectStream(request.getIdentifier(), null);
+            // Chunked objects are stored with a header and tag per chunk, so the
+            // stored range depends on the object's metadata.  Get that first so
+            // the content is only requested once.
+            int chunkSize = 0;
+            Range rawRange = range;
+            if(range != null) {
+                chunkSize = getStoredChunkSize(request.getIdentifier());
+                if(chunkSize > 0) {
+                    rawRange = getChunkRange(range, chunkSize);
+                }
+            }
+            rawResponse = delegate.readObjectStream(request.getIdentifier(), rawRange);
             
             // Process metadata.
             Map<String,String> rawMeta = metaToMap(rawResponse.getMetadata().getMetadata().values());
@@ -523,12 +675,44 @@ public class AtmosEncryptionClient implements AtmosApi {
             
             if(transformModes == null) {
                 // Object is not encoded.
+                checkChunkSize(chunkSize, 0);
                 return rewrap(rawResponse, objectType);
             }
             
             // Split
             String[] modes = transformModes.split("\\|");
             
+            if(range != null) {
+                // Only a single seekable transform can be decoded from an offset
+                TransformFactory<?, ?> f = findSeekableFactory(modes, rawMeta);
+                if(f == null) {
+                    throw new UnsupportedOperationException(PARTIAL_READ_MSG);
+                }
+                EncryptionTransformFactory<?, ?> ef = (EncryptionTransformFactory<?, ?>) f;
+                try {
+                    InputStream decoded;
+                    InputTransform trans;
+                    if(ef.isUpdatable(modes[0])) {
+                        // The response holds the whole chunks that hold the range.
+                        checkChunkSize(chunkSize, getChunkSize(rawMeta));
+                        trans = ef.getInputTransform(modes[0], rawResponse.getObject(),
+                                rawMeta, range.getFirst());
+                        decoded = new LimitInputStream(trans.getDecodedInputStream(), range.getSize());
+                    } else {
+                        checkChunkSize(chunkSize, 0);
+                        trans = ef.getInputTransform(modes[0], rawResponse.getObject(),
+                                rawMeta, range.getFirst());
+                        decoded = trans.getDecodedInputStream();
+                    }
+                    rawResponse.setObject(readAhead(decoded));
+                    updateMetadata(trans.getDecodedMetadata(), 
+                            rawResponse.getMetadata().getMetadata().values());
+                } catch (TransformException e) {
+                    throw new AtmosException("Error transforming object data: " + e, e);
+                }
+                return rewrap(rawResponse, objectType);
+            }
+            
             // During decode, we process transforms in reverse order.
             List<String> revModes = new ArrayList<String>();
             revModes.addAll(Arrays.asList(modes));
@@ -557,15 +741,145 @@ public class AtmosEncryptionClient implements AtmosApi {
             }
             
             // Update response with decoded data
-            rawResponse.setObject(streamToDecode);
+            rawResponse.setObject(readAhead(streamToDecode));
             updateMetadata(rawMeta, rawResponse.getMetadata().getMetadata().values());
             
             // If a non-InputStream was requested, refactor the response.
             return rewrap(rawResponse, objectType);
-        } finally {
+        } catch(IOException e) {
+            closeResponse(rawResponse);
+            throw e;
+        } catch(RuntimeException e) {
+            closeResponse(rawResponse);
+            throw e;
+        }
+
+    }
+
+    /**
+     * Closes the stream of a response that won't be returned to the caller.
+     */
+    private void closeResponse(ReadObjectResponse<InputStream> rawResponse) {
+        if(rawResponse == null || rawResponse.getObject() == null) {
+            return;
+        }
+        try {
             rawResponse.getObject().close();
+        } catch(IOException e) {
+            l4j.warn("Error closing response stream: " + e, e);
+        }
+    }
+
+    /**
+     * Wraps a decoded stream so the decode chain runs on a background thread, if
+     * read-ahead is enabled.
+     */
+    private InputStream readAhead(InputStream decoded) {
+        if(readAheadBuffers < 1) {
+            return decoded;
         }
+        return new ReadAheadInputStream(decoded, readAheadBuffers);
+    }
 
+    /**
+     * Reads the whole stored chunks of a chunked object that hold a byte range of
+     * its decrypted content.
+     * @see ChunkedCipher
+     */
+    private InputStream readChunks(ObjectIdentifier identifier, Map<String, String> rawMeta,
+            Range range) {
+        return delegate.readObjectStream(identifier, 
+                getChunkRange(range, getChunkSize(rawMeta))).getObject();
+    }
+
+    /**
+     * Gets the stored range of the whole chunks that hold a byte range of a chunked
+     * object's decrypted content.
+     */
+    private Range getChunkRange(Range range, int chunkSize) {
+        long first = ChunkedCipher.getEncodedOffset(range.getFirst(), chunkSize);
+        long last = ChunkedCipher.getEncodedOffset(range.getLast(), chunkSize)
+                + chunkSize + ChunkedCipher.OVERHEAD - 1;
+        return new Range(first, last);
+    }
+
+    /**
+     * Gets the chunk size of an object from its metadata.
+     * @return the chunk size, or 0 if the object isn't chunked (or can't be read 
+     * from an offset at all, which is reported once it is read).
+     */
+    private int getStoredChunkSize(ObjectIdentifier identifier) {
+        Map<String, String> rawMeta = metaToMap(
+                delegate.getUserMetadata(identifier).values());
+        String transformModes = rawMeta.get(TransformConstants.META_TRANSFORM_MODE);
+        if(transformModes == null) {
+            return 0;
+        }
+        String[] modes = transformModes.split("\\|");
+        TransformFactory<?, ?> f = findSeekableFactory(modes, rawMeta);
+        if(f == null || !((EncryptionTransformFactory<?, ?>) f).isUpdatable(modes[0])) {
+            return 0;
+        }
+        return getChunkSize(rawMeta);
+    }
+
+    /**
+     * Makes sure a ranged read requested the range the object is stored with, in 
+     * case the object was replaced after its metadata was read.
+     */
+    private void checkChunkSize(int requested, int stored) {
+        if(requested != stored) {
+            throw new AtmosException("Object changed while it was being read");
+        }
+    }
+
+    /**
+     * Reads and decrypts a byte range of a chunked object.  Used to merge the
+     * unchanged part of a chunk with new content.
+     */
+    private byte[] readChunkedRange(ObjectIdentifier identifier, EncryptionTransformFactory<?, ?> f,
+            String mode, Map<String, String> rawMeta, Range range) throws IOException, TransformException {
+        InputStream in = readChunks(identifier, rawMeta, range);
+        InputTransform trans;
+        try {
+            trans = f.getInputTransform(mode, in, rawMeta, range.getFirst());
+        } catch(TransformException e) {
+            in.close();
+            throw e;
+        }
+        byte[] data = StreamUtil.readAsBytes(new LimitInputStream(trans.getDecodedInputStream(),
+                range.getSize()));
+        if(data.length != range.getSize()) {
+            throw new AtmosException("Object is shorter than expected reading range " + range);
+        }
+        return data;
+    }
+
+    private int getChunkSize(Map<String, String> rawMeta) {
+        String chunkSize = rawMeta.get(TransformConstants.META_ENCRYPTION_CHUNK_SIZE);
+        if(chunkSize == null) {
+            throw new AtmosException("Chunk size not found in object metadata");
+        }
+        return Integer.parseInt(chunkSize);
+    }
+
+    /**
+     * Finds the factory that can decode an object from an arbitrary offset.
+     * @param modes the object's transform modes.
+     * @param rawMeta the object's metadata.
+     * @return the factory, or null if the object can't be decoded from an offset.
+     */
+    private TransformFactory<?, ?> findSeekableFactory(String[] modes, Map<String, String> rawMeta) {
+        if(modes.length != 1) {
+            return null;
+        }
+        for(TransformFactory<?, ?> f : factories) {
+            if(f instanceof EncryptionTransformFactory && f.canDecode(modes[0], rawMeta)
+                    && ((EncryptionTransformFactory<?, ?>) f).isSeekable(modes[0])) {
+                return f;
+            }
+        }
+        return null;
     }
 
     /**
@@ -627,12 +941,7 @@ public class AtmosEncryptionClient implements AtmosApi {
     public ReadObjectResponse<InputStream> readObjectStream(
             ObjectIdentifier identifier, Range range) {
         
-        // Partial reads not currently supported.
-        if(range != null) {
-            throw new UnsupportedOperationException(UNSUPPORTED_MSG);
-        }
-        
-        ReadObjectRequest request = new ReadObjectRequest().identifier(identifier);
+        ReadObjectRequest request = new ReadObjectRequest().identifier(identifier).ranges(range);
         try {
             return readObject(request, InputStream.class);
         } catch (IOException e) {
@@ -669,26 +978,11 @@ public class AtmosEncryptionClient implements AtmosApi {
     @Override
     public BasicResponse updateObject(UpdateObjectRequest request) {
         if(request.getRange() != null) {
-            throw new UnsupportedOperationException(PARTIAL_UPDATE_MSG);
+            return updateObjectRange(request);
         }
         
         // We can only handle input streams since we need to transform
-        InputStream in = null;
-        if(request.getContent() != null) {
-            Object content = request.getContent();
-            if(content instanceof InputStream) {
-                in = (InputStream)content;
-            } else if(content instanceof String) {
-                in = new ByteArrayInputStream(((String)content).getBytes());
-            } else if(content instanceof byte[]) {
-                in = new ByteArrayInputStream((byte[])content);
-            } else {
-                throw new IllegalArgumentException(UNSUPPORTED_TYPE_MSG);
-            }
-        } else {
-            // If there was no content, create an empty InputStream
-            in = new ByteArrayInputStream(new byte[0]);
-        }
+        InputStream in = toInputStream(request.getContent());
 
         // Get the original list of metadata names.  This is used later to delete tags
         // in case the transform mode changed and some tags are no longer relevant.
@@ -723,104 +1017,254 @@ public class AtmosEncryptionClient implements AtmosApi {
         
         try {
             for(TransformFactory<?, ?> t : revFactories) {
-                OutputTransform ot = t.getOutputTransform(in, mMeta);
+                OutputTransform ot = getOutputTransform(t, in, mMeta, 
+                        request.getContentType(), appliedTransforms.isEmpty());
                 appliedTransforms.add(ot);
                 in = ot.getEncodedInputStream();
             }
         } catch(TransformException e) {
+            closeAfterFailure(in);
             throw new AtmosException("Could not transform data: " + e, e);
         } catch (IOException e) {
+            closeAfterFailure(in);
             throw new AtmosException("Error transforming data: " + e, e);
         }
 
         // Overwrite the object
         int c = 0;
-        int pos = 0;
         byte[] buffer = new byte[bufferSize];
         
         // Read the first chunk and send it with the create request.
         try {
             c = fillBuffer(buffer, in);
         } catch (IOException e) {
+            closeAfterFailure(in);
             throw new AtmosException("Error reading input data: " + e, e);
         }
-        if(c == -1) {
-            // EOF already
-            request.setContent(null);
-            
-            // Optmization -- send metadata now with create request and return
-            try {
-                in.close();
-            } catch (IOException e) {
-                throw new AtmosException("Error closing input: " + e, e);
-            }
-            for(OutputTransform ot : appliedTransforms) {
-                mMeta.putAll(ot.getEncodedMetadata());
-            }
-            Set<Metadata> metadata = request.getUserMetadata();
-            if(metadata == null) {
-                metadata = new HashSet<Metadata>();
-            }
-            updateMetadata(mMeta, metadata);
-            request.setUserMetadata(metadata);
+        if(c < buffer.length) {
+            // The whole object fits in one buffer.  Optimization -- finish the 
+            // transforms and send the content and metadata with the update request.
+            finishTransforms(request, in, buffer, c, appliedTransforms, mMeta);
+            BasicResponse resp = delegate.updateObject(request);
+            deleteUnusedTags(request.getIdentifier(), metaNames, mMeta);
+            return resp;
+        }
+        request.setContent(new BufferSegment(buffer, 0, c));
+        
+        // Start transforming the next buffer while the first one is sent.
+        in = startPipeline(in);
+        BasicResponse resp;
+        try {
+            long start = System.nanoTime();
+            resp = delegate.updateObject(request);
+            recordUpload(c, start);
             
+            // Append until EOF.
+            appendRemaining(request.getIdentifier(), request.getContentType(), in, c, buffer);
+        } catch(RuntimeException e) {
+            closeAfterFailure(in);
+            throw e;
+        }
+        
+        // Update the object with the transformed metadata.
+        Collection<Metadata> updatedMetadata = encodeMetadata(appliedTransforms, mMeta, 
+                request.getUserMetadata());
+        delegate.setUserMetadata(request.getIdentifier(), 
+                updatedMetadata.toArray(new Metadata[updatedMetadata.size()]));
+        
+        deleteUnusedTags(request.getIdentifier(), metaNames, mMeta);
+        
+        return resp;
+    }
+
+    /**
+     * Deletes transform tags left over from the object's previous transform mode.
+     * @param identifier the object.
+     * @param metaNames the transform tags the object had before it was overwritten.
+     * @param mMeta the object's new metadata.
+     */
+    private void deleteUnusedTags(ObjectIdentifier identifier, Set<String> metaNames, 
+            Map<String, String> mMeta) {
+        metaNames.removeAll(mMeta.keySet());
+        
+        if(metaNames.size() > 0) {
+            delegate.deleteUserMetadata(identifier, 
+                    metaNames.toArray(new String[metaNames.size()]));
+        }
+    }
+
+    /**
+     * Overwrites a range of a chunked encrypted object (see 
+     * {@link EncryptionConfig#setUpdatable(boolean)}).  Only the chunks that hold the
+     * range are encrypted and sent: if the range starts or ends inside a chunk, the
+     * rest of that chunk is read and merged with the new content first.  Each chunk
+     * gets a new IV and tag, so no keystream is reused.  The range must start at or
+     * before the end of the object (an append starts at the end), and the content must
+     * be the size of the range.
+     * <br>
+     * The new metadata (size and signature) is sent with the last piece of the range.
+     * If the range takes more than one request and a later request fails, the chunks
+     * already written are still valid and the object can still be read, since the
+     * size of a chunked object is taken from its stored length.
+     * @param request the update request.  The range must be set.
+     * @return the response from the first range write.
+     */
+    private BasicResponse updateObjectRange(UpdateObjectRequest request) {
+        if(!allowPartialUpdates) {
+            throw new UnsupportedOperationException(PARTIAL_UPDATE_MSG);
+        }
+        
+        ObjectIdentifier identifier = request.getIdentifier();
+        Map<String,Metadata> objectMeta = delegate.getObjectMetadata(identifier).getMetadata();
+        Map<String,String> rawMeta = metaToMap(objectMeta.values());
+        String transformModes = rawMeta.get(TransformConstants.META_TRANSFORM_MODE);
+        if(transformModes == null) {
+            // Object is not encoded; update it as-is.
             return delegate.updateObject(request);
-        } else {
-            request.setContent(new BufferSegment(buffer, 0, c));
         }
-        BasicResponse resp = delegate.updateObject(request);
         
-        pos = c;
+        String[] modes = transformModes.split("\\|");
+        TransformFactory<?, ?> f = findSeekableFactory(modes, rawMeta);
+        if(f == null || !((EncryptionTransformFactory<?, ?>) f).isUpdatable(modes[0])) {
+            throw new UnsupportedOperationException(PARTIAL_UPDATE_MSG);
+        }
+        EncryptionTransformFactory<?, ?> ef = (EncryptionTransformFactory<?, ?>) f;
+        
+        int chunkSize = getChunkSize(rawMeta);
+        long size = ChunkedCipher.getDecodedSize(
+                Long.parseLong(rawMeta.get(SIZE_META)), chunkSize);
+        Range range = request.getRange();
+        if(range.getFirst() > size) {
+            throw new AtmosException("Invalid range " + range 
+                    + ": the object is only " + size + " bytes", 416);
+        }
+        
+        // Widen the range to whole chunks.
+        long start = range.getFirst() - range.getFirst() % chunkSize;
+        long end = range.getLast() + 1;
+        long chunkEnd = Math.min((end + chunkSize - 1) / chunkSize * chunkSize, size);
         
-        // Append until EOF.
+        // New user metadata is applied on top of the object's metadata.
+        Map<String, String> mMeta = new HashMap<String, String>(rawMeta);
+        if(request.getUserMetadata() != null) {
+            mMeta.putAll(metaToMap(request.getUserMetadata()));
+        }
+        
+        InputStream content = toInputStream(request.getContent());
+        OutputTransform ot;
         try {
-            while((c = fillBuffer(buffer, in)) != -1) {
+            List<InputStream> parts = new ArrayList<InputStream>();
+            if(start < range.getFirst()) {
+                parts.add(new ByteArrayInputStream(readChunkedRange(identifier, ef, modes[0], 
+                        rawMeta, new Range(start, range.getFirst() - 1))));
+            }
+            parts.add(content);
+            if(end < chunkEnd) {
+                parts.add(new ByteArrayInputStream(readChunkedRange(identifier, ef, modes[0], 
+                        rawMeta, new Range(end, chunkEnd - 1))));
+            }
+            ot = ef.getUpdateTransform(modes[0], 
+                    new SequenceInputStream(Collections.enumeration(parts)), mMeta, start);
+        } catch(TransformException e) {
+            closeAfterFailure(content);
+            throw new AtmosException("Could not transform data: " + e, e);
+        } catch (IOException e) {
+            closeAfterFailure(content);
+            throw new AtmosException("Error transforming data: " + e, e);
+        } catch(RuntimeException e) {
+            closeAfterFailure(content);
+            throw e;
+        }
+        PushbackInputStream in = new PushbackInputStream(ot.getEncodedInputStream());
+        
+        // Write the encrypted chunks in buffer-sized pieces of whole chunks.
+        int encodedChunkSize = chunkSize + ChunkedCipher.OVERHEAD;
+        byte[] buffer = new byte[Math.max(1, bufferSize / encodedChunkSize) * encodedChunkSize];
+        long pos = ChunkedCipher.getEncodedOffset(start, chunkSize);
+        BasicResponse resp = null;
+        int c = 0;
+        boolean last = false;
+        try {
+            while(!last && (c = fillBuffer(buffer, in)) != -1) {
                 UpdateObjectRequest uor = new UpdateObjectRequest();
-                uor.setIdentifier(request.getIdentifier());
+                uor.setIdentifier(identifier);
                 uor.setContentType(request.getContentType());
                 uor.setRange(new Range(pos, pos+c-1));
                 uor.setContent(new BufferSegment(buffer, 0, c));
+                int next = in.read();
+                if(next == -1) {
+                    // Last piece; the metadata is complete once the stream is closed.
+                    last = true;
+                    in.close();
+                    uor.setUserMetadata(getChangedMetadata(ot.getEncodedMetadata(), 
+                            rawMeta, objectMeta, request.getUserMetadata()));
+                } else {
+                    in.unread(next);
+                }
                 pos += c;
-                delegate.updateObject(uor);
+                BasicResponse r = delegate.updateObject(uor);
+                if(resp == null) {
+                    resp = r;
+                }
+            }
+            if(!last) {
+                in.close();
             }
         } catch (IOException e) {
+            closeAfterFailure(in);
             throw new AtmosException("Error reading input data: " + e, e);
+        } catch(RuntimeException e) {
+            closeAfterFailure(in);
+            throw e;
         }
-        
-        try {
-            in.close();
-        } catch (IOException e) {
-            throw new AtmosException("Error closing stream: " + e, e);
+        if(resp == null) {
+            // Nothing to write
+            return new BasicResponse();
         }
         
-        String transformConfig = "";
-        // Update the object with the transformed metadata.
-        for(OutputTransform ot : appliedTransforms) {
-            mMeta.putAll(ot.getEncodedMetadata());
-            if(transformConfig.length() != 0) {
-                transformConfig += "|";
+        return resp;
+    }
+
+    /**
+     * Returns the metadata to send with a range update: the request's metadata and
+     * the transform metadata that changed, keeping the object's listable flags.
+     */
+    private Collection<Metadata> getChangedMetadata(Map<String, String> encodedMeta,
+            Map<String, String> rawMeta, Map<String, Metadata> objectMeta, 
+            Collection<Metadata> requestMeta) {
+        Map<String, Metadata> changed = new HashMap<String, Metadata>();
+        if(requestMeta != null) {
+            for(Metadata m : requestMeta) {
+                changed.put(m.getName(), m);
             }
-            transformConfig += ot.getTransformConfig();
         }
-        mMeta.put(TransformConstants.META_TRANSFORM_MODE, transformConfig);
-        
-        Set<Metadata> metadata = request.getUserMetadata();
-        if(metadata == null) {
-            metadata = new HashSet<Metadata>();
+        for(Map.Entry<String, String> e : encodedMeta.entrySet()) {
+            if(changed.containsKey(e.getKey()) || e.getValue().equals(rawMeta.get(e.getKey()))) {
+                continue;
+            }
+            Metadata m = objectMeta.get(e.getKey());
+            changed.put(e.getKey(), new Metadata(e.getKey(), e.getValue(), 
+                    m == null?false:m.isListable()));
         }
-        Collection<Metadata> updatedMetadata = updateMetadata(mMeta, metadata);
-        delegate.setUserMetadata(request.getIdentifier(), 
-                updatedMetadata.toArray(new Metadata[updatedMetadata.size()]));
-        
-        metaNames.removeAll(mMeta.keySet());
-        
-        // Delete any unused tags
-        if(metaNames.size() > 0) {
-            delegate.deleteUserMetadata(request.getIdentifier(), 
-                    metaNames.toArray(new String[metaNames.size()]));
+        return changed.values();
+    }
+
+    /**
+     * Converts request content into an InputStream for transforming.
+     */
+    private InputStream toInputStream(Object content) {
+        if(content == null) {
+            // If there was no content, create an empty InputStream
+            return new ByteArrayInputStream(new byte[0]);
+        } else if(content instanceof InputStream) {
+            return (InputStream)content;
+        } else if(content instanceof String) {
+            return new ByteArrayInputStream(((String)content).getBytes());
+        } else if(content instanceof byte[]) {
+            return new ByteArrayInputStream((byte[])content);
+        } else {
+            throw new IllegalArgumentException(UNSUPPORTED_TYPE_MSG);
         }
-        
-        return resp;
     }
 
     /* (non-Javadoc)
@@ -1143,4 +1587,138 @@ public class AtmosEncryptionClient implements AtmosApi {
         this.bufferSize = bufferSize;
     }
 
+    /**
+     * @return the number of buffers transformed ahead of the upload.
+     */
+    public int getPipelineDepth() {
+        return pipelineDepth;
+    }
+
+    /**
+     * Sets the number of buffers that may be transformed (compressed and/or 
+     * encrypted) ahead of the upload when writing objects larger than one buffer.  
+     * The transform runs on a background thread while the previous buffer is sent, 
+     * so CPU and network time overlap.  Each extra buffer uses bufferSize bytes of 
+     * memory per upload.  Set to 0 to transform and send on the calling thread.  
+     * Default is 1 (double buffering).
+     * @param pipelineDepth the number of buffers to transform ahead.
+     */
+    public void setPipelineDepth(int pipelineDepth) {
+        this.pipelineDepth = pipelineDepth;
+    }
+
+    /**
+     * @return the number of decoded buffers read ahead of the consumer, or 0 if
+     * read-ahead is disabled.
+     */
+    public int getReadAheadBuffers() {
+        return readAheadBuffers;
+    }
+
+    /**
+     * Enables background decoding of transformed objects on read.  When set, the 
+     * decode chain (receive, decrypt, decompress, verify) runs on a worker thread
+     * that stays up to this many buffers of {@link ReadAheadInputStream#DEFAULT_BUFFER_SIZE}
+     * bytes ahead of the consumer, so network I/O and decoding overlap with the 
+     * consumer's own processing.  Streams returned by readObject must be closed to 
+     * stop the worker.  Default is 0 (decode on the consumer's thread).
+     * @param readAheadBuffers the number of decoded buffers to read ahead.
+     */
+    public void setReadAheadBuffers(int readAheadBuffers) {
+        this.readAheadBuffers = readAheadBuffers;
+    }
+
+    /**
+     * @return true if byte range updates of updatable encrypted objects are allowed.
+     */
+    public boolean isAllowPartialUpdates() {
+        return allowPartialUpdates;
+    }
+
+    /**
+     * Allows byte range updates (including appends) of objects encrypted in the 
+     * updatable mode (see {@link EncryptionConfig#setUpdatable(boolean)}).  Only the
+     * chunks that hold the range are read, encrypted with a new IV and written; the
+     * rest of the object is not touched.  Updates may not start past the end of the
+     * object.  Default is false.
+     * @param allowPartialUpdates true to allow byte range updates.
+     */
+    public void setAllowPartialUpdates(boolean allowPartialUpdates) {
+        this.allowPartialUpdates = allowPartialUpdates;
+    }
+
+    /**
+     * @return true if every transform records a digest of its input.
+     */
+    public boolean isIntermediateDigests() {
+        return intermediateDigests;
+    }
+
+    /**
+     * By default, only the first transform applied to an object (e.g. compression)
+     * digests its input; the transforms after it read data that is already covered
+     * by that digest, so they skip theirs.  This saves hashing every byte once per
+     * transform.  Set to true to have every transform record a digest of its own
+     * input as older versions did, e.g. enc-unencrypted-sha1 on compressed objects.
+     * The digest algorithm is set on each factory with
+     * {@link TransformFactory#setDigestAlgorithm(String)}.
+     * @param intermediateDigests true to digest the input of every transform.
+     */
+    public void setIntermediateDigests(boolean intermediateDigests) {
+        this.intermediateDigests = intermediateDigests;
+    }
+
+    /**
+     * Returns at most a given number of bytes from a stream.  Used to cut the
+     * decrypted chunks of a chunked object back to the requested range.
+     */
+    private static class LimitInputStream extends FilterInputStream {
+        private long remaining;
+
+        LimitInputStream(InputStream in, long limit) {
+            super(in);
+            this.remaining = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if(remaining <= 0) {
+                return -1;
+            }
+            int c = super.read();
+            if(c != -1) {
+                remaining--;
+            }
+            return c;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if(remaining <= 0) {
+                return -1;
+            }
+            int c = super.read(b, off, (int) Math.min(len, remaining));
+            if(c != -1) {
+                remaining -= c;
+            }
+            return c;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long c = super.skip(Math.min(n, remaining));
+            remaining -= c;
+            return c;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(super.available(), remaining);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
 }
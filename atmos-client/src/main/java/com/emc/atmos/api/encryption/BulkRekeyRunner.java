@@ -0,0 +1,500 @@
+/*
+ * Copyright 2014 EMC Corporation. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.emc.atmos.api.encryption;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Properties;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.emc.atmos.AtmosException;
+import com.emc.atmos.api.ObjectId;
+import com.emc.atmos.api.ObjectIdentifier;
+import com.emc.atmos.api.ObjectPath;
+import com.emc.vipr.transform.encryption.DoesNotNeedRekeyException;
+import com.emc.vipr.transform.util.DaemonThreadFactory;
+
+/**
+ * Rekeys large numbers of objects in parallel, for example after a master key
+ * rotation.  Each rekey takes two round trips (reading and then writing the
+ * object's metadata), so many objects are kept in flight at once to hide the
+ * latency.  Identifiers are pulled lazily from an iterator or a file, so
+ * arbitrarily large lists can be processed.
+ * <br>
+ * Progress can be checkpointed to a file.  The checkpoint records how many
+ * identifiers from the start of the input have been processed, so a run that
+ * is restarted with the same input skips straight to where it left off.
+ * When a run finishes, its checkpoint is deleted, so the next run with the
+ * same checkpoint file starts from the beginning.
+ * Objects that fail are counted as processed (so a restart does not retry
+ * them); use a {@link Callback} to record them for a later run.
+ * <br>
+ * Master key pairs are not loaded per object: BasicEncryptionTransformFactory
+ * holds its keys in memory and KeyStoreEncryptionFactory caches the pairs it
+ * loads from the keystore.
+ */
+public class BulkRekeyRunner {
+    private static final Logger l4j = Logger.getLogger(BulkRekeyRunner.class);
+
+    public static final int DEFAULT_THREADS = 16;
+    public static final long DEFAULT_CHECKPOINT_INTERVAL = 10000; // 10 seconds
+
+    private static final String CHECKPOINT_COMPLETED = "completed";
+
+    private AtmosEncryptionClient client;
+    private ExecutorService executor;
+    private int threads;
+    private File checkpointFile;
+    private long checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
+    private Callback callback;
+
+    private volatile Stats stats = new Stats(0);
+
+    public BulkRekeyRunner(AtmosEncryptionClient client) {
+        this(client, DEFAULT_THREADS);
+    }
+
+    /**
+     * @param client the encryption client, configured with the current master
+     * key and all of the old master keys.
+     * @param threads the number of objects to rekey concurrently.
+     */
+    public BulkRekeyRunner(AtmosEncryptionClient client, int threads) {
+        if(threads < 1) {
+            throw new IllegalArgumentException("threads must be at least 1");
+        }
+        this.client = client;
+        this.threads = threads;
+        this.executor = Executors.newFixedThreadPool(threads, new DaemonThreadFactory("bulk-rekey"));
+    }
+
+    /**
+     * Rekeys every object listed in a file, one identifier per line.  Lines
+     * starting with a slash are object paths; anything else is an object ID.
+     * Blank lines are ignored.
+     */
+    public Stats rekey(File identifierFile) {
+        IdentifierFileIterator identifiers;
+        try {
+            identifiers = new IdentifierFileIterator(identifierFile);
+        } catch(IOException e) {
+            throw new AtmosException("Could not open " + identifierFile + ": " + e, e);
+        }
+        try {
+            return rekey(identifiers);
+        } finally {
+            identifiers.close();
+        }
+    }
+
+    /**
+     * Rekeys every object from the iterator.  Blocks until all objects have
+     * been processed.  If a checkpoint file is set and exists, the number of
+     * identifiers recorded in it are skipped first.  The checkpoint file is
+     * deleted once every identifier has been processed.
+     * @return the final statistics for the run.
+     */
+    public Stats rekey(Iterator<? extends ObjectIdentifier> identifiers) {
+        long skip = readCheckpoint();
+        for(long i = 0; i < skip && identifiers.hasNext(); i++) {
+            identifiers.next();
+        }
+        if(skip > 0) {
+            l4j.info("Resuming rekey after " + skip + " objects");
+        }
+
+        final Stats runStats = new Stats(skip);
+        stats = runStats;
+        final Watermark watermark = new Watermark(skip);
+        final int maxInFlight = threads * 2;
+        final Semaphore inFlight = new Semaphore(maxInFlight);
+        long sequence = skip;
+        boolean finished = false;
+
+        try {
+            while(identifiers.hasNext()) {
+                final ObjectIdentifier identifier = identifiers.next();
+                final long seq = sequence++;
+                inFlight.acquire();
+                try {
+                    executor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                rekeyOne(identifier, runStats);
+                                if(watermark.complete(seq)) {
+                                    checkpoint(watermark, runStats, false);
+                                }
+                            } finally {
+                                inFlight.release();
+                            }
+                        }
+                    });
+                } catch(RuntimeException e) {
+                    inFlight.release();
+                    throw e;
+                }
+            }
+
+            // wait for the stragglers
+            inFlight.acquire(maxInFlight);
+            inFlight.release(maxInFlight);
+            finished = true;
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AtmosException("Interrupted while waiting for bulk rekey to complete", e);
+        } catch(RuntimeException e) {
+            // the input failed; let the objects already submitted finish so the checkpoint covers them
+            inFlight.acquireUninterruptibly(maxInFlight);
+            inFlight.release(maxInFlight);
+            throw e;
+        } finally {
+            if(finished) {
+                deleteCheckpoint();
+            } else {
+                checkpoint(watermark, runStats, true);
+            }
+        }
+
+        l4j.info("Rekey complete: " + runStats);
+        return runStats;
+    }
+
+    private void rekeyOne(ObjectIdentifier identifier, Stats runStats) {
+        try {
+            client.rekey(identifier);
+            runStats.rekeyed.incrementAndGet();
+            if(callback != null) {
+                callback.completed(identifier, true);
+            }
+        } catch(DoesNotNeedRekeyException e) {
+            runStats.skipped.incrementAndGet();
+            if(callback != null) {
+                callback.completed(identifier, false);
+            }
+        } catch(Throwable t) {
+            runStats.failed.incrementAndGet();
+            l4j.warn("Rekey of " + identifier + " failed: " + t);
+            if(callback != null) {
+                callback.failed(identifier, t);
+            }
+        }
+    }
+
+    private synchronized void checkpoint(Watermark watermark, Stats runStats, boolean force) {
+        long now = System.currentTimeMillis();
+        if(!force && now - watermark.lastCheckpoint < checkpointInterval) {
+            return;
+        }
+        watermark.lastCheckpoint = now;
+        l4j.info("Rekey progress: " + runStats);
+        if(checkpointFile == null) {
+            return;
+        }
+
+        Properties props = new Properties();
+        props.setProperty(CHECKPOINT_COMPLETED, "" + watermark.get());
+        props.setProperty("rekeyed", "" + runStats.getRekeyed());
+        props.setProperty("skipped", "" + runStats.getSkipped());
+        props.setProperty("failed", "" + runStats.getFailed());
+        try {
+            // write to a temp file first so a crash never leaves a partial checkpoint
+            File temp = new File(checkpointFile.getPath() + ".tmp");
+            OutputStream out = new FileOutputStream(temp);
+            try {
+                props.store(out, "Bulk rekey checkpoint");
+            } finally {
+                out.close();
+            }
+            if(!temp.renameTo(checkpointFile)) {
+                checkpointFile.delete();
+                if(!temp.renameTo(checkpointFile)) {
+                    throw new IOException("Could not rename " + temp + " to " + checkpointFile);
+                }
+            }
+        } catch(IOException e) {
+            l4j.warn("Could not write rekey checkpoint " + checkpointFile + ": " + e);
+        }
+    }
+
+    private synchronized void deleteCheckpoint() {
+        if(checkpointFile == null) {
+            return;
+        }
+        File temp = new File(checkpointFile.getPath() + ".tmp");
+        if(temp.exists() && !temp.delete()) {
+            l4j.warn("Could not delete " + temp);
+        }
+        if(checkpointFile.exists() && !checkpointFile.delete()) {
+            l4j.warn("Could not delete rekey checkpoint " + checkpointFile);
+        }
+    }
+
+    private long readCheckpoint() {
+        if(checkpointFile == null || !checkpointFile.exists()) {
+            return 0;
+        }
+        Properties props = new Properties();
+        try {
+            InputStream in = new FileInputStream(checkpointFile);
+            try {
+                props.load(in);
+            } finally {
+                in.close();
+            }
+            return Long.parseLong(props.getProperty(CHECKPOINT_COMPLETED, "0"));
+        } catch(IOException e) {
+            throw new AtmosException("Could not read rekey checkpoint " + checkpointFile + ": " + e, e);
+        } catch(NumberFormatException e) {
+            throw new AtmosException("Invalid rekey checkpoint " + checkpointFile + ": " + e, e);
+        }
+    }
+
+    /**
+     * Parses an object identifier.  Strings starting with a slash are object
+     * paths; anything else is an object ID.
+     */
+    public static ObjectIdentifier parseIdentifier(String identifier) {
+        if(identifier.startsWith("/")) {
+            return new ObjectPath(identifier);
+        }
+        return new ObjectId(identifier);
+    }
+
+    /**
+     * Returns the statistics of the current (or last) run.  May be called from
+     * another thread to monitor progress.
+     */
+    public Stats getStats() {
+        return stats;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public File getCheckpointFile() {
+        return checkpointFile;
+    }
+
+    /**
+     * Sets the file used to save and resume progress.  If null (the default),
+     * progress is not saved.
+     */
+    public void setCheckpointFile(File checkpointFile) {
+        this.checkpointFile = checkpointFile;
+    }
+
+    public long getCheckpointInterval() {
+        return checkpointInterval;
+    }
+
+    /**
+     * Sets the minimum number of milliseconds between checkpoints (and
+     * progress log messages).  Default is 10 seconds.
+     */
+    public void setCheckpointInterval(long checkpointInterval) {
+        this.checkpointInterval = checkpointInterval;
+    }
+
+    public Callback getCallback() {
+        return callback;
+    }
+
+    /**
+     * Sets a callback to be notified of each object's result.
+     */
+    public void setCallback(Callback callback) {
+        this.callback = callback;
+    }
+
+    /**
+     * Stops the worker threads.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * Receives the result for each object.  Implementations must be
+     * thread-safe.
+     */
+    public interface Callback {
+        /**
+         * @param rekeyed true if the object was rekeyed, false if it was
+         * already using the current master key (or was not encrypted).
+         */
+        void completed(ObjectIdentifier identifier, boolean rekeyed);
+
+        void failed(ObjectIdentifier identifier, Throwable t);
+    }
+
+    /**
+     * Counts of objects processed by a run.
+     */
+    public static class Stats {
+        private long resumedAt;
+        private long startTime = System.currentTimeMillis();
+        private AtomicLong rekeyed = new AtomicLong();
+        private AtomicLong skipped = new AtomicLong();
+        private AtomicLong failed = new AtomicLong();
+
+        Stats(long resumedAt) {
+            this.resumedAt = resumedAt;
+        }
+
+        /**
+         * @return the number of identifiers skipped because a previous run had
+         * already processed them.
+         */
+        public long getResumedAt() {
+            return resumedAt;
+        }
+
+        public long getRekeyed() {
+            return rekeyed.get();
+        }
+
+        /**
+         * @return the number of objects that did not need to be rekeyed.
+         */
+        public long getSkipped() {
+            return skipped.get();
+        }
+
+        public long getFailed() {
+            return failed.get();
+        }
+
+        /**
+         * @return the number of objects processed by this run.
+         */
+        public long getProcessed() {
+            return getRekeyed() + getSkipped() + getFailed();
+        }
+
+        public long getElapsedMillis() {
+            return System.currentTimeMillis() - startTime;
+        }
+
+        public double getObjectsPerSecond() {
+            long elapsed = getElapsedMillis();
+            return elapsed == 0 ? 0 : getProcessed() * 1000.0 / elapsed;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d processed (%d rekeyed, %d skipped, %d failed) in %ds, %.1f objects/s",
+                    getProcessed(), getRekeyed(), getSkipped(), getFailed(), getElapsedMillis() / 1000,
+                    getObjectsPerSecond());
+        }
+    }
+
+    /**
+     * Tracks the number of identifiers from the start of the input that have
+     * all been processed.  Objects complete out of order, so completions past
+     * the first gap are held until the gap is filled.  At most one entry per
+     * in-flight object is held.
+     */
+    private static class Watermark {
+        private long next;
+        private TreeSet<Long> completed = new TreeSet<Long>();
+        long lastCheckpoint = System.currentTimeMillis();
+
+        Watermark(long start) {
+            this.next = start;
+        }
+
+        /**
+         * @return true if the watermark moved.
+         */
+        synchronized boolean complete(long seq) {
+            completed.add(seq);
+            boolean moved = false;
+            while(!completed.isEmpty() && completed.first() == next) {
+                completed.remove(next);
+                next++;
+                moved = true;
+            }
+            return moved;
+        }
+
+        synchronized long get() {
+            return next;
+        }
+    }
+
+    private static class IdentifierFileIterator implements Iterator<ObjectIdentifier> {
+        private BufferedReader reader;
+        private String nextLine;
+
+        IdentifierFileIterator(File file) throws IOException {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            advance();
+        }
+
+        private void advance() {
+            try {
+                do {
+                    nextLine = reader.readLine();
+                } while(nextLine != null && nextLine.trim().length() == 0);
+            } catch(IOException e) {
+                throw new AtmosException("Error reading identifiers: " + e, e);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return nextLine != null;
+        }
+
+        @Override
+        public ObjectIdentifier next() {
+            if(nextLine == null) {
+                throw new NoSuchElementException();
+            }
+            ObjectIdentifier identifier = parseIdentifier(nextLine.trim());
+            advance();
+            return identifier;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        void close() {
+            try {
+                reader.close();
+            } catch(IOException e) {
+                l4j.warn("Error closing identifier file: " + e);
+            }
+        }
+    }
+}
@@ -14,9 +14,19 @@
  */
 package com.emc.atmos.api.encryption;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collection;
+
+import com.emc.atmos.api.AtmosApi;
+import com.emc.atmos.api.ObjectIdentifier;
 import com.emc.vipr.transform.TransformConstants;
 import com.emc.vipr.transform.TransformConstants.CompressionMode;
+import com.emc.vipr.transform.compression.CompressionDictionary;
+import com.emc.vipr.transform.compression.CompressionLevelController;
 import com.emc.vipr.transform.compression.CompressionTransformFactory;
+import com.emc.vipr.transform.compression.DictionaryBuilder;
+import com.emc.vipr.transform.compression.DictionaryRegistry;
 
 /**
  * Contains the configuration for compression transformation in the Atmos client.  Note
@@ -39,7 +49,10 @@ public class CompressionConfig {
 
     /**
      * Creates the compression configuration.
-     * @param mode the compression mode (e.g. LZMA or Deflate)
+     * @param mode the compression mode (e.g. LZMA, Deflate or LZ4).  LZ4 compresses
+     * less than Deflate but is fast enough not to slow down uploads on 10GbE.  
+     * DeflateDict compresses small objects with a shared dictionary; see 
+     * {@link #setDictionaryRegistry(DictionaryRegistry)}.
      * @param level the compression level 1-9.
      */
     public CompressionConfig(CompressionMode mode, int level) {
@@ -48,6 +61,92 @@ public class CompressionConfig {
         factory.setCompressionLevel(level);
     }
     
+    /**
+     * Enables adaptive compression.  Objects that are not expected to compress (by 
+     * content type, file format, or a trial compression of the first 64KB) are stored
+     * uncompressed instead of wasting CPU on them.  These objects are read back 
+     * normally.
+     * @param adaptive true to enable adaptive compression.
+     * @see CompressionTransformFactory#setAdaptive(boolean)
+     */
+    public void setAdaptive(boolean adaptive) {
+        factory.setAdaptive(adaptive);
+    }
+
+    /**
+     * Enables automatic selection of the compression level.  The client measures
+     * how fast each level compresses and how fast data uploads, and uses the level
+     * that stores objects fastest overall: high levels over slow links and low 
+     * levels or no compression over fast ones.  The level given to the constructor
+     * is used until there are measurements.  The controller's decisions and 
+     * measurements are available from {@link #getLevelController()}.
+     * @param autoLevel true to select the level automatically.
+     * @see CompressionLevelController
+     */
+    public void setAutoLevel(boolean autoLevel) {
+        if(!autoLevel) {
+            factory.setLevelController(null);
+        } else if(factory.getLevelController() == null) {
+            factory.setLevelController(new CompressionLevelController(
+                    CompressionLevelController.DEFAULT_LEVELS, factory.getCompressionLevel()));
+        }
+    }
+
+    /**
+     * @return the automatic level controller, or null if the level is fixed.
+     */
+    public CompressionLevelController getLevelController() {
+        return factory.getLevelController();
+    }
+
+    /**
+     * Sets the algorithm used to digest the uncompressed data: SHA1 (the default), 
+     * MD5, SHA-256, or the much faster CRC32 or ADLER32 checksums.  "NONE" 
+     * disables the digest.
+     * @see com.emc.vipr.transform.util.Digests
+     */
+    public void setDigestAlgorithm(String algorithm) {
+        factory.setDigestAlgorithm(algorithm);
+    }
+
+    /**
+     * Sets the dictionaries used by compression mode DeflateDict.  New objects are 
+     * compressed with the registry's current dictionary.  Keep every dictionary 
+     * that objects were written with registered, or they can't be read.
+     * @see DictionaryRegistry
+     */
+    public void setDictionaryRegistry(DictionaryRegistry registry) {
+        factory.setDictionaryRegistry(registry);
+    }
+
+    /**
+     * Builds a compression dictionary by sampling existing objects.  To sample 
+     * objects that are already compressed or encrypted, pass an 
+     * {@link AtmosEncryptionClient} so the samples are decoded.
+     * @param api the client to read the samples with.
+     * @param id the ID of the new dictionary, including its version, e.g.
+     * "orders-json-v1".
+     * @param samples the objects to sample.  A few hundred representative objects 
+     * are usually enough.
+     * @return the new dictionary.  Register it with a {@link DictionaryRegistry}.
+     * @throws IOException if reading a sample fails.
+     */
+    public static CompressionDictionary buildDictionary(AtmosApi api, String id, 
+            Collection<? extends ObjectIdentifier> samples) throws IOException {
+        DictionaryBuilder builder = new DictionaryBuilder();
+        for(ObjectIdentifier sample : samples) {
+            InputStream in = api.readObjectStream(sample, null).getObject();
+            try {
+                if(!builder.addSample(in)) {
+                    break;
+                }
+            } finally {
+                in.close();
+            }
+        }
+        return builder.build(id);
+    }
+
     /**
      * Returns the {@link CompressionTransformFactory} with the current compression
      * configuration.
@@ -30,6 +30,7 @@ import com.emc.vipr.transform.encryption.BasicEncryptionOutputTransform;
 import com.emc.vipr.transform.encryption.BasicEncryptionTransformFactory;
 import com.emc.vipr.transform.encryption.EncryptionTransformFactory;
 import com.emc.vipr.transform.encryption.KeyStoreEncryptionFactory;
+import com.emc.vipr.transform.encryption.ParallelCipherPool;
 
 /**
  * Creates an encryption configuration for use with the {@link AtmosEncryptionClient}.
@@ -37,6 +38,8 @@ import com.emc.vipr.transform.encryption.KeyStoreEncryptionFactory;
  */
 public class EncryptionConfig {
     private EncryptionTransformFactory<BasicEncryptionOutputTransform, BasicEncryptionInputTransform> factory;
+    private Provider provider;
+    private int keySize;
 
     /**
      * Creates a new EncryptionConfig object that will retrieve keys from a Keystore
@@ -67,6 +70,8 @@ public class EncryptionConfig {
             factory = new KeyStoreEncryptionFactory(keystore, masterKeyAlias, masterKeyPassword, provider);
         }
         factory.setEncryptionSettings(TransformConstants.DEFAULT_ENCRYPTION_TRANSFORM, keySize, provider);
+        this.provider = provider;
+        this.keySize = keySize;
     }
     
     /**
@@ -96,6 +101,80 @@ public class EncryptionConfig {
             factory = new BasicEncryptionTransformFactory(masterEncryptionKey, decryptionKeys, provider);
         }
         factory.setEncryptionSettings(TransformConstants.DEFAULT_ENCRYPTION_TRANSFORM, keySize, provider);
+        this.provider = provider;
+        this.keySize = keySize;
+    }
+
+    /**
+     * Sets whether new objects are encrypted in a seekable mode.  Seekable
+     * objects are encrypted with AES/CTR/NoPadding instead of the default
+     * AES/CBC/PKCS5Padding and support partial (byte range) reads.  Objects
+     * written in either mode can always be read.
+     * @param seekable true to encrypt new objects in the seekable mode.
+     * @throws InvalidKeyException if the key size is not supported by the mode.
+     * @throws NoSuchAlgorithmException if the encryption algorithm is not available.
+     * @throws NoSuchPaddingException if the padding is not available.
+     */
+    public void setSeekable(boolean seekable) 
+            throws InvalidKeyException, NoSuchAlgorithmException, NoSuchPaddingException {
+        factory.setEncryptionSettings(seekable ? TransformConstants.SEEKABLE_ENCRYPTION_TRANSFORM
+                : TransformConstants.DEFAULT_ENCRYPTION_TRANSFORM, keySize, provider);
+    }
+
+    /**
+     * Sets whether new objects are encrypted in an updatable mode.  Updatable objects
+     * are stored as chunks of {@link #setChunkSize(int)} bytes, each encrypted with
+     * AES/CTR/NoPadding under its own IV and followed by an HmacSHA256 tag.  They
+     * support partial reads and, with
+     * {@link AtmosEncryptionClient#setAllowPartialUpdates(boolean)}, partial updates
+     * and appends.  Each chunk is 48 bytes larger when stored.  Objects written in any
+     * mode can always be read.
+     * @param updatable true to encrypt new objects in the updatable mode.
+     * @throws InvalidKeyException if the key size is not supported by the mode.
+     * @throws NoSuchAlgorithmException if the encryption algorithm is not available.
+     * @throws NoSuchPaddingException if the padding is not available.
+     */
+    public void setUpdatable(boolean updatable) 
+            throws InvalidKeyException, NoSuchAlgorithmException, NoSuchPaddingException {
+        factory.setEncryptionSettings(updatable ? TransformConstants.CHUNKED_ENCRYPTION_TRANSFORM
+                : TransformConstants.DEFAULT_ENCRYPTION_TRANSFORM, keySize, provider);
+    }
+
+    /**
+     * Sets the size of the chunks new updatable objects are stored in (see 
+     * {@link #setUpdatable(boolean)}).  A partial update rewrites every chunk it
+     * touches.  Default is 64KB.
+     * @param chunkSize the number of bytes of content in each chunk.
+     */
+    public void setChunkSize(int chunkSize) {
+        factory.setChunkSize(chunkSize);
+    }
+
+    /**
+     * Sets the number of threads used to encrypt and decrypt objects.  Only objects
+     * encrypted in the seekable mode (see {@link #setSeekable(boolean)}) can be split
+     * into chunks and processed in parallel; other objects always use a single thread.
+     * Objects already being read or written keep the previous threads until they are
+     * closed.
+     * @param threads the number of cipher threads.  1 (the default) processes objects
+     * on the calling thread.
+     */
+    public void setCipherThreads(int threads) {
+        ParallelCipherPool old = factory.getCipherPool();
+        factory.setCipherPool(threads > 1 ? new ParallelCipherPool(threads) : null);
+        if(old != null) {
+            old.shutdown();
+        }
+    }
+
+    /**
+     * Sets the algorithm used to digest the unencrypted data: SHA1 (the default), 
+     * MD5, SHA-256, or the much faster CRC32 or ADLER32 checksums.  "NONE" 
+     * disables the digest.
+     * @see com.emc.vipr.transform.util.Digests
+     */
+    public void setDigestAlgorithm(String algorithm) {
+        factory.setDigestAlgorithm(algorithm);
     }
 
     /**
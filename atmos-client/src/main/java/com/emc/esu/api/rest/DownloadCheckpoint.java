@@ -0,0 +1,296 @@
+/*
+ * Copyright 2014 EMC Corporation. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.emc.esu.api.rest;
+
+import com.emc.esu.api.EsuException;
+import com.emc.esu.api.Extent;
+import com.emc.vipr.transform.util.AppendOnlyJournal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Sidecar checkpoint for resumable downloads.  The checkpoint records the
+ * size and modification time of the object being downloaded and each extent
+ * that has been written to the partial file, along with the SHA1 of the
+ * extent's data.  When a download is restarted, the recorded extents are
+ * validated against the partial file and only the missing ranges are fetched.
+ * <br>
+ * The file is plain text with one record per line:
+ * <pre>
+ * object &lt;size&gt; &lt;mtime&gt;
+ * extent &lt;offset&gt; &lt;length&gt; &lt;sha1&gt;
+ * </pre>
+ * Extent records are synced in batches, and the partial file (see
+ * {@link #setPartFile(RandomAccessFile)}) is synced before each batch, so a
+ * synced record never describes data that is not on disk.
+ * @see DownloadHelper#setResumable(boolean)
+ * @see AppendOnlyJournal
+ */
+public class DownloadCheckpoint {
+    private static final Logger l4j = Logger.getLogger(DownloadCheckpoint.class);
+
+    private static final String OBJECT_RECORD = "object";
+    private static final String EXTENT_RECORD = "extent";
+
+    private AppendOnlyJournal journal;
+    private long objectSize = -1;
+    private String objectMtime;
+    private List<CompletedExtent> extents;
+
+    /**
+     * Opens the checkpoint stored in the given file, loading any existing
+     * records.
+     * @param file the checkpoint file.
+     */
+    public DownloadCheckpoint(File file) {
+        this.journal = new AppendOnlyJournal(file);
+        this.extents = new ArrayList<CompletedExtent>();
+        load();
+    }
+
+    /**
+     * Sets the partial file the extents are written to.  It is synced before
+     * each batch of extent records.
+     * @param partFile the partial download file.
+     */
+    public void setPartFile(RandomAccessFile partFile) throws IOException {
+        journal.setDataFile(partFile.getFD());
+    }
+
+    /**
+     * Checks whether this checkpoint describes the given version of an object.
+     * @param size the object's current size.
+     * @param mtime the object's current modification time (may be null).
+     * @return true if the recorded extents can be reused.
+     */
+    public boolean matches(long size, String mtime) {
+        if (objectSize != size) {
+            return false;
+        }
+        return mtime == null ? objectMtime == null : mtime.equals(objectMtime);
+    }
+
+    /**
+     * Discards all records and starts a new checkpoint for the given object.
+     * @param size the object's size.
+     * @param mtime the object's modification time (may be null).
+     */
+    public void reset(long size, String mtime) {
+        objectSize = size;
+        objectMtime = mtime;
+        extents.clear();
+        try {
+            journal.reset();
+            journal.append(OBJECT_RECORD + " " + size + " " + (mtime == null ? "-" : mtime));
+            journal.sync();
+        } catch (IOException e) {
+            throw new EsuException("Error writing download checkpoint " + getFile(), e);
+        }
+    }
+
+    /**
+     * Drops any recorded extents that are not backed by the partial file.
+     * @param partFile the partial download file.
+     * @param verifyDigests if true, each extent's data is re-read and checked
+     * against the recorded SHA1.  Otherwise only the file length is checked.
+     */
+    public void validate(RandomAccessFile partFile, boolean verifyDigests) throws IOException {
+        long length = partFile.length();
+        byte[] buffer = null;
+        for (Iterator<CompletedExtent> i = extents.iterator(); i.hasNext();) {
+            CompletedExtent e = i.next();
+            if (e.offset + e.length > length) {
+                l4j.debug("Dropping extent past end of partial file: " + e);
+                i.remove();
+                continue;
+            }
+            if (verifyDigests) {
+                if (buffer == null) {
+                    buffer = new byte[64 * 1024];
+                }
+                MessageDigest sha1 = newDigest();
+                partFile.seek(e.offset);
+                long remaining = e.length;
+                while (remaining > 0) {
+                    int c = (int) Math.min(buffer.length, remaining);
+                    partFile.readFully(buffer, 0, c);
+                    sha1.update(buffer, 0, c);
+                    remaining -= c;
+                }
+                if (!toHex(sha1.digest()).equals(e.sha1)) {
+                    l4j.info("Dropping extent with bad digest: " + e);
+                    i.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the ranges of the object that have not been downloaded yet.
+     * @return the missing extents in ascending order.
+     */
+    public List<Extent> getMissingExtents() {
+        List<CompletedExtent> sorted = new ArrayList<CompletedExtent>(extents);
+        Collections.sort(sorted, new Comparator<CompletedExtent>() {
+            @Override
+            public int compare(CompletedExtent a, CompletedExtent b) {
+                return a.offset < b.offset ? -1 : (a.offset == b.offset ? 0 : 1);
+            }
+        });
+
+        List<Extent> missing = new ArrayList<Extent>();
+        long pos = 0;
+        for (CompletedExtent e : sorted) {
+            if (e.offset > pos) {
+                missing.add(new Extent(pos, e.offset - pos));
+            }
+            pos = Math.max(pos, e.offset + e.length);
+        }
+        if (pos < objectSize) {
+            missing.add(new Extent(pos, objectSize - pos));
+        }
+        return missing;
+    }
+
+    /**
+     * Records an extent that has been written to the partial file.
+     * @param offset the extent's offset.
+     * @param data buffer holding the extent's data.
+     * @param dataOffset the offset of the data in the buffer.
+     * @param length the number of bytes in the extent.
+     */
+    public void recordExtent(long offset, byte[] data, int dataOffset, int length) {
+        MessageDigest sha1 = newDigest();
+        sha1.update(data, dataOffset, length);
+        CompletedExtent e = new CompletedExtent(offset, length, toHex(sha1.digest()));
+        extents.add(e);
+        try {
+            journal.append(EXTENT_RECORD + " " + e.offset + " " + e.length + " " + e.sha1);
+        } catch (IOException ex) {
+            throw new EsuException("Error writing download checkpoint " + getFile(), ex);
+        }
+    }
+
+    /**
+     * Forces the partial file and any batched records to disk.
+     */
+    public void sync() throws IOException {
+        journal.sync();
+    }
+
+    /**
+     * Syncs and closes the checkpoint file.
+     */
+    public void close() throws IOException {
+        journal.close();
+    }
+
+    /**
+     * Closes and removes the checkpoint.
+     */
+    public void delete() {
+        journal.delete();
+        extents.clear();
+    }
+
+    /**
+     * Sets the number of extent records that are batched before the
+     * checkpoint is synced to disk.
+     * @param syncInterval the number of records per sync.
+     */
+    public void setSyncInterval(int syncInterval) {
+        journal.setSyncInterval(syncInterval);
+    }
+
+    /**
+     * @return the checkpoint file.
+     */
+    public File getFile() {
+        return journal.getFile();
+    }
+
+    private void load() {
+        try {
+            journal.read(new AppendOnlyJournal.RecordHandler() {
+                @Override
+                public void handle(String record) {
+                    String[] fields = record.trim().split(" ");
+                    try {
+                        if (OBJECT_RECORD.equals(fields[0]) && fields.length == 3) {
+                            objectSize = Long.parseLong(fields[1]);
+                            objectMtime = "-".equals(fields[2]) ? null : fields[2];
+                            extents.clear();
+                        } else if (EXTENT_RECORD.equals(fields[0]) && fields.length == 4
+                                && fields[3].length() == 40) {
+                            extents.add(new CompletedExtent(Long.parseLong(fields[1]),
+                                    Long.parseLong(fields[2]), fields[3]));
+                        } else {
+                            l4j.debug("Ignoring checkpoint record: " + record);
+                        }
+                    } catch (NumberFormatException e) {
+                        l4j.debug("Ignoring corrupt checkpoint record: " + record);
+                    }
+                }
+            });
+        } catch (IOException e) {
+            throw new EsuException("Error reading download checkpoint " + getFile(), e);
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("Could not initialize SHA1 digest", e);
+        }
+    }
+
+    private static String toHex(byte[] data) {
+        String s = new BigInteger(1, data).toString(16);
+        while (s.length() < data.length * 2) {
+            s = "0" + s;
+        }
+        return s;
+    }
+
+    private static class CompletedExtent {
+        long offset;
+        long length;
+        String sha1;
+
+        CompletedExtent(long offset, long length, String sha1) {
+            this.offset = offset;
+            this.length = length;
+            this.sha1 = sha1;
+        }
+
+        @Override
+        public String toString() {
+            return offset + "+" + length;
+        }
+    }
+}
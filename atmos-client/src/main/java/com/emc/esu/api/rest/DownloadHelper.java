@@ -28,6 +28,7 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Iterator;
@@ -59,6 +60,8 @@ public class DownloadHelper {
     private List<ProgressListener> listeners;
     private boolean checksumming;
     private Checksum checksum;
+    private boolean resumable;
+    private boolean verifyCheckpoint;
 
     /**
      * Creates a new download helper.
@@ -80,6 +83,10 @@ public class DownloadHelper {
      * @param f the file to write the object's contents to.
      */
     public void readObject( Identifier id, File f) {
+        if ( resumable ) {
+            readObjectResumable( id, f );
+            return;
+        }
         OutputStream out;
         try {
             out = new FileOutputStream(f);
@@ -89,6 +96,125 @@ public class DownloadHelper {
         readObject(id, out, true);
     }
 
+    /**
+     * Downloads the given object's contents to a file, resuming from a
+     * previous attempt if possible.  Data is written to a partial file next to
+     * the target (<code>f + ".part"</code>) and the completed extents are
+     * recorded in a sidecar checkpoint (<code>f + ".part.ckpt"</code>).  On
+     * restart, the checkpoint is validated and only the missing ranges are
+     * fetched.  Once all data has been received, the partial file is renamed
+     * to the target file.
+     * @param id the identifier of the object to download
+     * @param f the file to write the object's contents to.
+     */
+    private void readObjectResumable( Identifier id, File f ) {
+        if (checksumming) {
+            throw new EsuException("Checksumming is not supported for resumable "
+                    + "downloads; use setVerifyCheckpoint to verify the extents "
+                    + "of a resumed download");
+        }
+        this.currentBytes = 0;
+        this.complete = false;
+        this.failed = false;
+        this.error = null;
+        this.closeStream = false;
+        this.stream = null;
+
+        MetadataList sMeta = this.esu.getAllMetadata(id).getMetadata();
+        this.totalBytes = -1;
+        if (sMeta.getMetadata("size") != null) {
+            String size = sMeta.getMetadata("size").getValue();
+            if (size != null && size.length() > 0) {
+                this.totalBytes = Long.parseLong(size);
+            }
+        }
+        if (this.totalBytes == -1) {
+            throw new EsuException("Failed to get object size");
+        }
+        String mtime = null;
+        if (sMeta.getMetadata("mtime") != null) {
+            mtime = sMeta.getMetadata("mtime").getValue();
+        }
+
+        File partFile = new File(f.getPath() + ".part");
+        DownloadCheckpoint checkpoint = new DownloadCheckpoint(
+                new File(partFile.getPath() + ".ckpt"));
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(partFile, "rw");
+            checkpoint.setPartFile(raf);
+            if (checkpoint.matches(totalBytes, mtime)) {
+                checkpoint.validate(raf, verifyCheckpoint);
+            } else {
+                // New download or the object changed since the last attempt.
+                checkpoint.reset(totalBytes, mtime);
+                raf.setLength(0);
+            }
+
+            List<Extent> missing = checkpoint.getMissingExtents();
+            long missingBytes = 0;
+            for (Extent e : missing) {
+                missingBytes += e.getSize();
+            }
+            this.progress(totalBytes - missingBytes);
+            if (!missing.isEmpty()) {
+                l4j.info("Downloading " + missingBytes + " of " + totalBytes
+                        + " bytes in " + missing.size() + " range(s)");
+            }
+
+            byte[] b = buffer.getBuffer();
+            for (Extent range : missing) {
+                long pos = range.getOffset();
+                long end = range.getOffset() + range.getSize();
+                while (pos < end) {
+                    Extent extent = new Extent(pos, Math.min(b.length, end - pos));
+                    byte[] obuffer = this.esu.readObject(id, extent, b, null);
+                    if (obuffer.length < extent.getSize()) {
+                        throw new EsuException( "Read size mismatch.  " +
+                                "Requested " + extent.getSize() +
+                                " bytes but received " +
+                                obuffer.length + " bytes" );
+                    }
+                    raf.seek(pos);
+                    raf.write(obuffer, 0, (int) extent.getSize());
+                    checkpoint.recordExtent(pos, obuffer, 0, (int) extent.getSize());
+                    pos += extent.getSize();
+                    this.progress(extent.getSize());
+                }
+            }
+
+            // Make sure the data is on disk before the checkpoint goes away.
+            // Closing the checkpoint syncs the partial file first.
+            raf.setLength(totalBytes);
+            checkpoint.close();
+            raf.close();
+            raf = null;
+            if (f.exists() && !f.delete()) {
+                throw new EsuException("Could not replace existing file " + f);
+            }
+            if (!partFile.renameTo(f)) {
+                throw new EsuException("Could not rename " + partFile + " to " + f);
+            }
+            checkpoint.delete();
+            this.complete();
+        } catch (EsuException e) {
+            this.fail(e);
+            throw e;
+        } catch (IOException e) {
+            this.fail(e);
+            throw new EsuException("Error downloading file", e);
+        } finally {
+            try {
+                checkpoint.close();
+                if (raf != null) {
+                    raf.close();
+                }
+            } catch (IOException e) {
+                l4j.warn("Error closing partial download", e);
+            }
+        }
+    }
+
     /**
      * Downloads the given object's contents to a stream.
      * @param id the identifier of the object to download.
@@ -271,7 +397,7 @@ public class DownloadHelper {
     private void complete() {
         complete = true;
 
-        if (closeStream) {
+        if (closeStream && stream != null) {
             try {
                 stream.close();
             } catch (IOException e) {
@@ -315,4 +441,42 @@ public class DownloadHelper {
 		return checksumming;
 	}
 
+	/**
+	 * Enables resumable downloads for {@link #readObject(Identifier, File)}.
+	 * Interrupted downloads leave a partial file and a checkpoint behind so the
+	 * next attempt only fetches the missing ranges.  The whole-object checksum
+	 * can't be computed from ranges fetched out of order, so this mode can't be
+	 * combined with {@link #setChecksumming(boolean)}; each extent is verified
+	 * against the SHA1 recorded in the checkpoint instead (see
+	 * {@link #setVerifyCheckpoint(boolean)}).
+	 * @param resumable true to enable resumable downloads.
+	 */
+	public void setResumable(boolean resumable) {
+		this.resumable = resumable;
+	}
+
+	/**
+	 * @return whether file downloads are resumable.
+	 */
+	public boolean isResumable() {
+		return resumable;
+	}
+
+	/**
+	 * If true, the data of each extent recorded in a checkpoint is re-read and
+	 * verified against its stored SHA1 before a download is resumed.  If false
+	 * (the default), only the partial file's length is checked.
+	 * @param verifyCheckpoint whether to verify checkpointed extents.
+	 */
+	public void setVerifyCheckpoint(boolean verifyCheckpoint) {
+		this.verifyCheckpoint = verifyCheckpoint;
+	}
+
+	/**
+	 * @return whether checkpointed extents are verified before resuming.
+	 */
+	public boolean isVerifyCheckpoint() {
+		return verifyCheckpoint;
+	}
+
 }
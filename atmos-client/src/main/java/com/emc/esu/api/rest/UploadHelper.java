@@ -65,6 +65,8 @@ public class UploadHelper {
     private boolean checksumming;
     private Checksum checksum;
     private String mimeType;
+    private UploadJournal journal;
+    private boolean verifyResume = true;
 
     /**
      * Creates a new upload helper.
@@ -149,8 +151,17 @@ public class UploadHelper {
 
         // First call should be to create object
         try {
+            if (journal != null && journal.isResumable()) {
+                // Pick up where the last attempt left off.
+                id = journal.getObjectId();
+                resume(id);
+                this.appendChunks(id);
+                return id;
+            }
+
             boolean eof = readChunk();
             id = this.esu.createObjectFromSegment(acl, metadata, buffer, mimeType, checksum);
+            journalObject(id);
             if (!eof) {
                 this.progress(buffer.getSize());
             } else {
@@ -231,8 +242,17 @@ public class UploadHelper {
         }
         // First call should be to create object
         try {
+            if (journal != null && journal.isResumable()) {
+                // Pick up where the last attempt left off.
+                id = journal.getObjectId();
+                resume(id);
+                this.appendChunks(id);
+                return id;
+            }
+
             boolean eof = readChunk();
             id = this.esu.createObjectFromSegmentOnPath(path, acl, metadata, buffer, mimeType, checksum);
+            journalObject(id);
             if (!eof) {
                 this.progress(buffer.getSize());
             } else {
@@ -309,9 +329,28 @@ public class UploadHelper {
 
         // First call uses a null extent to truncate the file.
         try {
+            if (journal != null && journal.isResumable()) {
+                if (!journal.getObjectId().toString().equals(id.toString())) {
+                    throw new EsuException("Upload journal " + journal.getFile()
+                            + " belongs to object " + journal.getObjectId());
+                }
+                // Pick up where the last attempt left off.
+                resume(id);
+                this.appendChunks(id);
+                return;
+            }
+
+            // Check before anything is sent so the object isn't truncated.
+            if (journal != null && !(id instanceof ObjectId)) {
+                throw new EsuException("Resumable updates require an ObjectId");
+            }
+
             boolean eof = readChunk();
             this.esu.updateObjectFromSegment(id, acl, metadata, null, buffer,
                     mimeType, checksum);
+            if (id instanceof ObjectId) {
+                journalObject((ObjectId) id);
+            }
 
             if (!eof) {
                 this.progress(buffer.getSize());
@@ -417,6 +456,9 @@ public class UploadHelper {
 
             Extent extent = new Extent(currentBytes, buffer.getSize());
             esu.updateObjectFromSegment(id, null, null, extent, buffer, null, checksum);
+            if (journal != null) {
+                journal.recordRange(extent.getOffset(), extent.getSize());
+            }
             this.progress(buffer.getSize());
         }
 
@@ -429,6 +471,14 @@ public class UploadHelper {
     private void fail(Exception e) {
         failed = true;
         error = e;
+        if (journal != null) {
+            // Keep the journal so the upload can be resumed.
+            try {
+                journal.close();
+            } catch (IOException e1) {
+                l4j.warn("Error closing upload journal", e1);
+            }
+        }
         if (closeStream) {
             try {
                 stream.close();
@@ -449,6 +499,10 @@ public class UploadHelper {
     private void complete() {
         complete = true;
 
+        if (journal != null) {
+            journal.delete();
+        }
+
         if (closeStream) {
             try {
                 stream.close();
@@ -467,7 +521,7 @@ public class UploadHelper {
      * Notifies the listeners of upload progress.
      * @param size
      */
-    private void progress(int size) {
+    private void progress(long size) {
         currentBytes += size;
         for (Iterator<ProgressListener> i = listeners.iterator(); i.hasNext();) {
             ProgressListener pl = i.next();
@@ -475,6 +529,70 @@ public class UploadHelper {
         }
     }
 
+    /**
+     * Records a newly created (or truncated) object and its first chunk in the
+     * journal.
+     * @param id the identifier of the object.
+     */
+    private void journalObject(ObjectId id) {
+        if (journal == null) {
+            return;
+        }
+        journal.recordObjectId(id);
+        if (buffer.getSize() > 0) {
+            journal.recordRange(0, buffer.getSize());
+        }
+    }
+
+    /**
+     * Positions the stream at the last committed offset recorded in the
+     * journal.  If verification is enabled, the offset is checked against the
+     * object's size on the server first.
+     * @param id the identifier of the object being resumed.
+     */
+    private void resume(Identifier id) throws IOException {
+        long offset = journal.getCommittedBytes();
+        if (verifyResume) {
+            MetadataList sMeta = esu.getAllMetadata(id).getMetadata();
+            long serverSize = 0;
+            if (sMeta.getMetadata("size") != null) {
+                serverSize = Long.parseLong(sMeta.getMetadata("size").getValue());
+            }
+            if (serverSize < offset) {
+                l4j.info("Server size " + serverSize + " is less than journaled offset "
+                        + offset + "; resuming from server size");
+                offset = serverSize;
+            }
+        }
+        l4j.info("Resuming upload of " + id + " at offset " + offset);
+
+        // Skip the bytes that have already been sent.  If checksumming, they
+        // still need to go through the checksum.
+        long remaining = offset;
+        while (remaining > 0) {
+            if (checksumming) {
+                int c = stream.read(buffer.getBuffer(), 0,
+                        (int) Math.min(buffer.getBuffer().length, remaining));
+                if (c == -1) {
+                    throw new EsuException("Stream ended before resume offset " + offset);
+                }
+                checksum.update(buffer.getBuffer(), 0, c);
+                remaining -= c;
+            } else {
+                long c = stream.skip(remaining);
+                if (c <= 0) {
+                    // skip() may give up early; fall back to a read.
+                    if (stream.read() == -1) {
+                        throw new EsuException("Stream ended before resume offset " + offset);
+                    }
+                    c = 1;
+                }
+                remaining -= c;
+            }
+        }
+        this.progress(offset);
+    }
+
     /**
      * Reads a chunk of data from the stream.
      * @return true if an EOF was encountered.
@@ -550,4 +668,41 @@ public class UploadHelper {
 		return mimeType;
 	}
 
+	/**
+	 * Makes uploads resumable.  The identifier of the new object and every
+	 * committed byte range are recorded in the journal.  If an upload fails,
+	 * calling the same create or update method again with the same journal
+	 * and the same source data (from the beginning) will skip the bytes that
+	 * were already committed and continue from there.  The journal is deleted
+	 * once the upload completes.
+	 * @param journal the journal to use or null to disable resumable uploads.
+	 */
+	public void setJournal(UploadJournal journal) {
+		this.journal = journal;
+	}
+
+	/**
+	 * @return the upload journal or null if uploads are not resumable.
+	 */
+	public UploadJournal getJournal() {
+		return journal;
+	}
+
+	/**
+	 * If true (the default), the object's size on the server is checked before
+	 * resuming an upload and the upload resumes from the smaller of the server
+	 * size and the journaled offset.
+	 * @param verifyResume whether to verify the server size before resuming.
+	 */
+	public void setVerifyResume(boolean verifyResume) {
+		this.verifyResume = verifyResume;
+	}
+
+	/**
+	 * @return whether the server size is verified before resuming.
+	 */
+	public boolean isVerifyResume() {
+		return verifyResume;
+	}
+
 }
@@ -0,0 +1,203 @@
+/*
+ * Copyright 2014 EMC Corporation. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.emc.esu.api.rest;
+
+import com.emc.esu.api.EsuException;
+import com.emc.esu.api.ObjectId;
+import com.emc.vipr.transform.util.AppendOnlyJournal;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A small append-only journal used by {@link UploadHelper} to make uploads
+ * resumable.  The journal records the identifier of the object being written
+ * and every byte range that the server has acknowledged.  If an upload fails
+ * partway through, the next upload using the same journal file will pick up
+ * from the last committed offset instead of starting over from byte zero.
+ * <br>
+ * The file is plain text with one record per line:
+ * <pre>
+ * id &lt;object id&gt;
+ * range &lt;offset&gt; &lt;length&gt;
+ * </pre>
+ * The object ID record is always synced to disk immediately.  Range records
+ * are synced in batches (see {@link #setSyncInterval(int)}) so the journal
+ * stays cheap; a crash can therefore lose the last few range records, which
+ * only means that a few chunks are sent again.  A partially written last line
+ * is removed when the journal is loaded.
+ * @see AppendOnlyJournal
+ */
+public class UploadJournal {
+    private static final Logger l4j = Logger.getLogger(UploadJournal.class);
+
+    private static final String ID_RECORD = "id";
+    private static final String RANGE_RECORD = "range";
+
+    private AppendOnlyJournal journal;
+    private ObjectId objectId;
+    private long committedBytes;
+
+    /**
+     * Opens (or creates) the journal stored in the given file.  If the file
+     * already exists, its records are loaded so the upload can be resumed.
+     * @param file the journal file.
+     */
+    public UploadJournal(File file) {
+        this.journal = new AppendOnlyJournal(file);
+        load();
+    }
+
+    /**
+     * Returns the identifier of the object recorded in the journal.
+     * @return the object ID or null if no object has been recorded yet.
+     */
+    public ObjectId getObjectId() {
+        return objectId;
+    }
+
+    /**
+     * Returns the number of bytes, starting from offset zero, that have been
+     * committed to the server without gaps.
+     * @return the committed byte count.
+     */
+    public long getCommittedBytes() {
+        return committedBytes;
+    }
+
+    /**
+     * Returns true if the journal describes a previously started upload.
+     * @return true if the upload can be resumed.
+     */
+    public boolean isResumable() {
+        return objectId != null;
+    }
+
+    /**
+     * Records the identifier of the object being uploaded.  This is synced to
+     * disk immediately since the rest of the journal is useless without it.
+     * @param id the identifier of the object.
+     */
+    public void recordObjectId(ObjectId id) {
+        objectId = id;
+        committedBytes = 0;
+        try {
+            // A new object starts a new journal.
+            journal.reset();
+            journal.append(ID_RECORD + " " + id);
+            journal.sync();
+        } catch (IOException e) {
+            throw new EsuException("Error writing upload journal " + getFile(), e);
+        }
+    }
+
+    /**
+     * Records a byte range that has been acknowledged by the server.
+     * @param offset the starting offset of the range.
+     * @param length the number of bytes in the range.
+     */
+    public void recordRange(long offset, long length) {
+        if (objectId == null) {
+            throw new IllegalStateException("No object ID recorded in journal");
+        }
+        if (offset == committedBytes) {
+            committedBytes += length;
+        }
+        try {
+            journal.append(RANGE_RECORD + " " + offset + " " + length);
+        } catch (IOException e) {
+            throw new EsuException("Error writing upload journal " + getFile(), e);
+        }
+    }
+
+    /**
+     * Forces any batched records to disk.
+     */
+    public void sync() throws IOException {
+        journal.sync();
+    }
+
+    /**
+     * Syncs and closes the journal file.  The journal can still be resumed by
+     * opening it again.
+     */
+    public void close() throws IOException {
+        journal.close();
+    }
+
+    /**
+     * Closes and removes the journal.  Call this once the upload is complete.
+     */
+    public void delete() {
+        journal.delete();
+        objectId = null;
+        committedBytes = 0;
+    }
+
+    /**
+     * Sets the number of range records that are batched before the journal is
+     * synced to disk.  Set to 1 to sync after every chunk.
+     * @param syncInterval the number of records per sync.
+     */
+    public void setSyncInterval(int syncInterval) {
+        journal.setSyncInterval(syncInterval);
+    }
+
+    /**
+     * @return the number of range records batched between syncs.
+     */
+    public int getSyncInterval() {
+        return journal.getSyncInterval();
+    }
+
+    /**
+     * @return the journal file.
+     */
+    public File getFile() {
+        return journal.getFile();
+    }
+
+    private void load() {
+        try {
+            journal.read(new AppendOnlyJournal.RecordHandler() {
+                @Override
+                public void handle(String record) {
+                    String[] fields = record.trim().split(" ");
+                    try {
+                        if (ID_RECORD.equals(fields[0]) && fields.length == 2) {
+                            objectId = new ObjectId(fields[1]);
+                            committedBytes = 0;
+                        } else if (RANGE_RECORD.equals(fields[0]) && fields.length == 3
+                                && objectId != null) {
+                            long offset = Long.parseLong(fields[1]);
+                            long length = Long.parseLong(fields[2]);
+                            if (offset <= committedBytes) {
+                                committedBytes = Math.max(committedBytes, offset + length);
+                            }
+                        } else {
+                            l4j.debug("Ignoring journal record: " + record);
+                        }
+                    } catch (RuntimeException e) {
+                        l4j.debug("Ignoring corrupt journal record: " + record);
+                    }
+                }
+            });
+        } catch (IOException e) {
+            throw new EsuException("Error reading upload journal " + getFile(), e);
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package com.emc.atmos.api.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.security.KeyPair;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.emc.atmos.AtmosException;
+import com.emc.atmos.api.ObjectId;
+import com.emc.atmos.api.bean.Metadata;
+import com.emc.atmos.api.encryption.AtmosEncryptionClient;
+import com.emc.atmos.api.encryption.CompressionConfig;
+import com.emc.atmos.api.encryption.EncryptionConfig;
+import com.emc.atmos.api.request.CreateObjectRequest;
+import com.emc.vipr.transform.TransformConstants;
+import com.emc.vipr.transform.TransformConstants.CompressionMode;
+import com.emc.vipr.transform.encryption.KeyUtils;
+
+/**
+ * Tests the upload paths of AtmosEncryptionClient (single request and multi-buffer
+ * pipeline) against an in-memory store.
+ */
+public class AtmosEncryptionClientPipelineTest {
+    private static final int BUFFER_SIZE = 4096;
+
+    private KeyPair masterKey;
+    private MemoryAtmosApi store;
+    private AtmosEncryptionClient eclient;
+
+    @Before
+    public void setUp() throws Exception {
+        Properties keyprops = new Properties();
+        keyprops.load(this.getClass().getClassLoader().getResourceAsStream("keys.properties"));
+        masterKey = KeyUtils.rsaKeyPairFromBase64(
+                keyprops.getProperty("masterkey.public"),
+                keyprops.getProperty("masterkey.private"));
+
+        store = new MemoryAtmosApi();
+        EncryptionConfig ec = new EncryptionConfig(masterKey, new HashSet<KeyPair>(), null, 128);
+        eclient = new AtmosEncryptionClient(store, ec,
+                new CompressionConfig(CompressionMode.Deflate, 5));
+        eclient.setBufferSize(BUFFER_SIZE);
+        eclient.setPipelineDepth(2);
+    }
+
+    @Test
+    public void testCreateSmallInOneRequest() throws Exception {
+        byte[] data = randomData(BUFFER_SIZE / 2);
+
+        ObjectId id = eclient.createObject(new ByteArrayInputStream(data), "text/plain");
+
+        Assert.assertEquals(1, store.getCount("createObject"));
+        Assert.assertEquals(0, store.getCount("updateObject"));
+        Assert.assertEquals(0, store.getCount("setUserMetadata"));
+        Map<String, Metadata> meta = store.getUserMetadata(id);
+        Assert.assertNotNull("transform mode missing", meta.get(TransformConstants.META_TRANSFORM_MODE));
+        Assert.assertEquals("" + data.length,
+                meta.get(TransformConstants.META_COMPRESSION_UNCOMP_SIZE).getValue());
+        Assert.assertNotNull(meta.get(TransformConstants.META_ENCRYPTION_OBJECT_KEY));
+        Assert.assertArrayEquals(data, eclient.readObject(id, byte[].class));
+    }
+
+    @Test
+    public void testCreateEmpty() throws Exception {
+        ObjectId id = eclient.createObject(new ByteArrayInputStream(new byte[0]), null);
+
+        Assert.assertEquals(1, store.getCount("createObject"));
+        Assert.assertEquals(0, store.getCount("setUserMetadata"));
+        Assert.assertNotNull(store.getUserMetadata(id).get(TransformConstants.META_TRANSFORM_MODE));
+    }
+
+    @Test
+    public void testUpdateSmallInOneRequest() throws Exception {
+        ObjectId id = eclient.createObject(new ByteArrayInputStream(randomData(100)), null);
+        byte[] data = randomData(200);
+        store.resetCounts();
+
+        // Drop compression so the update has to remove the old compression tags.
+        AtmosEncryptionClient encryptOnly = new AtmosEncryptionClient(store,
+                new EncryptionConfig(masterKey, new HashSet<KeyPair>(), null, 128), null);
+        encryptOnly.setBufferSize(BUFFER_SIZE);
+        encryptOnly.updateObject(id, new ByteArrayInputStream(data));
+
+        Assert.assertEquals(1, store.getCount("updateObject"));
+        Assert.assertEquals(0, store.getCount("setUserMetadata"));
+        Map<String, Metadata> meta = store.getUserMetadata(id);
+        Assert.assertNull("stale compression tag", meta.get(TransformConstants.META_COMPRESSION_UNCOMP_SIZE));
+        Assert.assertArrayEquals(data, encryptOnly.readObject(id, byte[].class));
+    }
+
+    @Test
+    public void testCreateMultiBuffer() throws Exception {
+        byte[] data = randomData(10 * BUFFER_SIZE + 17);
+
+        ObjectId id = eclient.createObject(new ByteArrayInputStream(data), "application/octet-stream");
+
+        Assert.assertEquals(1, store.getCount("createObject"));
+        Assert.assertTrue("content not appended", store.getCount("updateObject") > 1);
+        Assert.assertEquals(1, store.getCount("setUserMetadata"));
+        Assert.assertFalse("content not encrypted", Arrays.equals(data, store.getContent(id)));
+        Assert.assertArrayEquals(data, eclient.readObject(id, byte[].class));
+    }
+
+    @Test
+    public void testUpdateMultiBuffer() throws Exception {
+        ObjectId id = eclient.createObject(new ByteArrayInputStream(randomData(100)), null);
+        byte[] data = randomData(5 * BUFFER_SIZE + 3);
+        store.resetCounts();
+
+        eclient.updateObject(id, new ByteArrayInputStream(data));
+
+        Assert.assertEquals(1, store.getCount("setUserMetadata"));
+        Assert.assertTrue("content not appended", store.getCount("updateObject") > 1);
+        Assert.assertArrayEquals(data, eclient.readObject(id, byte[].class));
+    }
+
+    @Test
+    public void testCreateFailureClosesSource() throws Exception {
+        CloseTrackingInputStream in = new CloseTrackingInputStream(
+                new ByteArrayInputStream(randomData(10 * BUFFER_SIZE)));
+        store.failOn("updateObject", 2);
+
+        try {
+            eclient.createObject(new CreateObjectRequest().content(in));
+            Assert.fail("upload should fail");
+        } catch(AtmosException e) {
+            Assert.assertEquals(500, e.getHttpCode());
+        }
+
+        Assert.assertTrue("source not closed", in.closed);
+        Assert.assertEquals(0, store.getCount("setUserMetadata"));
+    }
+
+    @Test
+    public void testUpdateFailureClosesSource() throws Exception {
+        ObjectId id = eclient.createObject(new ByteArrayInputStream(randomData(100)), null);
+        CloseTrackingInputStream in = new CloseTrackingInputStream(
+                new ByteArrayInputStream(randomData(10 * BUFFER_SIZE)));
+        store.failOn("updateObject", 3);
+
+        try {
+            eclient.updateObject(id, in);
+            Assert.fail("upload should fail");
+        } catch(AtmosException e) {
+            Assert.assertEquals(500, e.getHttpCode());
+        }
+
+        Assert.assertTrue("source not closed", in.closed);
+    }
+
+    private byte[] randomData(int size) {
+        // Half random, half repeated so the compression has something to do.
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        Arrays.fill(data, size / 2, size, (byte) 'x');
+        return data;
+    }
+
+    private static class CloseTrackingInputStream extends FilterInputStream {
+        volatile boolean closed;
+
+        CloseTrackingInputStream(ByteArrayInputStream in) {
+            super(in);
+        }
+
+        @Override
+        public void close() throws IOException {
+            closed = true;
+            super.close();
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package com.emc.atmos.api.test;
+
+import java.io.ByteArrayInputStream;
+import java.security.KeyPair;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.emc.atmos.AtmosException;
+import com.emc.atmos.api.ObjectId;
+import com.emc.atmos.api.Range;
+import com.emc.atmos.api.encryption.AtmosEncryptionClient;
+import com.emc.atmos.api.encryption.EncryptionConfig;
+import com.emc.vipr.transform.TransformConstants;
+import com.emc.vipr.transform.encryption.ChunkedCipher;
+import com.emc.vipr.transform.encryption.KeyUtils;
+
+/**
+ * Tests byte range reads and updates of objects encrypted in the updatable
+ * (chunked) mode against an in-memory store.
+ */
+public class AtmosEncryptionClientUpdateTest {
+    private static final int CHUNK_SIZE = 1024;
+    private static final int ENCODED_CHUNK_SIZE = CHUNK_SIZE + ChunkedCipher.OVERHEAD;
+    private static final int SIZE = 5000;
+
+    private KeyPair masterKey;
+    private MemoryAtmosApi store;
+    private AtmosEncryptionClient eclient;
+    private byte[] data;
+    private ObjectId id;
+
+    @Before
+    public void setUp() throws Exception {
+        Properties keyprops = new Properties();
+        keyprops.load(this.getClass().getClassLoader().getResourceAsStream("keys.properties"));
+        masterKey = KeyUtils.rsaKeyPairFromBase64(
+                keyprops.getProperty("masterkey.public"),
+                keyprops.getProperty("masterkey.private"));
+
+        store = new MemoryAtmosApi();
+        EncryptionConfig ec = new EncryptionConfig(masterKey, new HashSet<KeyPair>(), null, 128);
+        ec.setUpdatable(true);
+        ec.setChunkSize(CHUNK_SIZE);
+        eclient = new AtmosEncryptionClient(store, ec, null);
+        eclient.setBufferSize(4096);
+        eclient.setAllowPartialUpdates(true);
+
+        data = randomData(SIZE, 1);
+        id = eclient.createObject(new ByteArrayInputStream(data), null);
+        store.resetCounts();
+    }
+
+    @Test
+    public void testStoredInChunks() throws Exception {
+        Assert.assertEquals(ChunkedCipher.getEncodedSize(SIZE, CHUNK_SIZE), store.getContent(id).length);
+        Assert.assertArrayEquals(data, eclient.readObject(id, byte[].class));
+    }
+
+    @Test
+    public void testRangedRead() throws Exception {
+        Assert.assertArrayEquals(Arrays.copyOfRange(data, 1000, 3101),
+                eclient.readObject(id, new Range(1000, 3100), byte[].class));
+        Assert.assertArrayEquals(Arrays.copyOfRange(data, 2048, 2049),
+                eclient.readObject(id, new Range(2048, 2048), byte[].class));
+        Assert.assertArrayEquals(Arrays.copyOfRange(data, 4990, SIZE),
+                eclient.readObject(id, new Range(4990, 5999), byte[].class));
+        // one data request per range
+        Assert.assertEquals(3, store.getCount("readObject"));
+    }
+
+    @Test
+    public void testUpdateMiddle() throws Exception {
+        byte[] before = store.getContent(id).clone();
+        byte[] update = randomData(1100, 2);
+
+        eclient.updateObject(id, update, new Range(1500, 2599));
+
+        byte[] expected = data.clone();
+        System.arraycopy(update, 0, expected, 1500, update.length);
+        Assert.assertArrayEquals(expected, eclient.readObject(id, byte[].class));
+
+        // Only chunks 1 and 2 are rewritten; the edges of both are read first.
+        byte[] after = store.getContent(id);
+        Assert.assertEquals(before.length, after.length);
+        Assert.assertTrue(Arrays.equals(Arrays.copyOfRange(before, 0, ENCODED_CHUNK_SIZE),
+                Arrays.copyOfRange(after, 0, ENCODED_CHUNK_SIZE)));
+        Assert.assertTrue(Arrays.equals(Arrays.copyOfRange(before, 3 * ENCODED_CHUNK_SIZE, before.length),
+                Arrays.copyOfRange(after, 3 * ENCODED_CHUNK_SIZE, after.length)));
+        Assert.assertEquals(1, store.getCount("getObjectMetadata"));
+        Assert.assertEquals(1, store.getCount("updateObject"));
+        Assert.assertEquals(0, store.getCount("setUserMetadata"));
+        Assert.assertEquals(0, store.getCount("deleteUserMetadata"));
+    }
+
+    @Test
+    public void testRewriteUsesNewIv() throws Exception {
+        byte[] before = store.getContent(id).clone();
+
+        eclient.updateObject(id, Arrays.copyOfRange(data, 0, CHUNK_SIZE), new Range(0, CHUNK_SIZE - 1));
+
+        byte[] after = store.getContent(id);
+        Assert.assertFalse("chunk encrypted with the same IV", Arrays.equals(
+                Arrays.copyOfRange(before, 0, ChunkedCipher.IV_SIZE),
+                Arrays.copyOfRange(after, 0, ChunkedCipher.IV_SIZE)));
+        Assert.assertFalse("same keystream reused", Arrays.equals(
+                Arrays.copyOfRange(before, ChunkedCipher.IV_SIZE, ENCODED_CHUNK_SIZE),
+                Arrays.copyOfRange(after, ChunkedCipher.IV_SIZE, ENCODED_CHUNK_SIZE)));
+        Assert.assertArrayEquals(data, eclient.readObject(id, byte[].class));
+    }
+
+    @Test
+    public void testAppend() throws Exception {
+        byte[] update = randomData(1000, 3);
+
+        eclient.updateObject(id, update, new Range(SIZE, SIZE + update.length - 1));
+
+        byte[] expected = Arrays.copyOf(data, SIZE + update.length);
+        System.arraycopy(update, 0, expected, SIZE, update.length);
+        Assert.assertArrayEquals(expected, eclient.readObject(id, byte[].class));
+        Assert.assertEquals("" + expected.length, store.getUserMetadata(id)
+                .get(TransformConstants.META_ENCRYPTION_UNENC_SIZE).getValue());
+        Assert.assertEquals(0, store.getCount("setUserMetadata"));
+    }
+
+    @Test
+    public void testUpdatePastEnd() throws Exception {
+        try {
+            eclient.updateObject(id, new byte[10], new Range(SIZE + 1, SIZE + 10));
+            Assert.fail("update past the end of the object should fail");
+        } catch(AtmosException e) {
+            Assert.assertEquals(416, e.getHttpCode());
+        }
+        Assert.assertEquals(0, store.getCount("updateObject"));
+        Assert.assertArrayEquals(data, eclient.readObject(id, byte[].class));
+    }
+
+    @Test
+    public void testFailedMultiRequestUpdate() throws Exception {
+        // One chunk per request; the metadata goes with the last one.
+        eclient.setBufferSize(ENCODED_CHUNK_SIZE);
+        byte[] update = randomData(8000, 4);
+        store.failOn("updateObject", 3);
+
+        try {
+            eclient.updateObject(id, update, new Range(0, update.length - 1));
+            Assert.fail("update should fail");
+        } catch(AtmosException e) {
+            Assert.assertEquals(500, e.getHttpCode());
+        }
+
+        // The first two chunks were replaced, and the object is still readable.
+        byte[] expected = data.clone();
+        System.arraycopy(update, 0, expected, 0, 2 * CHUNK_SIZE);
+        Assert.assertArrayEquals(expected, eclient.readObject(id, byte[].class));
+        Assert.assertEquals("" + SIZE, store.getUserMetadata(id)
+                .get(TransformConstants.META_ENCRYPTION_UNENC_SIZE).getValue());
+
+        store.resetCounts();
+        eclient.updateObject(id, update, new Range(0, update.length - 1));
+        Assert.assertEquals(8, store.getCount("updateObject"));
+        Assert.assertArrayEquals(update, eclient.readObject(id, byte[].class));
+    }
+
+    @Test
+    public void testSeekableObjectNotUpdatable() throws Exception {
+        EncryptionConfig ec = new EncryptionConfig(masterKey, new HashSet<KeyPair>(), null, 128);
+        ec.setSeekable(true);
+        AtmosEncryptionClient seekable = new AtmosEncryptionClient(store, ec, null);
+        seekable.setAllowPartialUpdates(true);
+        ObjectId ctrId = seekable.createObject(new ByteArrayInputStream(data), null);
+
+        try {
+            seekable.updateObject(ctrId, new byte[10], new Range(0, 9));
+            Assert.fail("seekable objects can't be updated in place");
+        } catch(UnsupportedOperationException e) {
+            // expected
+        }
+        Assert.assertArrayEquals(Arrays.copyOfRange(data, 100, 200),
+                seekable.readObject(ctrId, new Range(100, 199), byte[].class));
+    }
+
+    private byte[] randomData(int size, long seed) {
+        byte[] data = new byte[size];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+}
@@ -0,0 +1,227 @@
+package com.emc.atmos.api.test;
+
+import com.emc.atmos.AtmosException;
+import com.emc.atmos.api.*;
+import com.emc.atmos.api.bean.CreateAccessTokenResponse;
+import com.emc.atmos.api.request.CreateAccessTokenRequest;
+import com.emc.atmos.api.request.PreSignedRequest;
+import com.emc.atmos.api.request.ReadObjectRequest;
+import com.emc.atmos.api.request.Request;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests {@link BulkPresigner} against a stub delegate that signs locally.
+ */
+public class BulkPresignerTest {
+    private StubApi api;
+    private BulkPresigner presigner;
+
+    @Before
+    public void setUp() {
+        api = new StubApi();
+        presigner = new BulkPresigner( api, 4 );
+    }
+
+    @After
+    public void tearDown() {
+        presigner.shutdown();
+    }
+
+    @Test
+    public void testShareableUrls() throws Exception {
+        List<ObjectIdentifier> ids = identifiers( 100 );
+        Date expiration = new Date( System.currentTimeMillis() + 60000 );
+        ResultCallback<ObjectIdentifier, URL> callback = new ResultCallback<ObjectIdentifier, URL>();
+
+        long count = presigner.getShareableUrls( ids.iterator(), expiration, callback );
+
+        Assert.assertEquals( 100, count );
+        Assert.assertEquals( 100, callback.results.size() );
+        Assert.assertTrue( callback.failures.isEmpty() );
+        for ( ObjectIdentifier id : ids ) {
+            Assert.assertEquals( api.url( id, expiration, null ), callback.results.get( id ) );
+        }
+    }
+
+    @Test
+    public void testShareableUrlSpecs() throws Exception {
+        Date expiration = new Date( System.currentTimeMillis() + 60000 );
+        List<BulkPresigner.ShareableUrlSpec> specs = new ArrayList<BulkPresigner.ShareableUrlSpec>();
+        for ( ObjectIdentifier id : identifiers( 10 ) ) {
+            specs.add( new BulkPresigner.ShareableUrlSpec( id, expiration, "attachment" ) );
+        }
+        ResultCallback<BulkPresigner.ShareableUrlSpec, URL> callback
+                = new ResultCallback<BulkPresigner.ShareableUrlSpec, URL>();
+
+        Assert.assertEquals( 10, presigner.getShareableUrls( specs.iterator(), callback ) );
+        for ( BulkPresigner.ShareableUrlSpec spec : specs ) {
+            Assert.assertEquals( api.url( spec.getIdentifier(), expiration, "attachment" ),
+                                 callback.results.get( spec ) );
+        }
+    }
+
+    @Test
+    public void testPreSignRequests() throws Exception {
+        List<Request> requests = new ArrayList<Request>();
+        for ( ObjectIdentifier id : identifiers( 20 ) ) {
+            requests.add( new ReadObjectRequest().identifier( id ) );
+        }
+        ResultCallback<Request, PreSignedRequest> callback = new ResultCallback<Request, PreSignedRequest>();
+
+        Assert.assertEquals( 20, presigner.preSignRequests( requests.iterator(), new Date(), callback ) );
+        Assert.assertEquals( 20, callback.results.size() );
+    }
+
+    @Test
+    public void testFailureDoesNotStopBatch() throws Exception {
+        List<ObjectIdentifier> ids = identifiers( 50 );
+        api.failing.add( ids.get( 3 ) );
+        api.failing.add( ids.get( 40 ) );
+        ResultCallback<ObjectIdentifier, URL> callback = new ResultCallback<ObjectIdentifier, URL>();
+
+        long count = presigner.getShareableUrls( ids.iterator(), new Date(), callback );
+
+        Assert.assertEquals( 48, count );
+        Assert.assertEquals( 48, callback.results.size() );
+        Assert.assertEquals( new HashSet<Object>( api.failing ), callback.failures.keySet() );
+        Assert.assertTrue( callback.failures.get( ids.get( 3 ) ) instanceof AtmosException );
+    }
+
+    @Test
+    public void testTokenConcurrency() throws Exception {
+        presigner.setTokenConcurrency( 2 );
+        api.tokenDelay = 20;
+        List<CreateAccessTokenRequest> requests = new ArrayList<CreateAccessTokenRequest>();
+        for ( int i = 0; i < 12; i++ ) requests.add( new CreateAccessTokenRequest() );
+        ResultCallback<CreateAccessTokenRequest, CreateAccessTokenResponse> callback
+                = new ResultCallback<CreateAccessTokenRequest, CreateAccessTokenResponse>();
+
+        Assert.assertEquals( 12, presigner.createAccessTokens( requests.iterator(), callback ) );
+        Assert.assertEquals( 12, callback.results.size() );
+        Assert.assertTrue( "too many token calls in flight: " + api.maxTokensInFlight,
+                           api.maxTokensInFlight.get() <= 2 );
+    }
+
+    @Test
+    public void testInputsPulledLazily() throws Exception {
+        final AtomicInteger pulled = new AtomicInteger();
+        final AtomicInteger done = new AtomicInteger();
+        final AtomicInteger maxAhead = new AtomicInteger();
+        final Iterator<ObjectIdentifier> ids = identifiers( 200 ).iterator();
+        Iterator<ObjectIdentifier> counting = new Iterator<ObjectIdentifier>() {
+            @Override
+            public boolean hasNext() {
+                return ids.hasNext();
+            }
+
+            @Override
+            public ObjectIdentifier next() {
+                int ahead = pulled.incrementAndGet() - done.get();
+                if ( ahead > maxAhead.get() ) maxAhead.set( ahead );
+                return ids.next();
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+        BulkPresigner.Callback<ObjectIdentifier, URL> callback = new BulkPresigner.Callback<ObjectIdentifier, URL>() {
+            @Override
+            public void completed( ObjectIdentifier input, URL result ) {
+                done.incrementAndGet();
+            }
+
+            @Override
+            public void failed( ObjectIdentifier input, Throwable t ) {
+                done.incrementAndGet();
+            }
+        };
+
+        Assert.assertEquals( 200, presigner.getShareableUrls( counting, new Date(), callback ) );
+        Assert.assertEquals( 200, done.get() );
+        // At most threads * 2 inputs are queued or running, plus the one being submitted.
+        Assert.assertTrue( "inputs not pulled lazily: " + maxAhead, maxAhead.get() <= 4 * 2 + 1 );
+    }
+
+    private List<ObjectIdentifier> identifiers( int count ) {
+        List<ObjectIdentifier> ids = new ArrayList<ObjectIdentifier>();
+        for ( int i = 0; i < count; i++ ) ids.add( new ObjectId( String.format( "%044x", i ) ) );
+        return ids;
+    }
+
+    private static class ResultCallback<I, R> implements BulkPresigner.Callback<I, R> {
+        Map<I, R> results = new ConcurrentHashMap<I, R>();
+        Map<I, Throwable> failures = new ConcurrentHashMap<I, Throwable>();
+
+        @Override
+        public void completed( I input, R result ) {
+            results.put( input, result );
+        }
+
+        @Override
+        public void failed( I input, Throwable t ) {
+            failures.put( input, t );
+        }
+    }
+
+    private static class StubApi extends DelegatingAtmosApi {
+        Set<ObjectIdentifier> failing = Collections.synchronizedSet( new HashSet<ObjectIdentifier>() );
+        AtomicInteger tokensInFlight = new AtomicInteger();
+        AtomicInteger maxTokensInFlight = new AtomicInteger();
+        volatile long tokenDelay;
+
+        StubApi() {
+            super( null );
+        }
+
+        URL url( ObjectIdentifier identifier, Date expiration, String disposition ) throws MalformedURLException {
+            return new URL( "http://atmos.example.com" + identifier.getRelativeResourcePath() + "?expires="
+                            + expiration.getTime() + (disposition == null ? "" : "&disposition=" + disposition) );
+        }
+
+        @Override
+        public URL getShareableUrl( ObjectIdentifier identifier, Date expirationDate ) throws MalformedURLException {
+            return getShareableUrl( identifier, expirationDate, null );
+        }
+
+        @Override
+        public URL getShareableUrl( ObjectIdentifier identifier, Date expirationDate, String disposition )
+                throws MalformedURLException {
+            if ( failing.contains( identifier ) ) throw new AtmosException( "Stub failure for " + identifier );
+            return url( identifier, expirationDate, disposition );
+        }
+
+        @Override
+        public PreSignedRequest preSignRequest( Request request, Date expiration ) throws MalformedURLException {
+            return new PreSignedRequest( new URL( "http://atmos.example.com" + request.getServiceRelativePath() ),
+                                         request.getMethod(), null, null, expiration );
+        }
+
+        @Override
+        public CreateAccessTokenResponse createAccessToken( CreateAccessTokenRequest request )
+                throws MalformedURLException {
+            int inFlight = tokensInFlight.incrementAndGet();
+            synchronized ( maxTokensInFlight ) {
+                if ( inFlight > maxTokensInFlight.get() ) maxTokensInFlight.set( inFlight );
+            }
+            try {
+                Thread.sleep( tokenDelay );
+            } catch ( InterruptedException e ) {
+                Thread.currentThread().interrupt();
+            } finally {
+                tokensInFlight.decrementAndGet();
+            }
+            return new CreateAccessTokenResponse( new URL( "http://atmos.example.com/rest/accesstokens/token" ) );
+        }
+    }
+}
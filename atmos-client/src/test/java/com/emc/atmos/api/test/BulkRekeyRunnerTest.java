@@ -0,0 +1,182 @@
+package com.emc.atmos.api.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.emc.atmos.AtmosException;
+import com.emc.atmos.api.ObjectId;
+import com.emc.atmos.api.ObjectIdentifier;
+import com.emc.atmos.api.encryption.AtmosEncryptionClient;
+import com.emc.atmos.api.encryption.BulkRekeyRunner;
+import com.emc.atmos.api.encryption.EncryptionConfig;
+import com.emc.vipr.transform.encryption.KeyUtils;
+
+/**
+ * Tests {@link BulkRekeyRunner} against an in-memory store.
+ */
+public class BulkRekeyRunnerTest {
+    private static final int COUNT = 20;
+
+    private MemoryAtmosApi store;
+    private AtmosEncryptionClient newClient;
+    private List<ObjectIdentifier> ids;
+    private File checkpointFile;
+    private BulkRekeyRunner runner;
+
+    @Before
+    public void setUp() throws Exception {
+        Properties keyprops = new Properties();
+        keyprops.load(this.getClass().getClassLoader().getResourceAsStream("keys.properties"));
+        KeyPair masterKey = KeyUtils.rsaKeyPairFromBase64(
+                keyprops.getProperty("masterkey.public"),
+                keyprops.getProperty("masterkey.private"));
+        KeyPair oldKey = KeyUtils.rsaKeyPairFromBase64(
+                keyprops.getProperty("oldkey.public"),
+                keyprops.getProperty("oldkey.private"));
+
+        store = new MemoryAtmosApi();
+        AtmosEncryptionClient oldClient = new AtmosEncryptionClient(store,
+                new EncryptionConfig(oldKey, new HashSet<KeyPair>(), null, 128), null);
+        Set<KeyPair> decryptionKeys = new HashSet<KeyPair>();
+        decryptionKeys.add(oldKey);
+        newClient = new AtmosEncryptionClient(store,
+                new EncryptionConfig(masterKey, decryptionKeys, null, 128), null);
+
+        ids = new ArrayList<ObjectIdentifier>();
+        for(int i = 0; i < COUNT; i++) {
+            ids.add(oldClient.createObject(new ByteArrayInputStream(("object " + i).getBytes("UTF-8")), null));
+        }
+        store.resetCounts();
+
+        checkpointFile = File.createTempFile("rekey", ".checkpoint");
+        checkpointFile.delete();
+        runner = new BulkRekeyRunner(newClient, 4);
+        runner.setCheckpointFile(checkpointFile);
+        runner.setCheckpointInterval(0);
+    }
+
+    @After
+    public void tearDown() {
+        runner.shutdown();
+        checkpointFile.delete();
+    }
+
+    @Test
+    public void testRekey() throws Exception {
+        ids.add(store.createObject("plain", null));
+
+        BulkRekeyRunner.Stats stats = runner.rekey(ids.iterator());
+
+        Assert.assertEquals(COUNT, stats.getRekeyed());
+        Assert.assertEquals(1, stats.getSkipped());
+        Assert.assertEquals(0, stats.getFailed());
+        // already on the current key
+        Assert.assertEquals(COUNT + 1, runner.rekey(ids.iterator()).getSkipped());
+    }
+
+    @Test
+    public void testCheckpointDeletedAfterRun() throws Exception {
+        runner.rekey(ids.iterator());
+
+        Assert.assertFalse("checkpoint left behind", checkpointFile.exists());
+        Assert.assertFalse(new File(checkpointFile.getPath() + ".tmp").exists());
+
+        // a second run with the same checkpoint file starts from the beginning
+        BulkRekeyRunner.Stats stats = runner.rekey(ids.iterator());
+        Assert.assertEquals(0, stats.getResumedAt());
+        Assert.assertEquals(COUNT, stats.getSkipped());
+    }
+
+    @Test
+    public void testResume() throws Exception {
+        // the input fails part way through the first run
+        final Iterator<ObjectIdentifier> all = ids.iterator();
+        Iterator<ObjectIdentifier> failing = new Iterator<ObjectIdentifier>() {
+            int count = 0;
+
+            @Override
+            public boolean hasNext() {
+                return all.hasNext();
+            }
+
+            @Override
+            public ObjectIdentifier next() {
+                if(count++ == 10) {
+                    throw new AtmosException("input failed");
+                }
+                return all.next();
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+        try {
+            runner.rekey(failing);
+            Assert.fail("input failure should stop the run");
+        } catch(AtmosException e) {
+            // expected
+        }
+        Assert.assertEquals(10L, readCompleted());
+
+        BulkRekeyRunner.Stats stats = runner.rekey(ids.iterator());
+        Assert.assertEquals(10, stats.getResumedAt());
+        Assert.assertEquals(COUNT - 10, stats.getRekeyed());
+        Assert.assertFalse(checkpointFile.exists());
+    }
+
+    @Test
+    public void testFailuresCounted() throws Exception {
+        store.failOn("getUserMetadata", 3);
+
+        BulkRekeyRunner.Stats stats = runner.rekey(ids.iterator());
+
+        Assert.assertEquals(1, stats.getFailed());
+        Assert.assertEquals(COUNT - 1, stats.getRekeyed());
+        Assert.assertFalse(checkpointFile.exists());
+    }
+
+    @Test
+    public void testIdentifierFile() throws Exception {
+        File identifierFile = File.createTempFile("rekey", ".ids");
+        try {
+            OutputStream out = new FileOutputStream(identifierFile);
+            for(ObjectIdentifier id : ids) {
+                out.write((((ObjectId) id).getId() + "\n\n").getBytes("UTF-8"));
+            }
+            out.close();
+
+            Assert.assertEquals(COUNT, runner.rekey(identifierFile).getRekeyed());
+        } finally {
+            identifierFile.delete();
+        }
+    }
+
+    private long readCompleted() throws Exception {
+        Properties props = new Properties();
+        InputStream in = new FileInputStream(checkpointFile);
+        try {
+            props.load(in);
+        } finally {
+            in.close();
+        }
+        return Long.parseLong(props.getProperty("completed"));
+    }
+}
@@ -0,0 +1,145 @@
+package com.emc.atmos.api.test;
+
+import com.emc.atmos.api.ObjectId;
+import com.emc.atmos.api.Range;
+import com.emc.atmos.api.cache.CachingAtmosClient;
+import com.emc.atmos.api.cache.DiskContentCache;
+import com.emc.util.StreamUtil;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Tests {@link CachingAtmosClient} against an in-memory store.
+ */
+public class CachingAtmosClientTest {
+    private static final int SEGMENT_SIZE = 1024;
+    private static final int MAX_SIZE = 16 * SEGMENT_SIZE;
+
+    private MemoryAtmosApi store;
+    private File cacheDir;
+    private CachingAtmosClient client;
+
+    @Before
+    public void setUp() throws Exception {
+        store = new MemoryAtmosApi();
+        cacheDir = File.createTempFile( "cache", null );
+        cacheDir.delete();
+        client = new CachingAtmosClient( store, new DiskContentCache( cacheDir, MAX_SIZE, SEGMENT_SIZE ) );
+    }
+
+    @After
+    public void tearDown() {
+        delete( cacheDir );
+    }
+
+    @Test
+    public void testReadThrough() throws Exception {
+        byte[] data = random( 5 * SEGMENT_SIZE + 100, 1 );
+        ObjectId oid = store.createObject( data, null );
+
+        Assert.assertArrayEquals( data, client.readObject( oid, byte[].class ) );
+        Assert.assertEquals( 1, store.getCount( "readObject" ) );
+        Assert.assertEquals( data.length, client.getCache().getCurrentSize() );
+
+        Assert.assertArrayEquals( data, client.readObject( oid, byte[].class ) );
+        Assert.assertArrayEquals( data, StreamUtil.readAsBytes( client.readObjectStream( oid, null ).getObject() ) );
+        Assert.assertEquals( 1, store.getCount( "readObject" ) );
+        Assert.assertEquals( 3, store.getCount( "getObjectMetadata" ) );
+    }
+
+    @Test
+    public void testRangedRead() throws Exception {
+        byte[] data = random( 8 * SEGMENT_SIZE, 2 );
+        ObjectId oid = store.createObject( data, null );
+
+        // segments 1-2, then 0-3 needs only 0 and 3
+        Range range = new Range( SEGMENT_SIZE + 10, 3 * SEGMENT_SIZE - 10 );
+        Assert.assertArrayEquals( slice( data, range ), client.readObject( oid, range, byte[].class ) );
+        range = new Range( 5, 4 * SEGMENT_SIZE - 5 );
+        Assert.assertArrayEquals( slice( data, range ), client.readObject( oid, range, byte[].class ) );
+        Assert.assertEquals( 3, store.getCount( "readObject" ) );
+        Assert.assertEquals( 4 * SEGMENT_SIZE, client.getCache().getCurrentSize() );
+    }
+
+    @Test
+    public void testUncacheableSkipsHead() throws Exception {
+        byte[] data = random( MAX_SIZE + 1, 3 );
+        ObjectId oid = store.createObject( data, null );
+
+        Assert.assertArrayEquals( data, client.readObject( oid, byte[].class ) );
+        Assert.assertArrayEquals( data, client.readObject( oid, byte[].class ) );
+        Assert.assertEquals( 1, store.getCount( "getObjectMetadata" ) );
+        Assert.assertEquals( 2, store.getCount( "readObject" ) );
+        Assert.assertEquals( 0, client.getCache().getCurrentSize() );
+
+        // a write through the client makes it eligible again
+        byte[] smaller = random( 100, 4 );
+        client.updateObject( oid, smaller );
+        Assert.assertArrayEquals( smaller, client.readObject( oid, byte[].class ) );
+        Assert.assertEquals( 2, store.getCount( "getObjectMetadata" ) );
+        Assert.assertEquals( 100, client.getCache().getCurrentSize() );
+    }
+
+    @Test
+    public void testStaleVersionDiscarded() throws Exception {
+        byte[] data = random( 4 * SEGMENT_SIZE, 5 );
+        ObjectId oid = store.createObject( data, null );
+        client.readObject( oid, byte[].class );
+
+        // modified by another client
+        byte[] update = random( 2 * SEGMENT_SIZE, 6 );
+        store.updateObject( oid, update );
+        Assert.assertArrayEquals( update, client.readObject( oid, byte[].class ) );
+
+        Assert.assertEquals( update.length, client.getCache().getCurrentSize() );
+        Assert.assertEquals( 2, new File( cacheDir, oid.toString() ).list().length );
+    }
+
+    @Test
+    public void testStaleVersionDiscardedOnLoad() throws Exception {
+        byte[] data = random( 2 * SEGMENT_SIZE, 7 );
+        ObjectId oid = store.createObject( data, null );
+        client.readObject( oid, byte[].class );
+
+        // left behind by an older version
+        File stale = new File( new File( cacheDir, oid.toString() ), "1_1.0" );
+        FileOutputStream out = new FileOutputStream( stale );
+        out.write( new byte[10] );
+        out.close();
+        stale.setLastModified( System.currentTimeMillis() - 60000 );
+
+        DiskContentCache cache = new DiskContentCache( cacheDir, MAX_SIZE, SEGMENT_SIZE );
+        Assert.assertFalse( stale.exists() );
+        Assert.assertEquals( data.length, cache.getCurrentSize() );
+
+        store.resetCounts();
+        client = new CachingAtmosClient( store, cache );
+        Assert.assertArrayEquals( data, client.readObject( oid, byte[].class ) );
+        Assert.assertEquals( 0, store.getCount( "readObject" ) );
+    }
+
+    private byte[] slice( byte[] data, Range range ) {
+        return Arrays.copyOfRange( data, (int) range.getFirst(), (int) range.getLast() + 1 );
+    }
+
+    private byte[] random( int size, long seed ) {
+        byte[] data = new byte[size];
+        new Random( seed ).nextBytes( data );
+        return data;
+    }
+
+    private void delete( File file ) {
+        File[] children = file.listFiles();
+        if ( children != null ) {
+            for ( File child : children ) delete( child );
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,224 @@
+package com.emc.atmos.api.test;
+
+import com.emc.atmos.api.CoalescingAtmosClient;
+import com.emc.atmos.api.ObjectId;
+import com.emc.atmos.api.ObjectIdentifier;
+import com.emc.atmos.api.ObjectPath;
+import com.emc.atmos.api.bean.DirectoryEntry;
+import com.emc.atmos.api.bean.ListDirectoryResponse;
+import com.emc.atmos.api.bean.Metadata;
+import com.emc.atmos.api.bean.ObjectMetadata;
+import com.emc.atmos.api.bean.ReadObjectResponse;
+import com.emc.atmos.api.request.ListDirectoryRequest;
+import com.emc.atmos.api.request.ReadObjectRequest;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests {@link CoalescingAtmosClient} against an in-memory store that can hold the first read in flight.
+ */
+public class CoalescingAtmosClientTest {
+    private GatedApi store;
+    private CoalescingAtmosClient client;
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        store = new GatedApi();
+        client = new CoalescingAtmosClient( store );
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() {
+        store.gate.countDown();
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testConcurrentReadsCoalesced() throws Exception {
+        final ObjectId oid = store.createObject( "hello".getBytes( "UTF-8" ), null );
+        List<Future<byte[]>> futures = new ArrayList<Future<byte[]>>();
+        for ( int i = 0; i < 4; i++ ) {
+            futures.add( executor.submit( new Callable<byte[]>() {
+                @Override
+                public byte[] call() throws Exception {
+                    return client.readObject( oid, byte[].class );
+                }
+            } ) );
+        }
+        awaitCoalesced( 3 );
+        store.gate.countDown();
+
+        List<byte[]> results = new ArrayList<byte[]>();
+        for ( Future<byte[]> future : futures ) results.add( future.get( 5, TimeUnit.SECONDS ) );
+        Assert.assertEquals( 1, store.getCount( "readObject" ) );
+        for ( int i = 0; i < results.size(); i++ ) {
+            Assert.assertArrayEquals( "hello".getBytes( "UTF-8" ), results.get( i ) );
+            // every caller gets its own copy
+            for ( int j = 0; j < i; j++ ) Assert.assertNotSame( results.get( j ), results.get( i ) );
+        }
+    }
+
+    @Test
+    public void testReadMetadataCopied() throws Exception {
+        // the store sets read metadata directly, without any headers
+        final ObjectId oid = store.createObject( "hello".getBytes( "UTF-8" ), null );
+        store.setUserMetadata( oid, new Metadata( "color", "red", false ) );
+        List<Future<ReadObjectResponse<byte[]>>> futures = new ArrayList<Future<ReadObjectResponse<byte[]>>>();
+        for ( int i = 0; i < 2; i++ ) {
+            futures.add( executor.submit( new Callable<ReadObjectResponse<byte[]>>() {
+                @Override
+                public ReadObjectResponse<byte[]> call() throws Exception {
+                    return client.readObject( new ReadObjectRequest().identifier( oid ), byte[].class );
+                }
+            } ) );
+        }
+        awaitCoalesced( 1 );
+        store.gate.countDown();
+
+        ReadObjectResponse<byte[]> a = futures.get( 0 ).get( 5, TimeUnit.SECONDS );
+        ReadObjectResponse<byte[]> b = futures.get( 1 ).get( 5, TimeUnit.SECONDS );
+        Assert.assertEquals( 1, store.getCount( "readObject" ) );
+        Assert.assertEquals( "red", a.getMetadata().getMetadata().get( "color" ).getValue() );
+        Assert.assertEquals( "red", b.getMetadata().getMetadata().get( "color" ).getValue() );
+
+        a.getMetadata().getMetadata().clear();
+        Assert.assertEquals( "red", b.getMetadata().getMetadata().get( "color" ).getValue() );
+    }
+
+    @Test
+    public void testWriteStopsJoining() throws Exception {
+        final ObjectId oid = store.createObject( "hello".getBytes( "UTF-8" ), null );
+        Future<ObjectMetadata> before = executor.submit( new Callable<ObjectMetadata>() {
+            @Override
+            public ObjectMetadata call() throws Exception {
+                return client.getObjectMetadata( oid );
+            }
+        } );
+        Assert.assertTrue( store.entered.await( 5, TimeUnit.SECONDS ) );
+
+        client.setUserMetadata( oid, new Metadata( "color", "blue", false ) );
+
+        // issued after the write, so it must not join the call still in flight
+        ObjectMetadata after = client.getObjectMetadata( oid );
+        Assert.assertEquals( "blue", after.getMetadata().get( "color" ).getValue() );
+        Assert.assertEquals( 0, client.getCoalescedCount() );
+
+        store.gate.countDown();
+        before.get( 5, TimeUnit.SECONDS );
+        Assert.assertEquals( 2, store.getCount( "getObjectMetadata" ) );
+    }
+
+    @Test
+    public void testCreateStopsJoiningParentListing() throws Exception {
+        Future<ListDirectoryResponse> before = listDirectory( "/dir/" );
+        Assert.assertTrue( store.entered.await( 5, TimeUnit.SECONDS ) );
+
+        client.createObject( new ObjectPath( "/dir/file" ), "data", null );
+
+        listDirectory( "/dir/" ).get( 5, TimeUnit.SECONDS );
+        Assert.assertEquals( 0, client.getCoalescedCount() );
+        Assert.assertEquals( 2, store.listCount.get() );
+
+        store.gate.countDown();
+        before.get( 5, TimeUnit.SECONDS );
+    }
+
+    @Test
+    public void testListDirectoryCopies() throws Exception {
+        Future<ListDirectoryResponse> first = listDirectory( "/dir/" );
+        Future<ListDirectoryResponse> second = listDirectory( "/dir/" );
+        awaitCoalesced( 1 );
+        store.gate.countDown();
+
+        ListDirectoryResponse a = first.get( 5, TimeUnit.SECONDS ), b = second.get( 5, TimeUnit.SECONDS );
+        Assert.assertEquals( 1, store.listCount.get() );
+        Assert.assertNotSame( a, b );
+        Assert.assertNotSame( a.getEntries(), b.getEntries() );
+        Assert.assertNotSame( a.getEntries().get( 0 ), b.getEntries().get( 0 ) );
+
+        a.getEntries().get( 0 ).setFilename( "changed" );
+        a.getEntries().clear();
+        Assert.assertEquals( 1, b.getEntries().size() );
+        Assert.assertEquals( "file", b.getEntries().get( 0 ).getFilename() );
+    }
+
+    private Future<ListDirectoryResponse> listDirectory( final String path ) {
+        return executor.submit( new Callable<ListDirectoryResponse>() {
+            @Override
+            public ListDirectoryResponse call() throws Exception {
+                return client.listDirectory( new ListDirectoryRequest().path( new ObjectPath( path ) ) );
+            }
+        } );
+    }
+
+    private void awaitCoalesced( long count ) throws InterruptedException {
+        long timeout = System.currentTimeMillis() + 5000;
+        while ( client.getCoalescedCount() < count ) {
+            if ( System.currentTimeMillis() > timeout ) Assert.fail( "callers did not join the in-flight call" );
+            Thread.sleep( 10 );
+        }
+    }
+
+    /**
+     * Holds the first read (of any kind) until the gate is opened.
+     */
+    private static class GatedApi extends MemoryAtmosApi {
+        CountDownLatch gate = new CountDownLatch( 1 );
+        CountDownLatch entered = new CountDownLatch( 1 );
+        AtomicBoolean first = new AtomicBoolean( true );
+        AtomicInteger listCount = new AtomicInteger();
+
+        @Override
+        public <T> ReadObjectResponse<T> readObject( ReadObjectRequest request, Class<T> objectType )
+                throws IOException {
+            hold();
+            return super.readObject( request, objectType );
+        }
+
+        @Override
+        public ObjectMetadata getObjectMetadata( ObjectIdentifier identifier ) {
+            hold();
+            return super.getObjectMetadata( identifier );
+        }
+
+        @Override
+        public ListDirectoryResponse listDirectory( ListDirectoryRequest request ) {
+            listCount.incrementAndGet();
+            hold();
+            DirectoryEntry entry = new DirectoryEntry();
+            entry.setFilename( "file" );
+            entry.setFileType( DirectoryEntry.FileType.regular );
+            List<DirectoryEntry> entries = new ArrayList<DirectoryEntry>();
+            entries.add( entry );
+            ListDirectoryResponse response = new ListDirectoryResponse();
+            response.setEntries( entries );
+            return response;
+        }
+
+        private void hold() {
+            if ( !first.compareAndSet( true, false ) ) return;
+            entered.countDown();
+            try {
+                gate.await( 10, TimeUnit.SECONDS );
+            } catch ( InterruptedException e ) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package com.emc.atmos.api.test;
+
+import com.emc.atmos.AtmosException;
+import com.emc.atmos.api.ObjectId;
+import com.emc.atmos.api.Range;
+import com.emc.atmos.api.dedup.DedupAtmosClient;
+import com.emc.util.StreamUtil;
+import com.emc.vipr.transform.dedup.ChunkIndex;
+import com.emc.vipr.transform.dedup.DedupManifest;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Tests {@link DedupAtmosClient} against an in-memory store.
+ */
+public class DedupAtmosClientTest {
+    private static final int SIZE = 64 * 1024;
+
+    private MemoryAtmosApi store;
+    private File indexFile;
+    private ChunkIndex index;
+    private DedupAtmosClient client;
+    private byte[] data;
+
+    @Before
+    public void setUp() throws Exception {
+        store = new MemoryAtmosApi();
+        indexFile = File.createTempFile( "chunks", ".idx" );
+        indexFile.delete();
+        index = new ChunkIndex( indexFile );
+        client = new DedupAtmosClient( store, index );
+        client.setChunkSizes( 512, 2048, 8192 );
+        data = new byte[SIZE];
+        new Random( 1 ).nextBytes( data );
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        client.shutdown();
+        index.close();
+        indexFile.delete();
+    }
+
+    @Test
+    public void testDedupHitAndMiss() throws Exception {
+        ObjectId first = client.createObject( data, null );
+        int chunks = getManifest( first ).getChunks().size();
+        Assert.assertTrue( "expected several chunks", chunks > 4 );
+        Assert.assertEquals( SIZE, client.getBytesStored() );
+        Assert.assertEquals( 0, client.getBytesDeduplicated() );
+
+        // the same content with a changed tail only uploads the chunks that differ
+        byte[] changed = data.clone();
+        changed[SIZE - 1] ^= 1;
+        store.resetCounts();
+        ObjectId second = client.createObject( changed, null );
+        Assert.assertEquals( 2, store.getCount( "createObject" ) ); // last chunk and manifest
+        Assert.assertTrue( client.getBytesDeduplicated() > SIZE / 2 );
+        Assert.assertEquals( chunks + 1, index.size() );
+
+        Assert.assertArrayEquals( data, client.readObject( first, byte[].class ) );
+        Assert.assertArrayEquals( changed, StreamUtil.readAsBytes(
+                client.readObjectStream( second, null ).getObject() ) );
+    }
+
+    @Test
+    public void testRangedReadAcrossChunks() throws Exception {
+        ObjectId oid = client.createObject( data, null );
+        List<DedupManifest.ChunkRef> chunks = getManifest( oid ).getChunks();
+        int boundary = chunks.get( 0 ).getLength() + chunks.get( 1 ).getLength();
+        store.resetCounts();
+
+        // from inside the second chunk to inside the fourth
+        Range range = new Range( chunks.get( 0 ).getLength() + 10, boundary + chunks.get( 2 ).getLength() + 10 );
+        Assert.assertArrayEquals( slice( data, range ), client.readObject( oid, range, byte[].class ) );
+        // one byte either side of a boundary
+        range = new Range( boundary - 1, boundary );
+        Assert.assertArrayEquals( slice( data, range ), client.readObject( oid, range, byte[].class ) );
+        // past the end of the manifest itself
+        range = new Range( SIZE - 100, SIZE + 100 );
+        Assert.assertTrue( store.getContent( oid ).length < SIZE - 100 );
+        Assert.assertArrayEquals( slice( data, new Range( SIZE - 100, SIZE - 1 ) ),
+                                  client.readObject( oid, range, byte[].class ) );
+        // past the end of the content, like a plain object
+        try {
+            client.readObject( oid, new Range( SIZE, SIZE + 10 ), byte[].class );
+            Assert.fail( "range is past the end of the object" );
+        } catch ( AtmosException e ) {
+            Assert.assertEquals( 416, e.getHttpCode() );
+        }
+
+        Assert.assertEquals( 0, store.getCount( "getUserMetadata" ) );
+    }
+
+    @Test
+    public void testRangedReadOfPlainObject() throws Exception {
+        ObjectId oid = store.createObject( data, null );
+        store.resetCounts();
+
+        Range range = new Range( 1000, 1999 );
+        Assert.assertArrayEquals( slice( data, range ), client.readObject( oid, range, byte[].class ) );
+        Assert.assertEquals( 1, store.getCount( "readObject" ) );
+        Assert.assertEquals( 0, store.getCount( "getUserMetadata" ) );
+
+        try {
+            client.readObject( oid, new Range( SIZE, SIZE + 10 ), byte[].class );
+            Assert.fail( "range is past the end of the object" );
+        } catch ( AtmosException e ) {
+            Assert.assertEquals( 416, e.getHttpCode() );
+        }
+    }
+
+    @Test
+    public void testRangedUpdate() throws Exception {
+        ObjectId manifest = client.createObject( data, null );
+        ObjectId plain = store.createObject( data, null );
+        ObjectId unknown = store.createObject( data, null );
+        client.readObject( plain, new Range( 0, 9 ), byte[].class );
+        store.resetCounts();
+
+        try {
+            client.updateObject( manifest, new byte[10], new Range( 0, 9 ) );
+            Assert.fail( "range updates of manifests are not supported" );
+        } catch ( UnsupportedOperationException e ) {
+            // expected
+        }
+        client.updateObject( plain, new byte[10], new Range( 0, 9 ) );
+        Assert.assertEquals( 0, store.getCount( "getUserMetadata" ) );
+
+        // not seen by this client yet
+        client.updateObject( unknown, new byte[10], new Range( 0, 9 ) );
+        Assert.assertEquals( 1, store.getCount( "getUserMetadata" ) );
+        Assert.assertEquals( 2, store.getCount( "updateObject" ) );
+        Assert.assertArrayEquals( new byte[10], Arrays.copyOf( store.getContent( unknown ), 10 ) );
+    }
+
+    @Test
+    public void testHashMismatchRejected() throws Exception {
+        ObjectId oid = client.createObject( data, null );
+        DedupManifest.ChunkRef chunk = getManifest( oid ).getChunks().get( 1 );
+        store.getContent( new ObjectId( chunk.getLocation() ) )[0] ^= 1;
+
+        try {
+            client.readObject( oid, byte[].class );
+            Assert.fail( "corrupt chunk should be rejected" );
+        } catch ( IOException e ) {
+            Assert.assertTrue( e.getMessage(), e.getMessage().contains( chunk.getLocation() ) );
+        }
+    }
+
+    private DedupManifest getManifest( ObjectId oid ) throws IOException {
+        return DedupManifest.parse( new ByteArrayInputStream( store.getContent( oid ) ) );
+    }
+
+    private byte[] slice( byte[] data, Range range ) {
+        return Arrays.copyOfRange( data, (int) range.getFirst(), (int) range.getLast() + 1 );
+    }
+}
@@ -0,0 +1,308 @@
+package com.emc.atmos.api.test;
+
+import com.emc.atmos.AtmosException;
+import com.emc.atmos.api.*;
+import com.emc.atmos.api.bean.*;
+import com.emc.atmos.api.request.CreateObjectRequest;
+import com.emc.atmos.api.request.ReadObjectRequest;
+import com.emc.atmos.api.request.UpdateObjectRequest;
+import com.emc.util.StreamUtil;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An in-memory object store for testing client layers without an Atmos server. Supports creating, reading (including
+ * single ranges), updating and deleting objects and their user metadata. Other operations are not implemented.
+ * <p/>
+ * Every call is counted by operation name (e.g. "createObject"), and a call can be made to fail with
+ * {@link #failOn(String, int)}.
+ */
+public class MemoryAtmosApi extends DelegatingAtmosApi {
+    private Map<String, StoredObject> objects = new ConcurrentHashMap<String, StoredObject>();
+    private Map<String, AtomicInteger> counts = new ConcurrentHashMap<String, AtomicInteger>();
+    private Map<String, Integer> failures = new ConcurrentHashMap<String, Integer>();
+    private AtomicInteger nextId = new AtomicInteger();
+
+    public MemoryAtmosApi() {
+        super( null );
+    }
+
+    /**
+     * Makes the given call of an operation (1 for the next call) throw an AtmosException.
+     */
+    public void failOn( String operation, int call ) {
+        failures.put( operation, getCount( operation ) + call );
+    }
+
+    /**
+     * Returns the number of times an operation has been called.
+     */
+    public int getCount( String operation ) {
+        AtomicInteger count = counts.get( operation );
+        return count == null ? 0 : count.get();
+    }
+
+    public void resetCounts() {
+        counts.clear();
+    }
+
+    /**
+     * Returns the stored content of an object, or null if it doesn't exist.
+     */
+    public byte[] getContent( ObjectIdentifier identifier ) {
+        StoredObject object = objects.get( key( identifier ) );
+        return object == null ? null : object.content;
+    }
+
+    public Set<ObjectIdentifier> getIdentifiers() {
+        Set<ObjectIdentifier> identifiers = new HashSet<ObjectIdentifier>();
+        for ( StoredObject object : objects.values() ) identifiers.add( object.identifier );
+        return identifiers;
+    }
+
+    private synchronized void call( String operation ) {
+        AtomicInteger count = counts.get( operation );
+        if ( count == null ) {
+            count = new AtomicInteger();
+            counts.put( operation, count );
+        }
+        int n = count.incrementAndGet();
+        Integer failure = failures.get( operation );
+        if ( failure != null && failure == n ) {
+            failures.remove( operation );
+            throw new AtmosException( "Injected failure of " + operation + " call " + n, 500 );
+        }
+    }
+
+    @Override
+    public ObjectId createObject( Object content, String contentType ) {
+        return createObject( new CreateObjectRequest().content( content ).contentType( contentType ) ).getObjectId();
+    }
+
+    @Override
+    public ObjectId createObject( ObjectIdentifier identifier, Object content, String contentType ) {
+        return createObject( new CreateObjectRequest().identifier( identifier ).content( content )
+                                                      .contentType( contentType ) ).getObjectId();
+    }
+
+    @Override
+    public CreateObjectResponse createObject( CreateObjectRequest request ) {
+        call( "createObject" );
+        ObjectId oid = new ObjectId( String.format( "%044x", nextId.incrementAndGet() ) );
+        StoredObject object = new StoredObject();
+        object.identifier = request.getIdentifier() == null ? oid : request.getIdentifier();
+        object.oid = oid;
+        object.content = toBytes( request.getContent() );
+        object.contentType = request.getContentType();
+        putMetadata( object, request.getUserMetadata() );
+        object.mtime = System.currentTimeMillis();
+        objects.put( key( object.identifier ), object );
+        if ( request.getIdentifier() != null ) objects.put( key( oid ), object );
+
+        CreateObjectResponse response = new CreateObjectResponse();
+        response.setLocation( "/rest/objects/" + oid.getId() );
+        return response;
+    }
+
+    @Override
+    public <T> T readObject( ObjectIdentifier identifier, Class<T> objectType ) throws IOException {
+        return readObject( new ReadObjectRequest().identifier( identifier ), objectType ).getObject();
+    }
+
+    @Override
+    public <T> T readObject( ObjectIdentifier identifier, Range range, Class<T> objectType ) throws IOException {
+        return readObject( new ReadObjectRequest().identifier( identifier ).ranges( range ), objectType ).getObject();
+    }
+
+    @Override
+    public <T> ReadObjectResponse<T> readObject( ReadObjectRequest request, Class<T> objectType ) throws IOException {
+        call( "readObject" );
+        StoredObject object = get( request.getIdentifier() );
+        byte[] content;
+        synchronized ( object ) {
+            content = object.content;
+            if ( request.getRanges() != null && !request.getRanges().isEmpty() ) {
+                if ( request.getRanges().size() > 1 ) throw new UnsupportedOperationException( "Multiple ranges" );
+                Range range = request.getRanges().get( 0 );
+                if ( range.getFirst() >= content.length ) throw new AtmosException( "Invalid range", 416 );
+                int last = (int) Math.min( range.getLast(), content.length - 1 );
+                content = Arrays.copyOfRange( content, (int) range.getFirst(), last + 1 );
+            }
+        }
+
+        Object converted;
+        if ( byte[].class.equals( objectType ) ) converted = content;
+        else if ( InputStream.class.equals( objectType ) ) converted = new ByteArrayInputStream( content );
+        else if ( String.class.equals( objectType ) ) converted = new String( content, "UTF-8" );
+        else throw new UnsupportedOperationException( "Unsupported type " + objectType );
+
+        ReadObjectResponse<T> response = new ReadObjectResponse<T>( objectType.cast( converted ) );
+        response.setMetadata( getObjectMetadata( object ) );
+        response.setContentType( object.contentType );
+        response.setContentLength( content.length );
+        response.setHttpStatus( content.length == object.content.length ? 200 : 206 );
+        return response;
+    }
+
+    @Override
+    public ReadObjectResponse<InputStream> readObjectStream( ObjectIdentifier identifier, Range range ) {
+        try {
+            return readObject( new ReadObjectRequest().identifier( identifier ).ranges( range ), InputStream.class );
+        } catch ( IOException e ) {
+            throw new AtmosException( "Error reading object", e );
+        }
+    }
+
+    @Override
+    public void updateObject( ObjectIdentifier identifier, Object content ) {
+        updateObject( new UpdateObjectRequest().identifier( identifier ).content( content ) );
+    }
+
+    @Override
+    public void updateObject( ObjectIdentifier identifier, Object content, Range range ) {
+        updateObject( new UpdateObjectRequest().identifier( identifier ).content( content ).range( range ) );
+    }
+
+    @Override
+    public BasicResponse updateObject( UpdateObjectRequest request ) {
+        call( "updateObject" );
+        StoredObject object = get( request.getIdentifier() );
+        byte[] data = toBytes( request.getContent() );
+        synchronized ( object ) {
+            if ( request.getRange() == null ) {
+                object.content = data;
+            } else {
+                int offset = (int) request.getRange().getFirst();
+                if ( offset > object.content.length ) throw new AtmosException( "Invalid range", 416 );
+                byte[] content = object.content;
+                if ( offset + data.length > content.length )
+                    content = Arrays.copyOf( content, offset + data.length );
+                System.arraycopy( data, 0, content, offset, data.length );
+                object.content = content;
+            }
+            if ( request.getContentType() != null ) object.contentType = request.getContentType();
+            putMetadata( object, request.getUserMetadata() );
+            object.mtime++;
+        }
+        return new BasicResponse();
+    }
+
+    @Override
+    public void delete( ObjectIdentifier identifier ) {
+        call( "delete" );
+        StoredObject object = get( identifier );
+        objects.remove( key( object.identifier ) );
+        objects.remove( key( object.oid ) );
+    }
+
+    @Override
+    public Map<String, Boolean> getUserMetadataNames( ObjectIdentifier identifier ) {
+        call( "getUserMetadataNames" );
+        StoredObject object = get( identifier );
+        Map<String, Boolean> names = new TreeMap<String, Boolean>();
+        synchronized ( object ) {
+            for ( Metadata m : object.metadata.values() ) names.put( m.getName(), m.isListable() );
+        }
+        return names;
+    }
+
+    @Override
+    public Map<String, Metadata> getUserMetadata( ObjectIdentifier identifier, String... metadataNames ) {
+        call( "getUserMetadata" );
+        StoredObject object = get( identifier );
+        Map<String, Metadata> metadata = new TreeMap<String, Metadata>();
+        synchronized ( object ) {
+            for ( Metadata m : object.metadata.values() ) {
+                if ( metadataNames == null || metadataNames.length == 0
+                     || Arrays.asList( metadataNames ).contains( m.getName() ) )
+                    metadata.put( m.getName(), copy( m ) );
+            }
+        }
+        return metadata;
+    }
+
+    @Override
+    public void setUserMetadata( ObjectIdentifier identifier, Metadata... metadata ) {
+        call( "setUserMetadata" );
+        StoredObject object = get( identifier );
+        synchronized ( object ) {
+            putMetadata( object, Arrays.asList( metadata ) );
+        }
+    }
+
+    @Override
+    public void deleteUserMetadata( ObjectIdentifier identifier, String... names ) {
+        call( "deleteUserMetadata" );
+        StoredObject object = get( identifier );
+        synchronized ( object ) {
+            for ( String name : names ) object.metadata.remove( name );
+        }
+    }
+
+    @Override
+    public ObjectMetadata getObjectMetadata( ObjectIdentifier identifier ) {
+        call( "getObjectMetadata" );
+        return getObjectMetadata( get( identifier ) );
+    }
+
+    private ObjectMetadata getObjectMetadata( StoredObject object ) {
+        Map<String, Metadata> metadata = new TreeMap<String, Metadata>();
+        synchronized ( object ) {
+            for ( Metadata m : object.metadata.values() ) metadata.put( m.getName(), copy( m ) );
+            metadata.put( "objectid", new Metadata( "objectid", object.oid.getId(), false ) );
+            metadata.put( "size", new Metadata( "size", "" + object.content.length, false ) );
+            metadata.put( "mtime", new Metadata( "mtime", "" + object.mtime, false ) );
+        }
+        return new ObjectMetadata( metadata, null, object.contentType, null, null );
+    }
+
+    private StoredObject get( ObjectIdentifier identifier ) {
+        StoredObject object = objects.get( key( identifier ) );
+        if ( object == null ) throw new AtmosException( "Object " + identifier + " not found", 404, 1003 );
+        return object;
+    }
+
+    private String key( ObjectIdentifier identifier ) {
+        return identifier.getRelativeResourcePath();
+    }
+
+    private void putMetadata( StoredObject object, Collection<Metadata> metadata ) {
+        if ( metadata == null ) return;
+        for ( Metadata m : metadata ) object.metadata.put( m.getName(), copy( m ) );
+    }
+
+    private Metadata copy( Metadata m ) {
+        return new Metadata( m.getName(), m.getValue(), m.isListable() );
+    }
+
+    private byte[] toBytes( Object content ) {
+        try {
+            if ( content == null ) return new byte[0];
+            if ( content instanceof byte[] ) return ((byte[]) content).clone();
+            if ( content instanceof String ) return ((String) content).getBytes( "UTF-8" );
+            if ( content instanceof BufferSegment ) {
+                BufferSegment segment = (BufferSegment) content;
+                return Arrays.copyOfRange( segment.getBuffer(), segment.getOffset(),
+                                           segment.getOffset() + segment.getSize() );
+            }
+            if ( content instanceof InputStream ) return StreamUtil.readAsBytes( (InputStream) content );
+        } catch ( IOException e ) {
+            throw new AtmosException( "Error reading content", e );
+        }
+        throw new UnsupportedOperationException( "Unsupported content " + content.getClass() );
+    }
+
+    private static class StoredObject {
+        ObjectIdentifier identifier;
+        ObjectId oid;
+        byte[] content;
+        String contentType;
+        Map<String, Metadata> metadata = new TreeMap<String, Metadata>();
+        long mtime;
+    }
+}
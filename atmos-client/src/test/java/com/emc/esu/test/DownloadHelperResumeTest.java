@@ -0,0 +1,166 @@
+/*
+ * Copyright 2014 EMC Corporation. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.emc.esu.test;
+
+import com.emc.esu.api.BufferSegment;
+import com.emc.esu.api.EsuException;
+import com.emc.esu.api.Extent;
+import com.emc.esu.api.ObjectId;
+import com.emc.esu.api.rest.DownloadHelper;
+import com.emc.util.StreamUtil;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+/**
+ * Tests resumable downloads with {@link DownloadHelper} against an in-memory store.
+ */
+public class DownloadHelperResumeTest {
+    private static final int BUFFER_SIZE = 1024;
+    private static final int SIZE = 10 * BUFFER_SIZE + 100;
+
+    private MemoryEsuApi store;
+    private byte[] data;
+    private ObjectId id;
+    private File target;
+    private File partFile;
+    private File checkpointFile;
+
+    @Before
+    public void setUp() throws Exception {
+        store = new MemoryEsuApi();
+        data = new byte[SIZE];
+        new Random( 1 ).nextBytes( data );
+        id = store.putObject( data );
+        target = File.createTempFile( "download", ".dat" );
+        target.delete();
+        partFile = new File( target.getPath() + ".part" );
+        checkpointFile = new File( partFile.getPath() + ".ckpt" );
+    }
+
+    @After
+    public void tearDown() {
+        target.delete();
+        partFile.delete();
+        checkpointFile.delete();
+    }
+
+    @Test
+    public void testResumeAfterFailure() throws Exception {
+        failDownload( 4 );
+        Assert.assertTrue( "partial file removed", partFile.exists() );
+        Assert.assertTrue( "checkpoint removed", checkpointFile.exists() );
+
+        store.resetCounts();
+        newHelper().readObject( id, target );
+
+        // The three extents received before the failure are not fetched again.
+        Assert.assertEquals( 8, store.getCount( "readObject" ) );
+        Assert.assertArrayEquals( data, readFile( target ) );
+        Assert.assertFalse( partFile.exists() );
+        Assert.assertFalse( checkpointFile.exists() );
+    }
+
+    @Test
+    public void testObjectChangedRestarts() throws Exception {
+        failDownload( 4 );
+
+        byte[] update = new byte[100];
+        new Random( 2 ).nextBytes( update );
+        store.getApi().updateObjectFromSegment( id, null, null, new Extent( 0, update.length ),
+                                               new BufferSegment( update ), null, null );
+        System.arraycopy( update, 0, data, 0, update.length );
+        store.resetCounts();
+        newHelper().readObject( id, target );
+
+        Assert.assertEquals( 11, store.getCount( "readObject" ) );
+        Assert.assertArrayEquals( data, readFile( target ) );
+    }
+
+    @Test
+    public void testVerifyCheckpoint() throws Exception {
+        failDownload( 4 );
+
+        // Corrupt the second extent in the partial file.
+        RandomAccessFile raf = new RandomAccessFile( partFile, "rw" );
+        raf.seek( BUFFER_SIZE + 10 );
+        raf.write( ~data[BUFFER_SIZE + 10] );
+        raf.close();
+
+        store.resetCounts();
+        DownloadHelper helper = newHelper();
+        helper.setVerifyCheckpoint( true );
+        helper.readObject( id, target );
+
+        Assert.assertEquals( 9, store.getCount( "readObject" ) );
+        Assert.assertArrayEquals( data, readFile( target ) );
+    }
+
+    @Test
+    public void testTornCheckpointRecord() throws Exception {
+        failDownload( 4 );
+        FileOutputStream out = new FileOutputStream( checkpointFile, true );
+        out.write( "extent 3072 10".getBytes( "UTF-8" ) );
+        out.close();
+
+        store.resetCounts();
+        newHelper().readObject( id, target );
+
+        Assert.assertEquals( 8, store.getCount( "readObject" ) );
+        Assert.assertArrayEquals( data, readFile( target ) );
+    }
+
+    @Test
+    public void testChecksummingRejected() throws Exception {
+        DownloadHelper helper = newHelper();
+        helper.setChecksumming( true );
+        try {
+            helper.readObject( id, target );
+            Assert.fail( "checksumming can't be combined with resume" );
+        } catch ( EsuException e ) {
+            // expected
+        }
+        Assert.assertEquals( 0, store.getCount( "readObject" ) );
+    }
+
+    private void failDownload( int failedRead ) {
+        store.failOn( "readObject", failedRead );
+        try {
+            newHelper().readObject( id, target );
+            Assert.fail( "download should fail" );
+        } catch ( EsuException e ) {
+            Assert.assertEquals( 500, e.getHttpCode() );
+        }
+        Assert.assertFalse( target.exists() );
+    }
+
+    private DownloadHelper newHelper() {
+        DownloadHelper helper = new DownloadHelper( store.getApi(), new byte[BUFFER_SIZE] );
+        helper.setResumable( true );
+        return helper;
+    }
+
+    private byte[] readFile( File file ) throws IOException {
+        return StreamUtil.readAsBytes( new FileInputStream( file ) );
+    }
+}
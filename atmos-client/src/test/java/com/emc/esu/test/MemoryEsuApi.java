@@ -0,0 +1,201 @@
+/*
+ * Copyright 2014 EMC Corporation. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.emc.esu.test;
+
+import com.emc.esu.api.BufferSegment;
+import com.emc.esu.api.EsuApi;
+import com.emc.esu.api.EsuException;
+import com.emc.esu.api.Extent;
+import com.emc.esu.api.Identifier;
+import com.emc.esu.api.Metadata;
+import com.emc.esu.api.MetadataList;
+import com.emc.esu.api.ObjectId;
+import com.emc.esu.api.ObjectMetadata;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An in-memory object store behind the {@link EsuApi} interface, for testing the
+ * upload and download helpers without an Atmos server.  Only the calls the helpers
+ * make are implemented: creating, updating and reading objects from segments and
+ * getting their size and mtime.  Other calls throw UnsupportedOperationException.
+ * <p/>
+ * Every call is counted by method name (e.g. "readObject"), and a call can be made
+ * to fail with {@link #failOn(String, int)}.
+ */
+public class MemoryEsuApi implements InvocationHandler {
+    private Map<String, StoredObject> objects = new ConcurrentHashMap<String, StoredObject>();
+    private Map<String, AtomicInteger> counts = new ConcurrentHashMap<String, AtomicInteger>();
+    private Map<String, Integer> failures = new ConcurrentHashMap<String, Integer>();
+    private AtomicInteger nextId = new AtomicInteger();
+    private EsuApi api;
+
+    public MemoryEsuApi() {
+        api = (EsuApi) Proxy.newProxyInstance( EsuApi.class.getClassLoader(),
+                                               new Class<?>[]{EsuApi.class}, this );
+    }
+
+    /**
+     * Returns the EsuApi backed by this store.
+     */
+    public EsuApi getApi() {
+        return api;
+    }
+
+    /**
+     * Makes the given call of a method (1 for the next call) throw an EsuException.
+     */
+    public void failOn( String method, int call ) {
+        failures.put( method, getCount( method ) + call );
+    }
+
+    /**
+     * Returns the number of times a method has been called.
+     */
+    public int getCount( String method ) {
+        AtomicInteger count = counts.get( method );
+        return count == null ? 0 : count.get();
+    }
+
+    public void resetCounts() {
+        counts.clear();
+    }
+
+    /**
+     * Returns the stored content of an object, or null if it doesn't exist.
+     */
+    public byte[] getContent( Identifier id ) {
+        StoredObject object = objects.get( id.toString() );
+        return object == null ? null : object.content;
+    }
+
+    /**
+     * Stores an object directly, without counting a call.
+     */
+    public ObjectId putObject( byte[] content ) {
+        ObjectId id = newId();
+        StoredObject object = new StoredObject();
+        object.content = content.clone();
+        objects.put( id.toString(), object );
+        return id;
+    }
+
+    @Override
+    public Object invoke( Object proxy, Method method, Object[] args ) throws Throwable {
+        if ( method.getDeclaringClass() == Object.class ) {
+            try {
+                return method.invoke( this, args );
+            } catch ( InvocationTargetException e ) {
+                throw e.getCause();
+            }
+        }
+        call( method.getName() );
+        String name = method.getName();
+        Class<?>[] types = method.getParameterTypes();
+        if ( name.equals( "createObjectFromSegment" ) ) {
+            return putObject( toBytes( (BufferSegment) args[2] ) );
+        } else if ( name.equals( "updateObjectFromSegment" ) ) {
+            update( (Identifier) args[0], (Extent) args[3], (BufferSegment) args[4] );
+            return null;
+        } else if ( name.equals( "readObject" ) && types[0] == Identifier.class ) {
+            return read( (Identifier) args[0], (Extent) args[1] );
+        } else if ( name.equals( "getAllMetadata" ) && types.length == 1 ) {
+            return getAllMetadata( (Identifier) args[0] );
+        }
+        throw new UnsupportedOperationException( name );
+    }
+
+    private synchronized void call( String method ) {
+        AtomicInteger count = counts.get( method );
+        if ( count == null ) {
+            count = new AtomicInteger();
+            counts.put( method, count );
+        }
+        int n = count.incrementAndGet();
+        Integer failure = failures.get( method );
+        if ( failure != null && failure == n ) {
+            failures.remove( method );
+            throw new EsuException( "Injected failure of " + method + " call " + n, 500 );
+        }
+    }
+
+    private void update( Identifier id, Extent extent, BufferSegment segment ) {
+        StoredObject object = get( id );
+        byte[] data = toBytes( segment );
+        synchronized ( object ) {
+            if ( extent == null || extent.equals( Extent.ALL_CONTENT ) ) {
+                object.content = data;
+            } else {
+                int offset = (int) extent.getOffset();
+                if ( offset > object.content.length ) throw new EsuException( "Invalid range", 416 );
+                byte[] content = object.content;
+                if ( offset + data.length > content.length )
+                    content = Arrays.copyOf( content, offset + data.length );
+                System.arraycopy( data, 0, content, offset, data.length );
+                object.content = content;
+            }
+            object.mtime++;
+        }
+    }
+
+    private byte[] read( Identifier id, Extent extent ) {
+        StoredObject object = get( id );
+        synchronized ( object ) {
+            if ( extent == null || extent.equals( Extent.ALL_CONTENT ) ) return object.content.clone();
+            if ( extent.getOffset() >= object.content.length ) throw new EsuException( "Invalid range", 416 );
+            int end = (int) Math.min( extent.getOffset() + extent.getSize(), object.content.length );
+            return Arrays.copyOfRange( object.content, (int) extent.getOffset(), end );
+        }
+    }
+
+    private ObjectMetadata getAllMetadata( Identifier id ) {
+        StoredObject object = get( id );
+        MetadataList metadata = new MetadataList();
+        synchronized ( object ) {
+            metadata.addMetadata( new Metadata( "size", "" + object.content.length, false ) );
+            metadata.addMetadata( new Metadata( "mtime", "" + object.mtime, false ) );
+        }
+        ObjectMetadata om = new ObjectMetadata();
+        om.setMetadata( metadata );
+        return om;
+    }
+
+    private StoredObject get( Identifier id ) {
+        StoredObject object = objects.get( id.toString() );
+        if ( object == null ) throw new EsuException( "Object " + id + " not found", 404, 1003 );
+        return object;
+    }
+
+    private ObjectId newId() {
+        return new ObjectId( String.format( "%044x", nextId.incrementAndGet() ) );
+    }
+
+    private byte[] toBytes( BufferSegment segment ) {
+        return Arrays.copyOfRange( segment.getBuffer(), segment.getOffset(),
+                                   segment.getOffset() + segment.getSize() );
+    }
+
+    private static class StoredObject {
+        byte[] content;
+        long mtime;
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2014 EMC Corporation. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0.txt
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.emc.esu.test;
+
+import com.emc.esu.api.EsuException;
+import com.emc.esu.api.ObjectId;
+import com.emc.esu.api.ObjectPath;
+import com.emc.esu.api.rest.UploadHelper;
+import com.emc.esu.api.rest.UploadJournal;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Random;
+
+/**
+ * Tests resumable uploads with {@link UploadHelper} and {@link UploadJournal} against
+ * an in-memory store.
+ */
+public class UploadHelperJournalTest {
+    private static final int BUFFER_SIZE = 1024;
+    private static final int SIZE = 10 * BUFFER_SIZE + 100;
+
+    private MemoryEsuApi store;
+    private byte[] data;
+    private File journalFile;
+
+    @Before
+    public void setUp() throws Exception {
+        store = new MemoryEsuApi();
+        data = new byte[SIZE];
+        new Random( 1 ).nextBytes( data );
+        journalFile = File.createTempFile( "upload", ".journal" );
+        journalFile.delete();
+    }
+
+    @After
+    public void tearDown() {
+        journalFile.delete();
+    }
+
+    @Test
+    public void testResumeCreate() throws Exception {
+        ObjectId id = failCreate( 4 );
+
+        store.resetCounts();
+        ObjectId resumed = newHelper().createObject( new ByteArrayInputStream( data ), null, null, true );
+
+        // Chunks 0-3 were committed before the failure.
+        Assert.assertEquals( id, resumed );
+        Assert.assertEquals( 0, store.getCount( "createObjectFromSegment" ) );
+        Assert.assertEquals( 7, store.getCount( "updateObjectFromSegment" ) );
+        Assert.assertArrayEquals( data, store.getContent( id ) );
+        Assert.assertFalse( "journal not deleted", journalFile.exists() );
+    }
+
+    @Test
+    public void testTornJournalRecord() throws Exception {
+        ObjectId id = failCreate( 4 );
+        FileOutputStream out = new FileOutputStream( journalFile, true );
+        out.write( "range 4096 10".getBytes( "UTF-8" ) );
+        out.close();
+
+        store.resetCounts();
+        newHelper().createObject( new ByteArrayInputStream( data ), null, null, true );
+
+        Assert.assertEquals( 7, store.getCount( "updateObjectFromSegment" ) );
+        Assert.assertArrayEquals( data, store.getContent( id ) );
+    }
+
+    @Test
+    public void testLostRecordsAreResent() throws Exception {
+        ObjectId id = failCreate( 4 );
+
+        // Keep only the ID record and the first chunk, as if the rest was never synced.
+        UploadJournal journal = new UploadJournal( journalFile );
+        journal.recordObjectId( id );
+        journal.recordRange( 0, BUFFER_SIZE );
+        journal.close();
+
+        store.resetCounts();
+        newHelper().createObject( new ByteArrayInputStream( data ), null, null, true );
+
+        Assert.assertEquals( 10, store.getCount( "updateObjectFromSegment" ) );
+        Assert.assertArrayEquals( data, store.getContent( id ) );
+    }
+
+    @Test
+    public void testResumeUpdate() throws Exception {
+        ObjectId id = store.putObject( new byte[100] );
+        store.failOn( "updateObjectFromSegment", 5 );
+        try {
+            newHelper().updateObject( id, new ByteArrayInputStream( data ), null, null, true );
+            Assert.fail( "update should fail" );
+        } catch ( EsuException e ) {
+            Assert.assertEquals( 500, e.getHttpCode() );
+        }
+
+        store.resetCounts();
+        newHelper().updateObject( id, new ByteArrayInputStream( data ), null, null, true );
+
+        Assert.assertEquals( 7, store.getCount( "updateObjectFromSegment" ) );
+        Assert.assertArrayEquals( data, store.getContent( id ) );
+    }
+
+    @Test
+    public void testUpdateRequiresObjectId() throws Exception {
+        try {
+            newHelper().updateObject( new ObjectPath( "/dir/file" ), new ByteArrayInputStream( data ),
+                                      null, null, true );
+            Assert.fail( "resumable updates need an object ID" );
+        } catch ( EsuException e ) {
+            // expected
+        }
+        Assert.assertEquals( 0, store.getCount( "updateObjectFromSegment" ) );
+    }
+
+    @Test
+    public void testUpdateOtherObjectRejected() throws Exception {
+        failCreate( 4 );
+        ObjectId other = store.putObject( new byte[100] );
+        store.resetCounts();
+
+        try {
+            newHelper().updateObject( other, new ByteArrayInputStream( data ), null, null, true );
+            Assert.fail( "journal belongs to another object" );
+        } catch ( EsuException e ) {
+            // expected
+        }
+        Assert.assertEquals( 0, store.getCount( "updateObjectFromSegment" ) );
+        Assert.assertArrayEquals( new byte[100], store.getContent( other ) );
+    }
+
+    private ObjectId failCreate( int failedAppend ) {
+        store.failOn( "updateObjectFromSegment", failedAppend );
+        try {
+            newHelper().createObject( new ByteArrayInputStream( data ), null, null, true );
+            Assert.fail( "upload should fail" );
+        } catch ( EsuException e ) {
+            Assert.assertEquals( 500, e.getHttpCode() );
+        }
+        Assert.assertTrue( "journal removed", journalFile.exists() );
+        ObjectId id = new UploadJournal( journalFile ).getObjectId();
+        Assert.assertNotNull( id );
+        return id;
+    }
+
+    private UploadHelper newHelper() {
+        UploadHelper helper = new UploadHelper( store.getApi(), new byte[BUFFER_SIZE] );
+        helper.setJournal( new UploadJournal( journalFile ) );
+        return helper;
+    }
+}
@@ -0,0 +1,114 @@
+package com.emc.vipr.transform.jmh;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
+import java.security.Security;
+import java.util.Random;
+
+/**
+ * Test data and helpers shared by the benchmarks.
+ */
+public class BenchmarkData {
+    private static final String[] WORDS = { "object", "storage", "bucket", "namespace",
+        "compress", "encrypt", "metadata", "checksum", "replica", "tenant", "0", "1", "42",
+        "2014", "\n", ", ", "; " };
+
+    private static KeyPair masterKey;
+
+    /**
+     * Generates the same data every time for a kind and size.
+     * @param kind "text" for compressible data, or "random" for data that doesn't
+     * compress.
+     */
+    public static byte[] generate(String kind, int size) throws UnsupportedEncodingException {
+        byte[] data = new byte[size];
+        Random r = new Random(size);
+        if("random".equals(kind)) {
+            r.nextBytes(data);
+        } else if("text".equals(kind)) {
+            int pos = 0;
+            while(pos < data.length) {
+                byte[] word = WORDS[r.nextInt(WORDS.length)].getBytes("US-ASCII");
+                int c = Math.min(word.length, data.length - pos);
+                System.arraycopy(word, 0, data, pos, c);
+                pos += c;
+            }
+        } else {
+            throw new IllegalArgumentException("Unknown data kind " + kind);
+        }
+        return data;
+    }
+
+    /**
+     * @return an RSA key pair for the encryption factories.  Generated once per
+     * JVM since it takes a while.
+     */
+    public static synchronized KeyPair masterKey() throws NoSuchAlgorithmException {
+        if(masterKey == null) {
+            KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
+            kpg.initialize(2048);
+            masterKey = kpg.generateKeyPair();
+        }
+        return masterKey;
+    }
+
+    /**
+     * @param name a registered JCE provider, or "default" for the JVM's preferred
+     * provider.
+     * @return the provider, or null for the default.
+     */
+    public static Provider provider(String name) {
+        if("default".equals(name)) {
+            return null;
+        }
+        Provider provider = Security.getProvider(name);
+        if(provider == null) {
+            throw new IllegalArgumentException("Provider " + name + " is not installed");
+        }
+        return provider;
+    }
+
+    /**
+     * Reads a stream to the end and closes it.
+     * @return the number of bytes read.
+     */
+    public static long drain(InputStream in, byte[] buffer) throws IOException {
+        long total = 0;
+        int c;
+        while((c = in.read(buffer)) != -1) {
+            total += c;
+        }
+        in.close();
+        return total;
+    }
+
+    /**
+     * Writes the content in pieces of writeSize, the way a caller copying from
+     * a stream would, and closes the stream.
+     */
+    public static void write(OutputStream out, byte[] content, int writeSize) throws IOException {
+        for(int pos = 0; pos < content.length; pos += writeSize) {
+            out.write(content, pos, Math.min(writeSize, content.length - pos));
+        }
+        out.close();
+    }
+
+    /**
+     * Discards everything written to it.
+     */
+    public static class NullOutputStream extends OutputStream {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.emc.vipr.transform.jmh;
+
+import java.io.ByteArrayInputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.emc.vipr.transform.block.BlockInputStream;
+import com.emc.vipr.transform.block.BlockOutputStream;
+import com.emc.vipr.transform.block.BlockPipeline;
+import com.emc.vipr.transform.block.BlockTransformFactory;
+import com.emc.vipr.transform.block.OutputStreamSink;
+import com.emc.vipr.transform.compression.CompressionTransformFactory;
+import com.emc.vipr.transform.encryption.BasicEncryptionTransformFactory;
+
+/**
+ * Compresses then encrypts objects with a {@link BlockPipeline}, pulling from
+ * a {@link BlockInputStream} and pushing into a {@link BlockOutputStream}.
+ * Compare with the Deflate results of {@link ChainBenchmark}; block stages
+ * only support Deflate.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = { "-Xmx2g" })
+public class BlockPipelineBenchmark {
+    @Param({ "1", "5" })
+    public int level;
+
+    @Param({ "SHA1", "CRC32" })
+    public String digestAlgorithm;
+
+    @Param({ "4096", "1048576", "16777216" })
+    public int size;
+
+    @Param({ "65536", "262144" })
+    public int blockSize;
+
+    private CompressionTransformFactory compression;
+    private BasicEncryptionTransformFactory encryption;
+    private byte[] content;
+    private byte[] buffer;
+
+    @Setup
+    public void setUp() throws Exception {
+        compression = new CompressionTransformFactory();
+        compression.setCompressionLevel(level);
+        compression.setDigestAlgorithm(digestAlgorithm);
+        encryption = new BasicEncryptionTransformFactory();
+        encryption.setMasterEncryptionKey(BenchmarkData.masterKey());
+        encryption.setDigestAlgorithm(digestAlgorithm);
+        content = BenchmarkData.generate("text", size);
+        buffer = new byte[65536];
+    }
+
+    @Benchmark
+    public void encode(Blackhole bh) throws Exception {
+        BlockPipeline pipeline = BlockPipeline.create(
+                Arrays.<BlockTransformFactory>asList(compression, encryption));
+        bh.consume(BenchmarkData.drain(new BlockInputStream(
+                new ByteArrayInputStream(content), pipeline, blockSize), buffer));
+        bh.consume(pipeline.getEncodedMetadata(new HashMap<String, String>()));
+    }
+
+    @Benchmark
+    public void encodePush(Blackhole bh) throws Exception {
+        BlockPipeline pipeline = BlockPipeline.create(
+                Arrays.<BlockTransformFactory>asList(compression, encryption));
+        pipeline.connect(new OutputStreamSink(new BenchmarkData.NullOutputStream()));
+        BenchmarkData.write(new BlockOutputStream(pipeline, blockSize), content, buffer.length);
+        bh.consume(pipeline.getEncodedMetadata(new HashMap<String, String>()));
+    }
+}
@@ -0,0 +1,125 @@
+package com.emc.vipr.transform.jmh;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.emc.vipr.transform.OutputTransform;
+import com.emc.vipr.transform.TransformConstants.CompressionMode;
+import com.emc.vipr.transform.compression.CompressionTransformFactory;
+import com.emc.vipr.transform.encryption.BasicEncryptionTransformFactory;
+
+/**
+ * Compresses then encrypts objects with the stacked stream transforms, the way
+ * AtmosEncryptionClient applies both.  See {@link BlockPipelineBenchmark} for
+ * the same chain as a block pipeline.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = { "-Xmx2g" })
+public class ChainBenchmark {
+    @Param({ "Deflate", "LZMA", "LZ4" })
+    public String mode;
+
+    @Param({ "1", "5" })
+    public int level;
+
+    @Param({ "SHA1", "CRC32" })
+    public String digestAlgorithm;
+
+    @Param({ "4096", "1048576", "16777216" })
+    public int size;
+
+    @Param({ "65536" })
+    public int bufferSize;
+
+    private CompressionTransformFactory compression;
+    private BasicEncryptionTransformFactory encryption;
+    private byte[] content;
+    private byte[] buffer;
+    private byte[] encoded;
+    private String compressionConfig;
+    private String encryptionConfig;
+    private Map<String, String> metadata;
+
+    @Setup
+    public void setUp() throws Exception {
+        compression = new CompressionTransformFactory();
+        compression.setCompressMode(CompressionMode.valueOf(mode));
+        compression.setCompressionLevel(level);
+        compression.setDigestAlgorithm(digestAlgorithm);
+        encryption = new BasicEncryptionTransformFactory();
+        encryption.setMasterEncryptionKey(BenchmarkData.masterKey());
+        encryption.setDigestAlgorithm(digestAlgorithm);
+        content = BenchmarkData.generate("text", size);
+        buffer = new byte[bufferSize];
+
+        OutputTransform c = compression.getOutputTransform(new ByteArrayInputStream(content),
+                new HashMap<String, String>());
+        OutputTransform e = encryption.getIntermediateOutputTransform(
+                c.getEncodedInputStream(), new HashMap<String, String>());
+        InputStream in = e.getEncodedInputStream();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int n;
+        while((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+        }
+        in.close();
+        encoded = out.toByteArray();
+        compressionConfig = c.getTransformConfig();
+        encryptionConfig = e.getTransformConfig();
+        metadata = new HashMap<String, String>(c.getEncodedMetadata());
+        metadata.putAll(e.getEncodedMetadata());
+    }
+
+    @Benchmark
+    public void encode(Blackhole bh) throws Exception {
+        OutputTransform c = compression.getOutputTransform(new ByteArrayInputStream(content),
+                new HashMap<String, String>());
+        OutputTransform e = encryption.getIntermediateOutputTransform(
+                c.getEncodedInputStream(), new HashMap<String, String>());
+        bh.consume(BenchmarkData.drain(e.getEncodedInputStream(), buffer));
+        bh.consume(e.getEncodedMetadata());
+        bh.consume(c.getEncodedMetadata());
+    }
+
+    @Benchmark
+    public void encodePush(Blackhole bh) throws Exception {
+        // push mode has no intermediate transform; the encryption digest is a second one
+        OutputTransform e = encryption.getOutputTransform(new BenchmarkData.NullOutputStream(),
+                new HashMap<String, String>());
+        OutputTransform c = compression.getOutputTransform(e.getEncodedOutputStream(),
+                new HashMap<String, String>());
+        BenchmarkData.write(c.getEncodedOutputStream(), content, bufferSize);
+        bh.consume(c.getEncodedMetadata());
+        bh.consume(e.getEncodedMetadata());
+    }
+
+    @Benchmark
+    public long decode() throws Exception {
+        InputStream in = encryption.getInputTransform(encryptionConfig,
+                new ByteArrayInputStream(encoded), metadata).getDecodedInputStream();
+        in = compression.getInputTransform(compressionConfig, in, metadata)
+                .getDecodedInputStream();
+        return BenchmarkData.drain(in, buffer);
+    }
+}
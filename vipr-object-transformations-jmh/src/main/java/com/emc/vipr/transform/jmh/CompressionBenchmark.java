@@ -0,0 +1,100 @@
+package com.emc.vipr.transform.jmh;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.emc.vipr.transform.OutputTransform;
+import com.emc.vipr.transform.TransformConstants.CompressionMode;
+import com.emc.vipr.transform.compression.CompressionTransformFactory;
+
+/**
+ * Compresses and decompresses objects with each compression mode and level.
+ * The level is the LZMA profile in LZMA mode; LZMA at the higher levels needs
+ * a large heap.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = { "-Xmx2g" })
+public class CompressionBenchmark {
+    @Param({ "Deflate", "LZMA", "LZ4" })
+    public String mode;
+
+    @Param({ "1", "5", "9" })
+    public int level;
+
+    @Param({ "4096", "1048576", "16777216" })
+    public int size;
+
+    @Param({ "4096", "65536" })
+    public int bufferSize;
+
+    @Param({ "text", "random" })
+    public String data;
+
+    private CompressionTransformFactory factory;
+    private byte[] content;
+    private byte[] buffer;
+    private byte[] encoded;
+    private String transformConfig;
+    private Map<String, String> metadata;
+
+    @Setup
+    public void setUp() throws Exception {
+        factory = new CompressionTransformFactory();
+        factory.setCompressMode(CompressionMode.valueOf(mode));
+        factory.setCompressionLevel(level);
+        content = BenchmarkData.generate(data, size);
+        buffer = new byte[bufferSize];
+
+        OutputTransform t = factory.getOutputTransform(new ByteArrayInputStream(content),
+                new HashMap<String, String>());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        copy(t.getEncodedInputStream(), out);
+        encoded = out.toByteArray();
+        transformConfig = t.getTransformConfig();
+        metadata = t.getEncodedMetadata();
+    }
+
+    @Benchmark
+    public void encode(Blackhole bh) throws Exception {
+        OutputTransform t = factory.getOutputTransform(new ByteArrayInputStream(content),
+                new HashMap<String, String>());
+        bh.consume(BenchmarkData.drain(t.getEncodedInputStream(), buffer));
+        bh.consume(t.getEncodedMetadata());
+    }
+
+    @Benchmark
+    public long decode() throws Exception {
+        return BenchmarkData.drain(factory.getInputTransform(transformConfig,
+                new ByteArrayInputStream(encoded), metadata).getDecodedInputStream(), buffer);
+    }
+
+    private void copy(InputStream in, OutputStream out) throws Exception {
+        int c;
+        while((c = in.read(buffer)) != -1) {
+            out.write(buffer, 0, c);
+        }
+        in.close();
+    }
+}
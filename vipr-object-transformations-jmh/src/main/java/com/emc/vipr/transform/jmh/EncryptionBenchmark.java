@@ -0,0 +1,99 @@
+package com.emc.vipr.transform.jmh;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.emc.vipr.transform.OutputTransform;
+import com.emc.vipr.transform.encryption.BasicEncryptionTransformFactory;
+
+/**
+ * Encrypts and decrypts objects with each cipher mode and key size.  256 bit
+ * keys need the unlimited strength policy files.
+ * <br>
+ * To compare JCE providers, install them in the JVM (java.security) and pass
+ * their names, e.g. -p provider=default,JsafeJCE.  The factory gets all of its
+ * algorithms from the provider (cipher, SHA1PRNG, RSA and the digest), so it
+ * must be a complete provider like the FIPS 140 ones in readme_fips140.txt.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = { "-Xmx2g" })
+public class EncryptionBenchmark {
+    @Param({ "AES/CBC/PKCS5Padding", "AES/CTR/NoPadding" })
+    public String transform;
+
+    @Param({ "128", "256" })
+    public int keySize;
+
+    @Param({ "default" })
+    public String provider;
+
+    @Param({ "4096", "1048576", "16777216" })
+    public int size;
+
+    @Param({ "4096", "65536" })
+    public int bufferSize;
+
+    private BasicEncryptionTransformFactory factory;
+    private byte[] content;
+    private byte[] buffer;
+    private byte[] encoded;
+    private String transformConfig;
+    private Map<String, String> metadata;
+
+    @Setup
+    public void setUp() throws Exception {
+        factory = new BasicEncryptionTransformFactory();
+        factory.setMasterEncryptionKey(BenchmarkData.masterKey());
+        factory.setEncryptionSettings(transform, keySize, BenchmarkData.provider(provider));
+        content = BenchmarkData.generate("random", size);
+        buffer = new byte[bufferSize];
+
+        OutputTransform t = factory.getOutputTransform(new ByteArrayInputStream(content),
+                new HashMap<String, String>());
+        InputStream in = t.getEncodedInputStream();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int c;
+        while((c = in.read(buffer)) != -1) {
+            out.write(buffer, 0, c);
+        }
+        in.close();
+        encoded = out.toByteArray();
+        transformConfig = t.getTransformConfig();
+        metadata = t.getEncodedMetadata();
+    }
+
+    @Benchmark
+    public void encode(Blackhole bh) throws Exception {
+        OutputTransform t = factory.getOutputTransform(new ByteArrayInputStream(content),
+                new HashMap<String, String>());
+        bh.consume(BenchmarkData.drain(t.getEncodedInputStream(), buffer));
+        bh.consume(t.getEncodedMetadata());
+    }
+
+    @Benchmark
+    public long decode() throws Exception {
+        return BenchmarkData.drain(factory.getInputTransform(transformConfig,
+                new ByteArrayInputStream(encoded), metadata).getDecodedInputStream(), buffer);
+    }
+}
@@ -12,10 +12,18 @@ public interface TransformConstants {
     
     public static final String META_TRANSFORM_MODE = METADATA_PREFIX + "transform-mode";
     
+    /** The algorithm transforms use to digest their input; see Digests */
+    public static final String DEFAULT_DIGEST_ALGORITHM = "SHA1";
+    
     //////////////////////////
     // Encryption Constants //
     //////////////////////////
     public static final String DEFAULT_ENCRYPTION_TRANSFORM = "AES/CBC/PKCS5Padding";
+    /** Counter mode can start decrypting at any offset, so it supports ranged reads */
+    public static final String SEEKABLE_ENCRYPTION_TRANSFORM = "AES/CTR/NoPadding";
+    /** Counter mode in authenticated chunks that can be rewritten; see ChunkedCipher */
+    public static final String CHUNKED_ENCRYPTION_TRANSFORM = "AES/CTR/NoPadding/HmacSHA256";
+    public static final int DEFAULT_ENCRYPTION_CHUNK_SIZE = 64 * 1024;
     public static final int DEFAULT_ENCRYPTION_KEY_SIZE = 128;
     public static final String METADATA_SIGNATURE_ALGORITHM = "SHA256withRSA";
     public static final String KEY_ENCRYPTION_TRANSFORM = "RSA/ECB/OAEPWithSHA-1AndMGF1Padding";
@@ -25,12 +33,14 @@ public interface TransformConstants {
     public static final String META_ENCRYPTION_IV = METADATA_PREFIX + "iv";
     public static final String META_ENCRYPTION_UNENC_SIZE = METADATA_PREFIX + "enc-unencrypted-size";
     public static final String META_ENCRYPTION_UNENC_SHA1 = METADATA_PREFIX + "enc-unencrypted-sha1";
+    public static final String META_ENCRYPTION_UNENC_DIGEST = METADATA_PREFIX + "enc-unencrypted-digest";
     public static final String META_ENCRYPTION_META_SIG = METADATA_PREFIX + "enc-metadata-signature";
+    public static final String META_ENCRYPTION_CHUNK_SIZE = METADATA_PREFIX + "enc-chunk-size";
     
     ///////////////////////////
     // Compression Constants //
     ///////////////////////////
-    public enum CompressionMode { LZMA, Deflate, NONE };
+    public enum CompressionMode { LZMA, Deflate, LZ4, DeflateDict, NONE };
     
     public static final CompressionMode DEFAULT_COMPRESSION_MODE = CompressionMode.Deflate;
     public static final int DEFAULT_COMPRESSION_LEVEL = 5;
@@ -39,5 +49,17 @@ public interface TransformConstants {
     public static final String META_COMPRESSION_COMP_SIZE = METADATA_PREFIX + "comp-compressed-size";
     public static final String META_COMPRESSION_COMP_RATIO = METADATA_PREFIX + "comp-compression-ratio";
     public static final String META_COMPRESSION_UNCOMP_SHA1 = METADATA_PREFIX + "comp-uncompressed-sha1";
+    public static final String META_COMPRESSION_UNCOMP_DIGEST = METADATA_PREFIX + "comp-uncompressed-digest";
+    public static final String META_COMPRESSION_DICTIONARY_ID = METADATA_PREFIX + "comp-dictionary-id";
+
+    /////////////////////
+    // Dedup Constants //
+    /////////////////////
+    public static final String DEDUP_HASH_ALGORITHM = "SHA-256";
+    
+    /** Marks a manifest object; the value is the version of the manifest format */
+    public static final String META_DEDUP_MANIFEST = METADATA_PREFIX + "dedup-manifest";
+    public static final String META_DEDUP_SIZE = METADATA_PREFIX + "dedup-size";
+    public static final String META_DEDUP_CHUNKS = METADATA_PREFIX + "dedup-chunks";
 
 }
@@ -16,6 +16,7 @@ public abstract class TransformFactory<T extends OutputTransform,
     implements Comparable<TransformFactory<OutputTransform, InputTransform>> {
     
     private int priority;
+    private String digestAlgorithm = TransformConstants.DEFAULT_DIGEST_ALGORITHM;
 
     /** 
      * Gets an "output" transform for the factory in its current
@@ -36,6 +37,19 @@ public abstract class TransformFactory<T extends OutputTransform,
      */
     public abstract T getOutputTransform(InputStream streamToEncode, Map<String,String> metadataToEncode) throws IOException, TransformException;
 
+    /**
+     * Gets an "output" transform in "pull" mode for a stream that is the output of
+     * another transform.  The other transform already records a digest of the 
+     * original data, so a digest of this transform's input would only cover an 
+     * intermediate form of the data.  Factories whose transforms digest their input
+     * should skip it here.  The default implementation is the same as
+     * {@link #getOutputTransform(InputStream, Map)}.
+     */
+    public T getIntermediateOutputTransform(InputStream streamToEncode, 
+            Map<String,String> metadataToEncode) throws IOException, TransformException {
+        return getOutputTransform(streamToEncode, metadataToEncode);
+    }
+
     /**
      * Gets the "input" transform for the given class and metadata.
      * @param transformConfig the configuration of the transformClass.
@@ -95,6 +109,20 @@ public abstract class TransformFactory<T extends OutputTransform,
     public void setPriority(int priority) {
         this.priority = priority;
     }
+
+    public String getDigestAlgorithm() {
+        return digestAlgorithm;
+    }
+
+    /**
+     * Sets the algorithm used to digest the data being transformed, e.g. SHA1 (the 
+     * default), MD5, SHA-256, CRC32 or ADLER32.  "NONE" disables the digest.  The 
+     * algorithm is recorded in the object's metadata.
+     * @see com.emc.vipr.transform.util.Digests
+     */
+    public void setDigestAlgorithm(String digestAlgorithm) {
+        this.digestAlgorithm = digestAlgorithm;
+    }
     
     @Override
     public int compareTo(TransformFactory<OutputTransform, InputTransform> other) {
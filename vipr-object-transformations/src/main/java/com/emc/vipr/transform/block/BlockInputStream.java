@@ -0,0 +1,125 @@
+package com.emc.vipr.transform.block;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads the output of a {@link BlockPipeline} in "pull" mode.  When the output
+ * of the previous block has been read, the next block is read from the source
+ * and pushed through the pipeline.  The pipeline is closed when the source is
+ * exhausted or the stream is closed.
+ */
+public class BlockInputStream extends InputStream {
+    private InputStream in;
+    private BlockPipeline pipeline;
+    private byte[] block;
+    private byte[] output;
+    private int outputLength;
+    private int pos;
+    private boolean eof;
+    private boolean closed;
+
+    /**
+     * @param in the data to encode.
+     * @param pipeline the pipeline.  It is connected to this stream.
+     */
+    public BlockInputStream(InputStream in, BlockPipeline pipeline) {
+        this(in, pipeline, BlockPipeline.DEFAULT_BLOCK_SIZE);
+    }
+
+    public BlockInputStream(InputStream in, BlockPipeline pipeline, int blockSize) {
+        this.in = in;
+        this.pipeline = pipeline;
+        this.block = new byte[blockSize];
+        this.output = new byte[blockSize];
+        pipeline.connect(new Collector());
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        int c = read(b, 0, 1);
+        return c == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if(closed) {
+            throw new IOException("Stream closed");
+        }
+        if(len == 0) {
+            return 0;
+        }
+        while(pos == outputLength) {
+            if(eof) {
+                return -1;
+            }
+            pos = 0;
+            outputLength = 0;
+            int c = fill();
+            if(c == 0) {
+                eof = true;
+                pipeline.close();
+            } else {
+                pipeline.write(ByteBuffer.wrap(block, 0, c));
+            }
+        }
+        int c = Math.min(len, outputLength - pos);
+        System.arraycopy(output, pos, b, off, c);
+        pos += c;
+        return c;
+    }
+
+    /**
+     * Reads a full block from the source unless it ends first.
+     * @return the number of bytes read; 0 at EOF.
+     */
+    private int fill() throws IOException {
+        int count = 0;
+        int c;
+        while(count < block.length
+                && (c = in.read(block, count, block.length - count)) != -1) {
+            count += c;
+        }
+        return count;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return outputLength - pos;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if(closed) return;
+        closed = true;
+        in.close();
+        if(!eof) {
+            // Completes the stages so their metadata is available.
+            eof = true;
+            pipeline.close();
+        }
+    }
+
+    /**
+     * Collects the pipeline's output until it is read.
+     */
+    private class Collector implements BlockSink {
+        @Override
+        public void write(ByteBuffer data) throws IOException {
+            int c = data.remaining();
+            if(outputLength + c > output.length) {
+                byte[] grown = new byte[Math.max(output.length * 2, outputLength + c)];
+                System.arraycopy(output, 0, grown, 0, outputLength);
+                output = grown;
+            }
+            data.get(output, outputLength, c);
+            outputLength += c;
+        }
+
+        @Override
+        public void close() throws IOException {
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.emc.vipr.transform.block;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Writes to a {@link BlockPipeline} in "push" mode.  Small writes are collected
+ * into a block; writes of a block or more are passed to the pipeline without
+ * copying.  Closing the stream closes the pipeline.
+ */
+public class BlockOutputStream extends OutputStream {
+    private BlockPipeline pipeline;
+    private ByteBuffer block;
+    private boolean closed;
+
+    /**
+     * @param pipeline the pipeline.  It must be connected to its sink.
+     */
+    public BlockOutputStream(BlockPipeline pipeline) {
+        this(pipeline, BlockPipeline.DEFAULT_BLOCK_SIZE);
+    }
+
+    public BlockOutputStream(BlockPipeline pipeline, int blockSize) {
+        this.pipeline = pipeline;
+        this.block = ByteBuffer.allocate(blockSize);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if(!block.hasRemaining()) {
+            flushBlock();
+        }
+        block.put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if(closed) {
+            throw new IOException("Stream closed");
+        }
+        if(block.position() == 0 && len >= block.capacity()) {
+            pipeline.write(ByteBuffer.wrap(b, off, len));
+            return;
+        }
+        while(len > 0) {
+            int c = Math.min(len, block.remaining());
+            block.put(b, off, c);
+            off += c;
+            len -= c;
+            if(!block.hasRemaining()) {
+                flushBlock();
+            }
+        }
+    }
+
+    private void flushBlock() throws IOException {
+        block.flip();
+        if(block.hasRemaining()) {
+            pipeline.write(block);
+        }
+        block.clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if(closed) return;
+        closed = true;
+        flushBlock();
+        pipeline.close();
+    }
+}
@@ -0,0 +1,120 @@
+package com.emc.vipr.transform.block;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import com.emc.vipr.transform.TransformException;
+
+/**
+ * Encodes data by pushing large blocks through a chain of {@link BlockStage}s.
+ * Each stage handles a whole block per call (one digest update, one deflate
+ * call, one cipher update), so unlike a chain of filter streams there is no
+ * per-read dispatch through every layer and no small copies between them.
+ * <br>
+ * Connect the pipeline to a {@link BlockSink} (e.g. an {@link OutputStreamSink})
+ * and write to it, or use the {@link BlockOutputStream} and 
+ * {@link BlockInputStream} adapters to use it in place of an output transform's
+ * "push" or "pull" stream.  After the pipeline is closed, 
+ * {@link #getTransformConfig()} and {@link #getEncodedMetadata(Map)} give the
+ * transform mode and metadata to store with the object.
+ */
+public class BlockPipeline implements BlockSink {
+    /**
+     * Default size of the blocks written to the pipeline by the stream adapters (256KB).
+     */
+    public static final int DEFAULT_BLOCK_SIZE = 256 * 1024;
+
+    private List<BlockStage> stages;
+    private BlockSink head;
+
+    public BlockPipeline(List<? extends BlockStage> stages) {
+        this.stages = new ArrayList<BlockStage>(stages);
+    }
+
+    /**
+     * Creates a pipeline with the output stages of the given factories.  Only the
+     * first factory digests the data; the others would only digest the output of
+     * the stages before them.
+     * @param factories the factories in the order their transforms are applied,
+     * e.g. compression before encryption.
+     */
+    public static BlockPipeline create(List<? extends BlockTransformFactory> factories)
+            throws IOException, TransformException {
+        List<BlockStage> stages = new ArrayList<BlockStage>();
+        if(!factories.isEmpty()) {
+            DigestStage digest = factories.get(0).getDigestStage();
+            if(digest != null) {
+                stages.add(digest);
+            }
+        }
+        for(BlockTransformFactory factory : factories) {
+            stages.add(factory.getOutputStage());
+        }
+        return new BlockPipeline(stages);
+    }
+
+    /**
+     * Links the stages and sends the output of the last one to the sink.
+     */
+    public void connect(BlockSink sink) {
+        BlockSink next = sink;
+        for(int i = stages.size() - 1; i >= 0; i--) {
+            stages.get(i).setNext(next);
+            next = stages.get(i);
+        }
+        head = next;
+    }
+
+    @Override
+    public void write(ByteBuffer block) throws IOException {
+        checkConnected();
+        head.write(block);
+    }
+
+    @Override
+    public void close() throws IOException {
+        checkConnected();
+        head.close();
+    }
+
+    private void checkConnected() {
+        if(head == null) {
+            throw new IllegalStateException("Pipeline is not connected");
+        }
+    }
+
+    public List<BlockStage> getStages() {
+        return Collections.unmodifiableList(stages);
+    }
+
+    /**
+     * @return the transform configs of the stages that change the data, separated 
+     * by "|", or null if none do.
+     */
+    public String getTransformConfig() {
+        StringBuilder sb = new StringBuilder();
+        for(BlockStage stage : stages) {
+            String config = stage.getTransformConfig();
+            if(config != null) {
+                if(sb.length() > 0) sb.append("|");
+                sb.append(config);
+            }
+        }
+        return sb.length() == 0 ? null : sb.toString();
+    }
+
+    /**
+     * Adds the metadata of every stage, in order.  The pipeline must be closed.
+     * @param metadata the object's original metadata.
+     */
+    public Map<String, String> getEncodedMetadata(Map<String, String> metadata) {
+        for(BlockStage stage : stages) {
+            metadata = stage.encodeMetadata(metadata);
+        }
+        return metadata;
+    }
+}
@@ -0,0 +1,22 @@
+package com.emc.vipr.transform.block;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Receives data in blocks.  Implemented by the stages of a {@link BlockPipeline}
+ * and by the sinks at the end of one.
+ */
+public interface BlockSink {
+    /**
+     * Processes the data between the block's position and limit.  The block is 
+     * consumed by the call: it is only valid until the call returns and must not 
+     * be kept.
+     */
+    void write(ByteBuffer block) throws IOException;
+
+    /**
+     * Called after the last block.
+     */
+    void close() throws IOException;
+}
@@ -0,0 +1,73 @@
+package com.emc.vipr.transform.block;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * A stage of a {@link BlockPipeline}.  A stage processes each block it receives
+ * as a whole and passes its output to the next stage as one or more blocks.
+ * This is the block equivalent of an
+ * {@link com.emc.vipr.transform.OutputTransform}.
+ */
+public abstract class BlockStage implements BlockSink {
+    protected BlockSink next;
+    private boolean closed;
+
+    public BlockSink getNext() {
+        return next;
+    }
+
+    public void setNext(BlockSink next) {
+        this.next = next;
+    }
+
+    /**
+     * Processes any data the stage still holds after the last block.
+     */
+    protected abstract void finish() throws IOException;
+
+    /**
+     * Releases the stage's resources.  Called once when the stage is closed, even
+     * if finishing it failed.
+     */
+    protected void release() {
+    }
+
+    @Override
+    public void close() throws IOException {
+        if(closed) return;
+        closed = true;
+        try {
+            finish();
+        } finally {
+            release();
+        }
+        next.close();
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * @return the configuration recorded in the object's transform mode, e.g.
+     * "COMP:Deflate/5", or null if the stage doesn't change the data.
+     */
+    public String getTransformConfig() {
+        return null;
+    }
+
+    /**
+     * Adds the stage's metadata.  The stage must be closed.
+     * @param metadata the object's metadata, including that of the previous
+     * stages.
+     * @return the metadata with the stage's fields added.
+     */
+    public abstract Map<String, String> encodeMetadata(Map<String, String> metadata);
+
+    protected void checkClosed() {
+        if(!closed) {
+            throw new IllegalStateException("Stage must be closed before getting metadata");
+        }
+    }
+}
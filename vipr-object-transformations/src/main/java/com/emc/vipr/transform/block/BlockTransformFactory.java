@@ -0,0 +1,25 @@
+package com.emc.vipr.transform.block;
+
+import java.io.IOException;
+
+import com.emc.vipr.transform.TransformException;
+
+/**
+ * Implemented by transform factories that can encode objects as stages of a
+ * {@link BlockPipeline}.  The stages write the same data and metadata as the
+ * factory's output transforms, so objects are read back with its input 
+ * transforms.
+ */
+public interface BlockTransformFactory {
+    /**
+     * @return a stage that digests the original data and records it under this
+     * factory's metadata tags, or null if the factory doesn't digest its input.
+     */
+    DigestStage getDigestStage() throws IOException;
+
+    /**
+     * @return a stage that encodes data like the factory's output transforms.  The
+     * stage doesn't digest its input; see {@link #getDigestStage()}.
+     */
+    BlockStage getOutputStage() throws IOException, TransformException;
+}
@@ -0,0 +1,79 @@
+package com.emc.vipr.transform.block;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.emc.vipr.transform.util.Digests;
+
+/**
+ * Digests the data passing through the pipeline.  The digest is updated from the
+ * block directly, so there is no copy.
+ * @see Digests
+ */
+public class DigestStage extends BlockStage {
+    private String algorithm;
+    private String sha1Key;
+    private String digestKey;
+    private MessageDigest digest;
+    private long size;
+    private byte[] value;
+
+    /**
+     * @param algorithm the digest algorithm.
+     * @param sha1Key the metadata tag for SHA1 digests.
+     * @param digestKey the metadata tag for other algorithms.
+     */
+    public DigestStage(String algorithm, String sha1Key, String digestKey) throws IOException {
+        this.algorithm = algorithm;
+        this.sha1Key = sha1Key;
+        this.digestKey = digestKey;
+        try {
+            digest = Digests.newDigest(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("Unable to initialize digest", e);
+        }
+    }
+
+    @Override
+    public void write(ByteBuffer block) throws IOException {
+        size += block.remaining();
+        if(digest != null) {
+            int position = block.position();
+            digest.update(block);
+            block.position(position);
+        }
+        next.write(block);
+    }
+
+    @Override
+    protected void finish() throws IOException {
+        value = Digests.digest(digest);
+    }
+
+    @Override
+    public Map<String, String> encodeMetadata(Map<String, String> metadata) {
+        checkClosed();
+        Map<String, String> encoded = new HashMap<String, String>(metadata);
+        Digests.putDigest(encoded, sha1Key, digestKey, algorithm, value);
+        return encoded;
+    }
+
+    /**
+     * @return the number of bytes digested.
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * @return the digest, or null if the algorithm is NONE.  The stage must be closed.
+     */
+    public byte[] getDigest() {
+        checkClosed();
+        return value;
+    }
+}
@@ -0,0 +1,39 @@
+package com.emc.vipr.transform.block;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Writes a pipeline's output to a stream.
+ */
+public class OutputStreamSink implements BlockSink {
+    private OutputStream out;
+    private byte[] buffer;
+
+    public OutputStreamSink(OutputStream out) {
+        this.out = out;
+    }
+
+    @Override
+    public void write(ByteBuffer block) throws IOException {
+        if(block.hasArray()) {
+            out.write(block.array(), block.arrayOffset() + block.position(), block.remaining());
+            block.position(block.limit());
+            return;
+        }
+        if(buffer == null) {
+            buffer = new byte[64 * 1024];
+        }
+        while(block.hasRemaining()) {
+            int c = Math.min(buffer.length, block.remaining());
+            block.get(buffer, 0, c);
+            out.write(buffer, 0, c);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+}
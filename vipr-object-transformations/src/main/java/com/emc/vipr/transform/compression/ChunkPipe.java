@@ -0,0 +1,259 @@
+package com.emc.vipr.transform.compression;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hands data from a writer thread to a reader thread in whole buffers.  Unlike
+ * PipedInputStream/PipedOutputStream, buffers are passed by reference instead of
+ * copied through a shared ring, and either side can close its end to make the
+ * other side fail instead of blocking forever.  Exhausted buffers are handed back
+ * to the writer for reuse.
+ */
+class ChunkPipe {
+    private static final long POLL_MILLIS = 100;
+
+    private static final Chunk EOF = new Chunk(null, 0);
+
+    private BlockingQueue<Chunk> filled;
+    private BlockingQueue<byte[]> free;
+    private int chunkSize;
+    private volatile boolean readerClosed;
+    private volatile boolean writerClosed;
+    private volatile Throwable writerError;
+
+    private PipeOutputStream out = new PipeOutputStream();
+    private PipeInputStream in = new PipeInputStream();
+
+    /**
+     * @param chunkSize the size of each buffer.
+     * @param chunks the number of filled buffers that can be waiting for the reader.
+     */
+    ChunkPipe(int chunkSize, int chunks) {
+        this.chunkSize = chunkSize;
+        this.filled = new ArrayBlockingQueue<Chunk>(chunks + 1);
+        this.free = new ArrayBlockingQueue<byte[]>(chunks + 2);
+    }
+
+    /**
+     * @return the writer's end.  Closing it signals EOF to the reader.
+     */
+    OutputStream getOutputStream() {
+        return out;
+    }
+
+    /**
+     * @return the reader's end.  Closing it makes further writes fail.
+     */
+    InputStream getInputStream() {
+        return in;
+    }
+
+    /**
+     * Closes the writer's end with an error.  The reader gets the error after it
+     * has read the data written before it.
+     */
+    void fail(Throwable t) {
+        writerError = t;
+        writerClosed = true;
+    }
+
+    private static class Chunk {
+        final byte[] buffer;
+        final int length;
+
+        Chunk(byte[] buffer, int length) {
+            this.buffer = buffer;
+            this.length = length;
+        }
+    }
+
+    private class PipeOutputStream extends OutputStream {
+        private byte[] buffer;
+        private int count;
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            checkOpen();
+            while(len > 0) {
+                if(buffer == null) {
+                    buffer = free.poll();
+                    if(buffer == null) {
+                        buffer = new byte[chunkSize];
+                    }
+                }
+                int n = Math.min(len, buffer.length - count);
+                System.arraycopy(b, off, buffer, count, n);
+                count += n;
+                off += n;
+                len -= n;
+                if(count == buffer.length) {
+                    handOff();
+                }
+            }
+        }
+
+        /**
+         * Hands a partially filled buffer to the reader.
+         */
+        @Override
+        public void flush() throws IOException {
+            checkOpen();
+            if(count > 0) {
+                handOff();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if(writerClosed) return;
+            try {
+                flush();
+                put(EOF);
+            } finally {
+                writerClosed = true;
+            }
+        }
+
+        private void checkOpen() throws IOException {
+            if(writerClosed) {
+                throw new IOException("Pipe closed");
+            }
+            if(readerClosed) {
+                throw new IOException("Pipe closed by reader");
+            }
+        }
+
+        private void handOff() throws IOException {
+            put(new Chunk(buffer, count));
+            buffer = null;
+            count = 0;
+        }
+
+        private void put(Chunk chunk) throws IOException {
+            try {
+                while(!filled.offer(chunk, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                    if(readerClosed) {
+                        throw new IOException("Pipe closed by reader");
+                    }
+                }
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted writing to pipe", e);
+            }
+        }
+    }
+
+    private class PipeInputStream extends InputStream {
+        private Chunk current;
+        private int pos;
+        private boolean eof;
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int c = read(b, 0, 1);
+            return c == -1 ? -1 : b[0] & 0xff;
+        }
+
+        /**
+         * Blocks until some data is available, then returns as much as is
+         * available without blocking again.
+         */
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if(readerClosed) {
+                throw new IOException("Stream closed");
+            }
+            if(len == 0) {
+                return 0;
+            }
+            if(!nextChunk(true)) {
+                return -1;
+            }
+            int read = 0;
+            do {
+                int n = Math.min(len - read, current.length - pos);
+                System.arraycopy(current.buffer, pos, b, off + read, n);
+                pos += n;
+                read += n;
+            } while(read < len && nextChunk(false));
+            return read;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return current == null ? 0 : current.length - pos;
+        }
+
+        @Override
+        public void close() throws IOException {
+            readerClosed = true;
+            current = null;
+            filled.clear();
+        }
+
+        /**
+         * Makes sure current has unread data.
+         * @param block whether to wait for the writer.
+         * @return false at EOF, or if block is false and no data is ready.
+         */
+        private boolean nextChunk(boolean block) throws IOException {
+            if(current != null && pos < current.length) {
+                return true;
+            }
+            if(current != null) {
+                if(current.length == chunkSize) {
+                    free.offer(current.buffer);
+                }
+                current = null;
+            }
+            if(eof) {
+                return false;
+            }
+
+            Chunk chunk;
+            try {
+                chunk = filled.poll();
+                while(chunk == null && block) {
+                    if(writerClosed) {
+                        // The writer may have closed after the last poll.
+                        chunk = filled.poll();
+                        if(chunk == null) {
+                            eof = true;
+                            if(writerError != null) {
+                                throw new IOException("Error writing to pipe: " + writerError,
+                                        writerError);
+                            }
+                            throw new IOException("Pipe closed by writer");
+                        }
+                        break;
+                    }
+                    chunk = filled.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                }
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted reading from pipe", e);
+            }
+            if(chunk == null) {
+                return false;
+            }
+            if(chunk == EOF) {
+                eof = true;
+                return false;
+            }
+            current = chunk;
+            pos = 0;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.emc.vipr.transform.compression;
+
+import java.util.zip.Deflater;
+
+/**
+ * Estimates whether data is worth compressing from a sample of its first block.
+ * Data in an already-compressed format (JPEG, PNG, ZIP, GZIP, etc.) is recognized
+ * by its magic number; anything else is compressed at the fastest Deflate level
+ * to measure how much it shrinks.  A trial at level 1 costs a fraction of the
+ * real compression and errs on the side of compressing, since higher levels
+ * only do better.
+ */
+public class CompressibilityEstimator {
+    private static final int TRIAL_LEVEL = 1;
+
+    /**
+     * Magic numbers of common compressed or encrypted formats.  Each entry is
+     * the offset of the magic number followed by its bytes.
+     */
+    private static final int[][] COMPRESSED_SIGNATURES = {
+        { 0, 0xFF, 0xD8, 0xFF }, // JPEG
+        { 0, 0x89, 'P', 'N', 'G' }, // PNG
+        { 0, 'G', 'I', 'F', '8' }, // GIF
+        { 0, 'P', 'K', 0x03, 0x04 }, // ZIP, JAR, Office Open XML
+        { 0, 0x1F, 0x8B }, // GZIP
+        { 0, 'B', 'Z', 'h' }, // BZip2
+        { 0, 0xFD, '7', 'z', 'X', 'Z', 0x00 }, // XZ
+        { 0, '7', 'z', 0xBC, 0xAF, 0x27, 0x1C }, // 7-Zip
+        { 0, 'R', 'a', 'r', '!' }, // RAR
+        { 0, 0x28, 0xB5, 0x2F, 0xFD }, // Zstandard
+        { 4, 'f', 't', 'y', 'p' }, // MP4, MOV
+        { 0, 0x1A, 0x45, 0xDF, 0xA3 }, // Matroska, WebM
+        { 0, 'I', 'D', '3' }, // MP3
+        { 0, 'O', 'g', 'g', 'S' }, // Ogg
+    };
+
+    private CompressibilityEstimator() {
+    }
+
+    /**
+     * @return true if the data starts with the magic number of a known
+     * compressed format.
+     */
+    public static boolean isCompressedFormat(byte[] data, int length) {
+        for(int[] sig : COMPRESSED_SIGNATURES) {
+            int offset = sig[0];
+            if(length < offset + sig.length - 1) {
+                continue;
+            }
+            boolean match = true;
+            for(int i = 1; i < sig.length && match; i++) {
+                match = (data[offset + i - 1] & 0xff) == sig[i];
+            }
+            if(match) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Compresses a sample with a fast Deflate to estimate how much the data will
+     * shrink.
+     * @return the fraction of the sample saved by compression, e.g. 0.6 if the
+     * sample compresses to 40% of its size.  May be negative if it grows.
+     */
+    public static double estimateSavings(byte[] data, int length) {
+        if(length <= 0) {
+            return 0.0;
+        }
+        Deflater def = CompressionCoderPool.leaseDeflater(TRIAL_LEVEL);
+        try {
+            def.setInput(data, 0, length);
+            def.finish();
+            byte[] out = new byte[8192];
+            long compressed = 0;
+            while(!def.finished()) {
+                compressed += def.deflate(out);
+            }
+            return 1.0 - (double) compressed / length;
+        } finally {
+            CompressionCoderPool.returnDeflater(TRIAL_LEVEL, def);
+        }
+    }
+
+    /**
+     * @return true if the sample is in a compressed format or saves less than
+     * minSavings when compressed.
+     */
+    public static boolean isIncompressible(byte[] data, int length, double minSavings) {
+        return isCompressedFormat(data, length) || estimateSavings(data, length) < minSavings;
+    }
+}
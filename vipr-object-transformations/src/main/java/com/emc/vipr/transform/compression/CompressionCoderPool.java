@@ -0,0 +1,190 @@
+package com.emc.vipr.transform.compression;
+
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import SevenZip.Compression.LZMA.Decoder;
+import SevenZip.Compression.LZMA.Encoder;
+
+import com.emc.vipr.transform.compression.CompressionTransformFactory.LzmaProfile;
+import com.emc.vipr.transform.encryption.KeyUtils;
+import com.emc.vipr.transform.util.AbandonedLeases;
+
+/**
+ * Reuses compression coders across objects.  A Deflater or Inflater holds
+ * native zlib memory that is otherwise only freed by finalization, and an LZMA
+ * coder allocates dictionaries of up to tens of megabytes, so creating one per
+ * object causes native memory spikes and GC pressure on busy nodes.
+ * <br>
+ * Coders are leased for the life of a stream and must be returned when the
+ * stream is done with them.  Returned coders are reset and kept per
+ * compression level (Deflate) or {@link LzmaProfile} (LZMA).  When a key
+ * already has its maximum number of idle coders, the returned coder is
+ * evicted; Deflaters and Inflaters are ended immediately so their native
+ * memory is released.  A leased coder must not be used after it is returned.
+ * Deflaters and Inflaters returned while a stream is being abandoned (see
+ * {@link AbandonedLeases}) are dropped.
+ */
+public class CompressionCoderPool {
+    /**
+     * The maximum number of idle Deflaters or Inflaters kept for each level.
+     */
+    public static final int MAX_IDLE_ZLIB = 32;
+
+    /**
+     * The maximum number of idle LZMA encoders or decoders kept for each profile.
+     * LZMA coders are large, so only a few are kept.
+     */
+    public static final int MAX_IDLE_LZMA = 2;
+
+    private static final ConcurrentMap<String, BlockingDeque<Deflater>> idleDeflaters =
+            new ConcurrentHashMap<String, BlockingDeque<Deflater>>();
+    private static final ConcurrentMap<String, BlockingDeque<Inflater>> idleInflaters =
+            new ConcurrentHashMap<String, BlockingDeque<Inflater>>();
+    private static final ConcurrentMap<String, BlockingDeque<Encoder>> idleEncoders =
+            new ConcurrentHashMap<String, BlockingDeque<Encoder>>();
+    private static final ConcurrentMap<String, BlockingDeque<Decoder>> idleDecoders =
+            new ConcurrentHashMap<String, BlockingDeque<Decoder>>();
+
+    private CompressionCoderPool() {
+    }
+
+    /**
+     * Leases a Deflater for the given compression level.
+     */
+    public static Deflater leaseDeflater(int level) {
+        Deflater def = poll(idleDeflaters, "" + level);
+        if(def == null) {
+            def = new Deflater(level);
+        }
+        return def;
+    }
+
+    public static void returnDeflater(int level, Deflater def) {
+        if(AbandonedLeases.isAbandoning()) {
+            // May still be in use; leave it to finalization.
+            return;
+        }
+        def.reset();
+        if(!offer(idleDeflaters, "" + level, def, MAX_IDLE_ZLIB)) {
+            def.end();
+        }
+    }
+
+    /**
+     * Leases an Inflater for zlib-wrapped data.
+     */
+    public static Inflater leaseInflater() {
+        Inflater inf = poll(idleInflaters, "zlib");
+        if(inf == null) {
+            inf = new Inflater();
+        }
+        return inf;
+    }
+
+    public static void returnInflater(Inflater inf) {
+        if(AbandonedLeases.isAbandoning()) {
+            // May still be in use; leave it to finalization.
+            return;
+        }
+        inf.reset();
+        if(!offer(idleInflaters, "zlib", inf, MAX_IDLE_ZLIB)) {
+            inf.end();
+        }
+    }
+
+    /**
+     * Leases an LZMA encoder configured with the given profile and end marker mode.
+     */
+    public static Encoder leaseEncoder(LzmaProfile profile) {
+        Encoder lzma = poll(idleEncoders, key(profile));
+        if(lzma == null) {
+            lzma = new Encoder();
+            lzma.SetDictionarySize(profile.dictionarySize);
+            lzma.SetNumFastBytes(profile.fastBytes);
+            lzma.SetMatchFinder(profile.matchFinder);
+            lzma.SetLcLpPb(profile.lc, profile.lp, profile.pb);
+            lzma.SetEndMarkerMode(true);
+        }
+        return lzma;
+    }
+
+    /**
+     * Returns an encoder.  Only return encoders that finished encoding a stream;
+     * an encoder that failed part way through should be dropped.
+     */
+    public static void returnEncoder(LzmaProfile profile, Encoder lzma) {
+        offer(idleEncoders, key(profile), lzma, MAX_IDLE_LZMA);
+    }
+
+    /**
+     * Leases an LZMA decoder configured with the given properties (the 5 byte
+     * header of an LZMA stream).
+     * @return the decoder, or null if the properties are invalid.
+     */
+    public static Decoder leaseDecoder(byte[] properties) {
+        Decoder lzma = poll(idleDecoders, KeyUtils.toHexPadded(properties));
+        if(lzma == null) {
+            lzma = new Decoder();
+            if(!lzma.SetDecoderProperties(properties)) {
+                return null;
+            }
+        }
+        return lzma;
+    }
+
+    /**
+     * Returns a decoder.  Only return decoders that finished decoding a stream.
+     */
+    public static void returnDecoder(byte[] properties, Decoder lzma) {
+        offer(idleDecoders, KeyUtils.toHexPadded(properties), lzma, MAX_IDLE_LZMA);
+    }
+
+    /**
+     * Ends and drops all idle coders.
+     */
+    public static void clear() {
+        for(BlockingDeque<Deflater> idle : idleDeflaters.values()) {
+            Deflater def;
+            while((def = idle.pollFirst()) != null) {
+                def.end();
+            }
+        }
+        for(BlockingDeque<Inflater> idle : idleInflaters.values()) {
+            Inflater inf;
+            while((inf = idle.pollFirst()) != null) {
+                inf.end();
+            }
+        }
+        idleEncoders.clear();
+        idleDecoders.clear();
+    }
+
+    private static <T> T poll(ConcurrentMap<String, BlockingDeque<T>> pool, String key) {
+        BlockingDeque<T> idle = pool.get(key);
+        return idle == null ? null : idle.pollFirst();
+    }
+
+    /**
+     * @return false if the key already has max idle coders.
+     */
+    private static <T> boolean offer(ConcurrentMap<String, BlockingDeque<T>> pool, String key,
+            T coder, int max) {
+        BlockingDeque<T> idle = pool.get(key);
+        if(idle == null) {
+            pool.putIfAbsent(key, new LinkedBlockingDeque<T>(max));
+            idle = pool.get(key);
+        }
+        // most recently used first
+        return idle.offerFirst(coder);
+    }
+
+    private static String key(LzmaProfile profile) {
+        return profile.dictionarySize + "/" + profile.fastBytes + "/" + profile.matchFinder
+                + "/" + profile.lc + "/" + profile.lp + "/" + profile.pb;
+    }
+}
@@ -0,0 +1,71 @@
+package com.emc.vipr.transform.compression;
+
+import java.util.regex.Pattern;
+import java.util.zip.Adler32;
+
+/**
+ * A preset dictionary for Deflate.  Small objects don't contain enough data for
+ * Deflate to find repeated strings, but objects with the same schema (e.g. JSON
+ * or XML documents) share most of their field names and structure.  Priming the
+ * compressor with a dictionary of that shared content lets even a few KB
+ * compress well.
+ * <br>
+ * The ID is stored with each object so the same dictionary can be found to
+ * decompress it; a dictionary must never change once objects are written with
+ * it.  Include a version in the ID (e.g. "orders-json-v2") and register a new
+ * dictionary when the content changes.
+ * @see DictionaryRegistry
+ * @see DictionaryBuilder
+ */
+public class CompressionDictionary {
+    /**
+     * Deflate only uses the last 32KB of a dictionary.
+     */
+    public static final int MAX_SIZE = 32 * 1024;
+
+    private static final Pattern VALID_ID = Pattern.compile("[A-Za-z0-9._-]+");
+
+    private String id;
+    private byte[] data;
+    private int checksum;
+
+    /**
+     * @param id the dictionary ID.  May contain letters, digits, '.', '_' and '-'.
+     * @param data the dictionary content.  The most common strings should be at
+     * the end.  Only the last {@link #MAX_SIZE} bytes are kept.
+     */
+    public CompressionDictionary(String id, byte[] data) {
+        if(id == null || !VALID_ID.matcher(id).matches()) {
+            throw new IllegalArgumentException("Invalid dictionary ID: " + id);
+        }
+        if(data.length == 0) {
+            throw new IllegalArgumentException("Dictionary is empty");
+        }
+        this.id = id;
+        int length = Math.min(data.length, MAX_SIZE);
+        this.data = new byte[length];
+        System.arraycopy(data, data.length - length, this.data, 0, length);
+        Adler32 adler = new Adler32();
+        adler.update(this.data);
+        checksum = (int) adler.getValue();
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * @return the dictionary content.  Must not be modified.
+     */
+    public byte[] getData() {
+        return data;
+    }
+
+    /**
+     * @return the Adler-32 of the content.  Deflate stores this in each stream
+     * compressed with the dictionary.
+     */
+    public int getChecksum() {
+        return checksum;
+    }
+}
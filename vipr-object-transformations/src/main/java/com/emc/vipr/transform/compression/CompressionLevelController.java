@@ -0,0 +1,439 @@
+package com.emc.vipr.transform.compression;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.emc.vipr.transform.TransformConstants;
+
+/**
+ * Picks the compression level that maximizes end-to-end throughput from live
+ * measurements.  Whether a higher level pays off depends on how fast the CPU
+ * compresses compared to how fast the network uploads: over a WAN, every byte
+ * saved is worth a lot of CPU, while on a LAN compressing at all may slow
+ * uploads down.
+ * <br>
+ * For each candidate level, the controller keeps a moving average of the
+ * compression rate (uncompressed bytes per second spent compressing) and the
+ * compressed size ratio.  The client reports upload times, giving a moving
+ * average of the network rate.  The time to store one uncompressed byte at a
+ * level is then estimated as 1/compressionRate + ratio/networkRate, and new
+ * objects use the level with the lowest time.  Every exploreInterval objects,
+ * a neighbouring level is tried instead so its measurements stay current.
+ * <br>
+ * {@link #NONE} can be a candidate, meaning the object is stored uncompressed.
+ * Levels are Deflate levels or indices into
+ * {@link CompressionTransformFactory#LZMA_COMPRESSION_PROFILE}, depending on the
+ * factory's mode.  Install the controller with
+ * {@link CompressionTransformFactory#setLevelController(CompressionLevelController)}.
+ */
+public class CompressionLevelController {
+    private static final Logger logger = LoggerFactory.getLogger(CompressionLevelController.class);
+
+    /**
+     * Candidate level meaning "store uncompressed".
+     */
+    public static final int NONE = -1;
+
+    /**
+     * Default candidate levels.
+     */
+    public static final int[] DEFAULT_LEVELS = { NONE, 1, 3, 5, 7, 9 };
+
+    /**
+     * Default weight of a new measurement in the moving averages.
+     */
+    public static final double DEFAULT_SMOOTHING = 0.2;
+
+    /**
+     * Default number of objects between trials of a neighbouring level.
+     */
+    public static final int DEFAULT_EXPLORE_INTERVAL = 10;
+
+    private int[] levels;
+    private LevelStats[] stats;
+    private int current;
+    private double smoothing = DEFAULT_SMOOTHING;
+    private int exploreInterval = DEFAULT_EXPLORE_INTERVAL;
+    private double networkRate = Double.NaN;
+    private long objects;
+    private long levelChanges;
+    private boolean exploreUp;
+
+    /**
+     * Creates a controller with the default candidate levels, starting at the
+     * default compression level.
+     */
+    public CompressionLevelController() {
+        this(DEFAULT_LEVELS, TransformConstants.DEFAULT_COMPRESSION_LEVEL);
+    }
+
+    /**
+     * @param levels the candidate levels, in increasing order of compression.  May
+     * include {@link #NONE}.
+     * @param initialLevel the level to use until there are measurements.  It is
+     * added to the candidates if it isn't one.
+     */
+    public CompressionLevelController(int[] levels, int initialLevel) {
+        this.levels = Arrays.copyOf(levels, levels.length + 1);
+        this.levels[levels.length] = initialLevel;
+        Arrays.sort(this.levels);
+        // Drop duplicates
+        int count = 0;
+        for(int i = 0; i < this.levels.length; i++) {
+            if(count == 0 || this.levels[i] != this.levels[count - 1]) {
+                this.levels[count++] = this.levels[i];
+            }
+        }
+        this.levels = Arrays.copyOf(this.levels, count);
+        this.stats = new LevelStats[count];
+        for(int i = 0; i < count; i++) {
+            stats[i] = new LevelStats(this.levels[i]);
+        }
+        current = Arrays.binarySearch(this.levels, initialLevel);
+    }
+
+    /**
+     * Returns the level to compress the next object with.
+     */
+    public synchronized int nextLevel() {
+        objects++;
+        if(exploreInterval > 0 && objects % exploreInterval == 0 && levels.length > 1) {
+            // Alternate between the levels above and below the current one.
+            exploreUp = !exploreUp;
+            int i = exploreUp ? current + 1 : current - 1;
+            if(i < 0 || i >= levels.length) {
+                i = exploreUp ? current - 1 : current + 1;
+            }
+            return levels[i];
+        }
+        return levels[current];
+    }
+
+    /**
+     * Records the compression of an object.
+     * @param level the level used.
+     * @param uncompressedBytes the size of the data before compression.
+     * @param compressedBytes the size after compression.
+     * @param nanos the time spent compressing.
+     */
+    public synchronized void recordCompression(int level, long uncompressedBytes,
+            long compressedBytes, long nanos) {
+        int i = Arrays.binarySearch(levels, level);
+        if(i < 0 || uncompressedBytes <= 0 || nanos <= 0) {
+            return;
+        }
+        LevelStats s = stats[i];
+        s.objects++;
+        s.compressionRate = average(s.compressionRate, uncompressedBytes * 1e9 / nanos);
+        s.ratio = average(s.ratio, (double) compressedBytes / uncompressedBytes);
+        choose();
+    }
+
+    /**
+     * Records an upload of (compressed) data.
+     * @param bytes the number of bytes sent.
+     * @param nanos the time the upload took.
+     */
+    public synchronized void recordUpload(long bytes, long nanos) {
+        if(bytes <= 0 || nanos <= 0) {
+            return;
+        }
+        networkRate = average(networkRate, bytes * 1e9 / nanos);
+        choose();
+    }
+
+    /**
+     * Estimates the end-to-end throughput at a level, in uncompressed bytes per
+     * second.
+     * @return the estimate, or NaN if there aren't enough measurements.
+     */
+    public synchronized double estimateThroughput(int level) {
+        int i = Arrays.binarySearch(levels, level);
+        return i < 0 ? Double.NaN : estimate(stats[i]);
+    }
+
+    private double estimate(LevelStats s) {
+        if(Double.isNaN(networkRate) || s.objects == 0) {
+            return Double.NaN;
+        }
+        return 1.0 / (1.0 / s.compressionRate + s.ratio / networkRate);
+    }
+
+    private void choose() {
+        int best = current;
+        double bestRate = estimate(stats[current]);
+        for(int i = 0; i < levels.length; i++) {
+            double rate = estimate(stats[i]);
+            if(!Double.isNaN(rate) && (Double.isNaN(bestRate) || rate > bestRate)) {
+                best = i;
+                bestRate = rate;
+            }
+        }
+        if(best != current) {
+            logger.debug("Compression level {} -> {} (estimated {} B/s)",
+                    new Object[] { levels[current], levels[best], (long) bestRate });
+            current = best;
+            levelChanges++;
+        }
+    }
+
+    private double average(double old, double sample) {
+        return Double.isNaN(old) ? sample : old + smoothing * (sample - old);
+    }
+
+    /**
+     * @return the level currently used for new objects.
+     */
+    public synchronized int getCurrentLevel() {
+        return levels[current];
+    }
+
+    /**
+     * @return the moving average of the upload rate in bytes per second, or NaN if
+     * no uploads were recorded.
+     */
+    public synchronized double getNetworkRate() {
+        return networkRate;
+    }
+
+    /**
+     * @return the number of times the current level changed.
+     */
+    public synchronized long getLevelChanges() {
+        return levelChanges;
+    }
+
+    /**
+     * @return a snapshot of the measurements for each candidate level.
+     */
+    public synchronized List<LevelStats> getLevelStats() {
+        List<LevelStats> snapshot = new ArrayList<LevelStats>();
+        for(LevelStats s : stats) {
+            LevelStats copy = new LevelStats(s.level);
+            copy.objects = s.objects;
+            copy.compressionRate = s.compressionRate;
+            copy.ratio = s.ratio;
+            copy.estimatedThroughput = estimate(s);
+            snapshot.add(copy);
+        }
+        return snapshot;
+    }
+
+    public synchronized double getSmoothing() {
+        return smoothing;
+    }
+
+    /**
+     * Sets the weight (0-1) of a new measurement in the moving averages.  Higher
+     * values react faster to changes in network or CPU speed.
+     */
+    public synchronized void setSmoothing(double smoothing) {
+        this.smoothing = smoothing;
+    }
+
+    public synchronized int getExploreInterval() {
+        return exploreInterval;
+    }
+
+    /**
+     * Sets how often (in objects) a neighbouring level is tried.  0 disables
+     * exploring; levels are then only measured when they are chosen.
+     */
+    public synchronized void setExploreInterval(int exploreInterval) {
+        this.exploreInterval = exploreInterval;
+    }
+
+    /**
+     * Measurements for one candidate level.
+     */
+    public static class LevelStats {
+        private int level;
+        private long objects;
+        private double compressionRate = Double.NaN;
+        private double ratio = Double.NaN;
+        private double estimatedThroughput = Double.NaN;
+
+        LevelStats(int level) {
+            this.level = level;
+        }
+
+        public int getLevel() {
+            return level;
+        }
+
+        /**
+         * @return the number of objects compressed at this level.
+         */
+        public long getObjects() {
+            return objects;
+        }
+
+        /**
+         * @return uncompressed bytes compressed per second.
+         */
+        public double getCompressionRate() {
+            return compressionRate;
+        }
+
+        /**
+         * @return compressed size / uncompressed size.
+         */
+        public double getRatio() {
+            return ratio;
+        }
+
+        /**
+         * @return the estimated end-to-end rate in uncompressed bytes per second.
+         */
+        public double getEstimatedThroughput() {
+            return estimatedThroughput;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("level %d: %d objects, %.0f B/s, ratio %.3f, estimated %.0f B/s",
+                    level, objects, compressionRate, ratio, estimatedThroughput);
+        }
+    }
+
+    /**
+     * Times the reads of a "pull" mode compression stream and reports them when
+     * it is closed.
+     */
+    static class MeteredInputFilter extends FilterInputStream implements CompressionStream {
+        private CompressionLevelController controller;
+        private int level;
+        private long nanos;
+        private boolean closed;
+
+        MeteredInputFilter(InputStream in, CompressionLevelController controller, int level) {
+            super(in);
+            this.controller = controller;
+            this.level = level;
+        }
+
+        @Override
+        public int read() throws IOException {
+            long start = System.nanoTime();
+            try {
+                return in.read();
+            } finally {
+                nanos += System.nanoTime() - start;
+            }
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            long start = System.nanoTime();
+            try {
+                return in.read(b, off, len);
+            } finally {
+                nanos += System.nanoTime() - start;
+            }
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long start = System.nanoTime();
+            try {
+                return in.skip(n);
+            } finally {
+                nanos += System.nanoTime() - start;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if(closed) return;
+            closed = true;
+            long start = System.nanoTime();
+            in.close();
+            nanos += System.nanoTime() - start;
+            report(controller, level, getStreamMetadata(), nanos);
+        }
+
+        @Override
+        public Map<String, String> getStreamMetadata() {
+            return ((CompressionStream) in).getStreamMetadata();
+        }
+    }
+
+    /**
+     * Times the writes to a "push" mode compression stream and reports them when
+     * it is closed.
+     */
+    static class MeteredOutputStream extends OutputStream implements CompressionStream {
+        private OutputStream out;
+        private CompressionLevelController controller;
+        private int level;
+        private long nanos;
+        private boolean closed;
+
+        MeteredOutputStream(OutputStream out, CompressionLevelController controller, int level) {
+            this.out = out;
+            this.controller = controller;
+            this.level = level;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            long start = System.nanoTime();
+            try {
+                out.write(b);
+            } finally {
+                nanos += System.nanoTime() - start;
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            long start = System.nanoTime();
+            try {
+                out.write(b, off, len);
+            } finally {
+                nanos += System.nanoTime() - start;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if(closed) return;
+            closed = true;
+            long start = System.nanoTime();
+            out.close();
+            nanos += System.nanoTime() - start;
+            report(controller, level, getStreamMetadata(), nanos);
+        }
+
+        @Override
+        public Map<String, String> getStreamMetadata() {
+            return ((CompressionStream) out).getStreamMetadata();
+        }
+    }
+
+    private static void report(CompressionLevelController controller, int level,
+            Map<String, String> metadata, long nanos) {
+        try {
+            controller.recordCompression(level,
+                    Long.parseLong(metadata.get(TransformConstants.META_COMPRESSION_UNCOMP_SIZE)),
+                    Long.parseLong(metadata.get(TransformConstants.META_COMPRESSION_COMP_SIZE)),
+                    nanos);
+        } catch(RuntimeException e) {
+            logger.warn("Could not record compression stats", e);
+        }
+    }
+}
@@ -29,4 +29,21 @@ public abstract class CompressionOutputTransform extends OutputTransform {
         super(streamToEncode, metadataToEncode, transformConfig);
     }
 
+    /**
+     * Wraps the compression stream so the time spent compressing is reported to 
+     * the controller when the stream is closed.
+     */
+    void meter(CompressionLevelController controller, int level) {
+        switch(getStreamMode()) {
+        case PULL:
+            pullStream = new CompressionLevelController.MeteredInputFilter(
+                    pullStream, controller, level);
+            break;
+        case PUSH:
+            pushStream = new CompressionLevelController.MeteredOutputStream(
+                    pushStream, controller, level);
+            break;
+        }
+    }
+
 }
@@ -1,9 +1,16 @@
 package com.emc.vipr.transform.compression;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -14,14 +21,46 @@ import com.emc.vipr.transform.TransformConstants;
 import com.emc.vipr.transform.TransformException;
 import com.emc.vipr.transform.TransformConstants.CompressionMode;
 import com.emc.vipr.transform.TransformFactory;
+import com.emc.vipr.transform.block.BlockStage;
+import com.emc.vipr.transform.block.BlockTransformFactory;
+import com.emc.vipr.transform.block.DigestStage;
+import com.emc.vipr.transform.util.Digests;
 
 public class CompressionTransformFactory extends
-        TransformFactory<CompressionOutputTransform, CompressionInputTransform> {
+        TransformFactory<CompressionOutputTransform, CompressionInputTransform> 
+        implements BlockTransformFactory {
     
     private static final Logger logger = LoggerFactory.getLogger(CompressionTransformFactory.class);
 
+    /**
+     * Default size of the sample used to decide whether data is compressible (64KB).
+     */
+    public static final int DEFAULT_SAMPLE_SIZE = 64 * 1024;
+    
+    /**
+     * Default minimum savings (10%) for adaptive compression to compress an object.
+     */
+    public static final double DEFAULT_MIN_SAVINGS = 0.10;
+    
+    /**
+     * Content types that are stored uncompressed in adaptive mode.  Entries ending in
+     * "/" match every subtype.
+     */
+    public static final Set<String> DEFAULT_INCOMPRESSIBLE_TYPES = 
+            Collections.unmodifiableSet(new HashSet<String>(Arrays.asList(
+                    "image/jpeg", "image/png", "image/gif", "image/webp", "video/", "audio/",
+                    "application/zip", "application/gzip", "application/x-gzip", 
+                    "application/x-bzip2", "application/x-xz", "application/x-7z-compressed",
+                    "application/x-rar-compressed", "application/java-archive")));
+
     public CompressionMode compressMode = TransformConstants.DEFAULT_COMPRESSION_MODE;
     public int compressionLevel = TransformConstants.DEFAULT_COMPRESSION_LEVEL;
+    private boolean adaptive = false;
+    private int sampleSize = DEFAULT_SAMPLE_SIZE;
+    private double minSavings = DEFAULT_MIN_SAVINGS;
+    private Set<String> incompressibleTypes = DEFAULT_INCOMPRESSIBLE_TYPES;
+    private CompressionLevelController levelController;
+    private DictionaryRegistry dictionaryRegistry;
     
     public CompressionTransformFactory() {
         setPriority(1000);
@@ -43,33 +82,285 @@ public class CompressionTransformFactory extends
         this.compressionLevel = compressionLevel;
     }
     
+    public boolean isAdaptive() {
+        return adaptive;
+    }
+
+    /**
+     * Enables adaptive compression.  Objects whose content type is in the 
+     * incompressible types, or whose first block is in a compressed format or 
+     * doesn't shrink by at least minSavings in a fast trial compression, are stored 
+     * uncompressed with compression mode NONE.  Reads of these objects need no 
+     * special handling.  Sampling is only done in "pull" mode; in "push" mode only 
+     * the content type is checked.
+     * @see CompressibilityEstimator
+     */
+    public void setAdaptive(boolean adaptive) {
+        this.adaptive = adaptive;
+    }
+
+    public int getSampleSize() {
+        return sampleSize;
+    }
+
+    /**
+     * Sets the number of bytes at the start of an object that are sampled in 
+     * adaptive mode.  The sample is held in memory until it is read.
+     */
+    public void setSampleSize(int sampleSize) {
+        this.sampleSize = sampleSize;
+    }
+
+    public double getMinSavings() {
+        return minSavings;
+    }
+
+    /**
+     * Sets the fraction of the sample that a fast compression must save for 
+     * an object to be compressed in adaptive mode.  Default is 0.10 (10%).
+     */
+    public void setMinSavings(double minSavings) {
+        this.minSavings = minSavings;
+    }
+
+    public Set<String> getIncompressibleTypes() {
+        return incompressibleTypes;
+    }
+
+    /**
+     * Sets the content types that are never compressed in adaptive mode.  Entries 
+     * ending in "/" (e.g. "video/") match all subtypes.
+     */
+    public void setIncompressibleTypes(Set<String> incompressibleTypes) {
+        this.incompressibleTypes = incompressibleTypes;
+    }
+
+    public CompressionLevelController getLevelController() {
+        return levelController;
+    }
+
+    /**
+     * Sets a controller that picks the compression level for each new object from 
+     * measured compression and upload rates, instead of using the fixed 
+     * compressionLevel.  The controller's levels are interpreted in the current 
+     * compression mode; its {@link CompressionLevelController#NONE} level stores 
+     * objects uncompressed.  Set to null to use the fixed level.
+     */
+    public void setLevelController(CompressionLevelController levelController) {
+        this.levelController = levelController;
+    }
+
+    public DictionaryRegistry getDictionaryRegistry() {
+        return dictionaryRegistry;
+    }
+
+    /**
+     * Sets the dictionaries for compression mode DeflateDict.  New objects are 
+     * compressed with the registry's current dictionary, and objects are read 
+     * with the dictionary whose ID is in their metadata.
+     */
+    public void setDictionaryRegistry(DictionaryRegistry dictionaryRegistry) {
+        this.dictionaryRegistry = dictionaryRegistry;
+    }
+
+    /**
+     * @return the dictionary for new DeflateDict objects.
+     */
+    private CompressionDictionary getCurrentDictionary() {
+        CompressionDictionary dictionary = dictionaryRegistry == null ? null 
+                : dictionaryRegistry.getCurrent();
+        if(dictionary == null) {
+            throw new IllegalStateException("DeflateDict mode requires a dictionary registry "
+                    + "with at least one dictionary");
+        }
+        return dictionary;
+    }
+
+    /**
+     * @return true if the content type is one of the incompressible types.
+     */
+    public boolean isIncompressibleType(String contentType) {
+        if(contentType == null) {
+            return false;
+        }
+        // Strip parameters, e.g. "; charset=..."
+        String type = contentType.split(";")[0].trim().toLowerCase(Locale.US);
+        if(incompressibleTypes.contains(type)) {
+            return true;
+        }
+        int slash = type.indexOf('/');
+        return slash != -1 && incompressibleTypes.contains(type.substring(0, slash + 1));
+    }
 
     @Override
     public CompressionOutputTransform getOutputTransform(
             OutputStream streamToEncodeTo, Map<String, String> metadataToEncode) throws IOException {
-        switch(compressMode) {
+        return getOutputTransform(streamToEncodeTo, metadataToEncode, null);
+    }
+    
+    /**
+     * Gets an output transform in "push" mode.
+     * @param contentType the content type of the object, or null if unknown.  In
+     * adaptive mode, objects of incompressible types are stored uncompressed.
+     */
+    public CompressionOutputTransform getOutputTransform(
+            OutputStream streamToEncodeTo, Map<String, String> metadataToEncode,
+            String contentType) throws IOException {
+        return createOutputTransform(streamToEncodeTo, null, metadataToEncode, 
+                getMode(contentType), getDigestAlgorithm());
+    }
+    
+    @Override
+    public CompressionOutputTransform getOutputTransform(
+            InputStream streamToEncode, Map<String, String> metadataToEncode)
+            throws IOException, TransformException {
+        return getOutputTransform(streamToEncode, metadataToEncode, null);
+    }
+    
+    /**
+     * Gets an output transform in "pull" mode.
+     * @param contentType the content type of the object, or null if unknown.  In
+     * adaptive mode, objects of incompressible types are stored uncompressed.
+     */
+    public CompressionOutputTransform getOutputTransform(
+            InputStream streamToEncode, Map<String, String> metadataToEncode,
+            String contentType) throws IOException, TransformException {
+        return getOutputTransform(streamToEncode, metadataToEncode, contentType, 
+                getDigestAlgorithm());
+    }
+
+    @Override
+    public CompressionOutputTransform getIntermediateOutputTransform(
+            InputStream streamToEncode, Map<String, String> metadataToEncode)
+            throws IOException, TransformException {
+        return getOutputTransform(streamToEncode, metadataToEncode, null, Digests.NONE);
+    }
+
+    private CompressionOutputTransform getOutputTransform(
+            InputStream streamToEncode, Map<String, String> metadataToEncode,
+            String contentType, String digestAlgorithm) throws IOException, TransformException {
+        CompressionMode mode = getMode(contentType);
+        if(adaptive && mode != CompressionMode.NONE) {
+            // Sample the first block, then put it back in front of the stream.
+            byte[] sample = new byte[sampleSize];
+            int count = 0;
+            int c = 0;
+            while(count < sample.length 
+                    && (c = streamToEncode.read(sample, count, sample.length - count)) != -1) {
+                count += c;
+            }
+            if(CompressibilityEstimator.isIncompressible(sample, count, minSavings)) {
+                logger.debug("Sample is incompressible, storing uncompressed");
+                mode = CompressionMode.NONE;
+            }
+            streamToEncode = new SequenceInputStream(
+                    new ByteArrayInputStream(sample, 0, count), streamToEncode);
+        }
+        return createOutputTransform(null, streamToEncode, metadataToEncode, mode, 
+                digestAlgorithm);
+    }
+
+    /**
+     * @return the compression mode for an object of the content type.  In adaptive
+     * mode, objects of incompressible types are stored uncompressed.
+     */
+    private CompressionMode getMode(String contentType) {
+        if(adaptive && isIncompressibleType(contentType)) {
+            return CompressionMode.NONE;
+        }
+        return compressMode;
+    }
+
+    /**
+     * Picks the compression level (from the level controller, if there is one) 
+     * and creates the output transform for the mode.  Shared by the push and pull 
+     * modes; exactly one of the streams is given.
+     */
+    private CompressionOutputTransform createOutputTransform(OutputStream streamToEncodeTo, 
+            InputStream streamToEncode, Map<String, String> metadataToEncode, 
+            CompressionMode mode, String digestAlgorithm) throws IOException {
+        int level = compressionLevel;
+        if(levelController != null && mode != CompressionMode.NONE) {
+            level = levelController.nextLevel();
+            if(level == CompressionLevelController.NONE) {
+                mode = CompressionMode.NONE;
+            }
+        }
+        boolean push = streamToEncodeTo != null;
+        CompressionDictionary dictionary = null;
+        CompressionOutputTransform transform;
+        switch(mode) {
+        case DeflateDict:
+            dictionary = getCurrentDictionary();
+            // fall through
         case Deflate:
-            return new DeflateOutputTransform(streamToEncodeTo, metadataToEncode, compressionLevel);
+            transform = push 
+                    ? new DeflateOutputTransform(streamToEncodeTo, metadataToEncode, level, 
+                            dictionary, digestAlgorithm)
+                    : new DeflateOutputTransform(streamToEncode, metadataToEncode, level, 
+                            dictionary, digestAlgorithm);
+            break;
         case LZMA:
-            return new LZMAOutputTransform(streamToEncodeTo, metadataToEncode, compressionLevel);
+            transform = push 
+                    ? new LZMAOutputTransform(streamToEncodeTo, metadataToEncode, level, 
+                            digestAlgorithm)
+                    : new LZMAOutputTransform(streamToEncode, metadataToEncode, level, 
+                            digestAlgorithm);
+            break;
+        case LZ4:
+            transform = push 
+                    ? new LZ4OutputTransform(streamToEncodeTo, metadataToEncode, level, 
+                            digestAlgorithm)
+                    : new LZ4OutputTransform(streamToEncode, metadataToEncode, level, 
+                            digestAlgorithm);
+            break;
+        case NONE:
+            transform = push 
+                    ? new StoredOutputTransform(streamToEncodeTo, metadataToEncode, digestAlgorithm)
+                    : new StoredOutputTransform(streamToEncode, metadataToEncode, digestAlgorithm);
+            break;
         default:
-            throw new IllegalArgumentException("Unsupported compression method " + compressMode); 
+            throw new IllegalArgumentException("Unsupported compression method " + mode); 
         }
+        return meter(transform, mode, level);
     }
     
     @Override
-    public CompressionOutputTransform getOutputTransform(
-            InputStream streamToEncode, Map<String, String> metadataToEncode)
-            throws IOException, TransformException {
+    public DigestStage getDigestStage() throws IOException {
+        return new DigestStage(getDigestAlgorithm(), TransformConstants.META_COMPRESSION_UNCOMP_SHA1,
+                TransformConstants.META_COMPRESSION_UNCOMP_DIGEST);
+    }
+
+    /**
+     * Gets a block stage for compression modes Deflate and DeflateDict at the 
+     * configured compression level.  The adaptive mode and the level controller 
+     * only apply to output transforms.
+     */
+    @Override
+    public BlockStage getOutputStage() {
         switch(compressMode) {
         case Deflate:
-            return new DeflateOutputTransform(streamToEncode, metadataToEncode, compressionLevel);
-        case LZMA:
-            return new LZMAOutputTransform(streamToEncode, metadataToEncode, compressionLevel);
+            return new DeflateBlockStage(compressionLevel, null);
+        case DeflateDict:
+            return new DeflateBlockStage(compressionLevel, getCurrentDictionary());
         default:
-            throw new IllegalArgumentException("Unsupported compression method " + compressMode); 
+            throw new IllegalArgumentException("Unsupported compression method for block stages " 
+                    + compressMode);
         }
     }
+    
+    /**
+     * Reports the transform's compression time to the level controller, if there 
+     * is one.
+     */
+    private CompressionOutputTransform meter(CompressionOutputTransform transform, 
+            CompressionMode mode, int level) {
+        if(levelController != null && compressMode != CompressionMode.NONE) {
+            transform.meter(levelController, 
+                    mode == CompressionMode.NONE ? CompressionLevelController.NONE : level);
+        }
+        return transform;
+    }
 
     @Override
     public CompressionInputTransform getInputTransform(String transformConfig, InputStream streamToDecode, Map<String, String> metadata) throws IOException {
@@ -93,6 +384,18 @@ public class CompressionTransformFactory extends
             return new DeflateInputTransform(streamToDecode, metadata);
         case LZMA:
             return new LZMAInputTransform(streamToDecode, metadata);
+        case LZ4:
+            return new LZ4InputTransform(streamToDecode, metadata);
+        case DeflateDict:
+            String id = metadata.get(TransformConstants.META_COMPRESSION_DICTIONARY_ID);
+            CompressionDictionary dictionary = dictionaryRegistry == null ? null 
+                    : dictionaryRegistry.get(id);
+            if(dictionary == null) {
+                throw new IllegalArgumentException("Unknown compression dictionary " + id);
+            }
+            return new DeflateInputTransform(streamToDecode, metadata, dictionary);
+        case NONE:
+            return new StoredInputTransform(streamToDecode, metadata);
         default:
             throw new IllegalArgumentException("Unknown compression method " + mode);
         }
@@ -127,13 +430,23 @@ public class CompressionTransformFactory extends
         }
         
         // First arg is mode.  Others are compression config and informational only.
+        CompressionMode mode;
         try {
-            CompressionMode.valueOf(configParams[0]);
+            mode = CompressionMode.valueOf(configParams[0]);
         } catch(IllegalArgumentException e) {
             logger.warn("Invalid compression mode {}", configParams[0]);
             return false;
         }
         
+        if(mode == CompressionMode.DeflateDict) {
+            String id = metadata == null ? null 
+                    : metadata.get(TransformConstants.META_COMPRESSION_DICTIONARY_ID);
+            if(dictionaryRegistry == null || dictionaryRegistry.get(id) == null) {
+                logger.warn("Unknown compression dictionary {}", id);
+                return false;
+            }
+        }
+        
         return getTransformClass().equals(transformClass);
     }
     
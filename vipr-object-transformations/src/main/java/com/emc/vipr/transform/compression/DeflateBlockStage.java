@@ -0,0 +1,114 @@
+package com.emc.vipr.transform.compression;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+import com.emc.vipr.transform.TransformConstants;
+import com.emc.vipr.transform.TransformConstants.CompressionMode;
+import com.emc.vipr.transform.block.BlockStage;
+
+/**
+ * Compresses blocks with Deflate (compression modes Deflate and DeflateDict).
+ * Each block is handed to the Deflater in one call and the output is passed on
+ * in 64KB blocks.  The compressed data is the same as {@link DeflateOutputStream}
+ * writes.
+ */
+public class DeflateBlockStage extends BlockStage {
+    private static final int OUTPUT_SIZE = 64 * 1024;
+
+    private int level;
+    private CompressionDictionary dictionary;
+    private Deflater def;
+    private byte[] output = new byte[OUTPUT_SIZE];
+    private byte[] input;
+    private long uncompressedSize;
+    private long compressedSize;
+
+    /**
+     * @param dictionary the preset dictionary to compress with, or null for none.
+     */
+    public DeflateBlockStage(int level, CompressionDictionary dictionary) {
+        if(level > 9 || level < 0) {
+            throw new IllegalArgumentException("Invalid Deflate compression level: " + level);
+        }
+        this.level = level;
+        this.dictionary = dictionary;
+        def = CompressionCoderPool.leaseDeflater(level);
+        if(dictionary != null) {
+            def.setDictionary(dictionary.getData());
+        }
+    }
+
+    @Override
+    public void write(ByteBuffer block) throws IOException {
+        uncompressedSize += block.remaining();
+        if(block.hasArray()) {
+            deflate(block.array(), block.arrayOffset() + block.position(), block.remaining());
+            block.position(block.limit());
+            return;
+        }
+        // Direct buffers have to be copied out for the Deflater.
+        if(input == null) {
+            input = new byte[OUTPUT_SIZE];
+        }
+        while(block.hasRemaining()) {
+            int c = Math.min(input.length, block.remaining());
+            block.get(input, 0, c);
+            deflate(input, 0, c);
+        }
+    }
+
+    private void deflate(byte[] b, int off, int len) throws IOException {
+        def.setInput(b, off, len);
+        while(!def.needsInput()) {
+            drain();
+        }
+    }
+
+    private void drain() throws IOException {
+        int c = def.deflate(output, 0, output.length);
+        if(c > 0) {
+            compressedSize += c;
+            next.write(ByteBuffer.wrap(output, 0, c));
+        }
+    }
+
+    @Override
+    protected void finish() throws IOException {
+        def.finish();
+        while(!def.finished()) {
+            drain();
+        }
+    }
+
+    @Override
+    protected void release() {
+        CompressionCoderPool.returnDeflater(level, def);
+        def = null;
+    }
+
+    @Override
+    public String getTransformConfig() {
+        CompressionMode mode = dictionary == null ? CompressionMode.Deflate
+                : CompressionMode.DeflateDict;
+        return TransformConstants.COMPRESSION_CLASS + ":" + mode + "/" + level;
+    }
+
+    @Override
+    public Map<String, String> encodeMetadata(Map<String, String> metadata) {
+        checkClosed();
+        Map<String, String> encoded = new HashMap<String, String>(metadata);
+        String compRatioString = String.format("%.1f%%", 
+                100.0 - (compressedSize*100.0/uncompressedSize));
+        encoded.put(TransformConstants.META_COMPRESSION_UNCOMP_SIZE, ""+uncompressedSize);
+        encoded.put(TransformConstants.META_COMPRESSION_COMP_SIZE, ""+compressedSize);
+        encoded.put(TransformConstants.META_COMPRESSION_COMP_RATIO, compRatioString);
+        if(dictionary != null) {
+            encoded.put(TransformConstants.META_COMPRESSION_DICTIONARY_ID, dictionary.getId());
+        }
+        return encoded;
+    }
+}
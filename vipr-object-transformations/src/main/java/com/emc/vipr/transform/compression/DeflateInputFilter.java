@@ -3,7 +3,6 @@ package com.emc.vipr.transform.compression;
 import java.io.IOException;
 import java.io.InputStream;
 import java.security.DigestInputStream;
-import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.HashMap;
 import java.util.Map;
@@ -11,8 +10,8 @@ import java.util.zip.Deflater;
 import java.util.zip.DeflaterInputStream;
 
 import com.emc.vipr.transform.TransformConstants;
-import com.emc.vipr.transform.encryption.KeyUtils;
 import com.emc.vipr.transform.util.CountingInputStream;
+import com.emc.vipr.transform.util.Digests;
 
 public class DeflateInputFilter extends InputStream implements
         CompressionStream {
@@ -21,12 +20,42 @@ public class DeflateInputFilter extends InputStream implements
     private DigestInputStream digester;
     private boolean closed;
     private byte[] uncompressedDigest;
+    private int level;
+    private Deflater def;
+    private CompressionDictionary dictionary;
+    private String digestAlgorithm;
 
     public DeflateInputFilter(InputStream in, int level) throws IOException {
-        Deflater def = new Deflater(level);
+        this(in, level, null);
+    }
+
+    /**
+     * @param dictionary the preset dictionary to compress with, or null for none.
+     */
+    public DeflateInputFilter(InputStream in, int level, CompressionDictionary dictionary) 
+            throws IOException {
+        this(in, level, dictionary, TransformConstants.DEFAULT_DIGEST_ALGORITHM);
+    }
+
+    /**
+     * @param dictionary the preset dictionary to compress with, or null for none.
+     * @param digestAlgorithm the algorithm used to digest the uncompressed data.
+     * @see Digests
+     */
+    public DeflateInputFilter(InputStream in, int level, CompressionDictionary dictionary,
+            String digestAlgorithm) throws IOException {
+        this.level = level;
+        this.digestAlgorithm = digestAlgorithm;
+        this.dictionary = dictionary;
+        def = CompressionCoderPool.leaseDeflater(level);
+        if(dictionary != null) {
+            def.setDictionary(dictionary.getData());
+        }
         uncompressedCounter = new CountingInputStream(in);
         try {
-            digester = new DigestInputStream(uncompressedCounter, MessageDigest.getInstance("SHA1"));
+            digester = new DigestInputStream(uncompressedCounter, 
+                    Digests.newDigest(digestAlgorithm));
+            digester.on(digester.getMessageDigest() != null);
         } catch (NoSuchAlgorithmException e) {
             throw new IOException("Unable to initialize digest", e);
         }
@@ -53,9 +82,14 @@ public class DeflateInputFilter extends InputStream implements
     public void close() throws IOException {
         if(closed) return;
         closed = true;
-        compressedCounter.close();
+        try {
+            compressedCounter.close();
+        } finally {
+            CompressionCoderPool.returnDeflater(level, def);
+            def = null;
+        }
         // Store digest (can only call this once).
-        uncompressedDigest = digester.getMessageDigest().digest();
+        uncompressedDigest = Digests.digest(digester.getMessageDigest());
     }
     
     @Override
@@ -78,7 +112,11 @@ public class DeflateInputFilter extends InputStream implements
         metadata.put(TransformConstants.META_COMPRESSION_UNCOMP_SIZE, ""+uncompSize);
         metadata.put(TransformConstants.META_COMPRESSION_COMP_SIZE, ""+compSize);
         metadata.put(TransformConstants.META_COMPRESSION_COMP_RATIO, ""+compRatioString);
-        metadata.put(TransformConstants.META_COMPRESSION_UNCOMP_SHA1, KeyUtils.toHexPadded(uncompressedDigest));
+        Digests.putDigest(metadata, TransformConstants.META_COMPRESSION_UNCOMP_SHA1, 
+                TransformConstants.META_COMPRESSION_UNCOMP_DIGEST, digestAlgorithm, uncompressedDigest);
+        if(dictionary != null) {
+            metadata.put(TransformConstants.META_COMPRESSION_DICTIONARY_ID, dictionary.getId());
+        }
         
         return metadata;
     }
@@ -1,7 +1,10 @@
 package com.emc.vipr.transform.compression;
 
+import java.io.IOException;
 import java.io.InputStream;
 import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 import java.util.zip.InflaterInputStream;
 
 public class DeflateInputTransform extends CompressionInputTransform {
@@ -10,11 +13,91 @@ public class DeflateInputTransform extends CompressionInputTransform {
     public DeflateInputTransform(InputStream streamToDecode,
             Map<String, String> metadataToDecode) {
         super(streamToDecode, metadataToDecode);
-        inflater = new InflaterInputStream(streamToDecode);
+        inflater = new PooledInflaterInputStream(streamToDecode, null);
+    }
+
+    /**
+     * Creates a transform to decode data compressed with a preset dictionary
+     * (compression mode DeflateDict).
+     */
+    public DeflateInputTransform(InputStream streamToDecode,
+            Map<String, String> metadataToDecode, CompressionDictionary dictionary) {
+        super(streamToDecode, metadataToDecode);
+        inflater = new PooledInflaterInputStream(streamToDecode, dictionary);
     }
 
     @Override
     public InputStream getDecodedInputStream() {
         return inflater;
     }
+
+    /**
+     * Inflates with a pooled Inflater and returns it when closed.
+     */
+    private static class PooledInflaterInputStream extends InflaterInputStream {
+        private boolean closed;
+        private CompressionDictionary dictionary;
+
+        PooledInflaterInputStream(InputStream in, CompressionDictionary dictionary) {
+            super(in, CompressionCoderPool.leaseInflater());
+            this.dictionary = dictionary;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if(dictionary != null) {
+                setDictionary();
+            }
+            return super.read(b, off, len);
+        }
+
+        /**
+         * InflaterInputStream treats a stream that needs a dictionary as empty, so
+         * inflate the zlib header (2 bytes, plus the 4 byte dictionary ID) first 
+         * and set the dictionary it asks for.
+         */
+        private void setDictionary() throws IOException {
+            CompressionDictionary dict = dictionary;
+            dictionary = null;
+            byte[] header = new byte[6];
+            int length = 2;
+            int c = 0;
+            while(c < length) {
+                int n = in.read(header, c, length - c);
+                if(n == -1) {
+                    break;
+                }
+                c += n;
+                if(c == 2 && (header[1] & 0x20) != 0) {
+                    // FDICT
+                    length = 6;
+                }
+            }
+            inf.setInput(header, 0, c);
+            try {
+                inf.inflate(new byte[1]);
+            } catch (DataFormatException e) {
+                throw new IOException("Invalid Deflate stream", e);
+            }
+            if(inf.needsDictionary()) {
+                if(inf.getAdler() != (dict.getChecksum() & 0xffffffffL)) {
+                    throw new IOException("Object was compressed with a different dictionary than "
+                            + dict.getId());
+                }
+                inf.setDictionary(dict.getData());
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if(closed) return;
+            closed = true;
+            Inflater leased = inf;
+            try {
+                super.close();
+            } finally {
+                CompressionCoderPool.returnInflater(leased);
+            }
+        }
+    }
 }
@@ -4,13 +4,12 @@
 package com.emc.vipr.transform.compression;
 
 import com.emc.vipr.transform.TransformConstants;
-import com.emc.vipr.transform.encryption.KeyUtils;
 import com.emc.vipr.transform.util.CountingOutputStream;
+import com.emc.vipr.transform.util.Digests;
 
 import java.io.IOException;
 import java.io.OutputStream;
 import java.security.DigestOutputStream;
-import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.HashMap;
 import java.util.Map;
@@ -27,17 +26,47 @@ public class DeflateOutputStream extends OutputStream implements CompressionStre
     private DigestOutputStream digester;
     private boolean closed;
     private byte[] uncompressedDigest;
+    private int level;
+    private Deflater def;
+    private CompressionDictionary dictionary;
+    private String digestAlgorithm;
 
     /**
      * @throws IOException
      */
     public DeflateOutputStream(OutputStream streamToCompress, int level) throws IOException {
-        Deflater def = new Deflater(level);
+        this(streamToCompress, level, null);
+    }
+
+    /**
+     * @param dictionary the preset dictionary to compress with, or null for none.
+     */
+    public DeflateOutputStream(OutputStream streamToCompress, int level, 
+            CompressionDictionary dictionary) throws IOException {
+        this(streamToCompress, level, dictionary, TransformConstants.DEFAULT_DIGEST_ALGORITHM);
+    }
+
+    /**
+     * @param dictionary the preset dictionary to compress with, or null for none.
+     * @param digestAlgorithm the algorithm used to digest the uncompressed data.
+     * @see Digests
+     */
+    public DeflateOutputStream(OutputStream streamToCompress, int level, 
+            CompressionDictionary dictionary, String digestAlgorithm) throws IOException {
+        this.level = level;
+        this.digestAlgorithm = digestAlgorithm;
+        this.dictionary = dictionary;
+        def = CompressionCoderPool.leaseDeflater(level);
+        if(dictionary != null) {
+            def.setDictionary(dictionary.getData());
+        }
         compressedCounter = new CountingOutputStream(streamToCompress);
         DeflaterOutputStream dos = new DeflaterOutputStream(compressedCounter, def);
         uncompressedCounter = new CountingOutputStream(dos);
         try {
-            digester = new DigestOutputStream(uncompressedCounter, MessageDigest.getInstance("SHA1"));
+            digester = new DigestOutputStream(uncompressedCounter, 
+                    Digests.newDigest(digestAlgorithm));
+            digester.on(digester.getMessageDigest() != null);
         } catch (NoSuchAlgorithmException e) {
             throw new IOException("Unable to initialize digest", e);
         }
@@ -59,7 +88,11 @@ public class DeflateOutputStream extends OutputStream implements CompressionStre
         metadata.put(TransformConstants.META_COMPRESSION_UNCOMP_SIZE, ""+uncompSize);
         metadata.put(TransformConstants.META_COMPRESSION_COMP_SIZE, ""+compSize);
         metadata.put(TransformConstants.META_COMPRESSION_COMP_RATIO, ""+compRatioString);
-        metadata.put(TransformConstants.META_COMPRESSION_UNCOMP_SHA1, KeyUtils.toHexPadded(uncompressedDigest));
+        Digests.putDigest(metadata, TransformConstants.META_COMPRESSION_UNCOMP_SHA1, 
+                TransformConstants.META_COMPRESSION_UNCOMP_DIGEST, digestAlgorithm, uncompressedDigest);
+        if(dictionary != null) {
+            metadata.put(TransformConstants.META_COMPRESSION_DICTIONARY_ID, dictionary.getId());
+        }
         
         return metadata;
     }
@@ -74,8 +107,13 @@ public class DeflateOutputStream extends OutputStream implements CompressionStre
     public void close() throws IOException {
         if(closed) { return; }
         closed = true;
-        digester.close();
-        uncompressedDigest = digester.getMessageDigest().digest();
+        try {
+            digester.close();
+        } finally {
+            CompressionCoderPool.returnDeflater(level, def);
+            def = null;
+        }
+        uncompressedDigest = Digests.digest(digester.getMessageDigest());
     }
 
     @Override
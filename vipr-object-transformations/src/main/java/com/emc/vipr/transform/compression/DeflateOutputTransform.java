@@ -26,31 +26,76 @@ public class DeflateOutputTransform extends CompressionOutputTransform {
     public DeflateOutputTransform(OutputStream streamToEncode,
             Map<String, String> metadataToEncode, int compressionLevel)
             throws IOException {
-        super(streamToEncode, metadataToEncode,
-                TransformConstants.COMPRESSION_CLASS + ":"
-                        + CompressionMode.Deflate + "/" + compressionLevel);
+        this(streamToEncode, metadataToEncode, compressionLevel, null,
+                TransformConstants.DEFAULT_DIGEST_ALGORITHM);
+    }
 
-        if (compressionLevel > 9 || compressionLevel < 0) {
-            throw new IllegalArgumentException(
-                    "Invalid Deflate compression level: " + compressionLevel);
-        }
+    /**
+     * Creates a "push" mode transform that compresses with a preset dictionary
+     * (compression mode DeflateDict).
+     */
+    public DeflateOutputTransform(OutputStream streamToEncode,
+            Map<String, String> metadataToEncode, int compressionLevel,
+            CompressionDictionary dictionary) throws IOException {
+        this(streamToEncode, metadataToEncode, compressionLevel, dictionary,
+                TransformConstants.DEFAULT_DIGEST_ALGORITHM);
+    }
+
+    /**
+     * Creates a "push" mode transform.
+     * @param dictionary the preset dictionary (compression mode DeflateDict), or
+     * null for plain Deflate.
+     * @param digestAlgorithm the algorithm used to digest the uncompressed data.
+     */
+    public DeflateOutputTransform(OutputStream streamToEncode,
+            Map<String, String> metadataToEncode, int compressionLevel,
+            CompressionDictionary dictionary, String digestAlgorithm) throws IOException {
+        super(streamToEncode, metadataToEncode, config(compressionLevel, dictionary));
 
-        pushStream = new DeflateOutputStream(streamToEncode, compressionLevel);
+        pushStream = new DeflateOutputStream(streamToEncode, compressionLevel, dictionary,
+                digestAlgorithm);
     }
     
     public DeflateOutputTransform(InputStream streamToEncode,
             Map<String, String> metadataToEncode, int compressionLevel) throws IOException {
-        super(streamToEncode, metadataToEncode,
-                TransformConstants.COMPRESSION_CLASS + ":"
-                        + CompressionMode.Deflate + "/" + compressionLevel);
+        this(streamToEncode, metadataToEncode, compressionLevel, null,
+                TransformConstants.DEFAULT_DIGEST_ALGORITHM);
+    }
 
+    /**
+     * Creates a "pull" mode transform that compresses with a preset dictionary
+     * (compression mode DeflateDict).
+     */
+    public DeflateOutputTransform(InputStream streamToEncode,
+            Map<String, String> metadataToEncode, int compressionLevel,
+            CompressionDictionary dictionary) throws IOException {
+        this(streamToEncode, metadataToEncode, compressionLevel, dictionary,
+                TransformConstants.DEFAULT_DIGEST_ALGORITHM);
+    }
+
+    /**
+     * Creates a "pull" mode transform.
+     * @param dictionary the preset dictionary (compression mode DeflateDict), or
+     * null for plain Deflate.
+     * @param digestAlgorithm the algorithm used to digest the uncompressed data.
+     */
+    public DeflateOutputTransform(InputStream streamToEncode,
+            Map<String, String> metadataToEncode, int compressionLevel,
+            CompressionDictionary dictionary, String digestAlgorithm) throws IOException {
+        super(streamToEncode, metadataToEncode, config(compressionLevel, dictionary));
+
+        pullStream = new DeflateInputFilter(streamToEncode, compressionLevel, dictionary,
+                digestAlgorithm);
+    }
+
+    private static String config(int compressionLevel, CompressionDictionary dictionary) {
         if (compressionLevel > 9 || compressionLevel < 0) {
             throw new IllegalArgumentException(
                     "Invalid Deflate compression level: " + compressionLevel);
         }
-
-        pullStream = new DeflateInputFilter(streamToEncode, compressionLevel);
-        
+        CompressionMode mode = dictionary == null ? CompressionMode.Deflate
+                : CompressionMode.DeflateDict;
+        return TransformConstants.COMPRESSION_CLASS + ":" + mode + "/" + compressionLevel;
     }
 
     /*
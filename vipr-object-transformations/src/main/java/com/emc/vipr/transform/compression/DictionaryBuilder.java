@@ -0,0 +1,232 @@
+package com.emc.vipr.transform.compression;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * Builds a {@link CompressionDictionary} from sample objects.  The builder looks
+ * for byte strings that occur in many different samples (field names, tags,
+ * common values) and packs the segments of sample data that cover the most of
+ * them into the dictionary.  Content unique to one sample is ignored, since it
+ * won't help compress other objects.
+ * <br>
+ * Samples should be representative objects of the type the dictionary will be
+ * used for.  A few hundred samples are usually enough.
+ */
+public class DictionaryBuilder {
+    /**
+     * Default maximum number of bytes used from each sample (64KB).
+     */
+    public static final int DEFAULT_MAX_SAMPLE_SIZE = 64 * 1024;
+
+    /**
+     * Default maximum number of bytes of samples (1MB).  Samples added after this
+     * are ignored.
+     */
+    public static final int DEFAULT_MAX_TOTAL_SIZE = 1024 * 1024;
+
+    /**
+     * Length of the strings counted across samples.
+     */
+    private static final int DMER = 8;
+
+    private static final int SEGMENT_SIZE = 64;
+
+    private List<byte[]> samples = new ArrayList<byte[]>();
+    private long totalSize;
+    private int maxSampleSize = DEFAULT_MAX_SAMPLE_SIZE;
+    private int maxTotalSize = DEFAULT_MAX_TOTAL_SIZE;
+    private int dictionarySize = CompressionDictionary.MAX_SIZE;
+
+    /**
+     * Adds a sample.  Only the first maxSampleSize bytes are used.
+     * @return false if the sample was ignored because maxTotalSize was reached.
+     */
+    public boolean addSample(byte[] data) {
+        int length = Math.min(data.length, maxSampleSize);
+        if(totalSize + length > maxTotalSize) {
+            return false;
+        }
+        byte[] sample = new byte[length];
+        System.arraycopy(data, 0, sample, 0, length);
+        samples.add(sample);
+        totalSize += length;
+        return true;
+    }
+
+    /**
+     * Adds a sample read from a stream.  Reads at most maxSampleSize bytes.  The
+     * stream is not closed.
+     * @return false if the sample was ignored because maxTotalSize was reached.
+     */
+    public boolean addSample(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int c;
+        while(out.size() < maxSampleSize
+                && (c = in.read(buffer, 0, Math.min(buffer.length, maxSampleSize - out.size()))) != -1) {
+            out.write(buffer, 0, c);
+        }
+        return addSample(out.toByteArray());
+    }
+
+    public int getSampleCount() {
+        return samples.size();
+    }
+
+    /**
+     * Builds the dictionary.
+     * @param id the ID of the new dictionary, including its version.
+     * @throws IllegalStateException if the samples have nothing in common.
+     */
+    public CompressionDictionary build(String id) {
+        // Count the number of samples each string occurs in.
+        Map<Long, Integer> frequency = new HashMap<Long, Integer>();
+        for(byte[] sample : samples) {
+            Set<Long> seen = new HashSet<Long>();
+            for(int i = 0; i + DMER <= sample.length; i++) {
+                Long dmer = dmer(sample, i);
+                if(seen.add(dmer)) {
+                    Integer count = frequency.get(dmer);
+                    frequency.put(dmer, count == null ? 1 : count + 1);
+                }
+            }
+        }
+
+        // Candidate segments overlap by half so a common run isn't always split.
+        PriorityQueue<Segment> queue = new PriorityQueue<Segment>();
+        Set<Long> covered = new HashSet<Long>();
+        for(byte[] sample : samples) {
+            for(int start = 0; start + DMER <= sample.length; start += SEGMENT_SIZE / 2) {
+                Segment s = new Segment(sample, start, Math.min(SEGMENT_SIZE, sample.length - start));
+                s.score = score(s, frequency, covered);
+                if(s.score > 0) {
+                    queue.add(s);
+                }
+            }
+        }
+
+        // Greedily take the segment that covers the most shared strings not
+        // already in the dictionary.  Scores only go down as strings are covered,
+        // so a segment only needs rescoring when it reaches the head of the queue.
+        List<Segment> chosen = new ArrayList<Segment>();
+        int size = 0;
+        Segment s;
+        while(size < dictionarySize && (s = queue.poll()) != null) {
+            int score = score(s, frequency, covered);
+            if(score == 0) {
+                continue;
+            }
+            if(!queue.isEmpty() && score < queue.peek().score) {
+                s.score = score;
+                queue.add(s);
+                continue;
+            }
+            chosen.add(s);
+            size += s.length;
+            for(int i = s.start; i + DMER <= s.start + s.length; i++) {
+                covered.add(dmer(s.sample, i));
+            }
+        }
+        if(chosen.isEmpty()) {
+            throw new IllegalStateException("The samples have no content in common");
+        }
+
+        // Deflate encodes nearer matches in fewer bits, so the best segments go last.
+        ByteArrayOutputStream dictionary = new ByteArrayOutputStream(size);
+        for(int i = chosen.size() - 1; i >= 0; i--) {
+            dictionary.write(chosen.get(i).sample, chosen.get(i).start, chosen.get(i).length);
+        }
+        byte[] data = dictionary.toByteArray();
+        if(data.length > dictionarySize) {
+            byte[] tail = new byte[dictionarySize];
+            System.arraycopy(data, data.length - dictionarySize, tail, 0, dictionarySize);
+            data = tail;
+        }
+        return new CompressionDictionary(id, data);
+    }
+
+    /**
+     * @return the number of samples containing each string in the segment that
+     * is shared and not covered yet, summed.
+     */
+    private int score(Segment s, Map<Long, Integer> frequency, Set<Long> covered) {
+        int score = 0;
+        Set<Long> counted = new HashSet<Long>();
+        for(int i = s.start; i + DMER <= s.start + s.length; i++) {
+            Long dmer = dmer(s.sample, i);
+            int count = frequency.get(dmer);
+            if(count > 1 && !covered.contains(dmer) && counted.add(dmer)) {
+                score += count;
+            }
+        }
+        return score;
+    }
+
+    private static Long dmer(byte[] data, int off) {
+        long value = 0;
+        for(int i = 0; i < DMER; i++) {
+            value = (value << 8) | (data[off + i] & 0xff);
+        }
+        return value;
+    }
+
+    public int getMaxSampleSize() {
+        return maxSampleSize;
+    }
+
+    public void setMaxSampleSize(int maxSampleSize) {
+        this.maxSampleSize = maxSampleSize;
+    }
+
+    public int getMaxTotalSize() {
+        return maxTotalSize;
+    }
+
+    public void setMaxTotalSize(int maxTotalSize) {
+        this.maxTotalSize = maxTotalSize;
+    }
+
+    public int getDictionarySize() {
+        return dictionarySize;
+    }
+
+    /**
+     * Sets the size of the dictionaries built.  At most
+     * {@link CompressionDictionary#MAX_SIZE}.  Smaller dictionaries are faster to
+     * load for each object but cover less.
+     */
+    public void setDictionarySize(int dictionarySize) {
+        if(dictionarySize < 1 || dictionarySize > CompressionDictionary.MAX_SIZE) {
+            throw new IllegalArgumentException("Invalid dictionary size " + dictionarySize);
+        }
+        this.dictionarySize = dictionarySize;
+    }
+
+    private static class Segment implements Comparable<Segment> {
+        byte[] sample;
+        int start;
+        int length;
+        int score;
+
+        Segment(byte[] sample, int start, int length) {
+            this.sample = sample;
+            this.start = start;
+            this.length = length;
+        }
+
+        @Override
+        public int compareTo(Segment o) {
+            // Highest score first
+            return o.score < score ? -1 : (o.score == score ? 0 : 1);
+        }
+    }
+}
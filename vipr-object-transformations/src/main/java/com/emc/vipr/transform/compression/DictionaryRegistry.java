@@ -0,0 +1,63 @@
+package com.emc.vipr.transform.compression;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Holds the compression dictionaries known to a client.  New objects are
+ * compressed with the current dictionary; every dictionary that objects were
+ * written with must stay registered so they can be read.
+ */
+public class DictionaryRegistry {
+    private Map<String, CompressionDictionary> dictionaries =
+            new ConcurrentHashMap<String, CompressionDictionary>();
+    private volatile CompressionDictionary current;
+
+    /**
+     * Adds a dictionary.  The first dictionary added becomes the current one.
+     * @throws IllegalArgumentException if a different dictionary is already
+     * registered with the same ID.
+     */
+    public synchronized void register(CompressionDictionary dictionary) {
+        CompressionDictionary existing = dictionaries.get(dictionary.getId());
+        if(existing != null && existing.getChecksum() != dictionary.getChecksum()) {
+            throw new IllegalArgumentException("A different dictionary is already registered as "
+                    + dictionary.getId() + "; use a new ID for each version");
+        }
+        dictionaries.put(dictionary.getId(), dictionary);
+        if(current == null) {
+            current = dictionary;
+        }
+    }
+
+    /**
+     * @return the dictionary with the given ID, or null if there isn't one.
+     */
+    public CompressionDictionary get(String id) {
+        return id == null ? null : dictionaries.get(id);
+    }
+
+    /**
+     * @return the dictionary used for new objects, or null if none is registered.
+     */
+    public CompressionDictionary getCurrent() {
+        return current;
+    }
+
+    /**
+     * Sets the dictionary used for new objects.  It must already be registered.
+     */
+    public synchronized void setCurrent(String id) {
+        CompressionDictionary dictionary = dictionaries.get(id);
+        if(dictionary == null) {
+            throw new IllegalArgumentException("Unknown dictionary " + id);
+        }
+        current = dictionary;
+    }
+
+    public Collection<CompressionDictionary> getDictionaries() {
+        return Collections.unmodifiableCollection(dictionaries.values());
+    }
+}
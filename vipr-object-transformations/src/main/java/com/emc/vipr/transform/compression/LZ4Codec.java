@@ -0,0 +1,322 @@
+package com.emc.vipr.transform.compression;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A pure Java implementation of the LZ4 block format and the xxHash32 checksum
+ * used by the LZ4 frame format.  LZ4 only looks for repeated strings (no
+ * entropy coding), so it compresses at several hundred MB/s per core and
+ * decompresses faster still.  The output is compatible with the reference
+ * implementation.
+ * @see LZ4OutputStream
+ * @see LZ4InputStream
+ */
+final class LZ4Codec {
+    static final int MIN_MATCH = 4;
+    static final int MAX_DISTANCE = 65535;
+
+    /**
+     * The last 5 bytes of a block are always literals, and the last match must
+     * start at least 12 bytes before the end.
+     */
+    private static final int LAST_LITERALS = 5;
+    private static final int MF_LIMIT = 12;
+    private static final int MIN_LENGTH = MF_LIMIT + 1;
+
+    private static final int HASH_LOG = 12;
+    static final int HASH_TABLE_SIZE = 1 << HASH_LOG;
+
+    /**
+     * After 2^SKIP_STRENGTH bytes without a match, the search starts skipping
+     * bytes so incompressible data goes through quickly.
+     */
+    private static final int SKIP_STRENGTH = 6;
+
+    private static final int ML_BITS = 4;
+    private static final int ML_MASK = (1 << ML_BITS) - 1;
+    private static final int RUN_MASK = (1 << (8 - ML_BITS)) - 1;
+
+    private static final int PRIME1 = 0x9E3779B1;
+    private static final int PRIME2 = 0x85EBCA77;
+    private static final int PRIME3 = 0xC2B2AE3D;
+    private static final int PRIME4 = 0x27D4EB2F;
+    private static final int PRIME5 = 0x165667B1;
+
+    private LZ4Codec() {
+    }
+
+    /**
+     * @return the largest compressed size of a block of the given size.
+     */
+    static int maxCompressedLength(int length) {
+        return length + length / 255 + 16;
+    }
+
+    /**
+     * Compresses a block.
+     * @param src the data to compress.
+     * @param srcOff the offset of the data.
+     * @param srcLen the length of the data.
+     * @param dst the buffer to compress into.  It must have at least
+     * {@link #maxCompressedLength(int)} bytes available at dstOff.
+     * @param dstOff the offset to compress to.
+     * @param table a hash table of {@link #HASH_TABLE_SIZE} entries.  Its
+     * contents are overwritten.
+     * @param acceleration 1 for the best compression.  Higher values skip ahead
+     * sooner when no match is found, trading compression for speed.
+     * @return the compressed length.
+     */
+    static int compress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff,
+            int[] table, int acceleration) {
+        int end = srcOff + srcLen;
+        int mfLimit = end - MF_LIMIT;
+        int matchLimit = end - LAST_LITERALS;
+        int anchor = srcOff;
+        int ip = srcOff;
+        int op = dstOff;
+
+        if(srcLen >= MIN_LENGTH) {
+            Arrays.fill(table, -1);
+            table[hash(readIntLE(src, ip))] = ip;
+            ip++;
+
+            search:
+            while(true) {
+                // Find a match
+                int ref;
+                int forwardIp = ip;
+                int searchMatchNb = acceleration << SKIP_STRENGTH;
+                int step = 1;
+                do {
+                    ip = forwardIp;
+                    forwardIp += step;
+                    step = searchMatchNb++ >>> SKIP_STRENGTH;
+                    if(forwardIp > mfLimit) {
+                        break search;
+                    }
+                    int h = hash(readIntLE(src, ip));
+                    ref = table[h];
+                    table[h] = ip;
+                } while(ref < 0 || ip - ref > MAX_DISTANCE
+                        || readIntLE(src, ref) != readIntLE(src, ip));
+
+                // Extend the match backwards
+                while(ip > anchor && ref > srcOff && src[ip - 1] == src[ref - 1]) {
+                    ip--;
+                    ref--;
+                }
+
+                // Literals
+                int token = op++;
+                int litLen = ip - anchor;
+                if(litLen >= RUN_MASK) {
+                    dst[token] = (byte) (RUN_MASK << ML_BITS);
+                    op = writeLength(dst, op, litLen - RUN_MASK);
+                } else {
+                    dst[token] = (byte) (litLen << ML_BITS);
+                }
+                System.arraycopy(src, anchor, dst, op, litLen);
+                op += litLen;
+
+                while(true) {
+                    // Match offset and length
+                    dst[op++] = (byte) (ip - ref);
+                    dst[op++] = (byte) ((ip - ref) >>> 8);
+                    ip += MIN_MATCH;
+                    ref += MIN_MATCH;
+                    int start = ip;
+                    while(ip < matchLimit && src[ip] == src[ref]) {
+                        ip++;
+                        ref++;
+                    }
+                    int matchLen = ip - start;
+                    if(matchLen >= ML_MASK) {
+                        dst[token] |= ML_MASK;
+                        op = writeLength(dst, op, matchLen - ML_MASK);
+                    } else {
+                        dst[token] |= matchLen;
+                    }
+                    anchor = ip;
+
+                    if(ip > mfLimit) {
+                        break search;
+                    }
+                    table[hash(readIntLE(src, ip - 2))] = ip - 2;
+
+                    // Is there a match right away?
+                    int h = hash(readIntLE(src, ip));
+                    ref = table[h];
+                    table[h] = ip;
+                    if(ref < 0 || ip - ref > MAX_DISTANCE
+                            || readIntLE(src, ref) != readIntLE(src, ip)) {
+                        break;
+                    }
+                    token = op++;
+                    dst[token] = 0;
+                }
+                ip++;
+            }
+        }
+
+        // Last literals
+        int litLen = end - anchor;
+        if(litLen >= RUN_MASK) {
+            dst[op++] = (byte) (RUN_MASK << ML_BITS);
+            op = writeLength(dst, op, litLen - RUN_MASK);
+        } else {
+            dst[op++] = (byte) (litLen << ML_BITS);
+        }
+        System.arraycopy(src, anchor, dst, op, litLen);
+        op += litLen;
+
+        return op - dstOff;
+    }
+
+    /**
+     * Decompresses a block.
+     * @param src the compressed block.
+     * @param srcOff the offset of the block.
+     * @param srcLen the length of the block.
+     * @param dst the buffer to decompress into.
+     * @param dstOff the offset to decompress to.
+     * @param dstMax the maximum number of bytes to decompress.
+     * @return the decompressed length.
+     * @throws IOException if the block is corrupt.
+     */
+    static int decompress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff,
+            int dstMax) throws IOException {
+        int ip = srcOff;
+        int srcEnd = srcOff + srcLen;
+        int op = dstOff;
+        int dstEnd = dstOff + dstMax;
+        try {
+            while(true) {
+                int token = src[ip++] & 0xff;
+
+                // Literals
+                int litLen = token >>> ML_BITS;
+                if(litLen == RUN_MASK) {
+                    int b;
+                    do {
+                        b = src[ip++] & 0xff;
+                        litLen += b;
+                    } while(b == 255);
+                }
+                if(litLen > srcEnd - ip || litLen > dstEnd - op) {
+                    throw new IOException("Corrupt LZ4 block: literals overflow");
+                }
+                System.arraycopy(src, ip, dst, op, litLen);
+                ip += litLen;
+                op += litLen;
+                if(ip == srcEnd) {
+                    // The last sequence has no match.
+                    break;
+                }
+
+                // Match
+                if(srcEnd - ip < 2) {
+                    throw new IOException("Corrupt LZ4 block: truncated");
+                }
+                int offset = (src[ip] & 0xff) | ((src[ip + 1] & 0xff) << 8);
+                ip += 2;
+                int ref = op - offset;
+                if(offset == 0 || ref < dstOff) {
+                    throw new IOException("Corrupt LZ4 block: invalid match offset");
+                }
+                int matchLen = token & ML_MASK;
+                if(matchLen == ML_MASK) {
+                    int b;
+                    do {
+                        b = src[ip++] & 0xff;
+                        matchLen += b;
+                    } while(b == 255);
+                }
+                matchLen += MIN_MATCH;
+                if(matchLen > dstEnd - op) {
+                    throw new IOException("Corrupt LZ4 block: match overflow");
+                }
+                if(offset >= matchLen) {
+                    System.arraycopy(dst, ref, dst, op, matchLen);
+                    op += matchLen;
+                } else {
+                    // Overlapping copy repeats the last offset bytes.
+                    int matchEnd = op + matchLen;
+                    while(op < matchEnd) {
+                        dst[op++] = dst[ref++];
+                    }
+                }
+            }
+        } catch(ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Corrupt LZ4 block: truncated", e);
+        }
+        return op - dstOff;
+    }
+
+    /**
+     * Computes the xxHash32 of the data.
+     */
+    static int xxhash32(byte[] data, int off, int len, int seed) {
+        int end = off + len;
+        int p = off;
+        int h;
+        if(len >= 16) {
+            int limit = end - 16;
+            int v1 = seed + PRIME1 + PRIME2;
+            int v2 = seed + PRIME2;
+            int v3 = seed;
+            int v4 = seed - PRIME1;
+            do {
+                v1 = Integer.rotateLeft(v1 + readIntLE(data, p) * PRIME2, 13) * PRIME1;
+                v2 = Integer.rotateLeft(v2 + readIntLE(data, p + 4) * PRIME2, 13) * PRIME1;
+                v3 = Integer.rotateLeft(v3 + readIntLE(data, p + 8) * PRIME2, 13) * PRIME1;
+                v4 = Integer.rotateLeft(v4 + readIntLE(data, p + 12) * PRIME2, 13) * PRIME1;
+                p += 16;
+            } while(p <= limit);
+            h = Integer.rotateLeft(v1, 1) + Integer.rotateLeft(v2, 7)
+                    + Integer.rotateLeft(v3, 12) + Integer.rotateLeft(v4, 18);
+        } else {
+            h = seed + PRIME5;
+        }
+        h += len;
+        while(p + 4 <= end) {
+            h = Integer.rotateLeft(h + readIntLE(data, p) * PRIME3, 17) * PRIME4;
+            p += 4;
+        }
+        while(p < end) {
+            h = Integer.rotateLeft(h + (data[p] & 0xff) * PRIME5, 11) * PRIME1;
+            p++;
+        }
+        h ^= h >>> 15;
+        h *= PRIME2;
+        h ^= h >>> 13;
+        h *= PRIME3;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    static int readIntLE(byte[] b, int off) {
+        return (b[off] & 0xff) | ((b[off + 1] & 0xff) << 8)
+                | ((b[off + 2] & 0xff) << 16) | ((b[off + 3] & 0xff) << 24);
+    }
+
+    static void writeIntLE(byte[] b, int off, int value) {
+        b[off] = (byte) value;
+        b[off + 1] = (byte) (value >>> 8);
+        b[off + 2] = (byte) (value >>> 16);
+        b[off + 3] = (byte) (value >>> 24);
+    }
+
+    private static int hash(int value) {
+        return (value * -1640531535) >>> (32 - HASH_LOG);
+    }
+
+    private static int writeLength(byte[] dst, int op, int length) {
+        while(length >= 255) {
+            dst[op++] = (byte) 255;
+            length -= 255;
+        }
+        dst[op++] = (byte) length;
+        return op;
+    }
+}
@@ -0,0 +1,124 @@
+package com.emc.vipr.transform.compression;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+import com.emc.vipr.transform.TransformConstants;
+
+/**
+ * Compresses data in the LZ4 frame format in "pull" mode.  Each read compresses
+ * the next block of the source stream when the previous one has been consumed.
+ * @see LZ4OutputStream
+ */
+public class LZ4InputFilter extends InputStream implements CompressionStream {
+    private InputStream in;
+    private LZ4OutputStream encoder;
+    private DrainableBuffer compressed = new DrainableBuffer();
+    private byte[] block = new byte[LZ4OutputStream.BLOCK_SIZE];
+    private boolean eof;
+    private boolean closed;
+
+    public LZ4InputFilter(InputStream in, int level) throws IOException {
+        this(in, level, TransformConstants.DEFAULT_DIGEST_ALGORITHM);
+    }
+
+    /**
+     * @param digestAlgorithm the algorithm used to digest the uncompressed data.
+     * @see com.emc.vipr.transform.util.Digests
+     */
+    public LZ4InputFilter(InputStream in, int level, String digestAlgorithm) throws IOException {
+        this.in = in;
+        encoder = new LZ4OutputStream(compressed, level, digestAlgorithm);
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        int c = read(b, 0, 1);
+        return c == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if(len == 0) {
+            return 0;
+        }
+        while(compressed.remaining() == 0) {
+            if(eof) {
+                return -1;
+            }
+            compressed.reset();
+            int c = fill();
+            if(c == 0) {
+                eof = true;
+                encoder.close();
+            } else {
+                encoder.write(block, 0, c);
+            }
+        }
+        return compressed.drain(b, off, len);
+    }
+
+    /**
+     * Reads a full block from the source unless it ends first.
+     * @return the number of bytes read; 0 at EOF.
+     */
+    private int fill() throws IOException {
+        int count = 0;
+        int c;
+        while(count < block.length
+                && (c = in.read(block, count, block.length - count)) != -1) {
+            count += c;
+        }
+        return count;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return compressed.remaining();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if(closed) return;
+        closed = true;
+        in.close();
+        // Completes the frame if the stream wasn't read to the end.
+        encoder.close();
+    }
+
+    @Override
+    public Map<String, String> getStreamMetadata() {
+        return encoder.getStreamMetadata();
+    }
+
+    /**
+     * Collects the encoder's output until it is read.
+     */
+    private static class DrainableBuffer extends ByteArrayOutputStream {
+        private int pos;
+
+        DrainableBuffer() {
+            super(LZ4Codec.maxCompressedLength(LZ4OutputStream.BLOCK_SIZE) + 32);
+        }
+
+        int remaining() {
+            return count - pos;
+        }
+
+        int drain(byte[] b, int off, int len) {
+            int c = Math.min(len, remaining());
+            System.arraycopy(buf, pos, b, off, c);
+            pos += c;
+            return c;
+        }
+
+        @Override
+        public synchronized void reset() {
+            super.reset();
+            pos = 0;
+        }
+    }
+}
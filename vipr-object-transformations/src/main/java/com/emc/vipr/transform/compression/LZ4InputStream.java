@@ -0,0 +1,162 @@
+package com.emc.vipr.transform.compression;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decompresses a stream in the LZ4 frame format.  Besides the frames written by
+ * {@link LZ4OutputStream}, this reads frames from the standard lz4 tools as long
+ * as they use independent blocks.  Block checksums are verified; the content
+ * checksum is skipped since the object's SHA1 covers the content.
+ */
+public class LZ4InputStream extends InputStream {
+    private static final int FLG_VERSION_MASK = 0xC0;
+    private static final int FLG_VERSION = 0x40;
+    private static final int FLG_BLOCK_INDEPENDENCE = 0x20;
+    private static final int FLG_BLOCK_CHECKSUM = 0x10;
+    private static final int FLG_CONTENT_SIZE = 0x08;
+    private static final int FLG_CONTENT_CHECKSUM = 0x04;
+    private static final int FLG_DICTIONARY_ID = 0x01;
+
+    private InputStream in;
+    private boolean headerRead;
+    private boolean blockChecksum;
+    private boolean contentChecksum;
+    private byte[] block;
+    private byte[] compressed;
+    private int blockLength;
+    private int pos;
+    private boolean eof;
+    private boolean closed;
+
+    public LZ4InputStream(InputStream in) {
+        this.in = in;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        int c = read(b, 0, 1);
+        return c == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if(closed) {
+            throw new IOException("Stream closed");
+        }
+        if(len == 0) {
+            return 0;
+        }
+        while(pos == blockLength) {
+            if(eof) {
+                return -1;
+            }
+            nextBlock();
+        }
+        int c = Math.min(len, blockLength - pos);
+        System.arraycopy(block, pos, b, off, c);
+        pos += c;
+        return c;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return blockLength - pos;
+    }
+
+    private void readHeader() throws IOException {
+        // magic, FLG, BD, optional content size, header checksum
+        byte[] header = new byte[4 + 2 + 8 + 1];
+        readFully(header, 0, 6);
+        if(LZ4Codec.readIntLE(header, 0) != LZ4OutputStream.MAGIC) {
+            throw new IOException("Not an LZ4 frame");
+        }
+        int flg = header[4] & 0xff;
+        int bd = header[5] & 0xff;
+        if((flg & FLG_VERSION_MASK) != FLG_VERSION) {
+            throw new IOException("Unsupported LZ4 frame version");
+        }
+        if((flg & FLG_BLOCK_INDEPENDENCE) == 0) {
+            throw new IOException("Linked LZ4 blocks are not supported");
+        }
+        if((flg & FLG_DICTIONARY_ID) != 0) {
+            throw new IOException("LZ4 dictionaries are not supported");
+        }
+        blockChecksum = (flg & FLG_BLOCK_CHECKSUM) != 0;
+        contentChecksum = (flg & FLG_CONTENT_CHECKSUM) != 0;
+
+        // The header checksum covers the descriptor, including the content size.
+        int descriptorLength = 2;
+        if((flg & FLG_CONTENT_SIZE) != 0) {
+            readFully(header, 6, 8);
+            descriptorLength += 8;
+        }
+        readFully(header, 4 + descriptorLength, 1);
+        int hc = (LZ4Codec.xxhash32(header, 4, descriptorLength, 0) >>> 8) & 0xff;
+        if((header[4 + descriptorLength] & 0xff) != hc) {
+            throw new IOException("LZ4 frame header checksum mismatch");
+        }
+
+        int maxBlockSize = 1 << (8 + 2 * ((bd >>> 4) & 0x7));
+        if(maxBlockSize < 64 * 1024) {
+            throw new IOException("Invalid LZ4 block size");
+        }
+        block = new byte[maxBlockSize];
+        compressed = new byte[maxBlockSize];
+        headerRead = true;
+    }
+
+    private void nextBlock() throws IOException {
+        if(!headerRead) {
+            readHeader();
+        }
+        pos = 0;
+        blockLength = 0;
+        byte[] word = new byte[4];
+        readFully(word, 0, 4);
+        int size = LZ4Codec.readIntLE(word, 0);
+        if(size == 0) {
+            // End mark
+            if(contentChecksum) {
+                readFully(word, 0, 4);
+            }
+            eof = true;
+            return;
+        }
+        boolean stored = (size & LZ4OutputStream.UNCOMPRESSED_FLAG) != 0;
+        size &= ~LZ4OutputStream.UNCOMPRESSED_FLAG;
+        if(size > block.length) {
+            throw new IOException("Corrupt LZ4 frame: block too large");
+        }
+        byte[] data = stored ? block : compressed;
+        readFully(data, 0, size);
+        if(blockChecksum) {
+            readFully(word, 0, 4);
+            if(LZ4Codec.readIntLE(word, 0) != LZ4Codec.xxhash32(data, 0, size, 0)) {
+                throw new IOException("LZ4 block checksum mismatch");
+            }
+        }
+        blockLength = stored ? size
+                : LZ4Codec.decompress(compressed, 0, size, block, 0, block.length);
+    }
+
+    private void readFully(byte[] b, int off, int len) throws IOException {
+        while(len > 0) {
+            int c = in.read(b, off, len);
+            if(c == -1) {
+                throw new EOFException("Unexpected end of LZ4 stream");
+            }
+            off += c;
+            len -= c;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if(closed) return;
+        closed = true;
+        in.close();
+    }
+}
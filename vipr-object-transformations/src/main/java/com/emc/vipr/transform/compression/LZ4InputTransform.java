@@ -0,0 +1,19 @@
+package com.emc.vipr.transform.compression;
+
+import java.io.InputStream;
+import java.util.Map;
+
+public class LZ4InputTransform extends CompressionInputTransform {
+    private LZ4InputStream decoder;
+
+    public LZ4InputTransform(InputStream streamToDecode,
+            Map<String, String> metadataToDecode) {
+        super(streamToDecode, metadataToDecode);
+        decoder = new LZ4InputStream(streamToDecode);
+    }
+
+    @Override
+    public InputStream getDecodedInputStream() {
+        return decoder;
+    }
+}
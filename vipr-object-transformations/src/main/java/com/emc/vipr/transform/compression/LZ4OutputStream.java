@@ -0,0 +1,170 @@
+package com.emc.vipr.transform.compression;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.emc.vipr.transform.TransformConstants;
+import com.emc.vipr.transform.util.Digests;
+
+/**
+ * Compresses data in the LZ4 frame format in "push" mode.  Data is compressed in
+ * independent 64KB blocks; a block that doesn't shrink is stored as-is.  The
+ * output can be read with the standard lz4 tools.
+ * <br>
+ * The compression level (0-9) sets how hard the compressor looks for matches
+ * in data that doesn't compress well: level 9 searches every position, while
+ * lower levels skip ahead sooner.  Highly compressible data compresses the same
+ * at every level.
+ */
+public class LZ4OutputStream extends OutputStream implements CompressionStream {
+    static final int MAGIC = 0x184D2204;
+    static final int BLOCK_SIZE = 64 * 1024;
+    /** Version 01, independent blocks, no checksums or content size. */
+    static final int FLG = 0x60;
+    /** 64KB maximum block size */
+    static final int BD = 0x40;
+    static final int UNCOMPRESSED_FLAG = 0x80000000;
+
+    private OutputStream out;
+    private MessageDigest digest;
+    private int acceleration;
+    private byte[] block = new byte[BLOCK_SIZE];
+    private int blockLength;
+    private byte[] compressed = new byte[4 + LZ4Codec.maxCompressedLength(BLOCK_SIZE)];
+    private int[] table = new int[LZ4Codec.HASH_TABLE_SIZE];
+    private long uncompressedSize;
+    private long compressedSize;
+    private boolean closed;
+    private byte[] uncompressedDigest;
+    private String digestAlgorithm;
+
+    public LZ4OutputStream(OutputStream out, int level) throws IOException {
+        this(out, level, TransformConstants.DEFAULT_DIGEST_ALGORITHM);
+    }
+
+    /**
+     * @param digestAlgorithm the algorithm used to digest the uncompressed data.
+     * @see Digests
+     */
+    public LZ4OutputStream(OutputStream out, int level, String digestAlgorithm) 
+            throws IOException {
+        if(level > 9 || level < 0) {
+            throw new IllegalArgumentException("Invalid LZ4 compression level: " + level);
+        }
+        this.out = out;
+        this.acceleration = 10 - level;
+        this.digestAlgorithm = digestAlgorithm;
+        try {
+            digest = Digests.newDigest(digestAlgorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("Unable to initialize digest", e);
+        }
+
+        byte[] header = new byte[7];
+        LZ4Codec.writeIntLE(header, 0, MAGIC);
+        header[4] = (byte) FLG;
+        header[5] = (byte) BD;
+        header[6] = (byte) (LZ4Codec.xxhash32(header, 4, 2, 0) >>> 8);
+        writeOut(header, 0, header.length);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if(closed) {
+            throw new IOException("Stream closed");
+        }
+        if(digest != null) digest.update(b, off, len);
+        uncompressedSize += len;
+        while(len > 0) {
+            if(blockLength == 0 && len >= BLOCK_SIZE) {
+                // Compress straight from the caller's buffer.
+                writeBlock(b, off, BLOCK_SIZE);
+                off += BLOCK_SIZE;
+                len -= BLOCK_SIZE;
+                continue;
+            }
+            int c = Math.min(len, BLOCK_SIZE - blockLength);
+            System.arraycopy(b, off, block, blockLength, c);
+            blockLength += c;
+            off += c;
+            len -= c;
+            if(blockLength == BLOCK_SIZE) {
+                writeBlock(block, 0, blockLength);
+                blockLength = 0;
+            }
+        }
+    }
+
+    private void writeBlock(byte[] b, int off, int len) throws IOException {
+        int c = LZ4Codec.compress(b, off, len, compressed, 4, table, acceleration);
+        if(c < len) {
+            LZ4Codec.writeIntLE(compressed, 0, c);
+            writeOut(compressed, 0, c + 4);
+        } else {
+            LZ4Codec.writeIntLE(compressed, 0, len | UNCOMPRESSED_FLAG);
+            writeOut(compressed, 0, 4);
+            writeOut(b, off, len);
+        }
+    }
+
+    private void writeOut(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        compressedSize += len;
+    }
+
+    /**
+     * Compresses any buffered data.  Note that this ends the current block, so
+     * frequent flushes reduce compression.
+     */
+    @Override
+    public void flush() throws IOException {
+        if(blockLength > 0) {
+            writeBlock(block, 0, blockLength);
+            blockLength = 0;
+        }
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if(closed) return;
+        closed = true;
+        if(blockLength > 0) {
+            writeBlock(block, 0, blockLength);
+            blockLength = 0;
+        }
+        // End mark
+        writeOut(new byte[4], 0, 4);
+        out.close();
+        uncompressedDigest = Digests.digest(digest);
+    }
+
+    @Override
+    public Map<String, String> getStreamMetadata() {
+        if(!closed) {
+            throw new IllegalStateException("Stream must be closed before getting metadata");
+        }
+
+        Map<String,String> metadata = new HashMap<String, String>();
+
+        String compRatioString = String.format("%.1f%%",
+                100.0 - (compressedSize*100.0/uncompressedSize));
+
+        metadata.put(TransformConstants.META_COMPRESSION_UNCOMP_SIZE, ""+uncompressedSize);
+        metadata.put(TransformConstants.META_COMPRESSION_COMP_SIZE, ""+compressedSize);
+        metadata.put(TransformConstants.META_COMPRESSION_COMP_RATIO, ""+compRatioString);
+        Digests.putDigest(metadata, TransformConstants.META_COMPRESSION_UNCOMP_SHA1, 
+                TransformConstants.META_COMPRESSION_UNCOMP_DIGEST, digestAlgorithm, uncompressedDigest);
+
+        return metadata;
+    }
+}
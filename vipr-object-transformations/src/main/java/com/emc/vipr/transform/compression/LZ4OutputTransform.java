@@ -0,0 +1,74 @@
+package com.emc.vipr.transform.compression;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.emc.vipr.transform.TransformConstants;
+import com.emc.vipr.transform.TransformConstants.CompressionMode;
+
+/**
+ * Compresses with LZ4.  LZ4 compresses less than Deflate but is several times
+ * faster, so it can save space without limiting throughput on fast networks.
+ * @see LZ4OutputStream
+ */
+public class LZ4OutputTransform extends CompressionOutputTransform {
+
+    public LZ4OutputTransform(OutputStream streamToEncodeTo,
+            Map<String, String> metadataToEncode, int level) throws IOException {
+        this(streamToEncodeTo, metadataToEncode, level, 
+                TransformConstants.DEFAULT_DIGEST_ALGORITHM);
+    }
+
+    /**
+     * @param digestAlgorithm the algorithm used to digest the uncompressed data.
+     */
+    public LZ4OutputTransform(OutputStream streamToEncodeTo,
+            Map<String, String> metadataToEncode, int level, String digestAlgorithm) 
+            throws IOException {
+        super(streamToEncodeTo, metadataToEncode,
+                TransformConstants.COMPRESSION_CLASS + ":"
+                        + CompressionMode.LZ4 + "/" + level);
+        pushStream = new LZ4OutputStream(streamToEncodeTo, level, digestAlgorithm);
+    }
+
+    public LZ4OutputTransform(InputStream streamToEncode,
+            Map<String, String> metadataToEncode, int level) throws IOException {
+        this(streamToEncode, metadataToEncode, level, 
+                TransformConstants.DEFAULT_DIGEST_ALGORITHM);
+    }
+
+    /**
+     * @param digestAlgorithm the algorithm used to digest the uncompressed data.
+     */
+    public LZ4OutputTransform(InputStream streamToEncode,
+            Map<String, String> metadataToEncode, int level, String digestAlgorithm) 
+            throws IOException {
+        super(streamToEncode, metadataToEncode,
+                TransformConstants.COMPRESSION_CLASS + ":"
+                        + CompressionMode.LZ4 + "/" + level);
+        pullStream = new LZ4InputFilter(streamToEncode, level, digestAlgorithm);
+    }
+
+    @Override
+    public Map<String, String> getEncodedMetadata() {
+        Map<String, String> metadata = new HashMap<String, String>();
+
+        // Merge stream metadata
+        switch(getStreamMode()) {
+        case PULL:
+            metadata.putAll(((CompressionStream) pullStream).getStreamMetadata());
+            break;
+        case PUSH:
+            metadata.putAll(((CompressionStream) pushStream).getStreamMetadata());
+            break;
+        }
+
+        // Merge original metadata
+        metadata.putAll(metadataToEncode);
+
+        return metadata;
+    }
+}
@@ -2,13 +2,13 @@ package com.emc.vipr.transform.compression;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
+import java.io.OutputStream;
 import java.security.DigestInputStream;
-import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -17,8 +17,8 @@ import SevenZip.Compression.LZMA.Encoder;
 
 import com.emc.vipr.transform.TransformConstants;
 import com.emc.vipr.transform.compression.CompressionTransformFactory.LzmaProfile;
-import com.emc.vipr.transform.encryption.KeyUtils;
 import com.emc.vipr.transform.util.CountingInputStream;
+import com.emc.vipr.transform.util.Digests;
 
 /**
  * Compression filter used in "pull" mode to compress data for the
@@ -27,15 +27,25 @@ import com.emc.vipr.transform.util.CountingInputStream;
 public class LZMACompressionFilter extends InputStream implements CompressionStream, Runnable {
     private static Logger log = LoggerFactory.getLogger(LZMACompressionFilter.class);
     
-    private boolean closed = false;
-    private Thread compressionThread;
-    private PipedInputStream inputPipe;
-    private PipedOutputStream outputPipe;
+    /**
+     * Size and number of the compressed buffers handed to the reader.
+     */
+    private static final int PIPE_CHUNK_SIZE = 64 * 1024;
+    private static final int PIPE_CHUNKS = 4;
+    
+    private volatile boolean closed = false;
+    private boolean submitted;
+    private AtomicBoolean started = new AtomicBoolean(false);
+    private CountDownLatch finished = new CountDownLatch(1);
+    private ChunkPipe pipe;
+    private OutputStream outputPipe;
     private Encoder lzma;
+    private LzmaProfile compressionProfile;
     private CountingInputStream uncompressedSize;
     private CountingInputStream compressedSize;
     private DigestInputStream uncompressedDigest;
     private byte[] digest;
+    private String digestAlgorithm;
     private Exception compressionFailure;
 
     public LZMACompressionFilter(InputStream in, int compressionLevel) throws IOException {
@@ -43,42 +53,46 @@ public class LZMACompressionFilter extends InputStream implements CompressionStr
     }
     
     public LZMACompressionFilter(InputStream in, LzmaProfile compressionProfile) throws IOException {
+        this(in, compressionProfile, TransformConstants.DEFAULT_DIGEST_ALGORITHM);
+    }
+
+    /**
+     * @param digestAlgorithm the algorithm used to digest the uncompressed data.
+     * @see Digests
+     */
+    public LZMACompressionFilter(InputStream in, LzmaProfile compressionProfile, 
+            String digestAlgorithm) throws IOException {
+        this.digestAlgorithm = digestAlgorithm;
         closed = false;
         digest = new byte[0];
         
         // The LZMA Encoder reads from an input stream and writes to an output stream and 
         // thus does not make a good filter.  We need to create a pipe and and use an 
-        // auxiliary thread to compress the data.
+        // pooled thread to compress the data.
         //
         // Filter chain:
         // user stream -> CountingInputStream(uncompressedSize) -> DigestInputStream ->
-        // Encoder -> PipedOutputStream -> PipedInputStream -> 
-        // CountingInputStream(compressedSize)
+        // Encoder -> ChunkPipe -> CountingInputStream(compressedSize)
         uncompressedSize = new CountingInputStream(in);
         try {
             uncompressedDigest = new DigestInputStream(uncompressedSize, 
-                    MessageDigest.getInstance("SHA1"));
+                    Digests.newDigest(digestAlgorithm));
+            uncompressedDigest.on(uncompressedDigest.getMessageDigest() != null);
         } catch (NoSuchAlgorithmException e) {
            throw new IOException("Could not create LZMACompessionFilter", e);
         }
-        inputPipe = new PipedInputStream();
-        outputPipe = new PipedOutputStream(inputPipe);
+        pipe = new ChunkPipe(PIPE_CHUNK_SIZE, PIPE_CHUNKS);
+        outputPipe = pipe.getOutputStream();
         
-        compressedSize = new CountingInputStream(inputPipe);
-        lzma = new Encoder();
-        lzma.SetDictionarySize(compressionProfile.dictionarySize);
-        lzma.SetNumFastBytes(compressionProfile.fastBytes);
-        lzma.SetMatchFinder(compressionProfile.matchFinder);
-        lzma.SetLcLpPb(compressionProfile.lc, compressionProfile.lp, compressionProfile.pb);
-        lzma.SetEndMarkerMode(true);
+        compressedSize = new CountingInputStream(pipe.getInputStream());
+        this.compressionProfile = compressionProfile;
+        lzma = CompressionCoderPool.leaseEncoder(compressionProfile);
         
         // Write the compression settings to the stream (this is read during
         // decompression to configure the decoder)
         lzma.WriteCoderProperties(outputPipe);
         
-        compressionThread = new Thread(LZMAOutputStream.LZ_COMP_TG, this);
-        
-        compressionThread.start();
+        // The encoder runs on the pool once the stream is read.
     }
 
     @Override
@@ -116,16 +130,20 @@ public class LZMACompressionFilter extends InputStream implements CompressionStr
         if(closed) return;
         closed = true;
         
+        // Closing our end of the pipe stops the encoder if it isn't done yet.
         compressedSize.close();
         
-        // Wait for encoder to finish
-        try {
-            compressionThread.join();
-        } catch (InterruptedException e) {
-            throw new IOException("Error waiting for compression thread to exit", e);
+        // Wait for encoder to finish.  If it never started, it never will.
+        if(!started.compareAndSet(false, true)) {
+            try {
+                finished.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Error waiting for compression thread to exit", e);
+            }
         }
 
-        digest = uncompressedDigest.getMessageDigest().digest();
+        digest = Digests.digest(uncompressedDigest.getMessageDigest());
         
         // Free the encoder
         lzma = null;
@@ -133,20 +151,26 @@ public class LZMACompressionFilter extends InputStream implements CompressionStr
 
     @Override
     public void run() {
-        // Start compressing data
-        try {
-            lzma.Code(uncompressedDigest, outputPipe, -1, -1, null);
-        } catch(Exception e) {
-            compressionFailure(e);
+        if(!started.compareAndSet(false, true)) {
+            // Closed before the encoder got a thread.
+            return;
         }
-        
-        // Compression done.  Close output side of pipe before thread dies.
         try {
+            // Start compressing data
+            lzma.Code(uncompressedDigest, outputPipe, -1, -1, null);
+            // The encoder can be reused now that it finished a stream.
+            CompressionCoderPool.returnEncoder(compressionProfile, lzma);
+            
+            // Compression done.  Close output side of pipe before thread dies.
             outputPipe.close();
-        } catch (IOException e) {
-            compressionFailure(e);
+        } catch(Exception e) {
+            pipe.fail(e);
+            if(!closed) {
+                compressionFailure(e);
+            }
+        } finally {
+            finished.countDown();
         }
-
     }
     
     private synchronized void compressionFailure(Exception e) {
@@ -161,6 +185,18 @@ public class LZMACompressionFilter extends InputStream implements CompressionStr
         if(closed) {
             throw new IOException("Stream closed");
         }
+        submit();
+    }
+
+    /**
+     * Submits the encoder to the pool on first use, so streams that are opened but 
+     * never used don't hold a thread.
+     */
+    private void submit() {
+        if(!submitted) {
+            submitted = true;
+            LZMAThreadPool.submit(this);
+        }
     }
 
     @Override
@@ -178,8 +214,8 @@ public class LZMACompressionFilter extends InputStream implements CompressionStr
         metadata.put(TransformConstants.META_COMPRESSION_UNCOMP_SIZE, ""+uncompSize);
         metadata.put(TransformConstants.META_COMPRESSION_COMP_SIZE, ""+compSize);
         metadata.put(TransformConstants.META_COMPRESSION_COMP_RATIO, ""+compRatioString);
-        metadata.put(TransformConstants.META_COMPRESSION_UNCOMP_SHA1, 
-                KeyUtils.toHexPadded(digest));
+        Digests.putDigest(metadata, TransformConstants.META_COMPRESSION_UNCOMP_SHA1, 
+                TransformConstants.META_COMPRESSION_UNCOMP_DIGEST, digestAlgorithm, digest);
         
         return metadata;
     }
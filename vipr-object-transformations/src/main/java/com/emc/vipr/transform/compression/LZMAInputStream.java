@@ -5,25 +5,36 @@ package com.emc.vipr.transform.compression;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import SevenZip.Compression.LZMA.Decoder;
 
+import com.emc.vipr.transform.util.AbandonedLeases;
+
 /**
+ * Decompresses an LZMA stream.  The decoder runs on a thread from the shared
+ * {@link LZMAThreadPool} and hands decoded buffers directly to the reader.
+ * Closing the stream before EOF stops the decoder.
+ * 
  * @author cwikj
- *
  */
 public class LZMAInputStream extends InputStream implements Runnable {
-    private static ThreadGroup tg = new ThreadGroup("LZMA Decompress");
+    /**
+     * Number of decoded buffers the decoder can get ahead of the reader.
+     */
+    private static final int PIPE_CHUNKS = 4;
+
     private InputStream compressedStream;
-    private Thread decompressionThread;
-    private PipedOutputStream uncompressedPipeOut;
-    private PipedInputStream uncompressedPipeIn;
+    private ChunkPipe pipe;
+    private InputStream uncompressedIn;
+    private boolean submitted;
+    private AtomicBoolean started = new AtomicBoolean(false);
+    private CountDownLatch finished = new CountDownLatch(1);
     boolean closed;
-    private Exception decompressionException;
     private Decoder lzma;
-    private Boolean decompressionComplete;
+    private byte[] properties;
 
     /**
      * @throws IOException 
@@ -33,32 +44,32 @@ public class LZMAInputStream extends InputStream implements Runnable {
         this(compressedStream, 4096);
     }
     
+    /**
+     * @param compressedStream the LZMA stream.
+     * @param bufferSize the size of each buffer handed from the decoder to the 
+     * reader.
+     */
     public LZMAInputStream(InputStream compressedStream, int bufferSize) throws IOException {
         this.compressedStream = compressedStream;
         
-        lzma = new Decoder();
-        
         // Read the stream properties from the stream
-        byte[] properties = new byte[5];
+        properties = new byte[5];
         int c = compressedStream.read(properties);
         if(c != properties.length) {
             throw new IOException("Unable to compression settings from stream");
         }
         
-        if(!lzma.SetDecoderProperties(properties)) {
+        lzma = CompressionCoderPool.leaseDecoder(properties);
+        if(lzma == null) {
             throw new IOException("LZMA decoder rejected compression settings from stream");
         }
         
         // Build a pipe to read data from the decoder.
-        uncompressedPipeIn = new PipedInputStream(bufferSize);
-        uncompressedPipeOut = new PipedOutputStream(uncompressedPipeIn);
+        pipe = new ChunkPipe(bufferSize, PIPE_CHUNKS);
+        uncompressedIn = pipe.getInputStream();
 
-        // Start the auxilary thread to do the decompression.
-        decompressionThread = new Thread(tg, this);
+        // The decompression runs on the pool once the stream is read.
         closed = false;
-        setDecompressionComplete(Boolean.FALSE);
-        decompressionThread.start();
-        
     }
 
     /* (non-Javadoc)
@@ -67,20 +78,14 @@ public class LZMAInputStream extends InputStream implements Runnable {
     @Override
     public int read() throws IOException {
         checkStream();
-        try {
-            return uncompressedPipeIn.read();
-        } catch(IOException e) {
-            if(getDecompressionComplete()) {
-                return -1;
-            }
-            throw e;
-        }
+        return uncompressedIn.read();
     }
     
 
     @Override
     public int available() throws IOException {
-        return uncompressedPipeIn.available();
+        checkStream();
+        return uncompressedIn.available();
     }
 
     @Override
@@ -88,21 +93,26 @@ public class LZMAInputStream extends InputStream implements Runnable {
         if(closed) {
             return;
         }
+        closed = true;
         
-        // Close the parent stream
-        compressedStream.close();
-        
-        // Wait for decompression to end
-        try {
-            decompressionThread.join();
-        } catch (InterruptedException e) {
-            // Ignore.
+        // Closing our end of the pipe makes the decoder's next write fail.
+        uncompressedIn.close();
+
+        // Wait for decompression to end.  If it never started, it never will.
+        // A chain being abandoned is closed without waiting, since the decoder
+        // may be stuck in a read that only closing the parent stream ends.
+        if(!started.compareAndSet(false, true) && !AbandonedLeases.isAbandoning()) {
+            try {
+                finished.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
         }
-        
-        // Close the pipe ends.
-        uncompressedPipeIn.close();
-        uncompressedPipeOut.close();
-        
+
+        // Close the parent stream only after the decoder is done reading it,
+        // since closing it may return pooled ciphers and digests.
+        compressedStream.close();
+
         // dereference the decoder so it can get collected asap.
         lzma = null;
     }
@@ -115,70 +125,59 @@ public class LZMAInputStream extends InputStream implements Runnable {
     @Override
     public int read(byte[] b, int off, int len) throws IOException {
         checkStream();
-        try {
-            return uncompressedPipeIn.read(b, off, len);
-        } catch(IOException e) {
-            if(getDecompressionComplete()) {
-                return -1;
-            }
-            throw e;
-        }
+        return uncompressedIn.read(b, off, len);
     }
 
     @Override
     public int read(byte[] b) throws IOException {
-        checkStream();
-        try {
-            return uncompressedPipeIn.read(b);
-        } catch(IOException e) {
-            if(getDecompressionComplete()) {
-                return -1;
-            }
-            throw e;
-        }
+        return read(b, 0, b.length);
     }
 
     @Override
     public long skip(long n) throws IOException {
         checkStream();
-        try {
-            return uncompressedPipeIn.skip(n);
-        } catch(IOException e) {
-            if(getDecompressionComplete()) {
-                return -1;
-            }
-            throw e;
-        }
+        return uncompressedIn.skip(n);
     }
 
     private void checkStream() throws IOException {
-        if(decompressionException != null) {
-            throw new IOException("Error decompressing data", decompressionException);
-        }
         if(closed) {
             throw new IOException("Stream closed");
         }
+        submit();
+    }
+
+    /**
+     * Submits the decoder to the pool on first use, so streams that are opened but 
+     * never used don't hold a thread.
+     */
+    private void submit() {
+        if(!submitted) {
+            submitted = true;
+            LZMAThreadPool.submit(this);
+        }
     }
 
     @Override
     public void run() {
+        if(!started.compareAndSet(false, true)) {
+            // Closed before the decoder got a thread.
+            return;
+        }
+        OutputStream uncompressedOut = pipe.getOutputStream();
         try {
-            lzma.Code(compressedStream, uncompressedPipeOut, -1);
+            if(!lzma.Code(compressedStream, uncompressedOut, -1)) {
+                throw new IOException("Error in LZMA data stream");
+            }
+            // The decoder can be reused now that it finished a stream.
+            CompressionCoderPool.returnDecoder(properties, lzma);
+            
             // Tell the pipe we're done
-            uncompressedPipeOut.close();
+            uncompressedOut.close();
         } catch(Exception e) {
-            decompressionException = e;
+            pipe.fail(e);
+        } finally {
+            finished.countDown();
         }
-        setDecompressionComplete(Boolean.TRUE);
     }
 
-    private synchronized Boolean getDecompressionComplete() {
-        return decompressionComplete;
-    }
-
-    private synchronized void setDecompressionComplete(Boolean decompressionComplete) {
-        this.decompressionComplete = decompressionComplete;
-    }
-
-
 }
@@ -6,71 +6,84 @@ package com.emc.vipr.transform.compression;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
 import java.security.DigestOutputStream;
-import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.emc.vipr.transform.TransformConstants;
 import com.emc.vipr.transform.compression.CompressionTransformFactory.LzmaProfile;
-import com.emc.vipr.transform.encryption.KeyUtils;
 import com.emc.vipr.transform.util.CountingOutputStream;
+import com.emc.vipr.transform.util.Digests;
 
 import SevenZip.Compression.LZMA.Encoder;
 
 /**
+ * Compresses data with LZMA.  The encoder runs on a thread from the shared 
+ * {@link LZMAThreadPool}; written data is handed to it in whole buffers.
+ * 
  * @author cwikj
- *
  */
 public class LZMAOutputStream extends OutputStream implements CompressionStream, Runnable {
     private static final Logger log = LoggerFactory.getLogger(LZMAOutputStream.class);
     
+    /**
+     * Size and number of the buffers handed to the encoder.
+     */
+    private static final int PIPE_CHUNK_SIZE = 64 * 1024;
+    private static final int PIPE_CHUNKS = 4;
+    
     private CountingOutputStream compressedOutput;
-    private Thread compressionThread;
+    private CountDownLatch finished = new CountDownLatch(1);
+    private ChunkPipe pipe;
     private InputStream inputPipe;
     private CountingOutputStream uncompressedSize;
     private DigestOutputStream outputPipe;
     private boolean closed;
+    private boolean submitted;
     private Encoder lzma;
+    private LzmaProfile compressionProfile;
     private Exception compressionFailure;
     private byte[] uncompressedDigest;
-    
-    
-    static ThreadGroup LZ_COMP_TG = new ThreadGroup("LZMACompress");
+    private String digestAlgorithm;
     
     public LZMAOutputStream(OutputStream out, LzmaProfile compressionProfile) throws IOException {
+        this(out, compressionProfile, TransformConstants.DEFAULT_DIGEST_ALGORITHM);
+    }
+
+    /**
+     * @param digestAlgorithm the algorithm used to digest the uncompressed data.
+     * @see Digests
+     */
+    public LZMAOutputStream(OutputStream out, LzmaProfile compressionProfile, 
+            String digestAlgorithm) throws IOException {
+        this.digestAlgorithm = digestAlgorithm;
         compressedOutput = new CountingOutputStream(out);
         closed = false;
         uncompressedDigest = new byte[0];
         
         // The LZMA Encoder requires an input stream and thus does not make a good
-        // filter.  We need to create a pipe and and use an auxiliary thread to compress
+        // filter.  We need to create a pipe and and use a pooled thread to compress
         // the data.
-        inputPipe = new PipedInputStream();
-        uncompressedSize = new CountingOutputStream(new PipedOutputStream((PipedInputStream) inputPipe));
+        pipe = new ChunkPipe(PIPE_CHUNK_SIZE, PIPE_CHUNKS);
+        inputPipe = pipe.getInputStream();
+        uncompressedSize = new CountingOutputStream(pipe.getOutputStream());
         try {
-            outputPipe = new DigestOutputStream(uncompressedSize, MessageDigest.getInstance("SHA1"));
+            outputPipe = new DigestOutputStream(uncompressedSize, Digests.newDigest(digestAlgorithm));
+            outputPipe.on(outputPipe.getMessageDigest() != null);
         } catch (NoSuchAlgorithmException e) {
            throw new IOException("Could not create LZMAOutputStream", e);
         }
-        lzma = new Encoder();
-        lzma.SetDictionarySize(compressionProfile.dictionarySize);
-        lzma.SetNumFastBytes(compressionProfile.fastBytes);
-        lzma.SetMatchFinder(compressionProfile.matchFinder);
-        lzma.SetLcLpPb(compressionProfile.lc, compressionProfile.lp, compressionProfile.pb);
-        lzma.SetEndMarkerMode(true);
+        this.compressionProfile = compressionProfile;
+        lzma = CompressionCoderPool.leaseEncoder(compressionProfile);
         
         lzma.WriteCoderProperties(compressedOutput);
         
-        compressionThread = new Thread(LZ_COMP_TG, this);
-        
-        compressionThread.start();
+        // The encoder runs on the pool once data is written.
     }
 
     public LZMAOutputStream(OutputStream out, int compressionLevel) throws IOException {
@@ -95,38 +108,54 @@ public class LZMAOutputStream extends OutputStream implements CompressionStream,
         metadata.put(TransformConstants.META_COMPRESSION_UNCOMP_SIZE, ""+uncompSize);
         metadata.put(TransformConstants.META_COMPRESSION_COMP_SIZE, ""+compSize);
         metadata.put(TransformConstants.META_COMPRESSION_COMP_RATIO, ""+compRatioString);
-        metadata.put(TransformConstants.META_COMPRESSION_UNCOMP_SHA1, KeyUtils.toHexPadded(uncompressedDigest));
+        Digests.putDigest(metadata, TransformConstants.META_COMPRESSION_UNCOMP_SHA1, 
+                TransformConstants.META_COMPRESSION_UNCOMP_DIGEST, digestAlgorithm, uncompressedDigest);
         
         return metadata;
     }
 
     @Override
     public void write(int b) throws IOException {
+        writeCheck();
         outputPipe.write(b);
     }
 
     @Override
     public void close() throws IOException {
         if(closed) { return; }
-        outputPipe.flush();
-        outputPipe.close();
-
+        submit();
         closed = true;
         
+        try {
+            outputPipe.close();
+        } catch(IOException e) {
+            // The encoder failed and closed its end of the pipe; reported below.
+        }
+        
         // Wait for encoder to finish
         try {
-            compressionThread.join();
+            finished.await();
         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
             throw new IOException("Error waiting for compression thread to exit", e);
         }
         
         compressedOutput.close();
-        uncompressedDigest = outputPipe.getMessageDigest().digest();
+        uncompressedDigest = Digests.digest(outputPipe.getMessageDigest());
         // Free the encoder
         lzma = null;
         
+        synchronized(this) {
+            if(compressionFailure != null) {
+                throw new IOException("Error during stream compression", compressionFailure);
+            }
+        }
     }
 
+    /**
+     * Flushes buffered data to the encoder.  Note that the encoder keeps its own 
+     * buffers, so this does not force compressed data to the underlying stream.
+     */
     @Override
     public void flush() throws IOException {
         writeCheck();
@@ -150,10 +179,19 @@ public class LZMAOutputStream extends OutputStream implements CompressionStream,
         // Start compressing data
         try {
             lzma.Code(inputPipe, compressedOutput, -1, -1, null);
+            // The encoder can be reused now that it finished a stream.
+            CompressionCoderPool.returnEncoder(compressionProfile, lzma);
         } catch(Exception e) {
             compressionFailure(e);
+        } finally {
+            try {
+                // Unblocks the writer if the encoder failed.
+                inputPipe.close();
+            } catch(IOException e) {
+                // Ignore
+            }
+            finished.countDown();
         }
-
     }
     
     private synchronized void compressionFailure(Exception e) {
@@ -168,6 +206,18 @@ public class LZMAOutputStream extends OutputStream implements CompressionStream,
         if(closed) {
             throw new IOException("Stream closed");
         }
+        submit();
+    }
+
+    /**
+     * Submits the encoder to the pool on first use, so streams that are opened but 
+     * never used don't hold a thread.
+     */
+    private void submit() {
+        if(!submitted) {
+            submitted = true;
+            LZMAThreadPool.submit(this);
+        }
     }
     
     
@@ -20,6 +20,16 @@ public class LZMAOutputTransform extends CompressionOutputTransform {
    
     public LZMAOutputTransform(OutputStream streamToEncodeTo,
             Map<String, String> metadataToEncode, int level) throws IOException {
+        this(streamToEncodeTo, metadataToEncode, level, 
+                TransformConstants.DEFAULT_DIGEST_ALGORITHM);
+    }
+
+    /**
+     * @param digestAlgorithm the algorithm used to digest the uncompressed data.
+     */
+    public LZMAOutputTransform(OutputStream streamToEncodeTo,
+            Map<String, String> metadataToEncode, int level, String digestAlgorithm) 
+            throws IOException {
         super(streamToEncodeTo, metadataToEncode,
                 TransformConstants.COMPRESSION_CLASS + ":"
                         + CompressionMode.LZMA + "/" + level);
@@ -29,11 +39,22 @@ public class LZMAOutputTransform extends CompressionOutputTransform {
                     + level);
         }
 
-        pushStream = new LZMAOutputStream(streamToEncodeTo, level);
+        pushStream = new LZMAOutputStream(streamToEncodeTo, 
+                CompressionTransformFactory.LZMA_COMPRESSION_PROFILE[level], digestAlgorithm);
     }
     
     public LZMAOutputTransform(InputStream streamToEncode,
             Map<String, String> metadataToEncode, int level) throws IOException {
+        this(streamToEncode, metadataToEncode, level, 
+                TransformConstants.DEFAULT_DIGEST_ALGORITHM);
+    }
+
+    /**
+     * @param digestAlgorithm the algorithm used to digest the uncompressed data.
+     */
+    public LZMAOutputTransform(InputStream streamToEncode,
+            Map<String, String> metadataToEncode, int level, String digestAlgorithm) 
+            throws IOException {
         super(streamToEncode, metadataToEncode,
                 TransformConstants.COMPRESSION_CLASS + ":"
                         + CompressionMode.LZMA + "/" + level);
@@ -43,20 +64,19 @@ public class LZMAOutputTransform extends CompressionOutputTransform {
                     + level);
         }
 
-        pullStream = new LZMACompressionFilter(streamToEncode, level);
+        pullStream = new LZMACompressionFilter(streamToEncode, 
+                CompressionTransformFactory.LZMA_COMPRESSION_PROFILE[level], digestAlgorithm);
     }
-    
-    
 
     @Override
     public Map<String, String> getEncodedMetadata() {
         Map<String, String> outputMetadata = new HashMap<String, String>();
         switch(getStreamMode()) {
         case PULL:
-            outputMetadata.putAll(((LZMACompressionFilter)pullStream).getStreamMetadata());
+            outputMetadata.putAll(((CompressionStream) pullStream).getStreamMetadata());
             break;
         case PUSH:
-            outputMetadata.putAll(((LZMAOutputStream)pushStream).getStreamMetadata());
+            outputMetadata.putAll(((CompressionStream) pushStream).getStreamMetadata());
             break;
         }
 
@@ -0,0 +1,67 @@
+package com.emc.vipr.transform.compression;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.emc.vipr.transform.util.DaemonThreadFactory;
+
+/**
+ * The shared pool of threads that run the LZMA coders for {@link LZMAInputStream}
+ * and {@link LZMAOutputStream}.  The LZMA SDK's coders pull from an input stream
+ * and push to an output stream, so each open stream needs a worker thread.  Idle
+ * threads are kept for a minute and reused, so decoding many small objects does
+ * not create a thread per object.
+ * <br>
+ * A stream takes a thread on its first read or write and holds it until the
+ * coder finishes, so output streams must be closed.  If more streams are
+ * active than the pool has threads, the extra streams wait for a thread; a
+ * caller that reads several LZMA streams in lockstep must keep the number of
+ * open streams at or below {@link #getMaxThreads()}.
+ */
+public class LZMAThreadPool {
+    /**
+     * Default maximum number of threads: twice the number of processors, and at
+     * least 8.
+     */
+    public static final int DEFAULT_MAX_THREADS = Math.max(8,
+            2 * Runtime.getRuntime().availableProcessors());
+
+    private static final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+            DEFAULT_MAX_THREADS, DEFAULT_MAX_THREADS, 60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new DaemonThreadFactory("lzma-coder"));
+
+    static {
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    private LZMAThreadPool() {
+    }
+
+    static Future<?> submit(Runnable task) {
+        return executor.submit(task);
+    }
+
+    public static int getMaxThreads() {
+        return executor.getMaximumPoolSize();
+    }
+
+    /**
+     * Sets the maximum number of LZMA coder threads shared by all streams.
+     * @param maxThreads the number of threads.  Must be at least 1.
+     */
+    public static synchronized void setMaxThreads(int maxThreads) {
+        if(maxThreads < 1) {
+            throw new IllegalArgumentException("maxThreads must be at least 1");
+        }
+        // The core size can't be above the maximum, so change them in order.
+        if(maxThreads > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(maxThreads);
+            executor.setCorePoolSize(maxThreads);
+        } else {
+            executor.setCorePoolSize(maxThreads);
+            executor.setMaximumPoolSize(maxThreads);
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package com.emc.vipr.transform.compression;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.DigestInputStream;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.emc.vipr.transform.TransformConstants;
+import com.emc.vipr.transform.util.CountingInputStream;
+import com.emc.vipr.transform.util.Digests;
+
+/**
+ * Passes data through uncompressed in "pull" mode (compression mode NONE).  The
+ * stream still records the same metadata as the compressing filters so the
+ * object looks like any other compressed object.
+ */
+public class StoredInputFilter extends InputStream implements CompressionStream {
+    private CountingInputStream counter;
+    private DigestInputStream digester;
+    private boolean closed;
+    private byte[] uncompressedDigest;
+    private String digestAlgorithm;
+
+    public StoredInputFilter(InputStream in) throws IOException {
+        this(in, TransformConstants.DEFAULT_DIGEST_ALGORITHM);
+    }
+
+    /**
+     * @param digestAlgorithm the algorithm used to digest the data.
+     * @see Digests
+     */
+    public StoredInputFilter(InputStream in, String digestAlgorithm) throws IOException {
+        this.digestAlgorithm = digestAlgorithm;
+        counter = new CountingInputStream(in);
+        try {
+            digester = new DigestInputStream(counter, Digests.newDigest(digestAlgorithm));
+            digester.on(digester.getMessageDigest() != null);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("Unable to initialize digest", e);
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        return digester.read();
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        return digester.read(b, off, len);
+    }
+
+    @Override
+    public int read(byte[] b) throws IOException {
+        return digester.read(b, 0, b.length);
+    }
+
+    @Override
+    public int available() throws IOException {
+        return digester.available();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if(closed) return;
+        closed = true;
+        digester.close();
+        uncompressedDigest = Digests.digest(digester.getMessageDigest());
+    }
+
+    @Override
+    public Map<String, String> getStreamMetadata() {
+        if(!closed) {
+            throw new IllegalStateException("Stream must be closed before getting metadata");
+        }
+        return storedMetadata(counter.getByteCount(), digestAlgorithm, uncompressedDigest);
+    }
+
+    static Map<String, String> storedMetadata(long size, String digestAlgorithm, byte[] digest) {
+        Map<String,String> metadata = new HashMap<String, String>();
+        metadata.put(TransformConstants.META_COMPRESSION_UNCOMP_SIZE, ""+size);
+        metadata.put(TransformConstants.META_COMPRESSION_COMP_SIZE, ""+size);
+        metadata.put(TransformConstants.META_COMPRESSION_COMP_RATIO, String.format("%.1f%%", 0.0));
+        Digests.putDigest(metadata, TransformConstants.META_COMPRESSION_UNCOMP_SHA1, 
+                TransformConstants.META_COMPRESSION_UNCOMP_DIGEST, digestAlgorithm, digest);
+        return metadata;
+    }
+}
@@ -0,0 +1,20 @@
+package com.emc.vipr.transform.compression;
+
+import java.io.InputStream;
+import java.util.Map;
+
+/**
+ * Reads an object stored with compression mode NONE.  The data is returned as-is.
+ */
+public class StoredInputTransform extends CompressionInputTransform {
+
+    public StoredInputTransform(InputStream streamToDecode,
+            Map<String, String> metadataToDecode) {
+        super(streamToDecode, metadataToDecode);
+    }
+
+    @Override
+    public InputStream getDecodedInputStream() {
+        return streamToDecode;
+    }
+}
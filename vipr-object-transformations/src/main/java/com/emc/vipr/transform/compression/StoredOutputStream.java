@@ -0,0 +1,73 @@
+package com.emc.vipr.transform.compression;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+
+import com.emc.vipr.transform.TransformConstants;
+import com.emc.vipr.transform.util.CountingOutputStream;
+import com.emc.vipr.transform.util.Digests;
+
+/**
+ * Passes data through uncompressed in "push" mode (compression mode NONE).
+ * @see StoredInputFilter
+ */
+public class StoredOutputStream extends OutputStream implements CompressionStream {
+    private CountingOutputStream counter;
+    private DigestOutputStream digester;
+    private boolean closed;
+    private byte[] uncompressedDigest;
+    private String digestAlgorithm;
+
+    public StoredOutputStream(OutputStream out) throws IOException {
+        this(out, TransformConstants.DEFAULT_DIGEST_ALGORITHM);
+    }
+
+    /**
+     * @param digestAlgorithm the algorithm used to digest the data.
+     * @see Digests
+     */
+    public StoredOutputStream(OutputStream out, String digestAlgorithm) throws IOException {
+        this.digestAlgorithm = digestAlgorithm;
+        counter = new CountingOutputStream(out);
+        try {
+            digester = new DigestOutputStream(counter, Digests.newDigest(digestAlgorithm));
+            digester.on(digester.getMessageDigest() != null);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("Unable to initialize digest", e);
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        digester.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        digester.write(b, off, len);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        digester.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if(closed) return;
+        closed = true;
+        digester.close();
+        uncompressedDigest = Digests.digest(digester.getMessageDigest());
+    }
+
+    @Override
+    public Map<String, String> getStreamMetadata() {
+        if(!closed) {
+            throw new IllegalStateException("Stream must be closed before getting metadata");
+        }
+        return StoredInputFilter.storedMetadata(counter.getByteCount(), digestAlgorithm, uncompressedDigest);
+    }
+}
@@ -0,0 +1,67 @@
+package com.emc.vipr.transform.compression;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.emc.vipr.transform.TransformConstants;
+import com.emc.vipr.transform.TransformConstants.CompressionMode;
+
+/**
+ * Stores data without compressing it (compression mode NONE).  Used when the
+ * data is not expected to compress, so reads know there is nothing to inflate.
+ */
+public class StoredOutputTransform extends CompressionOutputTransform {
+
+    public StoredOutputTransform(OutputStream streamToEncodeTo,
+            Map<String, String> metadataToEncode) throws IOException {
+        this(streamToEncodeTo, metadataToEncode, TransformConstants.DEFAULT_DIGEST_ALGORITHM);
+    }
+
+    /**
+     * @param digestAlgorithm the algorithm used to digest the data.
+     */
+    public StoredOutputTransform(OutputStream streamToEncodeTo,
+            Map<String, String> metadataToEncode, String digestAlgorithm) throws IOException {
+        super(streamToEncodeTo, metadataToEncode,
+                TransformConstants.COMPRESSION_CLASS + ":" + CompressionMode.NONE);
+        pushStream = new StoredOutputStream(streamToEncodeTo, digestAlgorithm);
+    }
+
+    public StoredOutputTransform(InputStream streamToEncode,
+            Map<String, String> metadataToEncode) throws IOException {
+        this(streamToEncode, metadataToEncode, TransformConstants.DEFAULT_DIGEST_ALGORITHM);
+    }
+
+    /**
+     * @param digestAlgorithm the algorithm used to digest the data.
+     */
+    public StoredOutputTransform(InputStream streamToEncode,
+            Map<String, String> metadataToEncode, String digestAlgorithm) throws IOException {
+        super(streamToEncode, metadataToEncode,
+                TransformConstants.COMPRESSION_CLASS + ":" + CompressionMode.NONE);
+        pullStream = new StoredInputFilter(streamToEncode, digestAlgorithm);
+    }
+
+    @Override
+    public Map<String, String> getEncodedMetadata() {
+        Map<String, String> metadata = new HashMap<String, String>();
+
+        // Merge stream metadata
+        switch(getStreamMode()) {
+        case PULL:
+            metadata.putAll(((CompressionStream) pullStream).getStreamMetadata());
+            break;
+        case PUSH:
+            metadata.putAll(((CompressionStream) pushStream).getStreamMetadata());
+            break;
+        }
+
+        // Merge original metadata
+        metadata.putAll(metadataToEncode);
+
+        return metadata;
+    }
+}
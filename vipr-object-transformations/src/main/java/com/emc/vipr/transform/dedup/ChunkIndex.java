@@ -0,0 +1,89 @@
+package com.emc.vipr.transform.dedup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.emc.vipr.transform.util.AppendOnlyJournal;
+
+/**
+ * A local, persistent index of the chunks that have been stored, by the hash of
+ * their content.  The index is an append-only file with one line per chunk:
+ * <pre>
+ * &lt;hash&gt; &lt;location&gt;
+ * </pre>
+ * It is read into memory when opened.  Entries are synced to disk in batches
+ * (see {@link AppendOnlyJournal}); an entry lost or left incomplete by a crash
+ * is removed, so the chunk is just stored again.
+ * <br>
+ * The index only records what this client stored.  If chunks are deleted from
+ * the store, the index must be deleted too.  All methods are thread-safe.
+ */
+public class ChunkIndex {
+    private static final Logger log = LoggerFactory.getLogger(ChunkIndex.class);
+
+    private AppendOnlyJournal journal;
+    private Map<String, String> chunks = new HashMap<String, String>();
+    private boolean closed;
+
+    /**
+     * Opens (or creates) an index.
+     */
+    public ChunkIndex(File file) throws IOException {
+        journal = new AppendOnlyJournal(file);
+        journal.read(new AppendOnlyJournal.RecordHandler() {
+            @Override
+            public void handle(String record) {
+                int space = record.indexOf(' ');
+                if(space > 0) {
+                    chunks.put(record.substring(0, space), record.substring(space + 1));
+                }
+            }
+        });
+        log.debug("Loaded {} chunks from {}", chunks.size(), file);
+    }
+
+    /**
+     * @return where the chunk with the given hash is stored, or null if it hasn't
+     * been stored.
+     */
+    public synchronized String get(String hash) {
+        return chunks.get(hash);
+    }
+
+    /**
+     * Records a stored chunk.  The entry is written to the file before returning
+     * and synced with the next batch (see {@link #setSyncInterval(int)}).
+     */
+    public synchronized void put(String hash, String location) throws IOException {
+        if(hash.indexOf(' ') != -1 || location.indexOf('\n') != -1) {
+            throw new IllegalArgumentException("Invalid chunk index entry " + hash);
+        }
+        if(closed) {
+            throw new IOException("Chunk index closed");
+        }
+        journal.append(hash + " " + location);
+        chunks.put(hash, location);
+    }
+
+    public synchronized int size() {
+        return chunks.size();
+    }
+
+    /**
+     * Sets the number of entries written between syncs of the index file.
+     * @see AppendOnlyJournal#setSyncInterval(int)
+     */
+    public synchronized void setSyncInterval(int syncInterval) {
+        journal.setSyncInterval(syncInterval);
+    }
+
+    public synchronized void close() throws IOException {
+        closed = true;
+        journal.close();
+    }
+}
@@ -0,0 +1,129 @@
+package com.emc.vipr.transform.dedup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+/**
+ * Splits a stream into chunks at positions chosen by the content, so that an
+ * insert or delete only changes the chunks around it: the chunk boundaries after
+ * the edit are found again at the same content.  Fixed-size blocks would all
+ * shift instead.
+ * <br>
+ * Boundaries are found with a "gear" rolling hash over the last 64 bytes: a
+ * chunk ends where the top bits of the hash are all zero, which happens once
+ * every averageSize bytes on average.  Chunks are never smaller than minSize
+ * (the hash isn't checked before it) or larger than maxSize.
+ * <br>
+ * The boundaries depend only on the content and the sizes, so the sizes must not
+ * change between versions of the data or nothing will deduplicate.
+ */
+public class ContentDefinedChunker {
+    public static final int DEFAULT_MIN_SIZE = 256 * 1024;
+    public static final int DEFAULT_AVERAGE_SIZE = 1024 * 1024;
+    public static final int DEFAULT_MAX_SIZE = 4 * 1024 * 1024;
+
+    /**
+     * Random values for each byte.  Generated from a fixed seed, since changing
+     * them would move every boundary.
+     */
+    private static final long[] GEAR = new long[256];
+    static {
+        Random r = new Random(0x636863756e6b6572L);
+        for(int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = r.nextLong();
+        }
+    }
+
+    private InputStream in;
+    private int minSize;
+    private int maxSize;
+    private long mask;
+    private byte[] buffer;
+    private int pos;
+    private int limit;
+    private boolean eof;
+
+    public ContentDefinedChunker(InputStream in) {
+        this(in, DEFAULT_MIN_SIZE, DEFAULT_AVERAGE_SIZE, DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * @param averageSize the average chunk size.  Must be a power of 2.
+     */
+    public ContentDefinedChunker(InputStream in, int minSize, int averageSize, int maxSize) {
+        if(Integer.bitCount(averageSize) != 1) {
+            throw new IllegalArgumentException("Average chunk size must be a power of 2: "
+                    + averageSize);
+        }
+        if(minSize < 1 || minSize > averageSize || maxSize < averageSize) {
+            throw new IllegalArgumentException("Invalid chunk sizes " + minSize + "/"
+                    + averageSize + "/" + maxSize);
+        }
+        this.in = in;
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        int bits = Integer.numberOfTrailingZeros(averageSize);
+        this.mask = bits == 0 ? 0 : -1L << (64 - bits);
+        this.buffer = new byte[maxSize * 2];
+    }
+
+    /**
+     * @return the next chunk, or null at the end of the stream.
+     */
+    public byte[] nextChunk() throws IOException {
+        if(limit - pos < maxSize && !eof) {
+            fill();
+        }
+        if(pos == limit) {
+            return null;
+        }
+        int length = boundary(buffer, pos, limit - pos);
+        byte[] chunk = new byte[length];
+        System.arraycopy(buffer, pos, chunk, 0, length);
+        pos += length;
+        return chunk;
+    }
+
+    /**
+     * @return the length of the chunk starting at off.  len is at least maxSize
+     * unless the stream ends first.
+     */
+    private int boundary(byte[] b, int off, int len) {
+        if(len <= minSize) {
+            return len;
+        }
+        int end = off + Math.min(len, maxSize);
+        long hash = 0;
+        for(int i = off + minSize; i < end; i++) {
+            hash = (hash << 1) + GEAR[b[i] & 0xff];
+            if((hash & mask) == 0) {
+                return i + 1 - off;
+            }
+        }
+        return end - off;
+    }
+
+    private void fill() throws IOException {
+        if(pos > 0) {
+            System.arraycopy(buffer, pos, buffer, 0, limit - pos);
+            limit -= pos;
+            pos = 0;
+        }
+        int c;
+        while(limit < buffer.length && (c = in.read(buffer, limit, buffer.length - limit)) != -1) {
+            limit += c;
+        }
+        if(limit < buffer.length) {
+            eof = true;
+        }
+    }
+
+    public int getMinSize() {
+        return minSize;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+}
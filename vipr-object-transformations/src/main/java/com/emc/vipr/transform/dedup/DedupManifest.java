@@ -0,0 +1,141 @@
+package com.emc.vipr.transform.dedup;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.emc.vipr.transform.TransformConstants;
+import com.emc.vipr.transform.encryption.KeyUtils;
+
+/**
+ * The list of chunks an object is made of, in order.  Stored as a small text
+ * object in place of the object's content:
+ * <pre>
+ * DEDUP 1 SHA-256
+ * &lt;hash&gt; &lt;length&gt; &lt;location&gt;
+ * ...
+ * </pre>
+ */
+public class DedupManifest {
+    public static final String VERSION = "1";
+
+    private static final String HEADER = "DEDUP " + VERSION + " "
+            + TransformConstants.DEDUP_HASH_ALGORITHM;
+    private static final String CHARSET = "UTF-8";
+
+    private List<ChunkRef> chunks = new ArrayList<ChunkRef>();
+    private long size;
+
+    public void addChunk(ChunkRef chunk) {
+        chunks.add(chunk);
+        size += chunk.getLength();
+    }
+
+    public List<ChunkRef> getChunks() {
+        return Collections.unmodifiableList(chunks);
+    }
+
+    /**
+     * @return the size of the object.
+     */
+    public long getSize() {
+        return size;
+    }
+
+    public byte[] toBytes() {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(64 + chunks.size() * 128);
+            Writer writer = new OutputStreamWriter(out, CHARSET);
+            writer.write(HEADER + "\n");
+            for(ChunkRef chunk : chunks) {
+                writer.write(chunk.getHash() + " " + chunk.getLength() + " "
+                        + chunk.getLocation() + "\n");
+            }
+            writer.close();
+            return out.toByteArray();
+        } catch (IOException e) {
+            throw new RuntimeException("Error writing manifest", e);
+        }
+    }
+
+    /**
+     * Reads a manifest.  The stream is closed.
+     */
+    public static DedupManifest parse(InputStream in) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, CHARSET));
+        try {
+            String header = reader.readLine();
+            if(!HEADER.equals(header)) {
+                throw new IOException("Unsupported dedup manifest: " + header);
+            }
+            DedupManifest manifest = new DedupManifest();
+            String line;
+            while((line = reader.readLine()) != null) {
+                String[] fields = line.split(" ", 3);
+                if(fields.length != 3) {
+                    throw new IOException("Invalid dedup manifest entry: " + line);
+                }
+                try {
+                    manifest.addChunk(new ChunkRef(fields[0], Integer.parseInt(fields[1]),
+                            fields[2]));
+                } catch(NumberFormatException e) {
+                    throw new IOException("Invalid dedup manifest entry: " + line);
+                }
+            }
+            return manifest;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * @return the hex hash that identifies a chunk's content.
+     */
+    public static String hash(byte[] chunk) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance(TransformConstants.DEDUP_HASH_ALGORITHM);
+            return KeyUtils.toHexPadded(digest.digest(chunk));
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("Unable to initialize digest", e);
+        }
+    }
+
+    /**
+     * A reference to a stored chunk.
+     */
+    public static class ChunkRef {
+        private String hash;
+        private int length;
+        private String location;
+
+        public ChunkRef(String hash, int length, String location) {
+            this.hash = hash;
+            this.length = length;
+            this.location = location;
+        }
+
+        public String getHash() {
+            return hash;
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        /**
+         * @return where the chunk is stored, e.g. its object ID.
+         */
+        public String getLocation() {
+            return location;
+        }
+    }
+}
@@ -18,13 +18,15 @@ import javax.xml.transform.TransformerException;
 
 import com.emc.vipr.transform.TransformConstants;
 import com.emc.vipr.transform.TransformException;
+import com.emc.vipr.transform.util.CloseCallback;
+import com.emc.vipr.transform.util.CloseNotifyInputStream;
 
 /**
  * @author cwikj
  *
  */
 public class BasicEncryptionInputTransform extends EncryptionInputTransform {
-    private CipherInputStream decryptedInput;
+    private InputStream decryptedInput;
 
     /**
      * @param transformConfig 
@@ -34,13 +36,55 @@ public class BasicEncryptionInputTransform extends EncryptionInputTransform {
      */
     public BasicEncryptionInputTransform(String transformConfig, InputStream streamToDecode,
             Map<String, String> metadataToDecode, KeyPair masterKey, Provider provider) throws TransformException {
+        this(transformConfig, streamToDecode, metadataToDecode, masterKey, provider, null);
+    }
+
+    /**
+     * @param keyCache cache of unwrapped object keys (may be null).
+     */
+    public BasicEncryptionInputTransform(String transformConfig, InputStream streamToDecode,
+            Map<String, String> metadataToDecode, KeyPair masterKey, Provider provider,
+            ObjectKeyCache keyCache) throws TransformException {
+        this(transformConfig, streamToDecode, metadataToDecode, masterKey, provider, keyCache, 0);
+    }
+
+    /**
+     * Creates a transform that decrypts part of an object.  Only counter (CTR)
+     * mode supports a non-zero offset.
+     * @param streamToDecode the object's ciphertext starting at offset.  For
+     * chunked objects, it starts at the chunk that holds offset (see 
+     * {@link ChunkedCipher#getEncodedOffset(long, int)}).
+     * @param offset the position in the object where streamToDecode starts.
+     */
+    public BasicEncryptionInputTransform(String transformConfig, InputStream streamToDecode,
+            Map<String, String> metadataToDecode, KeyPair masterKey, Provider provider,
+            ObjectKeyCache keyCache, long offset) throws TransformException {
+        this(transformConfig, streamToDecode, metadataToDecode, masterKey, provider, keyCache, 
+                offset, null);
+    }
+
+    /**
+     * @param cipherPool if not null and the object uses CTR mode, the object
+     * is decrypted in parallel on this pool.
+     */
+    public BasicEncryptionInputTransform(String transformConfig, InputStream streamToDecode,
+            Map<String, String> metadataToDecode, KeyPair masterKey, Provider provider,
+            ObjectKeyCache keyCache, long offset, ParallelCipherPool cipherPool) 
+                    throws TransformException {
         super(streamToDecode, metadataToDecode, provider);
         
         // Check the transformConfig
         String[] transformParams = transformConfig.split("/");
-        if(transformParams.length != 3) {
+        boolean chunked = ChunkedCipher.isChunked(transformConfig);
+        if(transformParams.length != 3 && !chunked) {
             throw new TransformException("Encryption configuration should be in the form Alg/Mode/Padding: " + transformConfig);
         }
+        if(offset < 0) {
+            throw new TransformException("Invalid offset: " + offset);
+        }
+        if(offset > 0 && !isSeekable(transformConfig)) {
+            throw new TransformException("Decryption can only start at an offset in CTR mode: " + transformConfig);
+        }
         
         // Decrypt the object key
         String encodedObjectKey = metadataToDecode.get(TransformConstants.META_ENCRYPTION_OBJECT_KEY);
@@ -48,8 +92,25 @@ public class BasicEncryptionInputTransform extends EncryptionInputTransform {
             throw new TransformException("Object key not found in object metadata");
         }
         
-        SecretKey sk = KeyUtils.decryptKey(encodedObjectKey, transformParams[0], provider, 
-                masterKey.getPrivate());
+        SecretKey sk;
+        if(keyCache != null) {
+            sk = keyCache.unwrapKey(metadataToDecode.get(TransformConstants.META_ENCRYPTION_KEY_ID),
+                    encodedObjectKey, transformParams[0], provider, masterKey.getPrivate());
+        } else {
+            sk = KeyUtils.decryptKey(encodedObjectKey, transformParams[0], provider, 
+                    masterKey.getPrivate());
+        }
+        
+        if(chunked) {
+            String chunkSize = metadataToDecode.get(TransformConstants.META_ENCRYPTION_CHUNK_SIZE);
+            if(chunkSize == null) {
+                throw new TransformException("Chunk size not found in object metadata");
+            }
+            ChunkedCipher cipher = new ChunkedCipher(transformConfig, sk, 
+                    Integer.parseInt(chunkSize), provider);
+            decryptedInput = cipher.newInputStream(streamToDecode, Cipher.DECRYPT_MODE, offset);
+            return;
+        }
         
         // Get IV
         String encodedIv = metadataToDecode.get(TransformConstants.META_ENCRYPTION_IV);
@@ -58,24 +119,78 @@ public class BasicEncryptionInputTransform extends EncryptionInputTransform {
         }
         byte[] ivData = KeyUtils.urlSafeDecodeBase64(encodedIv);
         
+        if(cipherPool != null && transformParams.length == 3 && isSeekable(transformConfig)) {
+            ParallelCtrCipher cipher = new ParallelCtrCipher(cipherPool, transformConfig, sk, 
+                    ivData, provider);
+            decryptedInput = cipher.newInputStream(streamToDecode, Cipher.DECRYPT_MODE, offset);
+            return;
+        }
+        
         // Init the cipher
         try {
-            Cipher cipher = null;
-            if(provider != null) {
-                cipher = Cipher.getInstance(transformConfig, provider);
-            } else {
-                cipher = Cipher.getInstance(transformConfig);
-            }
+            final String transform = transformConfig;
+            final Cipher cipher = CryptoContextPool.leaseCipher(transform, provider);
             
+            // In CTR mode, block n is encrypted with IV+n, so we can start at
+            // the block containing the offset and discard the keystream up to
+            // the offset.
+            int blockSize = cipher.getBlockSize();
+            if(offset > 0) {
+                ivData = addToCounter(ivData, offset / blockSize);
+            }
             IvParameterSpec ivspec = new IvParameterSpec(ivData);
             cipher.init(Cipher.DECRYPT_MODE, sk, ivspec);
+            int skip = (int)(offset % blockSize);
+            if(skip > 0) {
+                cipher.update(new byte[skip]);
+            }
             
-            decryptedInput = new CipherInputStream(streamToDecode, cipher);
+            // Return the cipher to the pool when the stream is closed
+            decryptedInput = new CloseNotifyInputStream(
+                    new CipherInputStream(streamToDecode, cipher), new CloseCallback() {
+                private boolean returned = false;
+                
+                @Override
+                public synchronized void closed(Object what) {
+                    if(!returned) {
+                        returned = true;
+                        CryptoContextPool.returnCipher(transform, 
+                                BasicEncryptionInputTransform.this.provider, cipher);
+                    }
+                }
+            });
         } catch(GeneralSecurityException e) {
             throw new TransformException("Could not initialize cipher", e);
         }
     }
 
+    /**
+     * Returns true if objects encrypted with the given transform (in the form
+     * Alg/Mode/Padding, or Alg/Mode/Padding/Mac for chunked objects) can be 
+     * decrypted starting at any offset.
+     */
+    public static boolean isSeekable(String transform) {
+        String[] transformParams = transform.split("/");
+        return (transformParams.length == 3 && "CTR".equalsIgnoreCase(transformParams[1]))
+                || ChunkedCipher.isChunked(transform);
+    }
+
+    /**
+     * Adds to a counter block, treating it as a big-endian unsigned integer
+     * like the JCE does.
+     */
+    static byte[] addToCounter(byte[] counter, long n) {
+        byte[] result = counter.clone();
+        int carry = 0;
+        for(int i = result.length - 1; i >= 0; i--) {
+            int sum = (result[i] & 0xff) + (int)(n & 0xff) + carry;
+            result[i] = (byte) sum;
+            carry = sum >>> 8;
+            n >>>= 8;
+        }
+        return result;
+    }
+
     /* (non-Javadoc)
      * @see com.emc.vipr.transform.InputTransform#decodeInputStream(java.io.InputStream)
      */
@@ -22,6 +22,9 @@ import javax.crypto.NoSuchPaddingException;
 import javax.crypto.SecretKey;
 
 import com.emc.vipr.transform.TransformConstants;
+import com.emc.vipr.transform.TransformException;
+import com.emc.vipr.transform.util.CloseCallback;
+import com.emc.vipr.transform.util.Digests;
 
 /**
  * @author cwikj
@@ -33,6 +36,8 @@ public class BasicEncryptionOutputTransform extends EncryptionOutputTransform {
 
     private String masterEncryptionKeyFingerprint;
     private KeyPair masterKey;
+    private String digestAlgorithm;
+    private int chunkSize;
 
     /**
      * @param streamToEncodeTo
@@ -46,26 +51,82 @@ public class BasicEncryptionOutputTransform extends EncryptionOutputTransform {
             Map<String, String> metadataToEncode,
             String masterEncryptionKeyFingerprint, KeyPair asymmetricKey,
             String encryptionTransform, int keySize, Provider provider) {
+        this(streamToEncodeTo, metadataToEncode, masterEncryptionKeyFingerprint, 
+                asymmetricKey, encryptionTransform, keySize, provider, null);
+    }
+
+    /**
+     * @param cipherPool if not null and the transform uses CTR mode, the
+     * object is encrypted in parallel on this pool.
+     */
+    public BasicEncryptionOutputTransform(OutputStream streamToEncodeTo,
+            Map<String, String> metadataToEncode,
+            String masterEncryptionKeyFingerprint, KeyPair asymmetricKey,
+            String encryptionTransform, int keySize, Provider provider,
+            ParallelCipherPool cipherPool) {
+        this(streamToEncodeTo, metadataToEncode, masterEncryptionKeyFingerprint, asymmetricKey,
+                encryptionTransform, keySize, provider, cipherPool, 
+                TransformConstants.DEFAULT_DIGEST_ALGORITHM);
+    }
+
+    /**
+     * @param cipherPool if not null and the transform uses CTR mode, the
+     * object is encrypted in parallel on this pool.
+     * @param digestAlgorithm the algorithm used to digest the unencrypted data.
+     * @see com.emc.vipr.transform.util.Digests
+     */
+    public BasicEncryptionOutputTransform(OutputStream streamToEncodeTo,
+            Map<String, String> metadataToEncode,
+            String masterEncryptionKeyFingerprint, KeyPair asymmetricKey,
+            String encryptionTransform, int keySize, Provider provider,
+            ParallelCipherPool cipherPool, String digestAlgorithm) {
+        this(streamToEncodeTo, metadataToEncode, masterEncryptionKeyFingerprint, asymmetricKey,
+                encryptionTransform, keySize, provider, cipherPool, digestAlgorithm,
+                TransformConstants.DEFAULT_ENCRYPTION_CHUNK_SIZE);
+    }
+
+    /**
+     * @param chunkSize the number of bytes in each chunk if the transform
+     * uses the chunked format (see {@link ChunkedCipher}).
+     */
+    public BasicEncryptionOutputTransform(OutputStream streamToEncodeTo,
+            Map<String, String> metadataToEncode,
+            String masterEncryptionKeyFingerprint, KeyPair asymmetricKey,
+            String encryptionTransform, int keySize, Provider provider,
+            ParallelCipherPool cipherPool, String digestAlgorithm, int chunkSize) {
         super(streamToEncodeTo, metadataToEncode,
                 TransformConstants.ENCRYPTION_CLASS + ":" + encryptionTransform,
                 provider);
 
         this.masterEncryptionKeyFingerprint = masterEncryptionKeyFingerprint;
         this.masterKey = asymmetricKey;
+        this.digestAlgorithm = digestAlgorithm;
         
         try {
+            if(ChunkedCipher.isChunked(encryptionTransform)) {
+                pushStream = new EncryptionOutputStream(streamToEncodeTo, 
+                        initChunkedCipher(encryptionTransform, keySize, chunkSize), 0, null, null);
+                return;
+            }
             Cipher cipher = initCipher(encryptionTransform, keySize);
-            MessageDigest sha1 = null;
-            if (provider != null) {
-                sha1 = MessageDigest.getInstance("SHA1", provider);
+            MessageDigest digest = CryptoContextPool.leaseDigest(digestAlgorithm, provider);
+
+            if(isParallel(encryptionTransform, cipherPool)) {
+                // The pooled cipher was only needed to generate the IV.
+                CryptoContextPool.returnCipher(encryptionTransform, provider, cipher);
+                pushStream = new EncryptionOutputStream(streamToEncodeTo, 
+                        new ParallelCtrCipher(cipherPool, encryptionTransform, k, iv, provider), 
+                        digest, new ReturnToPool(encryptionTransform, null, digest));
             } else {
-                sha1 = MessageDigest.getInstance("SHA1");
+                pushStream = new EncryptionOutputStream(streamToEncodeTo, cipher, digest,
+                        new ReturnToPool(encryptionTransform, cipher, digest));
             }
-
-            pushStream = new EncryptionOutputStream(streamToEncodeTo, cipher, sha1);
         } catch (GeneralSecurityException e) {
             throw new RuntimeException("Error initializing output transform: "
                     + e.getMessage(), e);
+        } catch (TransformException e) {
+            throw new RuntimeException("Error initializing output transform: "
+                    + e.getMessage(), e);
         }
     }
     
@@ -73,56 +134,112 @@ public class BasicEncryptionOutputTransform extends EncryptionOutputTransform {
             Map<String, String> metadataToEncode,
             String masterEncryptionKeyFingerprint, KeyPair asymmetricKey,
             String encryptionTransform, int keySize, Provider provider) {
+        this(streamToEncode, metadataToEncode, masterEncryptionKeyFingerprint, 
+                asymmetricKey, encryptionTransform, keySize, provider, null);
+    }
+
+    /**
+     * @param cipherPool if not null and the transform uses CTR mode, the
+     * object is encrypted in parallel on this pool.
+     */
+    public BasicEncryptionOutputTransform(InputStream streamToEncode,
+            Map<String, String> metadataToEncode,
+            String masterEncryptionKeyFingerprint, KeyPair asymmetricKey,
+            String encryptionTransform, int keySize, Provider provider,
+            ParallelCipherPool cipherPool) {
+        this(streamToEncode, metadataToEncode, masterEncryptionKeyFingerprint, asymmetricKey,
+                encryptionTransform, keySize, provider, cipherPool, 
+                TransformConstants.DEFAULT_DIGEST_ALGORITHM);
+    }
+
+    /**
+     * @param cipherPool if not null and the transform uses CTR mode, the
+     * object is encrypted in parallel on this pool.
+     * @param digestAlgorithm the algorithm used to digest the unencrypted data.
+     * @see com.emc.vipr.transform.util.Digests
+     */
+    public BasicEncryptionOutputTransform(InputStream streamToEncode,
+            Map<String, String> metadataToEncode,
+            String masterEncryptionKeyFingerprint, KeyPair asymmetricKey,
+            String encryptionTransform, int keySize, Provider provider,
+            ParallelCipherPool cipherPool, String digestAlgorithm) {
+        this(streamToEncode, metadataToEncode, masterEncryptionKeyFingerprint, asymmetricKey,
+                encryptionTransform, keySize, provider, cipherPool, digestAlgorithm,
+                TransformConstants.DEFAULT_ENCRYPTION_CHUNK_SIZE);
+    }
+
+    /**
+     * @param chunkSize the number of bytes in each chunk if the transform
+     * uses the chunked format (see {@link ChunkedCipher}).
+     */
+    public BasicEncryptionOutputTransform(InputStream streamToEncode,
+            Map<String, String> metadataToEncode,
+            String masterEncryptionKeyFingerprint, KeyPair asymmetricKey,
+            String encryptionTransform, int keySize, Provider provider,
+            ParallelCipherPool cipherPool, String digestAlgorithm, int chunkSize) {
         super(streamToEncode, metadataToEncode,
                 TransformConstants.ENCRYPTION_CLASS + ":" + encryptionTransform,
                 provider);
         
         this.masterEncryptionKeyFingerprint = masterEncryptionKeyFingerprint;
         this.masterKey = asymmetricKey;
+        this.digestAlgorithm = digestAlgorithm;
         
         try {
+            if(ChunkedCipher.isChunked(encryptionTransform)) {
+                pullStream = new EncryptionInputFilter(streamToEncode, 
+                        initChunkedCipher(encryptionTransform, keySize, chunkSize), 0, null, null);
+                return;
+            }
             Cipher cipher = initCipher(encryptionTransform, keySize);
-            MessageDigest sha1 = null;
-            if (provider != null) {
-                sha1 = MessageDigest.getInstance("SHA1", provider);
+            MessageDigest digest = CryptoContextPool.leaseDigest(digestAlgorithm, provider);
+
+            if(isParallel(encryptionTransform, cipherPool)) {
+                // The pooled cipher was only needed to generate the IV.
+                CryptoContextPool.returnCipher(encryptionTransform, provider, cipher);
+                pullStream = new EncryptionInputFilter(streamToEncode, 
+                        new ParallelCtrCipher(cipherPool, encryptionTransform, k, iv, provider), 
+                        digest, new ReturnToPool(encryptionTransform, null, digest));
             } else {
-                sha1 = MessageDigest.getInstance("SHA1");
+                pullStream = new EncryptionInputFilter(streamToEncode, cipher, digest,
+                        new ReturnToPool(encryptionTransform, cipher, digest));
             }
-
-            pullStream = new EncryptionInputFilter(streamToEncode, cipher, sha1);
         } catch (GeneralSecurityException e) {
             throw new RuntimeException("Error initializing output transform: "
                     + e.getMessage(), e);
+        } catch (TransformException e) {
+            throw new RuntimeException("Error initializing output transform: "
+                    + e.getMessage(), e);
         }
     }
     
+    /**
+     * Generates the object key for the chunked format.  Chunks are 
+     * authenticated one by one, so no digest of the whole object is kept; it
+     * would go stale as soon as a range is rewritten.
+     */
+    private ChunkedCipher initChunkedCipher(String encryptionTransform, int keySize, 
+            int chunkSize) throws GeneralSecurityException, TransformException {
+        this.chunkSize = chunkSize;
+        this.digestAlgorithm = Digests.NONE;
+        k = generateKey(encryptionTransform, keySize);
+        return new ChunkedCipher(encryptionTransform, k, chunkSize, provider);
+    }
+
+    private SecretKey generateKey(String encryptionTransform, int keySize) throws GeneralSecurityException {
+        String[] algParts = encryptionTransform.split("/");
+        KeyGenerator keygen = CryptoContextPool.getKeyGenerator(algParts[0], keySize, provider);
+        return keygen.generateKey();
+    }
+
     private Cipher initCipher(String encryptionTransform, int keySize) throws GeneralSecurityException {
-        Cipher cipher = null;
-        if (provider != null) {
-            cipher = Cipher.getInstance(encryptionTransform, provider);
-        } else {
-            cipher = Cipher.getInstance(encryptionTransform);
-        }
+        Cipher cipher = CryptoContextPool.leaseCipher(encryptionTransform, provider);
 
         // Per FIPS bulletin 2013-09, make sure we don't use Dual_EC_DRBG
-        SecureRandom rand;
-        if(provider != null) {
-            rand = SecureRandom.getInstance("SHA1PRNG", provider);
-        } else {
-            rand = SecureRandom.getInstance("SHA1PRNG");
-        }
+        SecureRandom rand = CryptoContextPool.getSecureRandom(provider);
 
         // Generate a secret key
-        String[] algParts = encryptionTransform.split("/");
-        KeyGenerator keygen = null;
-        if (provider != null) {
-            keygen = KeyGenerator.getInstance(algParts[0], provider);
-        } else {
-            keygen = KeyGenerator.getInstance(algParts[0]);
-        }
-
-        keygen.init(keySize, rand);
-        k = keygen.generateKey();
+        k = generateKey(encryptionTransform, keySize);
         //System.out.println("Key: " + KeyUtils.toHexPadded(k.getEncoded()));
         
         cipher.init(Cipher.ENCRYPT_MODE, k, rand);
@@ -132,6 +249,35 @@ public class BasicEncryptionOutputTransform extends EncryptionOutputTransform {
         return cipher;
     }
 
+    private static boolean isParallel(String encryptionTransform, ParallelCipherPool cipherPool) {
+        return cipherPool != null && BasicEncryptionInputTransform.isSeekable(encryptionTransform);
+    }
+
+    /**
+     * Returns the leased cipher and digest to the pool once the stream is
+     * closed.
+     */
+    private class ReturnToPool implements CloseCallback {
+        private String encryptionTransform;
+        private Cipher cipher;
+        private MessageDigest digest;
+
+        ReturnToPool(String encryptionTransform, Cipher cipher, MessageDigest digest) {
+            this.encryptionTransform = encryptionTransform;
+            this.cipher = cipher;
+            this.digest = digest;
+        }
+
+        @Override
+        public void closed(Object what) {
+            if(cipher != null) {
+                CryptoContextPool.returnCipher(encryptionTransform, provider, cipher);
+            }
+            if(digest != null) {
+                CryptoContextPool.returnDigest(digestAlgorithm, provider, digest);
+            }
+        }
+    }
 
     /*
      * (non-Javadoc)
@@ -140,13 +286,41 @@ public class BasicEncryptionOutputTransform extends EncryptionOutputTransform {
      */
     @Override
     public Map<String, String> getEncodedMetadata() {
+        switch(getStreamMode()) {
+        case PULL:
+            EncryptionInputFilter is = (EncryptionInputFilter)pullStream;
+            return encodeMetadata(metadataToEncode, iv, k, masterEncryptionKeyFingerprint, 
+                    masterKey, provider, is.getByteCount(), digestAlgorithm, is.getDigest(), 
+                    chunkSize);
+        default:
+            EncryptionOutputStream os = (EncryptionOutputStream)pushStream;
+            return encodeMetadata(metadataToEncode, iv, k, masterEncryptionKeyFingerprint, 
+                    masterKey, provider, os.getByteCount(), digestAlgorithm, os.getDigest(), 
+                    chunkSize);
+        }
+    }
+
+    /**
+     * Adds the encryption fields to an object's metadata and signs them.
+     * @param iv the object's IV, or null if it is chunked.
+     * @param digest the digest of the unencrypted data, or null if there is none.
+     * @param chunkSize the object's chunk size, or 0 if it is not chunked.
+     */
+    static Map<String, String> encodeMetadata(Map<String, String> metadataToEncode, 
+            byte[] iv, SecretKey k, String masterEncryptionKeyFingerprint, KeyPair masterKey,
+            Provider provider, long size, String digestAlgorithm, byte[] digest, int chunkSize) {
         Map<String, String> encodedMetadata = new HashMap<String, String>();
         
         encodedMetadata.putAll(metadataToEncode);
         
         // Add x-emc fields
-        String encodedIv = KeyUtils.urlSafeEncodeBase64(iv);
-        encodedMetadata.put(TransformConstants.META_ENCRYPTION_IV, encodedIv);
+        if(iv != null) {
+            encodedMetadata.put(TransformConstants.META_ENCRYPTION_IV, 
+                    KeyUtils.urlSafeEncodeBase64(iv));
+        }
+        if(chunkSize > 0) {
+            encodedMetadata.put(TransformConstants.META_ENCRYPTION_CHUNK_SIZE, "" + chunkSize);
+        }
         encodedMetadata.put(TransformConstants.META_ENCRYPTION_KEY_ID, 
                 masterEncryptionKeyFingerprint);
         try {
@@ -156,22 +330,9 @@ public class BasicEncryptionOutputTransform extends EncryptionOutputTransform {
             throw new RuntimeException("Could not encrypt key: " + e, e);
         }
         
-        switch(getStreamMode()) {
-        case PULL:
-            EncryptionInputFilter is = (EncryptionInputFilter)pullStream;
-            encodedMetadata.put(TransformConstants.META_ENCRYPTION_UNENC_SHA1, 
-                    KeyUtils.toHexPadded(is.getDigest()));
-            encodedMetadata.put(TransformConstants.META_ENCRYPTION_UNENC_SIZE, 
-                    ""+is.getByteCount());            
-            break;
-        case PUSH:
-            EncryptionOutputStream os = (EncryptionOutputStream)pushStream;
-            encodedMetadata.put(TransformConstants.META_ENCRYPTION_UNENC_SHA1, 
-                    KeyUtils.toHexPadded(os.getDigest()));
-            encodedMetadata.put(TransformConstants.META_ENCRYPTION_UNENC_SIZE, 
-                    ""+os.getByteCount());
-            break;
-        }
+        Digests.putDigest(encodedMetadata, TransformConstants.META_ENCRYPTION_UNENC_SHA1,
+                TransformConstants.META_ENCRYPTION_UNENC_DIGEST, digestAlgorithm, digest);
+        encodedMetadata.put(TransformConstants.META_ENCRYPTION_UNENC_SIZE, ""+size);
         
         // Sign x-emc fields.
         encodedMetadata.put(TransformConstants.META_ENCRYPTION_META_SIG, 
@@ -22,10 +22,14 @@ import org.slf4j.LoggerFactory;
 
 import com.emc.vipr.transform.TransformConstants;
 import com.emc.vipr.transform.TransformException;
+import com.emc.vipr.transform.block.BlockTransformFactory;
+import com.emc.vipr.transform.block.DigestStage;
+import com.emc.vipr.transform.util.Digests;
 
 public class BasicEncryptionTransformFactory
         extends
-        EncryptionTransformFactory<BasicEncryptionOutputTransform, BasicEncryptionInputTransform> {
+        EncryptionTransformFactory<BasicEncryptionOutputTransform, BasicEncryptionInputTransform>
+        implements BlockTransformFactory {
     Logger logger = LoggerFactory
             .getLogger(BasicEncryptionTransformFactory.class);
 
@@ -125,7 +129,7 @@ public class BasicEncryptionTransformFactory
         
         String algorithm = getEncryptionAlgorithm();
         
-        SecretKey objectKey = KeyUtils.decryptKey(encodedKey, algorithm, provider, 
+        SecretKey objectKey = decryptObjectKey(oldKeyId, encodedKey, algorithm, 
                 oldKey.getPrivate());
         
         // Re-encrypt key with the current master key
@@ -158,7 +162,8 @@ public class BasicEncryptionTransformFactory
             throws IOException {
         return new BasicEncryptionOutputTransform(streamToEncodeTo,
                 metadataToEncode, masterEncryptionKeyFingerprint,
-                masterEncryptionKey, encryptionTransform, keySize, provider);
+                masterEncryptionKey, encryptionTransform, keySize, provider,
+                cipherPool, getDigestAlgorithm(), chunkSize);
     }
     
     @Override
@@ -167,7 +172,38 @@ public class BasicEncryptionTransformFactory
             throws IOException, TransformException {
         return new BasicEncryptionOutputTransform(streamToEncode,
                 metadataToEncode, masterEncryptionKeyFingerprint,
-                masterEncryptionKey, encryptionTransform, keySize, provider);
+                masterEncryptionKey, encryptionTransform, keySize, provider,
+                cipherPool, getDigestAlgorithm(), chunkSize);
+    }
+
+    @Override
+    public DigestStage getDigestStage() throws IOException {
+        return new DigestStage(getDigestAlgorithm(), TransformConstants.META_ENCRYPTION_UNENC_SHA1,
+                TransformConstants.META_ENCRYPTION_UNENC_DIGEST);
+    }
+
+    /**
+     * Gets a block stage that encrypts like the output transforms.  Objects are 
+     * encrypted on the pipeline's thread; the cipher pool isn't used.  Chunked
+     * transforms are not supported.
+     */
+    @Override
+    public EncryptionBlockStage getOutputStage() throws TransformException {
+        if(ChunkedCipher.isChunked(encryptionTransform)) {
+            throw new TransformException("Chunked encryption is not supported by block stages");
+        }
+        return new EncryptionBlockStage(masterEncryptionKeyFingerprint, masterEncryptionKey,
+                encryptionTransform, keySize, provider);
+    }
+
+    @Override
+    public BasicEncryptionOutputTransform getIntermediateOutputTransform(
+            InputStream streamToEncode, Map<String, String> metadataToEncode)
+            throws IOException, TransformException {
+        return new BasicEncryptionOutputTransform(streamToEncode,
+                metadataToEncode, masterEncryptionKeyFingerprint,
+                masterEncryptionKey, encryptionTransform, keySize, provider,
+                cipherPool, Digests.NONE, chunkSize);
     }
 
     @Override
@@ -175,18 +211,38 @@ public class BasicEncryptionTransformFactory
             String transformConfig, InputStream streamToDecode,
             Map<String, String> metadata) throws IOException,
             TransformException {
+        return getInputTransform(transformConfig, streamToDecode, metadata, 0);
+    }
 
-        String[] transformTuple = splitTransformConfig(transformConfig);
-        if (transformTuple.length != 2) {
-            throw new TransformException("Invalid transform configuration: "
-                    + transformConfig);
-        }
+    @Override
+    public BasicEncryptionInputTransform getInputTransform(
+            String transformConfig, InputStream streamToDecode,
+            Map<String, String> metadata, long offset) throws IOException,
+            TransformException {
 
-        if (!TransformConstants.ENCRYPTION_CLASS.equals(transformTuple[0])) {
-            throw new TransformException("Unsupported transform class: "
-                    + transformTuple[0]);
-        }
+        String transform = getCipherTransform(transformConfig);
+        KeyPair masterKey = findMasterKey(metadata);
+
+        return new BasicEncryptionInputTransform(transform,
+                streamToDecode, metadata, masterKey, provider, objectKeyCache, offset, cipherPool);
+    }
 
+    @Override
+    public BasicEncryptionUpdateTransform getUpdateTransform(
+            String transformConfig, InputStream streamToEncode,
+            Map<String, String> metadata, long offset) throws IOException,
+            TransformException {
+        String transform = getCipherTransform(transformConfig);
+        KeyPair masterKey = findMasterKey(metadata);
+
+        return new BasicEncryptionUpdateTransform(streamToEncode, metadata, 
+                transform, masterKey, provider, objectKeyCache, offset);
+    }
+
+    /**
+     * Finds the master key pair that an object's key is encrypted with.
+     */
+    private KeyPair findMasterKey(Map<String, String> metadata) throws TransformException {
         // Find master key
         String masterKeyId = metadata
                 .get(TransformConstants.META_ENCRYPTION_KEY_ID);
@@ -201,9 +257,7 @@ public class BasicEncryptionTransformFactory
                     "Could not decrypt object. No master key with ID "
                             + masterKeyId + " found");
         }
-
-        return new BasicEncryptionInputTransform(transformTuple[1],
-                streamToDecode, metadata, masterKey, provider);
+        return masterKey;
     }
 
     /**
@@ -0,0 +1,155 @@
+package com.emc.vipr.transform.encryption;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.KeyPair;
+import java.security.Provider;
+import java.security.interfaces.RSAPrivateKey;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.crypto.SecretKey;
+
+import com.emc.vipr.transform.TransformConstants;
+import com.emc.vipr.transform.TransformException;
+
+/**
+ * Encrypts whole chunks of an existing chunked object (see {@link ChunkedCipher})
+ * so they can be written over the same chunks of the stored object.  Each
+ * chunk is encrypted with a new IV and tagged again, so the rest of the object
+ * does not change and does not need to be read or rewritten.
+ * <br>
+ * The content to encode must start at a chunk boundary and end at a chunk
+ * boundary or at (or past) the end of the object.  To rewrite part of a chunk,
+ * the caller reads the chunk and merges the new data into it first.  The
+ * chunks are written at {@link ChunkedCipher#getEncodedOffset(long, int)}.
+ * <br>
+ * The unencrypted size is extended if the content goes past the end of the
+ * object, and the metadata is signed again with the object's master key.
+ * Readers of chunked objects take the size from the stored length, so if the
+ * metadata can't be written after the chunks, the object is still read
+ * correctly.
+ */
+public class BasicEncryptionUpdateTransform extends EncryptionOutputTransform {
+    private KeyPair masterKey;
+    private long offset;
+
+    /**
+     * @param streamToEncodeTo the stream that receives the encrypted chunks.
+     * @param metadataToEncode the object's current metadata, including its
+     * encryption metadata.
+     * @param encryptionTransform the object's transform.  Must be chunked.
+     * @param masterKey the master key pair the object's key is encrypted with.
+     * @param keyCache cache of unwrapped object keys (may be null).
+     * @param offset the position in the object where the content starts.  Must
+     * be at the start of a chunk.
+     */
+    public BasicEncryptionUpdateTransform(OutputStream streamToEncodeTo,
+            Map<String, String> metadataToEncode, String encryptionTransform,
+            KeyPair masterKey, Provider provider, ObjectKeyCache keyCache,
+            long offset) throws TransformException {
+        super(streamToEncodeTo, metadataToEncode,
+                TransformConstants.ENCRYPTION_CLASS + ":" + encryptionTransform,
+                provider);
+        this.masterKey = masterKey;
+        this.offset = offset;
+
+        pushStream = new EncryptionOutputStream(streamToEncodeTo,
+                initCipher(encryptionTransform, keyCache), offset, null, null);
+    }
+
+    /**
+     * Creates an update transform in "pull" mode.
+     * @see #BasicEncryptionUpdateTransform(OutputStream, Map, String, KeyPair, Provider, ObjectKeyCache, long)
+     */
+    public BasicEncryptionUpdateTransform(InputStream streamToEncode,
+            Map<String, String> metadataToEncode, String encryptionTransform,
+            KeyPair masterKey, Provider provider, ObjectKeyCache keyCache,
+            long offset) throws TransformException {
+        super(streamToEncode, metadataToEncode,
+                TransformConstants.ENCRYPTION_CLASS + ":" + encryptionTransform,
+                provider);
+        this.masterKey = masterKey;
+        this.offset = offset;
+
+        pullStream = new EncryptionInputFilter(streamToEncode,
+                initCipher(encryptionTransform, keyCache), offset, null, null);
+    }
+
+    private ChunkedCipher initCipher(String encryptionTransform, ObjectKeyCache keyCache)
+            throws TransformException {
+        if(!ChunkedCipher.isChunked(encryptionTransform)) {
+            throw new TransformException("Only chunked objects can be partially updated: "
+                    + encryptionTransform);
+        }
+
+        String encodedObjectKey = metadataToEncode.get(TransformConstants.META_ENCRYPTION_OBJECT_KEY);
+        if(encodedObjectKey == null) {
+            throw new TransformException("Object key not found in object metadata");
+        }
+        String chunkSize = metadataToEncode.get(TransformConstants.META_ENCRYPTION_CHUNK_SIZE);
+        if(chunkSize == null) {
+            throw new TransformException("Chunk size not found in object metadata");
+        }
+        int size = Integer.parseInt(chunkSize);
+        if(offset < 0 || offset % size != 0) {
+            throw new TransformException("Invalid offset: " + offset
+                    + " is not at the start of a chunk");
+        }
+
+        String algorithm = encryptionTransform.split("/")[0];
+        SecretKey sk;
+        if(keyCache != null) {
+            sk = keyCache.unwrapKey(metadataToEncode.get(TransformConstants.META_ENCRYPTION_KEY_ID),
+                    encodedObjectKey, algorithm, provider, masterKey.getPrivate());
+        } else {
+            sk = KeyUtils.decryptKey(encodedObjectKey, algorithm, provider, masterKey.getPrivate());
+        }
+        return new ChunkedCipher(encryptionTransform, sk, size, provider);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.emc.vipr.transform.OutputTransform#getEncodedMetadata()
+     */
+    @Override
+    public Map<String, String> getEncodedMetadata() {
+        long byteCount;
+        switch(getStreamMode()) {
+        case PULL:
+            EncryptionInputFilter is = (EncryptionInputFilter)pullStream;
+            if(!is.closed) {
+                throw new IllegalStateException("Cannot get metadata until stream is closed");
+            }
+            byteCount = is.getByteCount();
+            break;
+        default:
+            EncryptionOutputStream os = (EncryptionOutputStream)pushStream;
+            if(!os.closed) {
+                throw new IllegalStateException("Cannot get metadata until stream is closed");
+            }
+            byteCount = os.getByteCount();
+            break;
+        }
+
+        Map<String, String> encodedMetadata = new HashMap<String, String>();
+        encodedMetadata.putAll(metadataToEncode);
+        encodedMetadata.remove(TransformConstants.META_ENCRYPTION_META_SIG);
+
+        long size = offset + byteCount;
+        String oldSize = metadataToEncode.get(TransformConstants.META_ENCRYPTION_UNENC_SIZE);
+        if(oldSize != null && Long.parseLong(oldSize) > size) {
+            size = Long.parseLong(oldSize);
+        }
+        encodedMetadata.put(TransformConstants.META_ENCRYPTION_UNENC_SIZE, "" + size);
+
+        // Re-sign
+        encodedMetadata.put(TransformConstants.META_ENCRYPTION_META_SIG,
+                KeyUtils.signMetadata(encodedMetadata,
+                        (RSAPrivateKey) masterKey.getPrivate(), provider));
+
+        return encodedMetadata;
+    }
+
+}
@@ -0,0 +1,437 @@
+package com.emc.vipr.transform.encryption;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.Provider;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.emc.vipr.transform.TransformException;
+
+/**
+ * Encrypts objects as a sequence of independently encrypted and authenticated
+ * chunks so ranges of an object can be rewritten in place.  Each chunk of up
+ * to chunkSize bytes of plaintext is stored as:
+ * <pre>
+ * IV (16 bytes) | ciphertext | HMAC-SHA256 tag (32 bytes)
+ * </pre>
+ * The ciphertext is the chunk encrypted with the object key in counter mode
+ * starting at the chunk's IV.  A chunk gets a new random IV every time it is
+ * written, so rewriting a range never reuses keystream.  The tag covers the
+ * chunk's index, IV and ciphertext under a MAC key derived from the object
+ * key, so a chunk that was modified or moved to another position fails
+ * verification when it is read.  Removing whole chunks from the end of an
+ * object is not detected by the tags.
+ * <br>
+ * Transforms that use this format are written as Alg/Mode/Padding/Mac, e.g.
+ * {@link com.emc.vipr.transform.TransformConstants#CHUNKED_ENCRYPTION_TRANSFORM}.
+ * Instances are not thread safe.
+ */
+public class ChunkedCipher {
+    public static final String MAC_ALGORITHM = "HmacSHA256";
+    public static final int IV_SIZE = 16;
+    public static final int TAG_SIZE = 32;
+    /** The number of bytes each chunk adds to the object */
+    public static final int OVERHEAD = IV_SIZE + TAG_SIZE;
+
+    private static final byte[] MAC_KEY_LABEL = "x-emc-enc-chunk-mac".getBytes(Charset.forName("UTF-8"));
+
+    private String transform;
+    private SecretKey key;
+    private int chunkSize;
+    private Provider provider;
+    private Mac mac;
+
+    /**
+     * @param transform the object's transform, e.g. AES/CTR/NoPadding/HmacSHA256.
+     * @param key the object key.
+     * @param chunkSize the number of bytes of plaintext in each chunk.
+     * @param provider the crypto provider, or null for the default.
+     */
+    public ChunkedCipher(String transform, SecretKey key, int chunkSize, Provider provider)
+            throws TransformException {
+        if(!isChunked(transform)) {
+            throw new TransformException("Not a chunked transform: " + transform);
+        }
+        if(chunkSize < 1) {
+            throw new TransformException("Invalid chunk size: " + chunkSize);
+        }
+        this.transform = getCipherTransform(transform);
+        this.key = key;
+        this.chunkSize = chunkSize;
+        this.provider = provider;
+        try {
+            mac = provider == null ? Mac.getInstance(MAC_ALGORITHM)
+                    : Mac.getInstance(MAC_ALGORITHM, provider);
+            // Derive the MAC key so the object key is never used for both.
+            mac.init(new SecretKeySpec(key.getEncoded(), MAC_ALGORITHM));
+            byte[] macKey = mac.doFinal(MAC_KEY_LABEL);
+            mac.init(new SecretKeySpec(macKey, MAC_ALGORITHM));
+        } catch(GeneralSecurityException e) {
+            throw new TransformException("Could not initialize MAC", e);
+        }
+    }
+
+    /**
+     * Returns true if the given transform (e.g. AES/CTR/NoPadding/HmacSHA256)
+     * uses the chunked format.
+     */
+    public static boolean isChunked(String transform) {
+        String[] transformParams = transform.split("/");
+        return transformParams.length == 4 && "CTR".equalsIgnoreCase(transformParams[1])
+                && MAC_ALGORITHM.equalsIgnoreCase(transformParams[3]);
+    }
+
+    /**
+     * Returns the cipher part (Alg/Mode/Padding) of a transform.
+     */
+    public static String getCipherTransform(String transform) {
+        String[] transformParams = transform.split("/");
+        if(transformParams.length == 4) {
+            return transformParams[0] + "/" + transformParams[1] + "/" + transformParams[2];
+        }
+        return transform;
+    }
+
+    /**
+     * @return the stored size of an object with size bytes of plaintext.
+     */
+    public static long getEncodedSize(long size, int chunkSize) {
+        return size + (size + chunkSize - 1) / chunkSize * OVERHEAD;
+    }
+
+    /**
+     * @return the plaintext size of an object stored in encodedSize bytes.
+     * @throws IllegalArgumentException if no object can have that size.
+     */
+    public static long getDecodedSize(long encodedSize, int chunkSize) {
+        long chunks = encodedSize / (chunkSize + OVERHEAD);
+        long remainder = encodedSize % (chunkSize + OVERHEAD);
+        if(remainder == 0) {
+            return chunks * chunkSize;
+        }
+        if(remainder <= OVERHEAD) {
+            throw new IllegalArgumentException("Invalid chunked object size: " + encodedSize);
+        }
+        return chunks * chunkSize + remainder - OVERHEAD;
+    }
+
+    /**
+     * @return the position in the stored object where the chunk holding the
+     * given plaintext offset starts.
+     */
+    public static long getEncodedOffset(long offset, int chunkSize) {
+        return offset / chunkSize * (chunkSize + OVERHEAD);
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Returns a stream that encrypts everything written to it into out.
+     * @param offset the position in the object of the first byte written.
+     * Must be at the start of a chunk.
+     */
+    public OutputStream newOutputStream(OutputStream out, long offset) {
+        checkAligned(offset);
+        return new ChunkedCipherOutputStream(out, offset / chunkSize);
+    }
+
+    /**
+     * Returns a stream that encrypts or decrypts the content of in.
+     * @param mode Cipher.ENCRYPT_MODE to encrypt the plaintext in, or
+     * Cipher.DECRYPT_MODE to decrypt the chunks in.
+     * @param offset the position in the object to start at.  When encrypting,
+     * in holds the plaintext from offset, which must be at the start of a
+     * chunk.  When decrypting, in holds the stored object from the start of
+     * the chunk that holds offset (see {@link #getEncodedOffset(long, int)}).
+     */
+    public InputStream newInputStream(InputStream in, int mode, long offset) {
+        if(mode == Cipher.ENCRYPT_MODE) {
+            checkAligned(offset);
+            return new EncryptingInputStream(in, offset / chunkSize);
+        }
+        return new DecryptingInputStream(in, offset / chunkSize, (int) (offset % chunkSize));
+    }
+
+    private void checkAligned(long offset) {
+        if(offset % chunkSize != 0) {
+            throw new IllegalArgumentException("Offset " + offset
+                    + " is not at the start of a chunk");
+        }
+    }
+
+    /**
+     * Encrypts one chunk.
+     * @return the stored chunk.
+     */
+    byte[] encrypt(long index, byte[] data, int off, int len) throws IOException {
+        byte[] chunk = new byte[IV_SIZE + len + TAG_SIZE];
+        Cipher cipher = null;
+        try {
+            byte[] iv = new byte[IV_SIZE];
+            CryptoContextPool.getSecureRandom(provider).nextBytes(iv);
+            System.arraycopy(iv, 0, chunk, 0, IV_SIZE);
+            cipher = CryptoContextPool.leaseCipher(transform, provider);
+            cipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(iv));
+            cipher.doFinal(data, off, len, chunk, IV_SIZE);
+            tag(index, chunk, IV_SIZE + len, chunk, IV_SIZE + len);
+        } catch(GeneralSecurityException e) {
+            throw new IOException("Error encrypting chunk " + index, e);
+        } finally {
+            if(cipher != null) {
+                CryptoContextPool.returnCipher(transform, provider, cipher);
+            }
+        }
+        return chunk;
+    }
+
+    /**
+     * Verifies and decrypts one chunk in place.
+     * @param length the length of the stored chunk.
+     * @return the number of bytes of plaintext, which start at IV_SIZE.
+     * @throws IOException if the chunk fails verification.
+     */
+    int decrypt(long index, byte[] chunk, int length) throws IOException {
+        if(length <= OVERHEAD) {
+            throw new IOException("Chunk " + index + " is truncated");
+        }
+        int dataLength = length - OVERHEAD;
+        Cipher cipher = null;
+        try {
+            byte[] expected = new byte[TAG_SIZE];
+            tag(index, chunk, IV_SIZE + dataLength, expected, 0);
+            byte[] actual = new byte[TAG_SIZE];
+            System.arraycopy(chunk, IV_SIZE + dataLength, actual, 0, TAG_SIZE);
+            if(!MessageDigest.isEqual(expected, actual)) {
+                throw new IOException("Chunk " + index + " failed verification");
+            }
+            cipher = CryptoContextPool.leaseCipher(transform, provider);
+            cipher.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(chunk, 0, IV_SIZE));
+            cipher.doFinal(chunk, IV_SIZE, dataLength, chunk, IV_SIZE);
+        } catch(GeneralSecurityException e) {
+            throw new IOException("Error decrypting chunk " + index, e);
+        } finally {
+            if(cipher != null) {
+                CryptoContextPool.returnCipher(transform, provider, cipher);
+            }
+        }
+        return dataLength;
+    }
+
+    private void tag(long index, byte[] chunk, int length, byte[] out, int outOffset)
+            throws GeneralSecurityException {
+        for(int i = 56; i >= 0; i -= 8) {
+            mac.update((byte) (index >>> i));
+        }
+        mac.update(chunk, 0, length);
+        mac.doFinal(out, outOffset);
+    }
+
+    /**
+     * Reads until b is full or the stream ends.
+     * @return the number of bytes read.
+     */
+    private static int readFully(InputStream in, byte[] b) throws IOException {
+        int count = 0;
+        while(count < b.length) {
+            int c = in.read(b, count, b.length - count);
+            if(c == -1) {
+                break;
+            }
+            count += c;
+        }
+        return count;
+    }
+
+    private class ChunkedCipherOutputStream extends OutputStream {
+        private OutputStream out;
+        private byte[] buffer = new byte[chunkSize];
+        private int count;
+        private long index;
+        private boolean closed;
+
+        ChunkedCipherOutputStream(OutputStream out, long index) {
+            this.out = out;
+            this.index = index;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if(closed) {
+                throw new IOException("Stream closed");
+            }
+            while(len > 0) {
+                int n = Math.min(len, buffer.length - count);
+                System.arraycopy(b, off, buffer, count, n);
+                count += n;
+                off += n;
+                len -= n;
+                if(count == buffer.length) {
+                    writeChunk();
+                }
+            }
+        }
+
+        /**
+         * Flushes out.  A partial chunk stays buffered until it fills up or the
+         * stream is closed.
+         */
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if(closed) return;
+            closed = true;
+            try {
+                if(count > 0) {
+                    writeChunk();
+                }
+            } finally {
+                out.close();
+            }
+        }
+
+        private void writeChunk() throws IOException {
+            out.write(encrypt(index++, buffer, 0, count));
+            count = 0;
+        }
+    }
+
+    private class EncryptingInputStream extends InputStream {
+        private InputStream in;
+        private byte[] plaintext = new byte[chunkSize];
+        private byte[] current;
+        private int pos;
+        private long index;
+        private boolean eof;
+
+        EncryptingInputStream(InputStream in, long index) {
+            this.in = in;
+            this.index = index;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int c = read(b, 0, 1);
+            return c == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if(len == 0) {
+                return 0;
+            }
+            while(current == null || pos == current.length) {
+                if(eof) {
+                    return -1;
+                }
+                int count = readFully(in, plaintext);
+                if(count < plaintext.length) {
+                    eof = true;
+                }
+                if(count == 0) {
+                    return -1;
+                }
+                current = encrypt(index++, plaintext, 0, count);
+                pos = 0;
+            }
+            int n = Math.min(len, current.length - pos);
+            System.arraycopy(current, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return current == null ? 0 : current.length - pos;
+        }
+
+        @Override
+        public void close() throws IOException {
+            current = null;
+            in.close();
+        }
+    }
+
+    private class DecryptingInputStream extends InputStream {
+        private InputStream in;
+        private byte[] chunk = new byte[IV_SIZE + chunkSize + TAG_SIZE];
+        private int pos;
+        private int end;
+        private long index;
+        private int skip;
+        private boolean eof;
+
+        DecryptingInputStream(InputStream in, long index, int skip) {
+            this.in = in;
+            this.index = index;
+            this.skip = skip;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int c = read(b, 0, 1);
+            return c == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if(len == 0) {
+                return 0;
+            }
+            while(pos == end) {
+                if(eof) {
+                    return -1;
+                }
+                int count = readFully(in, chunk);
+                if(count < chunk.length) {
+                    eof = true;
+                }
+                if(count == 0) {
+                    return -1;
+                }
+                int dataLength = decrypt(index++, chunk, count);
+                if(skip > dataLength) {
+                    throw new IOException("Offset is past the end of the object");
+                }
+                pos = IV_SIZE + skip;
+                end = IV_SIZE + dataLength;
+                skip = 0;
+            }
+            int n = Math.min(len, end - pos);
+            System.arraycopy(chunk, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return end - pos;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
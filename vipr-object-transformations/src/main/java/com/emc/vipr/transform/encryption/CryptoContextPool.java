@@ -0,0 +1,213 @@
+package com.emc.vipr.transform.encryption;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingDeque;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+
+import com.emc.vipr.transform.TransformConstants;
+import com.emc.vipr.transform.util.AbandonedLeases;
+import com.emc.vipr.transform.util.Digests;
+
+/**
+ * Reuses JCE objects across objects instead of looking them up from the
+ * provider each time.  Provider lookups and PRNG seeding are expensive compared
+ * to encrypting a small object, and seeding a new SecureRandom can block
+ * waiting for entropy.
+ * <br>
+ * Two kinds of reuse are provided:
+ * <ul>
+ * <li>Objects that are initialized and used within a single method call (the
+ * key wrapping cipher, signatures, key generators and SecureRandom) are cached
+ * per thread and never leave it.</li>
+ * <li>Ciphers and digests that back a stream live for as long as the stream
+ * and may be handed between threads, so they are leased from a shared pool
+ * and must be returned when the stream is closed.  A leased object must not be
+ * used after it is returned.  Objects returned while a stream is being
+ * abandoned (see {@link AbandonedLeases}) are dropped.</li>
+ * </ul>
+ * All objects are cached per algorithm and provider.
+ */
+public class CryptoContextPool {
+    /**
+     * The maximum number of idle ciphers or digests kept for each algorithm.
+     */
+    public static final int MAX_IDLE = 32;
+
+    private static final String SECURE_RANDOM_ALGORITHM = "SHA1PRNG";
+
+    private static final ThreadLocal<Map<String, Object>> threadObjects =
+            new ThreadLocal<Map<String, Object>>() {
+        @Override
+        protected Map<String, Object> initialValue() {
+            return new HashMap<String, Object>();
+        }
+    };
+
+    private static final ConcurrentMap<String, BlockingDeque<Cipher>> idleCiphers =
+            new ConcurrentHashMap<String, BlockingDeque<Cipher>>();
+    private static final ConcurrentMap<String, BlockingDeque<MessageDigest>> idleDigests =
+            new ConcurrentHashMap<String, BlockingDeque<MessageDigest>>();
+
+    private CryptoContextPool() {
+    }
+
+    /**
+     * Returns this thread's SecureRandom.  Per FIPS bulletin 2013-09, SHA1PRNG
+     * is requested explicitly so we don't get Dual_EC_DRBG.
+     */
+    public static SecureRandom getSecureRandom(Provider provider) throws NoSuchAlgorithmException {
+        String key = key("SecureRandom", SECURE_RANDOM_ALGORITHM, provider);
+        SecureRandom rand = (SecureRandom) threadObjects.get().get(key);
+        if(rand == null) {
+            if(provider != null) {
+                rand = SecureRandom.getInstance(SECURE_RANDOM_ALGORITHM, provider);
+            } else {
+                rand = SecureRandom.getInstance(SECURE_RANDOM_ALGORITHM);
+            }
+            threadObjects.get().put(key, rand);
+        }
+        return rand;
+    }
+
+    /**
+     * Returns this thread's KeyGenerator for the algorithm, initialized with
+     * the given key size and this thread's SecureRandom.
+     */
+    public static KeyGenerator getKeyGenerator(String algorithm, int keySize,
+            Provider provider) throws GeneralSecurityException {
+        String key = key("KeyGenerator", algorithm, provider);
+        KeyGenerator keygen = (KeyGenerator) threadObjects.get().get(key);
+        if(keygen == null) {
+            if(provider != null) {
+                keygen = KeyGenerator.getInstance(algorithm, provider);
+            } else {
+                keygen = KeyGenerator.getInstance(algorithm);
+            }
+            threadObjects.get().put(key, keygen);
+        }
+        keygen.init(keySize, getSecureRandom(provider));
+        return keygen;
+    }
+
+    /**
+     * Returns this thread's key wrapping (RSA) cipher.  The caller must
+     * initialize it and finish with it before returning.
+     */
+    public static Cipher getKeyWrapCipher(Provider provider) throws GeneralSecurityException {
+        String transform = TransformConstants.KEY_ENCRYPTION_TRANSFORM;
+        String key = key("Cipher", transform, provider);
+        Cipher cipher = (Cipher) threadObjects.get().get(key);
+        if(cipher == null) {
+            cipher = newCipher(transform, provider);
+            threadObjects.get().put(key, cipher);
+        }
+        return cipher;
+    }
+
+    /**
+     * Returns this thread's Signature for the algorithm.  The caller must
+     * initialize it and finish with it before returning.
+     */
+    public static Signature getSignature(String algorithm, Provider provider) throws GeneralSecurityException {
+        String key = key("Signature", algorithm, provider);
+        Signature sig = (Signature) threadObjects.get().get(key);
+        if(sig == null) {
+            if(provider != null) {
+                sig = Signature.getInstance(algorithm, provider);
+            } else {
+                sig = Signature.getInstance(algorithm);
+            }
+            threadObjects.get().put(key, sig);
+        }
+        return sig;
+    }
+
+    /**
+     * Leases a cipher for a stream.  The cipher must be initialized by the
+     * caller and returned with {@link #returnCipher(String, Provider, Cipher)}
+     * once the stream is closed.
+     */
+    public static Cipher leaseCipher(String transform, Provider provider) throws GeneralSecurityException {
+        BlockingDeque<Cipher> idle = idleCiphers.get(key("Cipher", transform, provider));
+        Cipher cipher = idle == null ? null : idle.pollFirst();
+        if(cipher == null) {
+            cipher = newCipher(transform, provider);
+        }
+        return cipher;
+    }
+
+    public static void returnCipher(String transform, Provider provider, Cipher cipher) {
+        if(AbandonedLeases.isAbandoning()) {
+            return;
+        }
+        String key = key("Cipher", transform, provider);
+        BlockingDeque<Cipher> idle = idleCiphers.get(key);
+        if(idle == null) {
+            idleCiphers.putIfAbsent(key, new LinkedBlockingDeque<Cipher>());
+            idle = idleCiphers.get(key);
+        }
+        // most recently used first
+        if(idle.size() < MAX_IDLE) {
+            idle.offerFirst(cipher);
+        }
+    }
+
+    /**
+     * Leases a digest for a stream.  The digest must be returned with
+     * {@link #returnDigest(String, Provider, MessageDigest)} once the stream is
+     * closed.
+     * @return the digest, or null if the algorithm is {@link Digests#NONE}.
+     */
+    public static MessageDigest leaseDigest(String algorithm, Provider provider) throws NoSuchAlgorithmException {
+        BlockingDeque<MessageDigest> idle = idleDigests.get(key("MessageDigest", algorithm, provider));
+        MessageDigest digest = idle == null ? null : idle.pollFirst();
+        if(digest == null) {
+            digest = Digests.newDigest(algorithm, provider);
+        }
+        return digest;
+    }
+
+    public static void returnDigest(String algorithm, Provider provider, MessageDigest digest) {
+        if(AbandonedLeases.isAbandoning()) {
+            return;
+        }
+        digest.reset();
+        String key = key("MessageDigest", algorithm, provider);
+        BlockingDeque<MessageDigest> idle = idleDigests.get(key);
+        if(idle == null) {
+            idleDigests.putIfAbsent(key, new LinkedBlockingDeque<MessageDigest>());
+            idle = idleDigests.get(key);
+        }
+        if(idle.size() < MAX_IDLE) {
+            idle.offerFirst(digest);
+        }
+    }
+
+    private static Cipher newCipher(String transform, Provider provider) throws GeneralSecurityException {
+        if(provider != null) {
+            return Cipher.getInstance(transform, provider);
+        } else {
+            return Cipher.getInstance(transform);
+        }
+    }
+
+    private static String key(String type, String algorithm, Provider provider) {
+        if(provider == null) {
+            return type + ":" + algorithm;
+        }
+        return type + ":" + algorithm + ":" + provider.getName() + "@"
+                + System.identityHashCode(provider);
+    }
+}
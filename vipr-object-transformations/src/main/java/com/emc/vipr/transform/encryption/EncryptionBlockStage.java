@@ -0,0 +1,108 @@
+package com.emc.vipr.transform.encryption;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.Provider;
+import java.security.SecureRandom;
+import java.util.Map;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+
+import com.emc.vipr.transform.TransformConstants;
+import com.emc.vipr.transform.block.BlockStage;
+
+/**
+ * Encrypts blocks with a new object key, like {@link BasicEncryptionOutputTransform}.
+ * Each block is encrypted with a single cipher update into a reused output buffer.
+ * The stage doesn't digest the unencrypted data; put a 
+ * {@link com.emc.vipr.transform.block.DigestStage} in front of it.
+ */
+public class EncryptionBlockStage extends BlockStage {
+    private String encryptionTransform;
+    private String masterEncryptionKeyFingerprint;
+    private KeyPair masterKey;
+    private Provider provider;
+    private Cipher cipher;
+    private SecretKey k;
+    private byte[] iv;
+    private ByteBuffer output = ByteBuffer.allocate(0);
+    private long size;
+
+    public EncryptionBlockStage(String masterEncryptionKeyFingerprint, KeyPair masterKey,
+            String encryptionTransform, int keySize, Provider provider) {
+        this.masterEncryptionKeyFingerprint = masterEncryptionKeyFingerprint;
+        this.masterKey = masterKey;
+        this.encryptionTransform = encryptionTransform;
+        this.provider = provider;
+        try {
+            cipher = CryptoContextPool.leaseCipher(encryptionTransform, provider);
+            SecureRandom rand = CryptoContextPool.getSecureRandom(provider);
+            String[] algParts = encryptionTransform.split("/");
+            KeyGenerator keygen = CryptoContextPool.getKeyGenerator(algParts[0], keySize, provider);
+            k = keygen.generateKey();
+            cipher.init(Cipher.ENCRYPT_MODE, k, rand);
+            iv = cipher.getIV();
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException("Error initializing block stage: "
+                    + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public void write(ByteBuffer block) throws IOException {
+        size += block.remaining();
+        try {
+            cipher.update(block, output(cipher.getOutputSize(block.remaining())));
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Error encrypting block", e);
+        }
+        passOutput();
+    }
+
+    @Override
+    protected void finish() throws IOException {
+        try {
+            cipher.doFinal(ByteBuffer.allocate(0), output(cipher.getOutputSize(0)));
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Error encrypting block", e);
+        }
+        passOutput();
+    }
+
+    private ByteBuffer output(int length) {
+        if(output.capacity() < length) {
+            output = ByteBuffer.allocate(length);
+        }
+        output.clear();
+        return output;
+    }
+
+    private void passOutput() throws IOException {
+        output.flip();
+        if(output.hasRemaining()) {
+            next.write(output);
+        }
+    }
+
+    @Override
+    protected void release() {
+        CryptoContextPool.returnCipher(encryptionTransform, provider, cipher);
+        cipher = null;
+    }
+
+    @Override
+    public String getTransformConfig() {
+        return TransformConstants.ENCRYPTION_CLASS + ":" + encryptionTransform;
+    }
+
+    @Override
+    public Map<String, String> encodeMetadata(Map<String, String> metadata) {
+        checkClosed();
+        return BasicEncryptionOutputTransform.encodeMetadata(metadata, iv, k, 
+                masterEncryptionKeyFingerprint, masterKey, provider, size, null, null, 0);
+    }
+}
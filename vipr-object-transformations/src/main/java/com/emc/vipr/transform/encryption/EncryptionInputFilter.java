@@ -8,6 +8,7 @@ import java.security.MessageDigest;
 import javax.crypto.Cipher;
 import javax.crypto.CipherInputStream;
 
+import com.emc.vipr.transform.util.CloseCallback;
 import com.emc.vipr.transform.util.CountingInputStream;
 
 public class EncryptionInputFilter extends InputStream {
@@ -15,19 +16,50 @@ public class EncryptionInputFilter extends InputStream {
     byte[] digest = null;
     private DigestInputStream digestStream;
     private CountingInputStream counterStream;
-    private CipherInputStream cipherStream;
+    private InputStream cipherStream;
+    private CloseCallback closeCallback;
 
     public EncryptionInputFilter(InputStream in, Cipher cipher, MessageDigest digest) {
+        this(in, cipher, digest, null);
+    }
+
+    /**
+     * @param closeCallback notified once the stream has been closed and the
+     * digest computed, after which the cipher and digest are no longer used.
+     */
+    public EncryptionInputFilter(InputStream in, Cipher cipher, MessageDigest digest, CloseCallback closeCallback) {
+        this.closeCallback = closeCallback;
+        cipherStream = new CipherInputStream(plaintextStream(in, digest), cipher);
+    }
+
+    /**
+     * Creates a filter that encrypts chunks in parallel.
+     */
+    public EncryptionInputFilter(InputStream in, ParallelCtrCipher cipher, MessageDigest digest, CloseCallback closeCallback) {
+        this.closeCallback = closeCallback;
+        cipherStream = cipher.newInputStream(plaintextStream(in, digest), Cipher.ENCRYPT_MODE, 0);
+    }
+
+    /**
+     * Creates a filter that encrypts in authenticated chunks.
+     * @param offset the position in the object where in starts.  Must be at
+     * the start of a chunk.
+     */
+    public EncryptionInputFilter(InputStream in, ChunkedCipher cipher, long offset, MessageDigest digest, CloseCallback closeCallback) {
+        this.closeCallback = closeCallback;
+        cipherStream = cipher.newInputStream(plaintextStream(in, digest), Cipher.ENCRYPT_MODE, offset);
+    }
+
+    private InputStream plaintextStream(InputStream in, MessageDigest digest) {
         // Construct the filter chain:
         // user stream->CountingInputStream->
         // DigestInputStream(optional)->CipherInputStream
         counterStream = new CountingInputStream(in);
         if(digest != null) {
             digestStream = new DigestInputStream(counterStream, digest);
-            cipherStream = new CipherInputStream(digestStream, cipher);
-        } else {
-            cipherStream = new CipherInputStream(counterStream, cipher);
+            return digestStream;
         }
+        return counterStream;
     }
 
     @Override
@@ -57,6 +89,10 @@ public class EncryptionInputFilter extends InputStream {
             // MessageDigest works.
             digest = digestStream.getMessageDigest().digest();
         }
+        
+        if(closeCallback != null) {
+            closeCallback.closed(this);
+        }
     }
     
     @Override
@@ -8,6 +8,7 @@ import java.security.MessageDigest;
 import javax.crypto.Cipher;
 import javax.crypto.CipherOutputStream;
 
+import com.emc.vipr.transform.util.CloseCallback;
 import com.emc.vipr.transform.util.CountingOutputStream;
 
 public class EncryptionOutputStream extends OutputStream {
@@ -16,12 +17,41 @@ public class EncryptionOutputStream extends OutputStream {
     byte[] digest = null;
     private DigestOutputStream digestStream;
     private CountingOutputStream counterStream;
+    private CloseCallback closeCallback;
 
-    public EncryptionOutputStream(OutputStream out, Cipher cipher, MessageDigest digest) {        
+    public EncryptionOutputStream(OutputStream out, Cipher cipher, MessageDigest digest) {
+        this(out, cipher, digest, null);
+    }
+
+    /**
+     * @param closeCallback notified once the stream has been closed and the
+     * digest computed, after which the cipher and digest are no longer used.
+     */
+    public EncryptionOutputStream(OutputStream out, Cipher cipher, MessageDigest digest, CloseCallback closeCallback) {
+        this(new CipherOutputStream(out, cipher), digest, closeCallback);
+    }
+
+    /**
+     * Creates a stream that encrypts chunks in parallel.
+     */
+    public EncryptionOutputStream(OutputStream out, ParallelCtrCipher cipher, MessageDigest digest, CloseCallback closeCallback) {
+        this(cipher.newOutputStream(out), digest, closeCallback);
+    }
+
+    /**
+     * Creates a stream that encrypts in authenticated chunks.
+     * @param offset the position in the object of the first byte written.
+     * Must be at the start of a chunk.
+     */
+    public EncryptionOutputStream(OutputStream out, ChunkedCipher cipher, long offset, MessageDigest digest, CloseCallback closeCallback) {
+        this(cipher.newOutputStream(out, offset), digest, closeCallback);
+    }
+
+    private EncryptionOutputStream(OutputStream cipherStream, MessageDigest digest, CloseCallback closeCallback) {
+        this.closeCallback = closeCallback;
         // Create the stream chain:
         // CountingOutputStream->DigestOutputStream(opt)->CipherOutputStream->
         // user output stream.
-        CipherOutputStream cipherStream = new CipherOutputStream(out, cipher);
         if(digest != null) {
             digestStream = new DigestOutputStream(cipherStream, digest);
             counterStream = new CountingOutputStream(digestStream);
@@ -60,6 +90,10 @@ public class EncryptionOutputStream extends OutputStream {
         if(digestStream != null) {
             digest = digestStream.getMessageDigest().digest();
         }
+        
+        if(closeCallback != null) {
+            closeCallback.closed(this);
+        }
     }
 
     public byte[] getDigest() {
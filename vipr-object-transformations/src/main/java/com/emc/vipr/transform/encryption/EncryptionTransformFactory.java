@@ -6,8 +6,12 @@ import com.emc.vipr.transform.TransformFactory;
 
 import javax.crypto.Cipher;
 import javax.crypto.NoSuchPaddingException;
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.io.InputStream;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
 import java.security.Provider;
 import java.util.Map;
 
@@ -25,6 +29,9 @@ public abstract class EncryptionTransformFactory<T extends EncryptionOutputTrans
 
     protected String encryptionTransform;
     protected int keySize;
+    protected ObjectKeyCache objectKeyCache;
+    protected ParallelCipherPool cipherPool;
+    protected int chunkSize = TransformConstants.DEFAULT_ENCRYPTION_CHUNK_SIZE;
 
     public EncryptionTransformFactory() throws InvalidKeyException,
             NoSuchAlgorithmException, NoSuchPaddingException {
@@ -42,17 +49,18 @@ public abstract class EncryptionTransformFactory<T extends EncryptionOutputTrans
     public void setEncryptionSettings(String transform, int keySize,
             Provider provider) throws InvalidKeyException,
             NoSuchAlgorithmException, NoSuchPaddingException {
-        // Check it first.
+        // Check it first.  Chunked transforms are checked without the MAC.
+        String cipherTransform = ChunkedCipher.getCipherTransform(transform);
         if (provider != null) {
-            Cipher.getInstance(transform, provider);
+            Cipher.getInstance(cipherTransform, provider);
         } else {
-            Cipher.getInstance(transform);
+            Cipher.getInstance(cipherTransform);
         }
 
-        if (keySize > Cipher.getMaxAllowedKeyLength(transform)) {
+        if (keySize > Cipher.getMaxAllowedKeyLength(cipherTransform)) {
             throw new InvalidKeyException("Key size of " + keySize
                     + " bits is larger than the maximum allowed of "
-                    + Cipher.getMaxAllowedKeyLength(transform));
+                    + Cipher.getMaxAllowedKeyLength(cipherTransform));
         }
         
         // OK, accept settings.
@@ -76,6 +84,61 @@ public abstract class EncryptionTransformFactory<T extends EncryptionOutputTrans
      */
     public abstract Map<String, String> rekey(Map<String, String> metadata) throws TransformException, DoesNotNeedRekeyException;
 
+    /**
+     * Gets an input transform that decrypts part of an object.  Only seekable
+     * transforms (see {@link #isSeekable(String)}) accept a non-zero offset.
+     * Factories that support seeking override this; the default only accepts
+     * an offset of zero.
+     * @param streamToDecode the object's ciphertext starting at offset.
+     * @param offset the position in the object where streamToDecode starts.
+     */
+    public U getInputTransform(String transformConfig, InputStream streamToDecode,
+            Map<String, String> metadata, long offset) throws IOException, TransformException {
+        if(offset != 0) {
+            throw new TransformException("Decrypting from an offset is not supported");
+        }
+        return getInputTransform(transformConfig, streamToDecode, metadata);
+    }
+
+    /**
+     * Gets a transform that encrypts whole chunks of an existing object so they
+     * can be written over the same chunks of the stored object.  Only chunked
+     * objects (see {@link #isUpdatable(String)}) support this.  Factories that
+     * support updates override this; the default throws TransformException.
+     * @param streamToEncode the new content of the chunks.
+     * @param metadata the object's current metadata.
+     * @param offset the position in the object where the first chunk starts.
+     * @see BasicEncryptionUpdateTransform
+     */
+    public EncryptionOutputTransform getUpdateTransform(String transformConfig, 
+            InputStream streamToEncode, Map<String, String> metadata, long offset) 
+                    throws IOException, TransformException {
+        throw new TransformException("Partial updates are not supported");
+    }
+
+    /**
+     * Returns true if objects encoded with the given transform configuration
+     * (e.g. ENC:AES/CTR/NoPadding) can be decrypted starting at any offset.
+     */
+    public boolean isSeekable(String transformConfig) {
+        String[] transformTuple = splitTransformConfig(transformConfig);
+        return transformTuple.length == 2 
+                && TransformConstants.ENCRYPTION_CLASS.equals(transformTuple[0])
+                && BasicEncryptionInputTransform.isSeekable(transformTuple[1]);
+    }
+
+    /**
+     * Returns true if objects encoded with the given transform configuration
+     * (e.g. ENC:AES/CTR/NoPadding/HmacSHA256) can be partially updated.
+     * @see ChunkedCipher
+     */
+    public boolean isUpdatable(String transformConfig) {
+        String[] transformTuple = splitTransformConfig(transformConfig);
+        return transformTuple.length == 2 
+                && TransformConstants.ENCRYPTION_CLASS.equals(transformTuple[0])
+                && ChunkedCipher.isChunked(transformTuple[1]);
+    }
+
     public void setCryptoProvider(java.security.Provider provider) {
         this.provider = provider;
     }
@@ -85,6 +148,94 @@ public abstract class EncryptionTransformFactory<T extends EncryptionOutputTrans
         return TransformConstants.ENCRYPTION_CLASS;
     }
 
+    /**
+     * @return the cache of unwrapped object keys, or null if object keys are
+     * not cached.
+     */
+    public ObjectKeyCache getObjectKeyCache() {
+        return objectKeyCache;
+    }
+
+    /**
+     * Sets a cache for unwrapped object keys so repeated reads of the same
+     * object skip the RSA key decryption.  Set to null (the default) to
+     * disable caching.
+     */
+    public void setObjectKeyCache(ObjectKeyCache objectKeyCache) {
+        this.objectKeyCache = objectKeyCache;
+    }
+
+    /**
+     * @return the pool used to encrypt and decrypt CTR objects in parallel, or
+     * null if objects are processed on the caller's thread.
+     */
+    public ParallelCipherPool getCipherPool() {
+        return cipherPool;
+    }
+
+    /**
+     * Sets a thread pool to encrypt and decrypt objects in parallel.  Only
+     * objects that use counter mode (see 
+     * {@link TransformConstants#SEEKABLE_ENCRYPTION_TRANSFORM}) can be split 
+     * into chunks; other objects are still processed on the caller's thread.
+     * Set to null (the default) to disable.
+     */
+    public void setCipherPool(ParallelCipherPool cipherPool) {
+        this.cipherPool = cipherPool;
+    }
+
+    /**
+     * @return the number of bytes in each chunk of objects written with a
+     * chunked transform.
+     */
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Sets the number of bytes of plaintext in each chunk of objects written
+     * with a chunked transform (see 
+     * {@link TransformConstants#CHUNKED_ENCRYPTION_TRANSFORM}).  A partial 
+     * update rewrites every chunk it touches, and each chunk adds 
+     * {@link ChunkedCipher#OVERHEAD} bytes to the object.  Default is 64KB.
+     */
+    public void setChunkSize(int chunkSize) {
+        if(chunkSize < 1) {
+            throw new IllegalArgumentException("Invalid chunk size: " + chunkSize);
+        }
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Decrypts a wrapped object key, using the object key cache if one is set.
+     */
+    protected SecretKey decryptObjectKey(String masterKeyId, String encodedKey,
+            String algorithm, PrivateKey privateKey) {
+        if(objectKeyCache != null) {
+            return objectKeyCache.unwrapKey(masterKeyId, encodedKey, algorithm, 
+                    provider, privateKey);
+        }
+        return KeyUtils.decryptKey(encodedKey, algorithm, provider, privateKey);
+    }
+
+    /**
+     * Validates an encryption transform configuration string.
+     * @return the cipher transform, e.g. AES/CBC/PKCS5Padding.
+     */
+    protected String getCipherTransform(String transformConfig) throws TransformException {
+        String[] transformTuple = splitTransformConfig(transformConfig);
+        if (transformTuple.length != 2) {
+            throw new TransformException("Invalid transform configuration: "
+                    + transformConfig);
+        }
+
+        if (!TransformConstants.ENCRYPTION_CLASS.equals(transformTuple[0])) {
+            throw new TransformException("Unsupported transform class: "
+                    + transformTuple[0]);
+        }
+        return transformTuple[1];
+    }
+
     protected String getEncryptionAlgorithm() {
         return encryptionTransform.split("/")[0];
     }
@@ -16,6 +16,7 @@ import java.security.cert.Certificate;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.crypto.NoSuchPaddingException;
 import javax.crypto.SecretKey;
@@ -30,6 +31,21 @@ import org.slf4j.LoggerFactory;
 import com.emc.vipr.transform.TransformConstants;
 import com.emc.vipr.transform.TransformException;
 
+/**
+ * Encryption factory that loads its master keys from a {@link KeyStore}.  Keys
+ * are referenced in object metadata by the fingerprint (Subject Key Identifier)
+ * of their certificate.
+ * <br>
+ * Recovering a private key from a keystore runs the keystore's password-based
+ * key recovery, which is expensive compared to encrypting a small object.  By
+ * default, recovered key pairs are cached in memory (see
+ * {@link #setKeyCacheEnabled(boolean)} and {@link #setKeyCacheTtl(long)}).  If
+ * the keystore is modified, call {@link #invalidateKeyCache()}.
+ * <br>
+ * Certificate fingerprints are indexed lazily: only the master key is indexed
+ * at construction and other aliases are indexed the first time an unknown
+ * fingerprint is requested.
+ */
 public class KeyStoreEncryptionFactory extends
         EncryptionTransformFactory<BasicEncryptionOutputTransform, BasicEncryptionInputTransform> {
     private static final Logger logger = LoggerFactory.getLogger(KeyStoreEncryptionFactory.class);
@@ -39,6 +55,10 @@ public class KeyStoreEncryptionFactory extends
     private String masterEncryptionKeyFingerprint;
     private char[] masterKeyPassword;
     private Map<String, String> idToAliasMap;
+    private Map<String, String> aliasToIdMap;
+    private Map<String, CachedKeyPair> keyPairCache;
+    private boolean keyCacheEnabled = true;
+    private long keyCacheTtl = 0;
 
     public KeyStoreEncryptionFactory(KeyStore keyStore,
             String masterEncryptionKeyAlias, 
@@ -53,7 +73,9 @@ public class KeyStoreEncryptionFactory extends
         this.keyStore = keyStore;
         this.masterEncryptionKeyAlias = masterEncryptionKeyAlias;
         this.masterKeyPassword = masterKeyPassword;
-        this.idToAliasMap = new HashMap<String, String>();
+        this.idToAliasMap = new ConcurrentHashMap<String, String>();
+        this.aliasToIdMap = new ConcurrentHashMap<String, String>();
+        this.keyPairCache = new ConcurrentHashMap<String, CachedKeyPair>();
         this.provider = provider;
         
         // Make sure the master encryption key alias exists.
@@ -65,22 +87,56 @@ public class KeyStoreEncryptionFactory extends
             throw new TransformException("Could not access KeyStore", e);
         }
         
-        // Index all the certificate fingerprints
+        // Index the master key's fingerprint.  Other aliases are indexed on
+        // demand by findAlias().
         try {
-            for(Enumeration<String> aliases = keyStore.aliases(); aliases.hasMoreElements();) {
-                String alias = aliases.nextElement();
-                
-                String fingerprint = getFingerprint(alias);
-                idToAliasMap.put(fingerprint, alias);
-                if(alias.equals(masterEncryptionKeyAlias)) {
-                    masterEncryptionKeyFingerprint = fingerprint;
-                }
-            }
+            masterEncryptionKeyFingerprint = indexAlias(masterEncryptionKeyAlias);
         } catch(KeyStoreException e) {
             throw new TransformException("Could not init factory from KeyStore", e);
         }
     }
     
+    private String indexAlias(String alias) throws KeyStoreException, NoSuchAlgorithmException {
+        String fingerprint = aliasToIdMap.get(alias);
+        if(fingerprint == null) {
+            fingerprint = getFingerprint(alias);
+            idToAliasMap.put(fingerprint, alias);
+            aliasToIdMap.put(alias, fingerprint);
+        }
+        return fingerprint;
+    }
+    
+    /**
+     * Finds the alias of the certificate with the given fingerprint, indexing
+     * any aliases that have not been indexed yet until it is found.
+     * @return the alias or null if no certificate in the keystore matches.
+     */
+    private String findAlias(String fingerprint) throws TransformException {
+        String alias = idToAliasMap.get(fingerprint);
+        if(alias != null) {
+            return alias;
+        }
+        
+        synchronized(this) {
+            try {
+                for(Enumeration<String> aliases = keyStore.aliases(); aliases.hasMoreElements();) {
+                    String candidate = aliases.nextElement();
+                    if(aliasToIdMap.containsKey(candidate)) {
+                        continue;
+                    }
+                    if(fingerprint.equals(indexAlias(candidate))) {
+                        return candidate;
+                    }
+                }
+            } catch(KeyStoreException e) {
+                throw new TransformException("Could not access keystore", e);
+            } catch(NoSuchAlgorithmException e) {
+                throw new TransformException("Could not compute certificate fingerprint", e);
+            }
+        }
+        return null;
+    }
+    
     private String getFingerprint(String alias) throws KeyStoreException, NoSuchAlgorithmException {
         Certificate cert = keyStore.getCertificate(alias);
         if(cert instanceof X509Certificate) {
@@ -118,12 +174,12 @@ public class KeyStoreEncryptionFactory extends
                     "Object is already using the current master key");
         }
         // Make sure we have the old key
-        if (!idToAliasMap.containsKey(oldKeyId)) {
+        String oldAlias = findAlias(oldKeyId);
+        if (oldAlias == null) {
             throw new TransformException("Master key with fingerprint "
                     + oldKeyId + " not found");
         }
         
-        String oldAlias = idToAliasMap.get(oldKeyId);
         KeyPair oldMasterKey = getKeyPair(oldAlias);
         String encodedKey = metadata.get(TransformConstants.META_ENCRYPTION_OBJECT_KEY);
         if(encodedKey == null) {
@@ -132,7 +188,7 @@ public class KeyStoreEncryptionFactory extends
         
         String algorithm = getEncryptionAlgorithm();
         
-        SecretKey objectKey = KeyUtils.decryptKey(encodedKey, algorithm, provider, oldMasterKey.getPrivate());
+        SecretKey objectKey = decryptObjectKey(oldKeyId, encodedKey, algorithm, oldMasterKey.getPrivate());
         
         // Re-encrypt key with the current master key
         KeyPair newMasterKey = getKeyPair(masterEncryptionKeyAlias);
@@ -159,6 +215,23 @@ public class KeyStoreEncryptionFactory extends
     }
     
     private KeyPair getKeyPair(String alias) throws TransformException {
+        if(!keyCacheEnabled) {
+            return loadKeyPair(alias);
+        }
+        
+        CachedKeyPair cached = keyPairCache.get(alias);
+        long now = System.currentTimeMillis();
+        if(cached != null && (keyCacheTtl <= 0 || now - cached.loadTime < keyCacheTtl)) {
+            return cached.keyPair;
+        }
+        
+        KeyPair keyPair = loadKeyPair(alias);
+        keyPairCache.put(alias, new CachedKeyPair(keyPair, now));
+        return keyPair;
+    }
+    
+    private KeyPair loadKeyPair(String alias) throws TransformException {
+        logger.debug("Loading key pair for alias {}", alias);
         Certificate keyCert;
         PrivateKey privateKey;
         try {
@@ -167,11 +240,11 @@ public class KeyStoreEncryptionFactory extends
                 masterKeyPassword);
             if(keyCert == null) {
                 throw new TransformException("Certificate for alias " + 
-                        masterEncryptionKeyAlias + " not found");
+                        alias + " not found");
             }
             if(privateKey == null) {
                 throw new TransformException("Private key for alias " + 
-                        masterEncryptionKeyAlias + " not found");
+                        alias + " not found");
             }
         } catch (KeyStoreException e) {
             throw new TransformException("Could not access keystore", e);
@@ -192,7 +265,7 @@ public class KeyStoreEncryptionFactory extends
         
         return new BasicEncryptionOutputTransform(streamToEncodeTo, metadataToEncode, 
                 masterEncryptionKeyFingerprint, asymmetricKey, encryptionTransform, 
-                keySize, provider);
+                keySize, provider, cipherPool, getDigestAlgorithm(), chunkSize);
     }
     
     @Override
@@ -204,24 +277,42 @@ public class KeyStoreEncryptionFactory extends
         
         return new BasicEncryptionOutputTransform(streamToEncode, metadataToEncode, 
                 masterEncryptionKeyFingerprint, asymmetricKey, encryptionTransform, 
-                keySize, provider);
+                keySize, provider, cipherPool, getDigestAlgorithm(), chunkSize);
     }
 
     @Override
     public BasicEncryptionInputTransform getInputTransform(
             String transformConfig, InputStream streamToDecode,
             Map<String, String> metadata) throws IOException, TransformException {
-        String[] transformTuple = splitTransformConfig(transformConfig);
-        if (transformTuple.length != 2) {
-            throw new TransformException("Invalid transform configuration: "
-                    + transformConfig);
-        }
+        return getInputTransform(transformConfig, streamToDecode, metadata, 0);
+    }
 
-        if (!TransformConstants.ENCRYPTION_CLASS.equals(transformTuple[0])) {
-            throw new TransformException("Unsupported transform class: "
-                    + transformTuple[0]);
-        }
+    @Override
+    public BasicEncryptionInputTransform getInputTransform(
+            String transformConfig, InputStream streamToDecode,
+            Map<String, String> metadata, long offset) throws IOException, TransformException {
+        String transform = getCipherTransform(transformConfig);
+        KeyPair asymmetricKey = findMasterKey(metadata);
+        
+        return new BasicEncryptionInputTransform(transform, streamToDecode, 
+                metadata, asymmetricKey, provider, objectKeyCache, offset, cipherPool);
+    }
 
+    @Override
+    public BasicEncryptionUpdateTransform getUpdateTransform(
+            String transformConfig, InputStream streamToEncode,
+            Map<String, String> metadata, long offset) throws IOException, TransformException {
+        String transform = getCipherTransform(transformConfig);
+        KeyPair asymmetricKey = findMasterKey(metadata);
+        
+        return new BasicEncryptionUpdateTransform(streamToEncode, metadata, 
+                transform, asymmetricKey, provider, objectKeyCache, offset);
+    }
+
+    /**
+     * Finds the master key pair that an object's key is encrypted with.
+     */
+    private KeyPair findMasterKey(Map<String, String> metadata) throws TransformException {
         // Find master key
         String masterKeyId = metadata
                 .get(TransformConstants.META_ENCRYPTION_KEY_ID);
@@ -229,15 +320,12 @@ public class KeyStoreEncryptionFactory extends
             throw new TransformException(
                     "Could not decrypt object. No master key ID set on object.");
         }
-        String masterKeyAlias = idToAliasMap.get(masterKeyId);
+        String masterKeyAlias = findAlias(masterKeyId);
         if(masterKeyAlias == null) {
             throw new TransformException("Could not find master key for ID " + masterKeyId);
         }
         
-        KeyPair asymmetricKey = getKeyPair(masterKeyAlias);
-        
-        return new BasicEncryptionInputTransform(transformTuple[1], streamToDecode, 
-                metadata, asymmetricKey, provider);
+        return getKeyPair(masterKeyAlias);
     }
 
     public String getMasterEncryptionKeyAlias() {
@@ -252,7 +340,7 @@ public class KeyStoreEncryptionFactory extends
             }
             
             // Get the fingerprint too
-            String fingerprint = getFingerprint(alias);
+            String fingerprint = indexAlias(alias);
             masterEncryptionKeyFingerprint = fingerprint;
             masterEncryptionKeyAlias = alias;
         } catch (KeyStoreException e) {
@@ -261,5 +349,81 @@ public class KeyStoreEncryptionFactory extends
             throw new TransformException("Could not load certificate for alias " + alias );
         }
     }
-    
-}
\ No newline at end of file
+
+    /**
+     * Removes the cached key pair for the given alias so it is loaded from the
+     * keystore again on next use.  Also forgets the alias' fingerprint in case
+     * its certificate was replaced.
+     * @param alias the alias to invalidate.
+     */
+    public void invalidateKey(String alias) {
+        keyPairCache.remove(alias);
+        String fingerprint = aliasToIdMap.remove(alias);
+        if(fingerprint != null && !alias.equals(masterEncryptionKeyAlias)) {
+            idToAliasMap.remove(fingerprint);
+        }
+    }
+
+    /**
+     * Removes all cached key pairs and fingerprints.  Call this after the
+     * keystore has been modified.
+     */
+    public void invalidateKeyCache() {
+        keyPairCache.clear();
+        synchronized(this) {
+            idToAliasMap.clear();
+            aliasToIdMap.clear();
+            if(masterEncryptionKeyFingerprint != null) {
+                idToAliasMap.put(masterEncryptionKeyFingerprint, masterEncryptionKeyAlias);
+                aliasToIdMap.put(masterEncryptionKeyAlias, masterEncryptionKeyFingerprint);
+            }
+        }
+    }
+
+    /**
+     * @return true if recovered key pairs are cached in memory.
+     */
+    public boolean isKeyCacheEnabled() {
+        return keyCacheEnabled;
+    }
+
+    /**
+     * Enables or disables caching of recovered key pairs.  When disabled,
+     * private keys are recovered from the keystore for every object.  Defaults
+     * to true.
+     */
+    public void setKeyCacheEnabled(boolean keyCacheEnabled) {
+        this.keyCacheEnabled = keyCacheEnabled;
+        if(!keyCacheEnabled) {
+            keyPairCache.clear();
+        }
+    }
+
+    /**
+     * @return the number of milliseconds a cached key pair is used before it
+     * is loaded from the keystore again.  Zero means cached key pairs never
+     * expire.
+     */
+    public long getKeyCacheTtl() {
+        return keyCacheTtl;
+    }
+
+    /**
+     * Sets the number of milliseconds a cached key pair is used before it is
+     * loaded from the keystore again.  Zero (the default) means cached key
+     * pairs never expire.
+     */
+    public void setKeyCacheTtl(long keyCacheTtl) {
+        this.keyCacheTtl = keyCacheTtl;
+    }
+
+    private static class CachedKeyPair {
+        KeyPair keyPair;
+        long loadTime;
+
+        CachedKeyPair(KeyPair keyPair, long loadTime) {
+            this.keyPair = keyPair;
+            this.loadTime = loadTime;
+        }
+    }
+}
@@ -162,12 +162,7 @@ public class KeyUtils {
     
     public static SecretKey decryptKey(String encodedKey, String algorithm, Provider provider, PrivateKey privateKey) {
         try {
-            Cipher cipher = null;
-            if(provider != null) {
-                cipher = Cipher.getInstance(TransformConstants.KEY_ENCRYPTION_TRANSFORM, provider);
-            } else {
-                cipher = Cipher.getInstance(TransformConstants.KEY_ENCRYPTION_TRANSFORM);
-            }
+            Cipher cipher = CryptoContextPool.getKeyWrapCipher(provider);
             
             cipher.init(Cipher.DECRYPT_MODE, privateKey);
             
@@ -183,12 +178,7 @@ public class KeyUtils {
     }
         
     public static String encryptKey(SecretKey key, Provider provider, PublicKey publicKey) throws GeneralSecurityException {
-        Cipher cipher = null;
-        if(provider != null) {
-            cipher = Cipher.getInstance(TransformConstants.KEY_ENCRYPTION_TRANSFORM, provider);
-        } else {
-            cipher = Cipher.getInstance(TransformConstants.KEY_ENCRYPTION_TRANSFORM);
-        }
+        Cipher cipher = CryptoContextPool.getKeyWrapCipher(provider);
         
         cipher.init(Cipher.ENCRYPT_MODE, publicKey);
         
@@ -285,19 +275,10 @@ public class KeyUtils {
 
         Signature sig = null;
         try {
-            if (provider != null) {
-                sig = Signature.getInstance(
-                        TransformConstants.METADATA_SIGNATURE_ALGORITHM,
-                        provider);
-            } else {
-                sig = Signature
-                        .getInstance(TransformConstants.METADATA_SIGNATURE_ALGORITHM);
-            }
+            sig = CryptoContextPool.getSignature(
+                    TransformConstants.METADATA_SIGNATURE_ALGORITHM, provider);
             sig.initSign(privateKey);
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(
-                    "Could not initialize signature algorithm: " + e, e);
-        } catch (InvalidKeyException e) {
+        } catch (GeneralSecurityException e) {
             throw new RuntimeException(
                     "Could not initialize signature algorithm: " + e, e);
         }
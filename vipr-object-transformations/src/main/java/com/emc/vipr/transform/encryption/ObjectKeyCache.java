@@ -0,0 +1,186 @@
+package com.emc.vipr.transform.encryption;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.Provider;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A bounded, expiring cache of unwrapped (RSA-decrypted) object keys.  Reading
+ * an encrypted object requires decrypting its object key with the master
+ * private key, which is far more expensive than decrypting a small object.
+ * With this cache, objects that are read repeatedly only pay for the RSA
+ * operation on the first read.
+ * <br>
+ * Entries are keyed by a SHA-256 hash of the master key ID and the wrapped
+ * object key, so the wrapped keys themselves are not kept.  The cache holds its
+ * own copy of each key's bytes and zeroes it when the entry is evicted,
+ * expires, or the cache is cleared.  Note that the SecretKey instances handed
+ * out to callers hold their own copies, which are not wiped.
+ * <br>
+ * Caching object keys keeps key material in memory for longer than necessary,
+ * so it is disabled unless a cache is set on the encryption factory (see
+ * {@link EncryptionTransformFactory#setObjectKeyCache(ObjectKeyCache)}).
+ */
+public class ObjectKeyCache {
+    private static final Logger logger = LoggerFactory.getLogger(ObjectKeyCache.class);
+
+    public static final int DEFAULT_MAX_ENTRIES = 1000;
+    public static final long DEFAULT_TTL = 5 * 60 * 1000; // 5 minutes
+
+    private int maxEntries;
+    private long ttl;
+    private LinkedHashMap<String, CachedKey> entries;
+    private long hits;
+    private long misses;
+
+    public ObjectKeyCache() {
+        this(DEFAULT_MAX_ENTRIES, DEFAULT_TTL);
+    }
+
+    /**
+     * @param maxEntries the maximum number of keys to hold.
+     * @param ttl the number of milliseconds a key is held after it is
+     * unwrapped.  Zero means keys only leave the cache when evicted.
+     */
+    public ObjectKeyCache(int maxEntries, long ttl) {
+        if(maxEntries < 1) {
+            throw new IllegalArgumentException("maxEntries must be at least 1");
+        }
+        this.maxEntries = maxEntries;
+        this.ttl = ttl;
+        this.entries = new LinkedHashMap<String, CachedKey>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedKey> eldest) {
+                if(size() > ObjectKeyCache.this.maxEntries) {
+                    eldest.getValue().wipe();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Unwraps an object key, using the cached copy if the same wrapped key was
+     * unwrapped before.
+     * @param masterKeyId the fingerprint of the master key that wrapped the
+     * object key.
+     * @param encodedKey the wrapped object key from the object's metadata.
+     * @param algorithm the object key's algorithm (e.g. AES).
+     * @param provider the crypto provider, or null for the default.
+     * @param privateKey the master private key.
+     * @return the object key.
+     */
+    public SecretKey unwrapKey(String masterKeyId, String encodedKey,
+            String algorithm, Provider provider, PrivateKey privateKey) {
+        String cacheKey = cacheKey(masterKeyId, encodedKey);
+        synchronized(this) {
+            CachedKey cached = entries.get(cacheKey);
+            if(cached != null) {
+                if(ttl <= 0 || System.currentTimeMillis() - cached.created < ttl) {
+                    hits++;
+                    return new SecretKeySpec(cached.keyData, cached.algorithm);
+                }
+                entries.remove(cacheKey);
+                cached.wipe();
+            }
+            misses++;
+        }
+
+        // Do the RSA work outside the lock.
+        SecretKey key = KeyUtils.decryptKey(encodedKey, algorithm, provider, privateKey);
+        synchronized(this) {
+            CachedKey previous = entries.put(cacheKey, new CachedKey(key.getEncoded(), algorithm));
+            if(previous != null) {
+                previous.wipe();
+            }
+        }
+        return key;
+    }
+
+    /**
+     * Removes the cached key for a wrapped object key.
+     */
+    public synchronized void invalidate(String masterKeyId, String encodedKey) {
+        CachedKey cached = entries.remove(cacheKey(masterKeyId, encodedKey));
+        if(cached != null) {
+            cached.wipe();
+        }
+    }
+
+    /**
+     * Wipes and removes all cached keys.
+     */
+    public synchronized void clear() {
+        for(Iterator<CachedKey> i = entries.values().iterator(); i.hasNext();) {
+            i.next().wipe();
+            i.remove();
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    public long getTtl() {
+        return ttl;
+    }
+
+    private static String cacheKey(String masterKeyId, String encodedKey) {
+        try {
+            MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+            sha256.update(String.valueOf(masterKeyId).getBytes("UTF-8"));
+            sha256.update((byte) '\n');
+            sha256.update(encodedKey.getBytes("UTF-8"));
+            return KeyUtils.toHexPadded(sha256.digest());
+        } catch(NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-256 not available", e);
+        } catch(UnsupportedEncodingException e) {
+            // Should never happen since UTF-8 is required.
+            throw new RuntimeException("UTF-8 not supported", e);
+        }
+    }
+
+    private static class CachedKey {
+        byte[] keyData;
+        String algorithm;
+        long created;
+
+        CachedKey(byte[] keyData, String algorithm) {
+            this.keyData = keyData;
+            this.algorithm = algorithm;
+            this.created = System.currentTimeMillis();
+        }
+
+        void wipe() {
+            Arrays.fill(keyData, (byte) 0);
+            logger.debug("Wiped cached object key");
+        }
+    }
+}
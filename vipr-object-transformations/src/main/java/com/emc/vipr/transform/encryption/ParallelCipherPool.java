@@ -0,0 +1,123 @@
+package com.emc.vipr.transform.encryption;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.emc.vipr.transform.util.DaemonThreadFactory;
+
+/**
+ * A bounded pool of threads that encrypt and decrypt chunks of counter (CTR)
+ * mode objects in parallel.  A single pool is meant to be shared by all
+ * streams of an encryption factory (see
+ * {@link EncryptionTransformFactory#setCipherPool(ParallelCipherPool)}).
+ * <br>
+ * Each stream keeps at most {@link #getMaxInFlight()} chunks queued or
+ * running at a time, so memory use per stream is bounded by
+ * maxInFlight * chunkSize.
+ * <br>
+ * {@link #shutdown()} lets the streams that are still open finish; the threads
+ * stop when the last of them is closed.
+ */
+public class ParallelCipherPool {
+    /**
+     * Default chunk size (1MB).  Must be a multiple of the cipher block size.
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+
+    private static final int BLOCK_SIZE = 16;
+
+    private ExecutorService executor;
+    private int threads;
+    private int chunkSize;
+    private int openStreams;
+    private boolean shutdown;
+
+    /**
+     * Creates a pool with one thread per available processor.
+     */
+    public ParallelCipherPool() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public ParallelCipherPool(int threads) {
+        this(threads, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * @param threads the number of cipher threads.
+     * @param chunkSize the number of bytes encrypted by each task.  Must be a
+     * multiple of 16 (the AES block size).
+     */
+    public ParallelCipherPool(int threads, int chunkSize) {
+        if(threads < 1) {
+            throw new IllegalArgumentException("threads must be at least 1");
+        }
+        if(chunkSize < BLOCK_SIZE || chunkSize % BLOCK_SIZE != 0) {
+            throw new IllegalArgumentException("chunkSize must be a multiple of " + BLOCK_SIZE);
+        }
+        this.threads = threads;
+        this.chunkSize = chunkSize;
+        this.executor = Executors.newFixedThreadPool(threads, new DaemonThreadFactory("parallel-cipher"));
+    }
+
+    <T> Future<T> submit(Callable<T> task) {
+        return executor.submit(task);
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * @return the maximum number of chunks each stream keeps in flight.
+     */
+    public int getMaxInFlight() {
+        return threads * 2;
+    }
+
+    /**
+     * Registers a stream that will submit chunks to the pool.
+     */
+    synchronized void open() {
+        if(shutdown) {
+            throw new IllegalStateException("Cipher pool is shut down");
+        }
+        openStreams++;
+    }
+
+    /**
+     * Unregisters a stream opened with {@link #open()}.
+     */
+    synchronized void release() {
+        openStreams--;
+        if(shutdown && openStreams == 0) {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Stops the pool once the streams that are still open are closed.  No new
+     * streams may be opened.
+     */
+    public synchronized void shutdown() {
+        shutdown = true;
+        if(openStreams == 0) {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Stops the cipher threads immediately.  Streams that are still open will
+     * fail.
+     */
+    public synchronized void shutdownNow() {
+        shutdown = true;
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,281 @@
+package com.emc.vipr.transform.encryption;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.Provider;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+
+/**
+ * Encrypts or decrypts a counter (CTR) mode object in chunks on a
+ * {@link ParallelCipherPool}.  In CTR mode, block n of an object is encrypted
+ * with IV+n independently of every other block, so chunks can be processed in
+ * any order and on any thread.  The output is identical to running the whole
+ * object through a single cipher, so objects written in parallel can be read
+ * serially and vice versa.
+ * <br>
+ * The streams returned here read from (or write to) the underlying stream on
+ * the caller's thread and keep chunks in order.  Encryption and decryption are
+ * the same operation in CTR mode; the mode passed to the cipher only matters
+ * to providers that check it.
+ */
+public class ParallelCtrCipher {
+    private ParallelCipherPool pool;
+    private String transform;
+    private SecretKey key;
+    private byte[] iv;
+    private Provider provider;
+
+    /**
+     * @param pool the thread pool to run the cipher on.
+     * @param transform the cipher transform.  Must use CTR mode.
+     * @param key the object key.
+     * @param iv the object's IV (initial counter block).
+     * @param provider the crypto provider, or null for the default.
+     */
+    public ParallelCtrCipher(ParallelCipherPool pool, String transform, SecretKey key,
+            byte[] iv, Provider provider) {
+        if(!BasicEncryptionInputTransform.isSeekable(transform)) {
+            throw new IllegalArgumentException("Only CTR mode can be run in parallel: " + transform);
+        }
+        this.pool = pool;
+        this.transform = transform;
+        this.key = key;
+        this.iv = iv;
+        this.provider = provider;
+    }
+
+    /**
+     * Returns a stream that encrypts everything written to it into out.
+     */
+    public OutputStream newOutputStream(OutputStream out) {
+        return new ParallelCipherOutputStream(out);
+    }
+
+    /**
+     * Returns a stream that decrypts (or encrypts) the content of in.
+     * @param offset the position in the object where in starts.
+     */
+    public InputStream newInputStream(InputStream in, int mode, long offset) {
+        return new ParallelCipherInputStream(in, mode, offset);
+    }
+
+    private Future<byte[]> submit(final byte[] data, final int mode, final long offset) {
+        return pool.submit(new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws Exception {
+                crypt(data, mode, offset);
+                return data;
+            }
+        });
+    }
+
+    /**
+     * Runs a chunk through the cipher in place.
+     */
+    void crypt(byte[] data, int mode, long offset) throws GeneralSecurityException {
+        Cipher cipher = CryptoContextPool.leaseCipher(transform, provider);
+        try {
+            int blockSize = cipher.getBlockSize();
+            byte[] counter = BasicEncryptionInputTransform.addToCounter(iv, offset / blockSize);
+            cipher.init(mode, key, new IvParameterSpec(counter));
+            int skip = (int) (offset % blockSize);
+            if(skip > 0) {
+                cipher.update(new byte[skip]);
+            }
+            cipher.doFinal(data, 0, data.length, data, 0);
+        } finally {
+            CryptoContextPool.returnCipher(transform, provider, cipher);
+        }
+    }
+
+    private static byte[] await(Future<byte[]> future) throws IOException {
+        try {
+            return future.get();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for cipher", e);
+        } catch(ExecutionException e) {
+            throw new IOException("Error running cipher: " + e.getCause(), e.getCause());
+        }
+    }
+
+    private static void cancel(LinkedList<Future<byte[]>> pending) {
+        for(Future<byte[]> f : pending) {
+            f.cancel(false);
+        }
+        pending.clear();
+    }
+
+    private class ParallelCipherOutputStream extends OutputStream {
+        private OutputStream out;
+        private LinkedList<Future<byte[]>> pending = new LinkedList<Future<byte[]>>();
+        private byte[] buffer;
+        private int count;
+        private long offset;
+        private boolean closed;
+
+        ParallelCipherOutputStream(OutputStream out) {
+            this.out = out;
+            this.buffer = new byte[pool.getChunkSize()];
+            pool.open();
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if(closed) {
+                throw new IOException("Stream closed");
+            }
+            while(len > 0) {
+                int n = Math.min(len, buffer.length - count);
+                System.arraycopy(b, off, buffer, count, n);
+                count += n;
+                off += n;
+                len -= n;
+                if(count == buffer.length) {
+                    submitBuffer();
+                }
+            }
+        }
+
+        /**
+         * Writes out all completed chunks.  A partial chunk stays buffered
+         * until it fills up or the stream is closed.
+         */
+        @Override
+        public void flush() throws IOException {
+            while(!pending.isEmpty()) {
+                out.write(await(pending.removeFirst()));
+            }
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if(closed) return;
+            try {
+                if(count > 0) {
+                    submitBuffer();
+                }
+                flush();
+            } finally {
+                closed = true;
+                cancel(pending);
+                pool.release();
+                out.close();
+            }
+        }
+
+        private void submitBuffer() throws IOException {
+            // Keep the number of chunks in memory bounded.
+            while(pending.size() >= pool.getMaxInFlight()) {
+                out.write(await(pending.removeFirst()));
+            }
+            byte[] chunk = count == buffer.length ? buffer : Arrays.copyOf(buffer, count);
+            pending.addLast(submit(chunk, Cipher.ENCRYPT_MODE, offset));
+            offset += count;
+            buffer = new byte[pool.getChunkSize()];
+            count = 0;
+        }
+    }
+
+    private class ParallelCipherInputStream extends InputStream {
+        private InputStream in;
+        private int mode;
+        private LinkedList<Future<byte[]>> pending = new LinkedList<Future<byte[]>>();
+        private byte[] current;
+        private int pos;
+        private long offset;
+        private boolean eof;
+        private boolean closed;
+
+        ParallelCipherInputStream(InputStream in, int mode, long offset) {
+            this.in = in;
+            this.mode = mode;
+            this.offset = offset;
+            pool.open();
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int c = read(b, 0, 1);
+            return c == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if(len == 0) {
+                return 0;
+            }
+            while(current == null || pos == current.length) {
+                readAhead();
+                if(pending.isEmpty()) {
+                    return -1;
+                }
+                current = await(pending.removeFirst());
+                pos = 0;
+            }
+            int n = Math.min(len, current.length - pos);
+            System.arraycopy(current, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return current == null ? 0 : current.length - pos;
+        }
+
+        @Override
+        public void close() throws IOException {
+            cancel(pending);
+            current = null;
+            if(!closed) {
+                closed = true;
+                pool.release();
+            }
+            in.close();
+        }
+
+        /**
+         * Reads and submits chunks until enough are in flight.
+         */
+        private void readAhead() throws IOException {
+            while(!eof && pending.size() < pool.getMaxInFlight()) {
+                byte[] chunk = new byte[pool.getChunkSize()];
+                int count = 0;
+                while(count < chunk.length) {
+                    int c = in.read(chunk, count, chunk.length - count);
+                    if(c == -1) {
+                        eof = true;
+                        break;
+                    }
+                    count += c;
+                }
+                if(count == 0) {
+                    break;
+                }
+                if(count < chunk.length) {
+                    chunk = Arrays.copyOf(chunk, count);
+                }
+                pending.addLast(submit(chunk, mode, offset));
+                offset += count;
+            }
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package com.emc.vipr.transform.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Lets a thread close a stream chain without returning the chain's leased
+ * ciphers, digests and coders to their pools.  This is for a chain that another
+ * thread may still be inside of (e.g. stuck in a socket read that only closing
+ * the chain will end), where a returned object could be leased by another stream
+ * while it is still in use.  The dropped objects are left to the garbage
+ * collector instead.
+ */
+public class AbandonedLeases {
+    private static final ThreadLocal<Boolean> abandoning = new ThreadLocal<Boolean>();
+
+    private AbandonedLeases() {
+    }
+
+    /**
+     * Closes a stream chain.  Objects that the chain's streams return to their
+     * pools on this thread while closing are dropped.
+     */
+    public static void close(Closeable chain) throws IOException {
+        abandoning.set(Boolean.TRUE);
+        try {
+            chain.close();
+        } finally {
+            abandoning.remove();
+        }
+    }
+
+    /**
+     * @return true if this thread is closing an abandoned chain, in which case
+     * pools must not take objects back and streams must not wait for other
+     * threads still using the chain.
+     */
+    public static boolean isAbandoning() {
+        return abandoning.get() != null;
+    }
+}
@@ -0,0 +1,184 @@
+package com.emc.vipr.transform.util;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An append-only file of text records, one per line.  Used to keep the state of
+ * long operations (e.g. resumable uploads and downloads, or the chunks stored by
+ * a dedup client) so they can continue after a crash.
+ * <br>
+ * Each record is written with a single write, so it reaches the OS before
+ * {@link #append(String)} returns.  Records are synced to disk in batches (see
+ * {@link #setSyncInterval(int)}), so a crash of the machine can lose the last
+ * few; owners must only record work that is safe to do again.  A record left
+ * incomplete by a crash is removed when the journal is read.
+ * <br>
+ * If the records describe data written to another file, set it with
+ * {@link #setDataFile(FileDescriptor)}: it is synced before the journal, so a
+ * record on disk never describes data that isn't.  This class is not
+ * thread-safe.
+ */
+public class AppendOnlyJournal {
+    private static final Logger log = LoggerFactory.getLogger(AppendOnlyJournal.class);
+
+    public static final int DEFAULT_SYNC_INTERVAL = 8;
+
+    private static final String CHARSET = "UTF-8";
+
+    /**
+     * Receives the records of a journal as it is read.
+     */
+    public interface RecordHandler {
+        void handle(String record) throws IOException;
+    }
+
+    private File file;
+    private FileOutputStream out;
+    private FileDescriptor dataFile;
+    private int syncInterval = DEFAULT_SYNC_INTERVAL;
+    private int unsyncedRecords;
+
+    public AppendOnlyJournal(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Passes each complete record in the journal to the handler in order, and
+     * removes an incomplete last record.  Call this before appending to an
+     * existing journal.  Does nothing if the file doesn't exist.
+     */
+    public void read(RecordHandler handler) throws IOException {
+        if(!file.exists()) {
+            return;
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            InputStream in = new BufferedInputStream(new FileInputStream(raf.getFD()));
+            ByteArrayOutputStream record = new ByteArrayOutputStream();
+            long pos = 0;
+            long end = 0;
+            int c;
+            while((c = in.read()) != -1) {
+                pos++;
+                if(c == '\n') {
+                    handler.handle(record.toString(CHARSET));
+                    record.reset();
+                    end = pos;
+                } else {
+                    record.write(c);
+                }
+            }
+            if(end < pos) {
+                log.warn("Truncating incomplete record in {}", file);
+                raf.setLength(end);
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Appends a record.  The journal is synced if the sync interval is reached.
+     * @param record the record.  Must not contain line breaks.
+     */
+    public void append(String record) throws IOException {
+        if(record.indexOf('\n') != -1 || record.indexOf('\r') != -1) {
+            throw new IllegalArgumentException("Invalid journal record: " + record);
+        }
+        if(out == null) {
+            out = new FileOutputStream(file, true);
+        }
+        out.write((record + "\n").getBytes(CHARSET));
+        if(++unsyncedRecords >= syncInterval) {
+            sync();
+        }
+    }
+
+    /**
+     * Removes all records.  Call {@link #sync()} after appending the first new
+     * record to make the change durable.
+     */
+    public void reset() throws IOException {
+        close();
+        out = new FileOutputStream(file, false);
+    }
+
+    /**
+     * Forces the data file (if set) and then the journal to disk.
+     */
+    public void sync() throws IOException {
+        if(out != null) {
+            if(dataFile != null) {
+                dataFile.sync();
+            }
+            out.getFD().sync();
+        }
+        unsyncedRecords = 0;
+    }
+
+    /**
+     * Syncs and closes the journal.  It can be opened again to continue.
+     */
+    public void close() throws IOException {
+        if(out == null) {
+            return;
+        }
+        try {
+            sync();
+        } finally {
+            out.close();
+            out = null;
+        }
+    }
+
+    /**
+     * Closes and removes the journal.
+     */
+    public void delete() {
+        try {
+            close();
+        } catch(IOException e) {
+            log.warn("Error closing journal " + file, e);
+        }
+        if(file.exists() && !file.delete()) {
+            log.warn("Could not delete journal {}", file);
+        }
+    }
+
+    /**
+     * Sets the number of records that are written between syncs.  Set to 1 to
+     * sync after every record.
+     */
+    public void setSyncInterval(int syncInterval) {
+        if(syncInterval < 1) {
+            throw new IllegalArgumentException("Sync interval must be at least 1");
+        }
+        this.syncInterval = syncInterval;
+    }
+
+    public int getSyncInterval() {
+        return syncInterval;
+    }
+
+    /**
+     * Sets a file that is synced before each sync of the journal (may be null).
+     */
+    public void setDataFile(FileDescriptor dataFile) {
+        this.dataFile = dataFile;
+    }
+
+    public File getFile() {
+        return file;
+    }
+}
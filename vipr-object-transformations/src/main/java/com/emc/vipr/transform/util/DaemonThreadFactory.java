@@ -0,0 +1,30 @@
+package com.emc.vipr.transform.util;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates daemon threads named &lt;name&gt;-&lt;pool&gt;-&lt;thread&gt;, so background
+ * pools never keep the JVM from exiting and their threads can be told apart in
+ * a thread dump.
+ */
+public class DaemonThreadFactory implements ThreadFactory {
+    private static final AtomicInteger poolCount = new AtomicInteger();
+
+    private final String prefix;
+    private final AtomicInteger threadCount = new AtomicInteger();
+
+    /**
+     * @param name the name of the pool's threads, e.g. "read-ahead".
+     */
+    public DaemonThreadFactory(String name) {
+        this.prefix = name + "-" + poolCount.incrementAndGet() + "-";
+    }
+
+    @Override
+    public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, prefix + threadCount.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+    }
+}
@@ -0,0 +1,131 @@
+package com.emc.vipr.transform.util;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
+import java.util.Map;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+
+import com.emc.vipr.transform.encryption.KeyUtils;
+
+/**
+ * Creates the digests transforms use to record the integrity of their input.
+ * Besides the JCA algorithms (SHA1, MD5, SHA-256, ...), "CRC32" and "ADLER32"
+ * are available as much faster checksums that still detect accidental
+ * corruption, and "NONE" disables the digest.
+ * <br>
+ * SHA1 digests are stored under the original "-sha1" metadata tags so objects
+ * stay readable by older clients.  Other algorithms are stored under the
+ * "-digest" tags as "algorithm:hex".
+ */
+public class Digests {
+    public static final String NONE = "NONE";
+    public static final String CRC32 = "CRC32";
+    public static final String ADLER32 = "ADLER32";
+
+    private Digests() {
+    }
+
+    /**
+     * Creates a digest.
+     * @param algorithm the algorithm name.
+     * @param provider the JCA provider, or null for the default.
+     * @return the digest, or null if the algorithm is {@link #NONE}.
+     */
+    public static MessageDigest newDigest(String algorithm, Provider provider)
+            throws NoSuchAlgorithmException {
+        if(NONE.equalsIgnoreCase(algorithm)) {
+            return null;
+        } else if(CRC32.equalsIgnoreCase(algorithm)) {
+            return new ChecksumDigest(CRC32, new CRC32());
+        } else if(ADLER32.equalsIgnoreCase(algorithm)) {
+            return new ChecksumDigest(ADLER32, new Adler32());
+        } else if(provider != null) {
+            return MessageDigest.getInstance(algorithm, provider);
+        } else {
+            return MessageDigest.getInstance(algorithm);
+        }
+    }
+
+    public static MessageDigest newDigest(String algorithm) throws NoSuchAlgorithmException {
+        return newDigest(algorithm, null);
+    }
+
+    /**
+     * Completes a digest created by {@link #newDigest(String, Provider)}.
+     * @return the digest value, or null if the digest is null.
+     */
+    public static byte[] digest(MessageDigest digest) {
+        return digest == null ? null : digest.digest();
+    }
+
+    /**
+     * @return true if the algorithm is SHA1.
+     */
+    public static boolean isSha1(String algorithm) {
+        return "SHA1".equalsIgnoreCase(algorithm) || "SHA-1".equalsIgnoreCase(algorithm);
+    }
+
+    /**
+     * Adds a digest to metadata.
+     * @param metadata the metadata to add to.
+     * @param sha1Key the tag for SHA1 digests.
+     * @param digestKey the tag for other algorithms.
+     * @param algorithm the digest's algorithm.
+     * @param digest the digest value, or null if no digest was computed.
+     */
+    public static void putDigest(Map<String, String> metadata, String sha1Key,
+            String digestKey, String algorithm, byte[] digest) {
+        if(digest == null) {
+            return;
+        }
+        if(isSha1(algorithm)) {
+            metadata.put(sha1Key, KeyUtils.toHexPadded(digest));
+        } else {
+            metadata.put(digestKey, algorithm + ":" + KeyUtils.toHexPadded(digest));
+        }
+    }
+
+    /**
+     * Adapts a 32-bit {@link Checksum} to a MessageDigest so it can be used with
+     * DigestInputStream and DigestOutputStream.
+     */
+    private static class ChecksumDigest extends MessageDigest {
+        private Checksum checksum;
+
+        ChecksumDigest(String algorithm, Checksum checksum) {
+            super(algorithm);
+            this.checksum = checksum;
+        }
+
+        @Override
+        protected void engineUpdate(byte input) {
+            checksum.update(input);
+        }
+
+        @Override
+        protected void engineUpdate(byte[] input, int offset, int len) {
+            checksum.update(input, offset, len);
+        }
+
+        @Override
+        protected int engineGetDigestLength() {
+            return 4;
+        }
+
+        @Override
+        protected byte[] engineDigest() {
+            long value = checksum.getValue();
+            checksum.reset();
+            return new byte[] { (byte) (value >>> 24), (byte) (value >>> 16),
+                    (byte) (value >>> 8), (byte) value };
+        }
+
+        @Override
+        protected void engineReset() {
+            checksum.reset();
+        }
+    }
+}
@@ -0,0 +1,281 @@
+package com.emc.vipr.transform.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads an input stream on a background thread into a bounded ring of buffers.
+ * Wrapping a decode chain (decrypt, decompress, digest) in this stream lets the
+ * network receive and decode run while the consumer processes the previous
+ * buffer, instead of all of them taking turns on the consumer's thread.  The
+ * same goes for an encode chain whose output is being uploaded.
+ * <br>
+ * The worker stops reading when all buffers are full, so at most
+ * buffers * bufferSize bytes are read ahead.  Errors from the underlying stream
+ * are rethrown to the consumer in order, after the data that preceded them.
+ * Closing this stream stops the worker and waits for it to exit before closing
+ * the underlying stream, so the underlying stream is never closed (and e.g. its
+ * pooled Inflater released) while the worker is still reading it.  A worker
+ * stuck in a read that ignores interrupts (e.g. a stalled socket) can only be
+ * stopped by closing the underlying stream, so after the close timeout the
+ * underlying stream is closed anyway and its pooled objects are dropped instead
+ * of returned (see {@link AbandonedLeases}).
+ */
+public class ReadAheadInputStream extends InputStream {
+    /**
+     * Default buffer size (64KB).
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Default time close() waits for the worker to stop (10s).
+     */
+    public static final long DEFAULT_CLOSE_TIMEOUT = 10000;
+
+    private static final ExecutorService executor = Executors.newCachedThreadPool(
+            new DaemonThreadFactory("read-ahead"));
+
+    private static final Chunk EOF = new Chunk(null, -1, null);
+
+    private InputStream in;
+    private BlockingQueue<byte[]> free = new LinkedBlockingQueue<byte[]>();
+    private BlockingQueue<Chunk> filled = new LinkedBlockingQueue<Chunk>();
+    private CountDownLatch workerDone = new CountDownLatch(1);
+    private Thread workerThread;
+    private long closeTimeout = DEFAULT_CLOSE_TIMEOUT;
+    private volatile boolean closed;
+    private Chunk current;
+    private int pos;
+    private boolean eof;
+
+    public ReadAheadInputStream(InputStream in, int buffers) {
+        this(in, DEFAULT_BUFFER_SIZE, buffers);
+    }
+
+    /**
+     * @param in the stream to read.  After construction, it is only read by the
+     * worker thread.
+     * @param bufferSize the size of each buffer.
+     * @param buffers the number of buffers to read ahead.
+     */
+    public ReadAheadInputStream(InputStream in, int bufferSize, int buffers) {
+        if(bufferSize < 1) {
+            throw new IllegalArgumentException("bufferSize must be at least 1");
+        }
+        if(buffers < 1) {
+            throw new IllegalArgumentException("buffers must be at least 1");
+        }
+        this.in = in;
+        for(int i = 0; i < buffers; i++) {
+            free.add(new byte[bufferSize]);
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                readAhead();
+            }
+        });
+    }
+
+    private void readAhead() {
+        try {
+            synchronized(this) {
+                if(closed) {
+                    return;
+                }
+                workerThread = Thread.currentThread();
+            }
+            while(!closed) {
+                byte[] buffer = free.take();
+                int count = 0;
+                int c = 0;
+                while(count < buffer.length
+                        && (c = in.read(buffer, count, buffer.length - count)) != -1) {
+                    count += c;
+                }
+                if(count > 0) {
+                    filled.put(new Chunk(buffer, count, null));
+                }
+                if(c == -1) {
+                    filled.put(EOF);
+                    return;
+                }
+            }
+        } catch(InterruptedException e) {
+            // closed
+        } catch(Throwable t) {
+            filled.add(new Chunk(null, -1, t));
+        } finally {
+            synchronized(this) {
+                workerThread = null;
+                // Don't leave an interrupt from close() on the pool's thread.
+                Thread.interrupted();
+            }
+            workerDone.countDown();
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        int c = read(b, 0, 1);
+        return c == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if(closed) {
+            throw new IOException("Stream closed");
+        }
+        if(len == 0) {
+            return 0;
+        }
+        if(!nextChunk()) {
+            return -1;
+        }
+        int n = Math.min(len, current.length - pos);
+        System.arraycopy(current.buffer, pos, b, off, n);
+        pos += n;
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        if(closed) {
+            throw new IOException("Stream closed");
+        }
+        long skipped = 0;
+        while(skipped < n && nextChunk()) {
+            int c = (int) Math.min(n - skipped, current.length - pos);
+            pos += c;
+            skipped += c;
+        }
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return current == null ? 0 : current.length - pos;
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized(this) {
+            if(closed) return;
+            closed = true;
+            if(workerThread != null) {
+                // Wakes the worker if it is waiting for a free buffer.
+                workerThread.interrupt();
+            }
+        }
+        // The worker may be inside in.read(), which may ignore interrupts.
+        if(awaitWorker()) {
+            in.close();
+        } else {
+            // Closing the stream is the only way left to unblock the worker, 
+            // which is still using it.
+            AbandonedLeases.close(in);
+        }
+    }
+
+    /**
+     * Waits up to the close timeout for the worker to exit.
+     * @return false if the worker is still running.
+     */
+    private boolean awaitWorker() {
+        long deadline = System.currentTimeMillis() + closeTimeout;
+        boolean interrupted = false;
+        try {
+            while(true) {
+                try {
+                    return workerDone.await(deadline - System.currentTimeMillis(), 
+                            TimeUnit.MILLISECONDS);
+                } catch(InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if(interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * @return the time close() waits for the worker to stop, in milliseconds.
+     */
+    public long getCloseTimeout() {
+        return closeTimeout;
+    }
+
+    /**
+     * Sets the time close() waits for the worker to stop before closing the 
+     * underlying stream anyway.
+     * @param closeTimeout the timeout in milliseconds.
+     */
+    public void setCloseTimeout(long closeTimeout) {
+        this.closeTimeout = closeTimeout;
+    }
+
+    /**
+     * Makes sure current has unread data, waiting for the worker if necessary.
+     * @return false at the end of the stream.
+     */
+    private boolean nextChunk() throws IOException {
+        if(current != null && pos < current.length) {
+            return true;
+        }
+        if(current != null) {
+            // Hand the exhausted buffer back to the worker.
+            free.add(current.buffer);
+            current = null;
+        }
+        if(eof) {
+            return false;
+        }
+
+        Chunk chunk;
+        try {
+            chunk = filled.take();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for data", e);
+        }
+        if(chunk == EOF) {
+            eof = true;
+            return false;
+        }
+        if(chunk.error != null) {
+            eof = true;
+            if(chunk.error instanceof IOException) {
+                throw (IOException) chunk.error;
+            } else if(chunk.error instanceof RuntimeException) {
+                throw (RuntimeException) chunk.error;
+            } else if(chunk.error instanceof Error) {
+                throw (Error) chunk.error;
+            }
+            throw new IOException("Error reading stream: " + chunk.error, chunk.error);
+        }
+        current = chunk;
+        pos = 0;
+        return true;
+    }
+
+    private static class Chunk {
+        final byte[] buffer;
+        final int length;
+        final Throwable error;
+
+        Chunk(byte[] buffer, int length, Throwable error) {
+            this.buffer = buffer;
+            this.length = length;
+            this.error = error;
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package com.emc.vipr.transform.block;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.KeyPair;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.emc.vipr.transform.TransformConstants;
+import com.emc.vipr.transform.compression.CompressionTransformFactory;
+import com.emc.vipr.transform.compression.DeflateBlockStage;
+import com.emc.vipr.transform.compression.DeflateOutputStream;
+import com.emc.vipr.transform.encryption.BasicEncryptionTransformFactory;
+import com.emc.vipr.transform.encryption.KeyUtils;
+
+public class BlockPipelineTest {
+    private byte[] data;
+    private CompressionTransformFactory compression;
+    private BasicEncryptionTransformFactory encryption;
+
+    @Before
+    public void setUp() throws Exception {
+        data = readAll(this.getClass().getClassLoader().getResourceAsStream("uncompressed.txt"));
+
+        Properties keyprops = new Properties();
+        keyprops.load(this.getClass().getClassLoader()
+                .getResourceAsStream("keys.properties"));
+        KeyPair masterKey = KeyUtils.rsaKeyPairFromBase64(
+                keyprops.getProperty("masterkey.public"),
+                keyprops.getProperty("masterkey.private"));
+
+        compression = new CompressionTransformFactory();
+        encryption = new BasicEncryptionTransformFactory();
+        encryption.setMasterEncryptionKey(masterKey);
+    }
+
+    @Test
+    public void testDeflateMatchesStream() throws Exception {
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        DeflateOutputStream dos = new DeflateOutputStream(expected, 5);
+        dos.write(data);
+        dos.close();
+
+        // Heap blocks through the push adapter
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BlockPipeline pipeline = new BlockPipeline(Arrays.asList(new DeflateBlockStage(5, null)));
+        pipeline.connect(new OutputStreamSink(out));
+        BlockOutputStream bos = new BlockOutputStream(pipeline, 100000);
+        bos.write(data, 0, 10);
+        bos.write(data, 10, 500000);
+        bos.write(data, 500010, data.length - 500010);
+        bos.close();
+        assertArrayEquals(expected.toByteArray(), out.toByteArray());
+        assertEquals("COMP:Deflate/5", pipeline.getTransformConfig());
+
+        // Direct blocks
+        out.reset();
+        pipeline = new BlockPipeline(Arrays.asList(new DeflateBlockStage(5, null)));
+        pipeline.connect(new OutputStreamSink(out));
+        ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+        direct.put(data);
+        direct.flip();
+        pipeline.write(direct);
+        pipeline.close();
+        assertArrayEquals(expected.toByteArray(), out.toByteArray());
+    }
+
+    @Test
+    public void testCompressEncrypt() throws Exception {
+        BlockPipeline pipeline = BlockPipeline.create(
+                Arrays.<BlockTransformFactory>asList(compression, encryption));
+        assertEquals(3, pipeline.getStages().size());
+
+        BlockInputStream in = new BlockInputStream(new ByteArrayInputStream(data), pipeline);
+        byte[] encoded = readAll(in);
+        assertEquals("COMP:Deflate/5|ENC:AES/CBC/PKCS5Padding", pipeline.getTransformConfig());
+
+        Map<String, String> metadata = new HashMap<String, String>();
+        metadata.put("name1", "value1");
+        metadata = pipeline.getEncodedMetadata(metadata);
+        assertEquals("value1", metadata.get("name1"));
+        assertEquals("027e997e6b1dfc97b93eb28dc9a6804096d85873",
+                metadata.get(TransformConstants.META_COMPRESSION_UNCOMP_SHA1));
+        assertEquals("" + data.length, metadata.get(TransformConstants.META_COMPRESSION_UNCOMP_SIZE));
+        assertFalse(metadata.containsKey(TransformConstants.META_ENCRYPTION_UNENC_SHA1));
+        assertNotNull(metadata.get(TransformConstants.META_ENCRYPTION_META_SIG));
+
+        // Read back with the stream transforms.
+        InputStream decoded = encryption.getInputTransform("ENC:AES/CBC/PKCS5Padding",
+                new ByteArrayInputStream(encoded), metadata).getDecodedInputStream();
+        decoded = compression.getInputTransform("COMP:Deflate/5", decoded, metadata)
+                .getDecodedInputStream();
+        assertArrayEquals(data, readAll(decoded));
+    }
+
+    @Test
+    public void testEncryptOnly() throws Exception {
+        encryption.setDigestAlgorithm("CRC32");
+        BlockPipeline pipeline = BlockPipeline.create(
+                Arrays.<BlockTransformFactory>asList(encryption));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        pipeline.connect(new OutputStreamSink(out));
+        BlockOutputStream bos = new BlockOutputStream(pipeline);
+
+        try {
+            pipeline.getEncodedMetadata(new HashMap<String, String>());
+            fail("Should not be able to get metadata until the pipeline is closed");
+        } catch(IllegalStateException e) {
+            // expected
+        }
+
+        bos.write(data);
+        bos.close();
+
+        Map<String, String> metadata = pipeline.getEncodedMetadata(new HashMap<String, String>());
+        assertNotNull(metadata.get(TransformConstants.META_ENCRYPTION_UNENC_DIGEST));
+        assertEquals("" + data.length, metadata.get(TransformConstants.META_ENCRYPTION_UNENC_SIZE));
+
+        // The signature covers the digest, so the metadata must verify.
+        InputStream decoded = encryption.getInputTransform("ENC:AES/CBC/PKCS5Padding",
+                new ByteArrayInputStream(out.toByteArray()), metadata).getDecodedInputStream();
+        assertArrayEquals(data, readAll(decoded));
+    }
+
+    private static byte[] readAll(InputStream in) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int c;
+        while((c = in.read(buffer)) != -1) {
+            out.write(buffer, 0, c);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+}
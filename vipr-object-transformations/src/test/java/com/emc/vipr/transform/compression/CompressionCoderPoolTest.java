@@ -0,0 +1,129 @@
+package com.emc.vipr.transform.compression;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.emc.vipr.transform.compression.CompressionTransformFactory.LzmaProfile;
+
+public class CompressionCoderPoolTest {
+
+    private byte[] data;
+
+    @Before
+    public void setUp() throws Exception {
+        CompressionCoderPool.clear();
+        InputStream classin = this.getClass().getClassLoader()
+                .getResourceAsStream("uncompressed.txt");
+        data = readAll(classin);
+    }
+
+    @After
+    public void tearDown() {
+        CompressionCoderPool.clear();
+    }
+
+    @Test
+    public void testDeflaterReuse() throws Exception {
+        Deflater def = CompressionCoderPool.leaseDeflater(5);
+        assertNotSame("Leased deflaters should not be shared", def,
+                CompressionCoderPool.leaseDeflater(5));
+        CompressionCoderPool.returnDeflater(5, def);
+        assertNotSame("Deflaters should be kept per level", def,
+                CompressionCoderPool.leaseDeflater(6));
+        assertSame("Returned deflater should be reused", def,
+                CompressionCoderPool.leaseDeflater(5));
+        CompressionCoderPool.returnDeflater(5, def);
+
+        // Streams compressed with a reused deflater are identical.
+        byte[] first = deflate(data);
+        byte[] second = deflate(data);
+        assertArrayEquals("Reused deflater output differs", first, second);
+
+        Inflater inf = CompressionCoderPool.leaseInflater();
+        CompressionCoderPool.returnInflater(inf);
+        assertSame("Returned inflater should be reused", inf,
+                CompressionCoderPool.leaseInflater());
+        CompressionCoderPool.returnInflater(inf);
+
+        for(int i = 0; i < 2; i++) {
+            DeflateInputTransform trans = new DeflateInputTransform(
+                    new ByteArrayInputStream(first), null);
+            assertArrayEquals("Inflated data differs", data,
+                    readAll(trans.getDecodedInputStream()));
+        }
+    }
+
+    @Test
+    public void testEviction() throws Exception {
+        Deflater[] defs = new Deflater[CompressionCoderPool.MAX_IDLE_ZLIB + 1];
+        for(int i = 0; i < defs.length; i++) {
+            defs[i] = CompressionCoderPool.leaseDeflater(1);
+        }
+        for(Deflater def : defs) {
+            CompressionCoderPool.returnDeflater(1, def);
+        }
+        // The last one returned didn't fit and was ended.
+        try {
+            defs[defs.length - 1].setInput(new byte[1]);
+            defs[defs.length - 1].deflate(new byte[10]);
+            throw new AssertionError("Evicted deflater should have been ended");
+        } catch(NullPointerException e) {
+            // expected; Deflater throws NPE once ended.
+        }
+        for(int i = 0; i < defs.length - 1; i++) {
+            assertEquals(defs[defs.length - 2 - i], CompressionCoderPool.leaseDeflater(1));
+        }
+    }
+
+    @Test
+    public void testLzmaReuse() throws Exception {
+        LzmaProfile profile = CompressionTransformFactory.LZMA_COMPRESSION_PROFILE[2];
+        byte[] first = lzma(profile);
+        byte[] second = lzma(profile);
+        assertArrayEquals("Reused encoder output differs", first, second);
+
+        for(int i = 0; i < 2; i++) {
+            LZMAInputStream in = new LZMAInputStream(new ByteArrayInputStream(first));
+            assertArrayEquals("Decompressed data differs", data, readAll(in));
+        }
+    }
+
+    private byte[] deflate(byte[] input) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DeflateOutputStream dos = new DeflateOutputStream(out, 5);
+        dos.write(input);
+        dos.close();
+        return out.toByteArray();
+    }
+
+    private byte[] lzma(LzmaProfile profile) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        LZMAOutputStream los = new LZMAOutputStream(out, profile);
+        los.write(data);
+        los.close();
+        return out.toByteArray();
+    }
+
+    private static byte[] readAll(InputStream in) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int c;
+        while((c = in.read(buffer)) != -1) {
+            out.write(buffer, 0, c);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,130 @@
+package com.emc.vipr.transform.compression;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.emc.vipr.transform.TransformConstants;
+import com.emc.vipr.transform.TransformConstants.CompressionMode;
+import com.emc.vipr.transform.compression.CompressionLevelController.LevelStats;
+
+public class CompressionLevelControllerTest {
+
+    private byte[] data;
+
+    @Before
+    public void setUp() throws Exception {
+        InputStream classin = this.getClass().getClassLoader()
+                .getResourceAsStream("uncompressed.txt");
+        data = readAll(classin);
+    }
+
+    @Test
+    public void testLevelSelection() throws Exception {
+        CompressionLevelController controller = new CompressionLevelController(
+                new int[] { CompressionLevelController.NONE, 1, 9 }, 1);
+        controller.setExploreInterval(0);
+        controller.setSmoothing(1.0);
+        assertEquals(1, controller.nextLevel());
+
+        // 1MB at each level: NONE at 1GB/s, 1 at 100MB/s to 50%, 9 at 10MB/s to 30%
+        long mb = 1024 * 1024;
+        controller.recordCompression(CompressionLevelController.NONE, mb, mb, 1000000L);
+        controller.recordCompression(1, mb, mb / 2, 10000000L);
+        controller.recordCompression(9, mb, mb * 3 / 10, 100000000L);
+        assertEquals("No choice without an upload rate", 1, controller.getCurrentLevel());
+
+        // WAN: 1MB/s.  Level 9 stores 1MB in 0.1s + 0.3s.
+        controller.recordUpload(mb, 1000000000L);
+        assertEquals(9, controller.getCurrentLevel());
+        assertEquals(9, controller.nextLevel());
+
+        // LAN: 1GB/s.  Storing uncompressed takes 2ms versus 10.5ms at level 1.
+        controller.recordUpload(mb, 1000000L);
+        assertEquals(CompressionLevelController.NONE, controller.getCurrentLevel());
+        assertEquals(2, controller.getLevelChanges());
+
+        // Somewhere in between: 20MB/s favours level 1.
+        controller.recordUpload(mb, 50000000L);
+        assertEquals(1, controller.getCurrentLevel());
+        assertEquals(20.0 * mb, controller.getNetworkRate(), 1.0);
+    }
+
+    @Test
+    public void testExplore() throws Exception {
+        CompressionLevelController controller = new CompressionLevelController(
+                new int[] { 1, 5, 9 }, 5);
+        controller.setExploreInterval(2);
+        assertEquals(5, controller.nextLevel());
+        assertEquals(9, controller.nextLevel());
+        assertEquals(5, controller.nextLevel());
+        assertEquals(1, controller.nextLevel());
+
+        // At the top, explore downwards.
+        controller = new CompressionLevelController(new int[] { 1, 5, 9 }, 9);
+        controller.setExploreInterval(1);
+        assertEquals(5, controller.nextLevel());
+        assertEquals(5, controller.nextLevel());
+    }
+
+    @Test
+    public void testFactoryMetering() throws Exception {
+        CompressionLevelController controller = new CompressionLevelController(
+                new int[] { CompressionLevelController.NONE, 3 }, 3);
+        controller.setExploreInterval(0);
+        CompressionTransformFactory factory = new CompressionTransformFactory();
+        factory.setCompressMode(CompressionMode.Deflate);
+        factory.setLevelController(controller);
+
+        // Pull mode
+        CompressionOutputTransform t = factory.getOutputTransform(
+                new ByteArrayInputStream(data), new HashMap<String, String>());
+        assertEquals("COMP:Deflate/3", t.getTransformConfig());
+        byte[] compressed = readAll(t.getEncodedInputStream());
+        assertEquals("" + compressed.length,
+                t.getEncodedMetadata().get(TransformConstants.META_COMPRESSION_COMP_SIZE));
+
+        // Push mode
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        t = factory.getOutputTransform(out, new HashMap<String, String>());
+        OutputStream os = t.getEncodedOutputStream();
+        os.write(data);
+        os.close();
+        assertEquals(compressed.length, out.size());
+
+        LevelStats stats = controller.getLevelStats().get(1);
+        assertEquals(3, stats.getLevel());
+        assertEquals(2, stats.getObjects());
+        assertEquals((double) compressed.length / data.length, stats.getRatio(), 0.001);
+        assertTrue("Compression rate not measured", stats.getCompressionRate() > 0);
+
+        // A slow upload keeps compression on; a fast one stores uncompressed once
+        // the uncompressed rate is known.
+        controller.recordUpload(1000, 1000000000L);
+        assertEquals(3, controller.getCurrentLevel());
+        controller.recordCompression(CompressionLevelController.NONE, 1000, 1000, 1);
+        controller.recordUpload(Integer.MAX_VALUE, 1);
+        t = factory.getOutputTransform(new ByteArrayInputStream(data),
+                new HashMap<String, String>());
+        assertEquals("COMP:NONE", t.getTransformConfig());
+    }
+
+    private static byte[] readAll(InputStream in) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int c;
+        while((c = in.read(buffer)) != -1) {
+            out.write(buffer, 0, c);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+}
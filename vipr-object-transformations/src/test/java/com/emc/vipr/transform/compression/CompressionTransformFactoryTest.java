@@ -9,6 +9,7 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Random;
 
 import org.junit.After;
 import org.junit.Before;
@@ -331,6 +332,66 @@ public class CompressionTransformFactoryTest {
 
     }
 
+    @Test
+    public void testAdaptive() throws Exception {
+        CompressionTransformFactory factory = new CompressionTransformFactory();
+        factory.setAdaptive(true);
+        
+        // Random data doesn't compress.
+        byte[] random = new byte[200000];
+        new Random(1).nextBytes(random);
+        assertAdaptiveRoundTrip(factory, random, null, "COMP:NONE");
+        
+        // Text does, unless its content type says otherwise.
+        InputStream classin = this.getClass().getClassLoader()
+                .getResourceAsStream("uncompressed.txt");
+        byte[] text = readAll(classin);
+        assertAdaptiveRoundTrip(factory, text, "text/plain; charset=UTF-8", "COMP:Deflate/5");
+        assertAdaptiveRoundTrip(factory, text, "image/jpeg", "COMP:NONE");
+        assertAdaptiveRoundTrip(factory, text, "video/mp4", "COMP:NONE");
+        // A compressed format's magic number is enough to skip it.
+        byte[] jpeg = text.clone();
+        jpeg[0] = (byte) 0xFF;
+        jpeg[1] = (byte) 0xD8;
+        jpeg[2] = (byte) 0xFF;
+        assertAdaptiveRoundTrip(factory, jpeg, null, "COMP:NONE");
+        
+        // Not adaptive
+        factory.setAdaptive(false);
+        assertAdaptiveRoundTrip(factory, random, "image/jpeg", "COMP:Deflate/5");
+    }
+    
+    private void assertAdaptiveRoundTrip(CompressionTransformFactory factory, byte[] data, 
+            String contentType, String expectedConfig) throws Exception {
+        CompressionOutputTransform outTransform = factory.getOutputTransform(
+                new ByteArrayInputStream(data), new HashMap<String, String>(), contentType);
+        byte[] encoded = readAll(outTransform.getEncodedInputStream());
+        assertEquals("Wrong transform", expectedConfig, outTransform.getTransformConfig());
+        Map<String, String> metadata = outTransform.getEncodedMetadata();
+        assertEquals("Uncompressed size incorrect", data.length, 
+                Long.parseLong(metadata.get(TransformConstants.META_COMPRESSION_UNCOMP_SIZE)));
+        if(expectedConfig.equals("COMP:NONE")) {
+            assertArrayEquals("Stored data should not change", data, encoded);
+            assertEquals("0.0%", metadata.get(TransformConstants.META_COMPRESSION_COMP_RATIO));
+        }
+        
+        CompressionInputTransform inTransform = factory.getInputTransform(
+                outTransform.getTransformConfig(), new ByteArrayInputStream(encoded), metadata);
+        assertArrayEquals("Decoded data differs", data, 
+                readAll(inTransform.getDecodedInputStream()));
+    }
+    
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int c = 0;
+        while ((c = in.read(buffer)) != -1) {
+            out.write(buffer, 0, c);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+
     @Test
     public void testGetPriority() {
         CompressionTransformFactory factory = new CompressionTransformFactory();
@@ -0,0 +1,165 @@
+package com.emc.vipr.transform.compression;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.emc.vipr.transform.TransformConstants;
+import com.emc.vipr.transform.TransformConstants.CompressionMode;
+
+public class DictionaryDeflateTest {
+    private static final String[] CITIES = { "Hopkinton", "Austin", "Cork", "Bangalore",
+        "Shanghai", "Durham", "Santa Clara", "Seattle" };
+    private static final String[] STATUSES = { "PENDING", "SHIPPED", "DELIVERED", "CANCELLED" };
+
+    private Random random;
+    private DictionaryRegistry registry;
+
+    @Before
+    public void setUp() throws Exception {
+        random = new Random(4);
+        DictionaryBuilder builder = new DictionaryBuilder();
+        for(int i = 0; i < 200; i++) {
+            assertTrue(builder.addSample(order().getBytes("UTF-8")));
+        }
+        registry = new DictionaryRegistry();
+        registry.register(builder.build("orders-v1"));
+    }
+
+    @Test
+    public void testCompressionRatio() throws Exception {
+        CompressionDictionary dictionary = registry.getCurrent();
+        assertEquals("orders-v1", dictionary.getId());
+        assertTrue(dictionary.getData().length <= CompressionDictionary.MAX_SIZE);
+
+        long plain = 0;
+        long withDictionary = 0;
+        for(int i = 0; i < 50; i++) {
+            byte[] doc = order().getBytes("UTF-8");
+            plain += deflate(doc, null).length;
+            withDictionary += deflate(doc, dictionary).length;
+        }
+        assertTrue("Dictionary should at least halve the compressed size: " + plain + " vs "
+                + withDictionary, withDictionary * 2 < plain);
+    }
+
+    @Test
+    public void testTransform() throws Exception {
+        CompressionTransformFactory factory = new CompressionTransformFactory();
+        factory.setCompressMode(CompressionMode.DeflateDict);
+        factory.setDictionaryRegistry(registry);
+
+        byte[] doc = order().getBytes("UTF-8");
+        CompressionOutputTransform t = factory.getOutputTransform(
+                new ByteArrayInputStream(doc), new HashMap<String, String>());
+        assertEquals("COMP:DeflateDict/5", t.getTransformConfig());
+        byte[] compressed = readAll(t.getEncodedInputStream());
+        Map<String, String> metadata = t.getEncodedMetadata();
+        assertEquals("orders-v1", metadata.get(TransformConstants.META_COMPRESSION_DICTIONARY_ID));
+
+        // Push mode writes the same stream.
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CompressionOutputTransform pt = factory.getOutputTransform(out,
+                new HashMap<String, String>());
+        pt.getEncodedOutputStream().write(doc);
+        pt.getEncodedOutputStream().close();
+        assertArrayEquals(compressed, out.toByteArray());
+
+        // A newer dictionary for new objects doesn't affect reading old ones.
+        DictionaryBuilder builder = new DictionaryBuilder();
+        for(int i = 0; i < 20; i++) {
+            builder.addSample(order().getBytes("UTF-8"));
+        }
+        registry.register(builder.build("orders-v2"));
+        registry.setCurrent("orders-v2");
+
+        assertTrue(factory.canDecode("COMP", "DeflateDict/5", metadata));
+        CompressionInputTransform it = factory.getInputTransform(t.getTransformConfig(),
+                new ByteArrayInputStream(compressed), metadata);
+        assertArrayEquals(doc, readAll(it.getDecodedInputStream()));
+
+        // Without the dictionary, the object can't be read.
+        CompressionTransformFactory other = new CompressionTransformFactory();
+        other.setDictionaryRegistry(new DictionaryRegistry());
+        assertFalse(other.canDecode("COMP", "DeflateDict/5", metadata));
+    }
+
+    @Test
+    public void testWrongDictionary() throws Exception {
+        byte[] doc = order().getBytes("UTF-8");
+        byte[] compressed = deflate(doc, registry.getCurrent());
+        CompressionDictionary other = new CompressionDictionary("orders-v1",
+                "something else entirely".getBytes("UTF-8"));
+        try {
+            readAll(new DeflateInputTransform(new ByteArrayInputStream(compressed), null, other)
+                    .getDecodedInputStream());
+            fail("Decompressing with the wrong dictionary should fail");
+        } catch(IOException e) {
+            // expected
+        }
+
+        try {
+            registry.register(other);
+            fail("Registering a different dictionary with the same ID should fail");
+        } catch(IllegalArgumentException e) {
+            // expected
+        }
+
+        // A plain Deflate stream decodes with a dictionary configured.
+        assertArrayEquals(doc, readAll(new DeflateInputTransform(
+                new ByteArrayInputStream(deflate(doc, null)), null, other)
+                .getDecodedInputStream()));
+    }
+
+    private String order() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"orderId\":\"").append(Math.abs(random.nextLong())).append("\",");
+        sb.append("\"customer\":{\"name\":\"Customer ").append(random.nextInt(100000));
+        sb.append("\",\"city\":\"").append(CITIES[random.nextInt(CITIES.length)]).append("\"},");
+        sb.append("\"status\":\"").append(STATUSES[random.nextInt(STATUSES.length)]).append("\",");
+        sb.append("\"items\":[");
+        int items = 1 + random.nextInt(4);
+        for(int i = 0; i < items; i++) {
+            if(i > 0) sb.append(",");
+            sb.append("{\"sku\":\"SKU-").append(random.nextInt(10000));
+            sb.append("\",\"quantity\":").append(1 + random.nextInt(9));
+            sb.append(",\"unitPrice\":").append(random.nextInt(100000) / 100.0).append("}");
+        }
+        sb.append("],\"currency\":\"USD\",\"createdAt\":\"2014-0").append(1 + random.nextInt(9));
+        sb.append("-1").append(random.nextInt(10)).append("T12:00:00Z\"}");
+        return sb.toString();
+    }
+
+    private static byte[] deflate(byte[] input, CompressionDictionary dictionary)
+            throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DeflateOutputStream dos = new DeflateOutputStream(out, 5, dictionary);
+        dos.write(input);
+        dos.close();
+        return out.toByteArray();
+    }
+
+    private static byte[] readAll(InputStream in) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int c;
+        while((c = in.read(buffer)) != -1) {
+            out.write(buffer, 0, c);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+}
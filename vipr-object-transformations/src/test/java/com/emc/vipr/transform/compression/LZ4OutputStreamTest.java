@@ -0,0 +1,190 @@
+package com.emc.vipr.transform.compression;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.emc.vipr.transform.TransformConstants;
+import com.emc.vipr.transform.TransformConstants.CompressionMode;
+
+public class LZ4OutputStreamTest {
+
+    private byte[] data;
+
+    @Before
+    public void setUp() throws Exception {
+        InputStream classin = this.getClass().getClassLoader()
+                .getResourceAsStream("uncompressed.txt");
+        data = readAll(classin);
+    }
+
+    @Test
+    public void testWrite() throws Exception {
+        ByteArrayOutputStream compressedData = new ByteArrayOutputStream();
+        LZ4OutputStream out = new LZ4OutputStream(compressedData, 9);
+        out.write(data);
+
+        try {
+            out.getStreamMetadata();
+            fail("Should have thrown IllegalStateException that stream was not closed yet.");
+        } catch(IllegalStateException e) {
+            // ignore
+        }
+
+        out.close();
+
+        byte[] compressed = compressedData.toByteArray();
+        Map<String, String> m = out.getStreamMetadata();
+        assertEquals("Uncompressed digest incorrect", "027e997e6b1dfc97b93eb28dc9a6804096d85873",
+                m.get(TransformConstants.META_COMPRESSION_UNCOMP_SHA1));
+        assertEquals("Uncompressed size incorrect", 2516125, Long.parseLong(m
+                .get(TransformConstants.META_COMPRESSION_UNCOMP_SIZE)));
+        assertEquals("Compressed size incorrect", compressed.length, Long.parseLong(m
+                .get(TransformConstants.META_COMPRESSION_COMP_SIZE)));
+        assertTrue("Data did not compress", compressed.length < data.length / 4);
+
+        // Standard frame header: magic, FLG, BD, HC
+        assertEquals(LZ4OutputStream.MAGIC, LZ4Codec.readIntLE(compressed, 0));
+        assertEquals(0x60, compressed[4]);
+        assertEquals(0x40, compressed[5]);
+
+        assertArrayEquals("Round trip failed", data,
+                readAll(new LZ4InputStream(new ByteArrayInputStream(compressed))));
+    }
+
+    @Test
+    public void testLevels() throws Exception {
+        int best = compress(data, 9).length;
+        int fastest = compress(data, 0).length;
+        assertTrue("Level 9 should compress at least as well as level 0", best <= fastest);
+        assertArrayEquals(data, decompress(compress(data, 0)));
+    }
+
+    @Test
+    public void testIncompressible() throws Exception {
+        byte[] random = new byte[200000];
+        new Random(42).nextBytes(random);
+        byte[] compressed = compress(random, 5);
+        // Blocks that don't shrink are stored, so the overhead is just the framing.
+        assertTrue("Stored blocks grew too much", compressed.length <= random.length + 32);
+        assertArrayEquals(random, decompress(compressed));
+
+        // Short and highly repetitive inputs
+        assertArrayEquals(new byte[0], decompress(compress(new byte[0], 5)));
+        byte[] small = "abc".getBytes("US-ASCII");
+        assertArrayEquals(small, decompress(compress(small, 5)));
+        byte[] zeros = new byte[100000];
+        byte[] compressed0 = compress(zeros, 5);
+        assertTrue(compressed0.length < 1000);
+        assertArrayEquals(zeros, decompress(compressed0));
+    }
+
+    @Test
+    public void testPullMode() throws Exception {
+        LZ4InputFilter filter = new LZ4InputFilter(new ByteArrayInputStream(data), 5);
+        byte[] pulled = readAll(filter);
+        assertArrayEquals("Pull and push output differ", compress(data, 5), pulled);
+        assertEquals("027e997e6b1dfc97b93eb28dc9a6804096d85873",
+                filter.getStreamMetadata().get(TransformConstants.META_COMPRESSION_UNCOMP_SHA1));
+    }
+
+    @Test
+    public void testTransform() throws Exception {
+        CompressionTransformFactory factory = new CompressionTransformFactory();
+        factory.setCompressMode(CompressionMode.LZ4);
+        factory.setCompressionLevel(3);
+        CompressionOutputTransform t = factory.getOutputTransform(
+                new ByteArrayInputStream(data), new HashMap<String, String>());
+        assertEquals("COMP:LZ4/3", t.getTransformConfig());
+        byte[] compressed = readAll(t.getEncodedInputStream());
+        Map<String, String> metadata = t.getEncodedMetadata();
+
+        assertTrue(factory.canDecode("COMP", "LZ4/3", metadata));
+        CompressionInputTransform it = factory.getInputTransform(t.getTransformConfig(),
+                new ByteArrayInputStream(compressed), metadata);
+        assertArrayEquals(data, readAll(it.getDecodedInputStream()));
+    }
+
+    @Test
+    public void testXxHash() throws Exception {
+        assertEquals(0x02CC5D05, LZ4Codec.xxhash32(new byte[0], 0, 0, 0));
+        // Header checksum of the descriptor written by the lz4 command line tool.
+        assertEquals(0xA7, (LZ4Codec.xxhash32(new byte[] { 0x64, 0x40 }, 0, 2, 0) >>> 8) & 0xff);
+    }
+
+    @Test
+    public void testFrameOptions() throws Exception {
+        // A frame with content size, block checksums and a content checksum.
+        byte[] block = new byte[LZ4Codec.maxCompressedLength(data.length)];
+        byte[] text = new byte[10000];
+        System.arraycopy(data, 0, text, 0, text.length);
+        int c = LZ4Codec.compress(text, 0, text.length, block, 0,
+                new int[LZ4Codec.HASH_TABLE_SIZE], 1);
+
+        ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        byte[] header = new byte[15];
+        LZ4Codec.writeIntLE(header, 0, LZ4OutputStream.MAGIC);
+        header[4] = 0x7C;
+        header[5] = 0x40;
+        LZ4Codec.writeIntLE(header, 6, text.length);
+        header[14] = (byte) (LZ4Codec.xxhash32(header, 4, 10, 0) >>> 8);
+        frame.write(header);
+        frame.write(intLE(c));
+        frame.write(block, 0, c);
+        frame.write(intLE(LZ4Codec.xxhash32(block, 0, c, 0)));
+        frame.write(intLE(0));
+        frame.write(intLE(LZ4Codec.xxhash32(text, 0, text.length, 0)));
+        byte[] bytes = frame.toByteArray();
+        assertArrayEquals(text, decompress(bytes));
+
+        // Corrupt the block
+        bytes[20] ^= 1;
+        try {
+            decompress(bytes);
+            fail("Corrupt block should have failed the checksum");
+        } catch(IOException e) {
+            // expected
+        }
+    }
+
+    private static byte[] intLE(int value) {
+        byte[] b = new byte[4];
+        LZ4Codec.writeIntLE(b, 0, value);
+        return b;
+    }
+
+    private static byte[] compress(byte[] input, int level) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        LZ4OutputStream los = new LZ4OutputStream(out, level);
+        los.write(input);
+        los.close();
+        return out.toByteArray();
+    }
+
+    private static byte[] decompress(byte[] input) throws Exception {
+        return readAll(new LZ4InputStream(new ByteArrayInputStream(input)));
+    }
+
+    private static byte[] readAll(InputStream in) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int c;
+        while((c = in.read(buffer)) != -1) {
+            out.write(buffer, 0, c);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+}
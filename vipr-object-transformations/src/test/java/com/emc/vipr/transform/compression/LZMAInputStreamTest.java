@@ -2,12 +2,26 @@ package com.emc.vipr.transform.compression;
 
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.KeyPair;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import com.emc.vipr.transform.encryption.BasicEncryptionOutputTransform;
+import com.emc.vipr.transform.encryption.BasicEncryptionTransformFactory;
+import com.emc.vipr.transform.encryption.KeyUtils;
+
 public class LZMAInputStreamTest {
 
     private InputStream uncompressedData;
@@ -144,6 +158,76 @@ public class LZMAInputStreamTest {
         uncompressedData.close();
     }
 
+    @Test
+    public void testEarlyClose() throws Exception {
+        // Opening and abandoning many streams should not leave decoders blocked
+        // on the pool's threads.
+        for(int i = 0; i < LZMAThreadPool.getMaxThreads() * 4; i++) {
+            InputStream compressed = this.getClass().getClassLoader()
+                    .getResourceAsStream("compressed.txt.lz");
+            InputStream decompressed = new LZMAInputStream(compressed);
+            decompressed.read(new byte[10]);
+            decompressed.close();
+        }
+        
+        // The pool should still be usable.
+        InputStream decompressed = new LZMAInputStream(compressedData);
+        byte[] buffer1 = new byte[4096];
+        byte[] buffer2 = new byte[4096];
+        assertEquals(4096, uncompressedData.read(buffer1));
+        int c = 0;
+        while(c < buffer2.length) {
+            c += decompressed.read(buffer2, c, buffer2.length - c);
+        }
+        assertArrayEquals(buffer1, buffer2);
+        decompressed.close();
+        
+        try {
+            decompressed.read();
+            fail("Read after close should fail");
+        } catch(IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testCloseEncryptedMidRead() throws Exception {
+        Properties keyprops = new Properties();
+        keyprops.load(this.getClass().getClassLoader().getResourceAsStream("keys.properties"));
+        KeyPair masterKey = KeyUtils.rsaKeyPairFromBase64(
+                keyprops.getProperty("masterkey.public"),
+                keyprops.getProperty("masterkey.private"));
+        BasicEncryptionTransformFactory factory = new BasicEncryptionTransformFactory();
+        factory.setMasterEncryptionKey(masterKey);
+
+        // Compress with a small dictionary so the decoder hands data to the
+        // reader before it has read the whole stream, then encrypt.
+        ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+        BasicEncryptionOutputTransform outTransform = factory.getOutputTransform(
+                encrypted, new HashMap<String, String>());
+        OutputStream compressStream = new LZMAOutputStream(outTransform.getEncodedOutputStream(), 0);
+        byte[] buffer = new byte[4096];
+        int c;
+        while((c = uncompressedData.read(buffer)) != -1) {
+            compressStream.write(buffer, 0, c);
+        }
+        compressStream.close();
+        Map<String, String> metadata = outTransform.getEncodedMetadata();
+
+        SlowInputStream source = new SlowInputStream(encrypted.toByteArray());
+        InputStream decrypted = factory.getInputTransform(
+                outTransform.getTransformConfig(), source, metadata).getDecodedInputStream();
+        InputStream decompressed = new LZMAInputStream(decrypted);
+        assertTrue(decompressed.read(buffer) > 0);
+
+        // Close while the decoder is reading through the cipher, which goes
+        // back to the pool when the source is closed.
+        source.stall = true;
+        assertTrue(source.stalled.await(5, TimeUnit.SECONDS));
+        decompressed.close();
+        assertFalse("Source read after it was closed", source.readAfterClose);
+    }
+
     @Test
     public void testMarkSupported() throws Exception {
         InputStream decompressed = new LZMAInputStream(compressedData);
@@ -154,4 +238,42 @@ public class LZMAInputStreamTest {
         decompressed.close();
     }
 
+    /**
+     * Reads slowly, stalls once when asked to, and notes whether it was closed
+     * while a read was in progress.
+     */
+    private static class SlowInputStream extends ByteArrayInputStream {
+        CountDownLatch stalled = new CountDownLatch(1);
+        volatile boolean stall;
+        volatile boolean closed;
+        volatile boolean readAfterClose;
+
+        SlowInputStream(byte[] data) {
+            super(data);
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) {
+            try {
+                if(stall && stalled.getCount() > 0) {
+                    stalled.countDown();
+                    Thread.sleep(500);
+                } else {
+                    Thread.sleep(1);
+                }
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if(closed) {
+                readAfterClose = true;
+            }
+            return super.read(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            closed = true;
+        }
+    }
+
 }
@@ -0,0 +1,102 @@
+package com.emc.vipr.transform.dedup;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class ContentDefinedChunkerTest {
+    private static final int MIN = 16 * 1024;
+    private static final int AVERAGE = 64 * 1024;
+    private static final int MAX = 256 * 1024;
+
+    private byte[] data;
+
+    @Before
+    public void setUp() throws Exception {
+        data = readAll(this.getClass().getClassLoader().getResourceAsStream("uncompressed.txt"));
+    }
+
+    @Test
+    public void testChunks() throws Exception {
+        List<byte[]> chunks = chunk(data);
+        assertTrue("Expected multiple chunks", chunks.size() > 4);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for(int i = 0; i < chunks.size(); i++) {
+            byte[] chunk = chunks.get(i);
+            assertTrue("Chunk too large", chunk.length <= MAX);
+            if(i < chunks.size() - 1) {
+                assertTrue("Chunk too small", chunk.length >= MIN);
+            }
+            out.write(chunk);
+        }
+        assertArrayEquals(data, out.toByteArray());
+    }
+
+    @Test
+    public void testInsert() throws Exception {
+        // Insert some bytes in the middle; only the chunks around it should change.
+        int at = data.length / 2;
+        byte[] edited = new byte[data.length + 100];
+        System.arraycopy(data, 0, edited, 0, at);
+        System.arraycopy(data, at, edited, at + 100, data.length - at);
+
+        Set<String> hashes = new HashSet<String>();
+        List<byte[]> chunks = chunk(data);
+        for(byte[] chunk : chunks) {
+            hashes.add(DedupManifest.hash(chunk));
+        }
+        int changed = 0;
+        List<byte[]> editedChunks = chunk(edited);
+        for(byte[] chunk : editedChunks) {
+            if(!hashes.contains(DedupManifest.hash(chunk))) {
+                changed++;
+            }
+        }
+        assertTrue("Too many chunks changed: " + changed + " of " + editedChunks.size(),
+                changed <= 2);
+    }
+
+    @Test
+    public void testEmpty() throws Exception {
+        assertEquals(0, chunk(new byte[0]).size());
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testAverageNotPowerOf2() throws Exception {
+        new ContentDefinedChunker(new ByteArrayInputStream(data), MIN, 100000, MAX);
+    }
+
+    private List<byte[]> chunk(byte[] content) throws Exception {
+        ContentDefinedChunker chunker = new ContentDefinedChunker(
+                new ByteArrayInputStream(content), MIN, AVERAGE, MAX);
+        List<byte[]> chunks = new ArrayList<byte[]>();
+        byte[] chunk;
+        while((chunk = chunker.nextChunk()) != null) {
+            chunks.add(chunk);
+        }
+        return chunks;
+    }
+
+    private static byte[] readAll(InputStream in) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int c;
+        while((c = in.read(buffer)) != -1) {
+            out.write(buffer, 0, c);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+}
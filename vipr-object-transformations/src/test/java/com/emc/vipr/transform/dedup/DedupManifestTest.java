@@ -0,0 +1,69 @@
+package com.emc.vipr.transform.dedup;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.junit.Test;
+
+import com.emc.vipr.transform.dedup.DedupManifest.ChunkRef;
+
+public class DedupManifestTest {
+    @Test
+    public void testManifest() throws Exception {
+        DedupManifest manifest = new DedupManifest();
+        manifest.addChunk(new ChunkRef(DedupManifest.hash("chunk1".getBytes("US-ASCII")), 6, "oid1"));
+        manifest.addChunk(new ChunkRef(DedupManifest.hash("chunk22".getBytes("US-ASCII")), 7, "oid2"));
+        assertEquals(13, manifest.getSize());
+
+        DedupManifest parsed = DedupManifest.parse(new ByteArrayInputStream(manifest.toBytes()));
+        assertEquals(13, parsed.getSize());
+        assertEquals(2, parsed.getChunks().size());
+        assertEquals(manifest.getChunks().get(1).getHash(), parsed.getChunks().get(1).getHash());
+        assertEquals(7, parsed.getChunks().get(1).getLength());
+        assertEquals("oid2", parsed.getChunks().get(1).getLocation());
+
+        try {
+            DedupManifest.parse(new ByteArrayInputStream("not a manifest\n".getBytes("US-ASCII")));
+            fail("Should not parse");
+        } catch(IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testChunkIndex() throws Exception {
+        File file = File.createTempFile("chunks", ".idx");
+        file.delete();
+        try {
+            ChunkIndex index = new ChunkIndex(file);
+            index.put("hash1", "oid1");
+            index.put("hash2", "oid2");
+            index.close();
+
+            // Simulate a crash in the middle of writing an entry.
+            FileOutputStream out = new FileOutputStream(file, true);
+            out.write("hash3 oi".getBytes("US-ASCII"));
+            out.close();
+
+            index = new ChunkIndex(file);
+            assertEquals(2, index.size());
+            assertEquals("oid1", index.get("hash1"));
+            assertNull(index.get("hash3"));
+            index.put("hash3", "oid3");
+            index.close();
+
+            index = new ChunkIndex(file);
+            assertEquals(3, index.size());
+            assertEquals("oid3", index.get("hash3"));
+            index.close();
+        } finally {
+            file.delete();
+        }
+    }
+}
@@ -2,8 +2,11 @@ package com.emc.vipr.transform.encryption;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.io.ByteArrayInputStream;
@@ -15,9 +18,11 @@ import java.security.KeyPairGenerator;
 import java.security.Provider;
 import java.security.SecureRandom;
 import java.security.interfaces.RSAPublicKey;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Random;
 
 import org.junit.Assume;
 import org.junit.Before;
@@ -27,6 +32,7 @@ import org.slf4j.LoggerFactory;
 
 import com.emc.vipr.transform.InputTransform;
 import com.emc.vipr.transform.TransformConstants;
+import com.emc.vipr.transform.TransformException;
 
 public class BasicEncryptionTransformFactoryTest {
     private static final Logger logger = LoggerFactory
@@ -433,4 +439,221 @@ public class BasicEncryptionTransformFactoryTest {
         
     }
 
+
+    /**
+     * Encrypt with the seekable (CTR) transform and decrypt starting at 
+     * various offsets, including ones that aren't on a block boundary.
+     */
+    @Test
+    public void testSeekableDecrypt() throws Exception {
+        BasicEncryptionTransformFactory factory = new BasicEncryptionTransformFactory();
+        factory.setCryptoProvider(provider);
+        factory.setMasterEncryptionKey(masterKey);
+        factory.setEncryptionSettings(TransformConstants.SEEKABLE_ENCRYPTION_TRANSFORM, 128, provider);
+
+        // Get some data to encrypt.
+        InputStream classin = this.getClass().getClassLoader()
+                .getResourceAsStream("uncompressed.txt");
+        ByteArrayOutputStream classByteStream = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int c = 0;
+        while ((c = classin.read(buffer)) != -1) {
+            classByteStream.write(buffer, 0, c);
+        }
+        byte[] uncompressedData = classByteStream.toByteArray();
+        classin.close();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BasicEncryptionOutputTransform outTransform = factory.getOutputTransform(out, 
+                new HashMap<String, String>());
+        OutputStream encryptedStream = outTransform.getEncodedOutputStream();
+        encryptedStream.write(uncompressedData);
+        encryptedStream.close();
+        byte[] encryptedObject = out.toByteArray();
+        Map<String, String> objectMetadata = outTransform.getEncodedMetadata();
+
+        assertEquals("ENC:AES/CTR/NoPadding", outTransform.getTransformConfig());
+        assertTrue(factory.isSeekable(outTransform.getTransformConfig()));
+        assertFalse(factory.isSeekable("ENC:AES/CBC/PKCS5Padding"));
+        assertEquals("Ciphertext should be the same size as the plaintext", 
+                uncompressedData.length, encryptedObject.length);
+
+        int[] offsets = new int[] { 0, 1, 15, 16, 17, 4095, 1000003, uncompressedData.length - 1 };
+        for(int offset : offsets) {
+            int length = Math.min(5000, encryptedObject.length - offset);
+            InputTransform inTransform = factory.getInputTransform(outTransform.getTransformConfig(), 
+                    new ByteArrayInputStream(encryptedObject, offset, length), objectMetadata, offset);
+            InputStream inStream = inTransform.getDecodedInputStream();
+            ByteArrayOutputStream decodedOut = new ByteArrayOutputStream();
+            while ((c = inStream.read(buffer)) != -1) {
+                decodedOut.write(buffer, 0, c);
+            }
+            inStream.close();
+
+            byte[] expected = new byte[length];
+            System.arraycopy(uncompressedData, offset, expected, 0, length);
+            assertArrayEquals("Decrypted range at " + offset + " incorrect", expected, 
+                    decodedOut.toByteArray());
+        }
+    }
+
+    @Test
+    public void testAddToCounter() throws Exception {
+        byte[] counter = new byte[] { 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 1, (byte) 0xff, (byte) 0xff };
+        assertArrayEquals(new byte[] { 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 2, 0, 0 },
+                BasicEncryptionInputTransform.addToCounter(counter, 1));
+        assertArrayEquals(new byte[] { 0, 0, 0, 0, 0, 0, 0, 1, 0, 0, 0, 0, 0, 1, (byte) 0xff, (byte) 0xfe },
+                BasicEncryptionInputTransform.addToCounter(counter, 0xffffffffffffffffL));
+    }
+
+    @Test(expected = TransformException.class)
+    public void testNonSeekableOffset() throws Exception {
+        BasicEncryptionTransformFactory factory = new BasicEncryptionTransformFactory();
+        factory.setCryptoProvider(provider);
+        factory.setMasterEncryptionKey(masterKey);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BasicEncryptionOutputTransform outTransform = factory.getOutputTransform(out, 
+                new HashMap<String, String>());
+        outTransform.getEncodedOutputStream().write(new byte[100]);
+        outTransform.getEncodedOutputStream().close();
+
+        factory.getInputTransform(outTransform.getTransformConfig(), 
+                new ByteArrayInputStream(out.toByteArray(), 16, 84), 
+                outTransform.getEncodedMetadata(), 16);
+    }
+
+
+    /**
+     * Rewrite a chunk in the middle of a chunked object and append past its 
+     * end, then decrypt the whole object and a range of it.
+     */
+    @Test
+    public void testChunkedUpdate() throws Exception {
+        BasicEncryptionTransformFactory factory = new BasicEncryptionTransformFactory();
+        factory.setCryptoProvider(provider);
+        factory.setMasterEncryptionKey(masterKey);
+        factory.setEncryptionSettings(TransformConstants.CHUNKED_ENCRYPTION_TRANSFORM, 128, provider);
+        factory.setChunkSize(1024);
+
+        byte[] data = new byte[10000];
+        new Random(1).nextBytes(data);
+        BasicEncryptionOutputTransform outTransform = factory.getOutputTransform(
+                new ByteArrayInputStream(data), new HashMap<String, String>());
+        byte[] encrypted = readAll(outTransform.getEncodedInputStream());
+        Map<String, String> metadata = outTransform.getEncodedMetadata();
+        String config = outTransform.getTransformConfig();
+        assertTrue(factory.isSeekable(config));
+        assertTrue(factory.isUpdatable(config));
+        assertEquals("1024", metadata.get(TransformConstants.META_ENCRYPTION_CHUNK_SIZE));
+        assertNull("Chunked objects have no whole-object digest", 
+                metadata.get(TransformConstants.META_ENCRYPTION_UNENC_SHA1));
+        assertEquals(ChunkedCipher.getEncodedSize(data.length, 1024), encrypted.length);
+
+        // Rewrite chunk 4 with its own content: it must get a new IV.
+        EncryptionOutputTransform update = factory.getUpdateTransform(config, 
+                new ByteArrayInputStream(data, 4096, 1024), metadata, 4096);
+        byte[] encryptedChunk = readAll(update.getEncodedInputStream());
+        int chunkOffset = (int) ChunkedCipher.getEncodedOffset(4096, 1024);
+        assertEquals(1024 + ChunkedCipher.OVERHEAD, encryptedChunk.length);
+        assertFalse("Keystream reused", Arrays.equals(encryptedChunk, 
+                Arrays.copyOfRange(encrypted, chunkOffset, chunkOffset + encryptedChunk.length)));
+
+        // Now change part of it.
+        byte[] patch = new byte[100];
+        new Random(2).nextBytes(patch);
+        System.arraycopy(patch, 0, data, 4321, patch.length);
+        update = factory.getUpdateTransform(config, 
+                new ByteArrayInputStream(data, 4096, 1024), metadata, 4096);
+        encryptedChunk = readAll(update.getEncodedInputStream());
+        System.arraycopy(encryptedChunk, 0, encrypted, chunkOffset, encryptedChunk.length);
+        metadata = update.getEncodedMetadata();
+        assertEquals("10000", metadata.get(TransformConstants.META_ENCRYPTION_UNENC_SIZE));
+        assertNotNull(metadata.get(TransformConstants.META_ENCRYPTION_META_SIG));
+
+        // Append.  The last chunk is partial, so it is rewritten with the patch.
+        byte[] expected = Arrays.copyOf(data, data.length + patch.length);
+        System.arraycopy(patch, 0, expected, data.length, patch.length);
+        update = factory.getUpdateTransform(config, 
+                new ByteArrayInputStream(expected, 9216, expected.length - 9216), metadata, 9216);
+        byte[] encryptedTail = readAll(update.getEncodedInputStream());
+        metadata = update.getEncodedMetadata();
+        assertEquals("10100", metadata.get(TransformConstants.META_ENCRYPTION_UNENC_SIZE));
+        int tailOffset = (int) ChunkedCipher.getEncodedOffset(9216, 1024);
+        byte[] appended = Arrays.copyOf(encrypted, tailOffset + encryptedTail.length);
+        System.arraycopy(encryptedTail, 0, appended, tailOffset, encryptedTail.length);
+        assertEquals(expected.length, ChunkedCipher.getDecodedSize(appended.length, 1024));
+
+        InputTransform inTransform = factory.getInputTransform(config, 
+                new ByteArrayInputStream(appended), metadata);
+        assertArrayEquals("Updated object incorrect", expected, 
+                readAll(inTransform.getDecodedInputStream()));
+
+        // Ranged read from the middle of chunk 4
+        inTransform = factory.getInputTransform(config, new ByteArrayInputStream(appended, 
+                chunkOffset, appended.length - chunkOffset), metadata, 4300);
+        assertArrayEquals(Arrays.copyOfRange(expected, 4300, expected.length), 
+                readAll(inTransform.getDecodedInputStream()));
+    }
+
+    @Test(expected = TransformException.class)
+    public void testUnalignedChunkedUpdate() throws Exception {
+        BasicEncryptionTransformFactory factory = new BasicEncryptionTransformFactory();
+        factory.setCryptoProvider(provider);
+        factory.setMasterEncryptionKey(masterKey);
+        factory.setEncryptionSettings(TransformConstants.CHUNKED_ENCRYPTION_TRANSFORM, 128, provider);
+
+        BasicEncryptionOutputTransform outTransform = factory.getOutputTransform(
+                new ByteArrayInputStream(new byte[100]), new HashMap<String, String>());
+        readAll(outTransform.getEncodedInputStream());
+
+        factory.getUpdateTransform(outTransform.getTransformConfig(), 
+                new ByteArrayInputStream(new byte[10]), outTransform.getEncodedMetadata(), 16);
+    }
+
+    /**
+     * Plain CTR objects can't be updated: rewriting a range would reuse its 
+     * keystream.
+     */
+    @Test(expected = TransformException.class)
+    public void testSeekableUpdate() throws Exception {
+        BasicEncryptionTransformFactory factory = new BasicEncryptionTransformFactory();
+        factory.setCryptoProvider(provider);
+        factory.setMasterEncryptionKey(masterKey);
+        factory.setEncryptionSettings(TransformConstants.SEEKABLE_ENCRYPTION_TRANSFORM, 128, provider);
+
+        BasicEncryptionOutputTransform outTransform = factory.getOutputTransform(
+                new ByteArrayInputStream(new byte[100]), new HashMap<String, String>());
+        readAll(outTransform.getEncodedInputStream());
+        assertFalse(factory.isUpdatable(outTransform.getTransformConfig()));
+
+        factory.getUpdateTransform(outTransform.getTransformConfig(), 
+                new ByteArrayInputStream(new byte[10]), outTransform.getEncodedMetadata(), 0);
+    }
+
+    @Test(expected = TransformException.class)
+    public void testNonSeekableUpdate() throws Exception {
+        BasicEncryptionTransformFactory factory = new BasicEncryptionTransformFactory();
+        factory.setCryptoProvider(provider);
+        factory.setMasterEncryptionKey(masterKey);
+
+        BasicEncryptionOutputTransform outTransform = factory.getOutputTransform(
+                new ByteArrayInputStream(new byte[100]), new HashMap<String, String>());
+        readAll(outTransform.getEncodedInputStream());
+
+        factory.getUpdateTransform(outTransform.getTransformConfig(), 
+                new ByteArrayInputStream(new byte[10]), outTransform.getEncodedMetadata(), 16);
+    }
+
+    private byte[] readAll(InputStream in) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int c;
+        while((c = in.read(buffer)) != -1) {
+            out.write(buffer, 0, c);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+
 }
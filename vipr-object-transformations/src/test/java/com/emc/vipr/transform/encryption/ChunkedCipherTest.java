@@ -0,0 +1,118 @@
+package com.emc.vipr.transform.encryption;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.emc.vipr.transform.TransformConstants;
+
+public class ChunkedCipherTest {
+    private static final int CHUNK_SIZE = 1000;
+
+    private ChunkedCipher cipher;
+    private byte[] data;
+
+    @Before
+    public void setUp() throws Exception {
+        KeyGenerator keygen = KeyGenerator.getInstance("AES");
+        keygen.init(128);
+        cipher = new ChunkedCipher(TransformConstants.CHUNKED_ENCRYPTION_TRANSFORM, 
+                keygen.generateKey(), CHUNK_SIZE, null);
+        data = new byte[4500];
+        new Random(1).nextBytes(data);
+    }
+
+    @Test
+    public void testSizes() throws Exception {
+        assertEquals(0, ChunkedCipher.getEncodedSize(0, CHUNK_SIZE));
+        assertEquals(1 + ChunkedCipher.OVERHEAD, ChunkedCipher.getEncodedSize(1, CHUNK_SIZE));
+        assertEquals(2000 + 2 * ChunkedCipher.OVERHEAD, ChunkedCipher.getEncodedSize(2000, CHUNK_SIZE));
+        for(long size : new long[] { 0, 1, 999, 1000, 1001, 4500 }) {
+            assertEquals(size, ChunkedCipher.getDecodedSize(
+                    ChunkedCipher.getEncodedSize(size, CHUNK_SIZE), CHUNK_SIZE));
+        }
+        assertEquals(2 * (CHUNK_SIZE + ChunkedCipher.OVERHEAD), 
+                ChunkedCipher.getEncodedOffset(2999, CHUNK_SIZE));
+        try {
+            ChunkedCipher.getDecodedSize(CHUNK_SIZE + ChunkedCipher.OVERHEAD + 10, CHUNK_SIZE);
+            fail("A partial chunk must hold more than the overhead");
+        } catch(IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testPushPullRoundTrip() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        OutputStream encryptStream = cipher.newOutputStream(out, 0);
+        for(int pos = 0; pos < data.length; pos += 777) {
+            encryptStream.write(data, pos, Math.min(777, data.length - pos));
+        }
+        encryptStream.close();
+        byte[] pushed = out.toByteArray();
+        assertEquals(ChunkedCipher.getEncodedSize(data.length, CHUNK_SIZE), pushed.length);
+
+        byte[] pulled = readAll(cipher.newInputStream(new ByteArrayInputStream(data), 
+                Cipher.ENCRYPT_MODE, 0));
+        assertEquals(pushed.length, pulled.length);
+
+        assertArrayEquals(data, readAll(cipher.newInputStream(new ByteArrayInputStream(pushed), 
+                Cipher.DECRYPT_MODE, 0)));
+        assertArrayEquals(data, readAll(cipher.newInputStream(new ByteArrayInputStream(pulled), 
+                Cipher.DECRYPT_MODE, 0)));
+    }
+
+    @Test
+    public void testTamperedChunk() throws Exception {
+        byte[] encrypted = readAll(cipher.newInputStream(new ByteArrayInputStream(data), 
+                Cipher.ENCRYPT_MODE, 0));
+        encrypted[CHUNK_SIZE + ChunkedCipher.OVERHEAD + 100] ^= 1;
+        assertRejected(encrypted);
+    }
+
+    @Test
+    public void testSwappedChunks() throws Exception {
+        byte[] encrypted = readAll(cipher.newInputStream(new ByteArrayInputStream(data), 
+                Cipher.ENCRYPT_MODE, 0));
+        int stride = CHUNK_SIZE + ChunkedCipher.OVERHEAD;
+        byte[] first = new byte[stride];
+        System.arraycopy(encrypted, 0, first, 0, stride);
+        System.arraycopy(encrypted, stride, encrypted, 0, stride);
+        System.arraycopy(first, 0, encrypted, stride, stride);
+        assertRejected(encrypted);
+    }
+
+    private void assertRejected(byte[] encrypted) throws Exception {
+        try {
+            readAll(cipher.newInputStream(new ByteArrayInputStream(encrypted), 
+                    Cipher.DECRYPT_MODE, 0));
+            fail("Modified object should fail verification");
+        } catch(IOException e) {
+            // expected
+        }
+    }
+
+    private byte[] readAll(InputStream in) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[3000];
+        int c;
+        while((c = in.read(buffer)) != -1) {
+            out.write(buffer, 0, c);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,80 @@
+package com.emc.vipr.transform.encryption;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.io.Closeable;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.crypto.Cipher;
+
+import org.junit.Test;
+
+import com.emc.vipr.transform.TransformConstants;
+import com.emc.vipr.transform.util.AbandonedLeases;
+
+public class CryptoContextPoolTest {
+
+    @Test
+    public void testThreadObjects() throws Exception {
+        final SecureRandom rand = CryptoContextPool.getSecureRandom(null);
+        assertSame("SecureRandom should be reused on the same thread", rand,
+                CryptoContextPool.getSecureRandom(null));
+        assertSame("Key wrap cipher should be reused on the same thread",
+                CryptoContextPool.getKeyWrapCipher(null),
+                CryptoContextPool.getKeyWrapCipher(null));
+        
+        // Other threads get their own instances
+        final AtomicReference<SecureRandom> other = new AtomicReference<SecureRandom>();
+        Thread t = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    other.set(CryptoContextPool.getSecureRandom(null));
+                } catch(Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        t.start();
+        t.join();
+        assertNotSame("SecureRandom should not be shared between threads", rand, other.get());
+    }
+    
+    @Test
+    public void testAbandonedNotReturned() throws Exception {
+        final String transform = TransformConstants.DEFAULT_ENCRYPTION_TRANSFORM;
+        final Cipher cipher = CryptoContextPool.leaseCipher(transform, null);
+        AbandonedLeases.close(new Closeable() {
+            @Override
+            public void close() {
+                CryptoContextPool.returnCipher(transform, null, cipher);
+            }
+        });
+        assertNotSame("Abandoned cipher should not be reused", cipher,
+                CryptoContextPool.leaseCipher(transform, null));
+    }
+
+    @Test
+    public void testLeaseAndReturn() throws Exception {
+        String transform = TransformConstants.DEFAULT_ENCRYPTION_TRANSFORM;
+        Cipher cipher = CryptoContextPool.leaseCipher(transform, null);
+        assertNotSame("Leased ciphers should not be shared", cipher,
+                CryptoContextPool.leaseCipher(transform, null));
+        CryptoContextPool.returnCipher(transform, null, cipher);
+        assertSame("Returned cipher should be reused", cipher,
+                CryptoContextPool.leaseCipher(transform, null));
+        
+        // Returned digests are reset
+        MessageDigest sha1 = CryptoContextPool.leaseDigest("SHA1", null);
+        byte[] empty = sha1.digest();
+        sha1.update(new byte[] { 1, 2, 3 });
+        CryptoContextPool.returnDigest("SHA1", null, sha1);
+        MessageDigest sha1b = CryptoContextPool.leaseDigest("SHA1", null);
+        assertSame("Returned digest should be reused", sha1, sha1b);
+        assertArrayEquals("Returned digest should be reset", empty, sha1b.digest());
+    }
+}
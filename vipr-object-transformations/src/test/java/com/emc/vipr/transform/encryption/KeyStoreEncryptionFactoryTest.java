@@ -3,6 +3,7 @@ import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.io.ByteArrayInputStream;
@@ -25,6 +26,7 @@ import org.slf4j.LoggerFactory;
 
 import com.emc.vipr.transform.InputTransform;
 import com.emc.vipr.transform.TransformConstants;
+import com.emc.vipr.transform.TransformException;
 
 
 public class KeyStoreEncryptionFactoryTest {
@@ -307,5 +309,72 @@ public class KeyStoreEncryptionFactoryTest {
                 factory.getMasterEncryptionKeyAlias());
         
     }
+    
+    /**
+     * Test that keys other than the master key are found by fingerprint on
+     * demand and that the key cache can be invalidated and expired.
+     */
+    @Test
+    public void testLazyKeyIndexAndCache() throws Exception {
+        KeyStoreEncryptionFactory encFactory = new KeyStoreEncryptionFactory(keystore, 
+                keyAlias, keystorePassword.toCharArray(), provider);
+        byte[] data = "Hello World! Hello World! Hello World!".getBytes("US-ASCII");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BasicEncryptionOutputTransform outTransform = encFactory
+                .getOutputTransform(out, new HashMap<String, String>());
+        OutputStream encryptedStream = outTransform.getEncodedOutputStream();
+        encryptedStream.write(data);
+        encryptedStream.close();
+        Map<String, String> objectMetadata = outTransform.getEncodedMetadata();
+        
+        // Only "oldkey" is indexed at startup; the object's key must be found lazily.
+        KeyStoreEncryptionFactory factory = new KeyStoreEncryptionFactory(keystore, 
+                "oldkey", keystorePassword.toCharArray(), provider);
+        assertTrue("Key cache should be enabled by default", factory.isKeyCacheEnabled());
+        assertArrayEquals("Decrypted data incorrect", data, 
+                decrypt(factory, outTransform.getTransformConfig(), out.toByteArray(), objectMetadata));
+        
+        // Cached key pair
+        assertArrayEquals("Decrypted data incorrect", data, 
+                decrypt(factory, outTransform.getTransformConfig(), out.toByteArray(), objectMetadata));
+        
+        // Reload after invalidation
+        factory.invalidateKeyCache();
+        assertArrayEquals("Decrypted data incorrect", data, 
+                decrypt(factory, outTransform.getTransformConfig(), out.toByteArray(), objectMetadata));
+        factory.invalidateKey(keyAlias);
+        assertArrayEquals("Decrypted data incorrect", data, 
+                decrypt(factory, outTransform.getTransformConfig(), out.toByteArray(), objectMetadata));
+        
+        // Expired entries are reloaded
+        factory.setKeyCacheTtl(1);
+        Thread.sleep(5);
+        assertArrayEquals("Decrypted data incorrect", data, 
+                decrypt(factory, outTransform.getTransformConfig(), out.toByteArray(), objectMetadata));
+        
+        // Unknown fingerprints still fail
+        objectMetadata.put(TransformConstants.META_ENCRYPTION_KEY_ID, "0000000000000000000000000000000000000000");
+        try {
+            decrypt(factory, outTransform.getTransformConfig(), out.toByteArray(), objectMetadata);
+            fail("Should not find a key for an unknown fingerprint");
+        } catch(TransformException e) {
+            // OK
+        }
+    }
+    
+    private byte[] decrypt(KeyStoreEncryptionFactory factory, String transformConfig, 
+            byte[] encrypted, Map<String, String> metadata) throws Exception {
+        InputTransform inTransform = factory.getInputTransform(transformConfig, 
+                new ByteArrayInputStream(encrypted), metadata);
+        InputStream inStream = inTransform.getDecodedInputStream();
+        ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int c = 0;
+        while ((c = inStream.read(buffer)) != -1) {
+            decoded.write(buffer, 0, c);
+        }
+        inStream.close();
+        return decoded.toByteArray();
+    }
 
 }
@@ -0,0 +1,70 @@
+package com.emc.vipr.transform.encryption;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class ObjectKeyCacheTest {
+    private KeyPair masterKey;
+    private KeyGenerator keygen;
+
+    @Before
+    public void setUp() throws Exception {
+        KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
+        kpg.initialize(1024);
+        masterKey = kpg.generateKeyPair();
+        keygen = KeyGenerator.getInstance("AES");
+        keygen.init(128);
+    }
+
+    @Test
+    public void testUnwrapKey() throws Exception {
+        ObjectKeyCache cache = new ObjectKeyCache(10, 0);
+        SecretKey objectKey = keygen.generateKey();
+        String wrapped = KeyUtils.encryptKey(objectKey, null, masterKey.getPublic());
+
+        SecretKey k1 = cache.unwrapKey("key1", wrapped, "AES", null, masterKey.getPrivate());
+        SecretKey k2 = cache.unwrapKey("key1", wrapped, "AES", null, masterKey.getPrivate());
+        assertArrayEquals("Unwrapped key incorrect", objectKey.getEncoded(), k1.getEncoded());
+        assertArrayEquals("Cached key incorrect", objectKey.getEncoded(), k2.getEncoded());
+        assertEquals("Wrong miss count", 1, cache.getMisses());
+        assertEquals("Wrong hit count", 1, cache.getHits());
+
+        // A different master key ID is a different entry
+        cache.unwrapKey("key2", wrapped, "AES", null, masterKey.getPrivate());
+        assertEquals("Wrong miss count", 2, cache.getMisses());
+
+        cache.invalidate("key1", wrapped);
+        cache.unwrapKey("key1", wrapped, "AES", null, masterKey.getPrivate());
+        assertEquals("Wrong miss count", 3, cache.getMisses());
+
+        cache.clear();
+        assertEquals("Cache should be empty", 0, cache.size());
+    }
+
+    @Test
+    public void testEvictionAndExpiration() throws Exception {
+        ObjectKeyCache cache = new ObjectKeyCache(2, 0);
+        for(int i = 0; i < 5; i++) {
+            String wrapped = KeyUtils.encryptKey(keygen.generateKey(), null, masterKey.getPublic());
+            cache.unwrapKey("key1", wrapped, "AES", null, masterKey.getPrivate());
+        }
+        assertEquals("Cache should be bounded", 2, cache.size());
+
+        cache = new ObjectKeyCache(10, 1);
+        String wrapped = KeyUtils.encryptKey(keygen.generateKey(), null, masterKey.getPublic());
+        cache.unwrapKey("key1", wrapped, "AES", null, masterKey.getPrivate());
+        Thread.sleep(5);
+        cache.unwrapKey("key1", wrapped, "AES", null, masterKey.getPrivate());
+        assertEquals("Expired key should not be used", 0, cache.getHits());
+        assertEquals("Wrong miss count", 2, cache.getMisses());
+    }
+}
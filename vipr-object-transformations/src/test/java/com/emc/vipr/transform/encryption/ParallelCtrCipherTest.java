@@ -0,0 +1,164 @@
+package com.emc.vipr.transform.encryption;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.KeyPair;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.emc.vipr.transform.InputTransform;
+import com.emc.vipr.transform.TransformConstants;
+
+public class ParallelCtrCipherTest {
+    private static final String TRANSFORM = TransformConstants.SEEKABLE_ENCRYPTION_TRANSFORM;
+
+    private ParallelCipherPool pool;
+    private byte[] data;
+    private SecretKey key;
+    private byte[] iv;
+
+    @Before
+    public void setUp() throws Exception {
+        // Small chunks so the test data spans many of them.
+        pool = new ParallelCipherPool(4, 1024);
+        data = new byte[100000];
+        new Random(1).nextBytes(data);
+
+        KeyGenerator keygen = KeyGenerator.getInstance("AES");
+        keygen.init(128);
+        key = keygen.generateKey();
+        iv = new byte[16];
+        new Random(2).nextBytes(iv);
+        iv[15] = (byte) 0xf0; // make sure the counter carries
+    }
+
+    @After
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    @Test
+    public void testSameAsSerial() throws Exception {
+        Cipher cipher = Cipher.getInstance(TRANSFORM);
+        cipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(iv));
+        byte[] serial = cipher.doFinal(data);
+
+        ParallelCtrCipher parallel = new ParallelCtrCipher(pool, TRANSFORM, key, iv, null);
+
+        // Push
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        OutputStream encryptStream = parallel.newOutputStream(out);
+        // Odd write sizes so writes straddle chunks
+        for(int pos = 0; pos < data.length; pos += 777) {
+            encryptStream.write(data, pos, Math.min(777, data.length - pos));
+        }
+        encryptStream.close();
+        assertArrayEquals("Push output differs from serial", serial, out.toByteArray());
+
+        // Pull
+        InputStream encryptedIn = parallel.newInputStream(new ByteArrayInputStream(data), 
+                Cipher.ENCRYPT_MODE, 0);
+        assertArrayEquals("Pull output differs from serial", serial, readAll(encryptedIn));
+
+        // Decrypt from offsets, including ones not on block or chunk boundaries
+        int[] offsets = new int[] { 1, 16, 1023, 1024, 1025, 54321 };
+        for(int offset : offsets) {
+            InputStream decryptedIn = parallel.newInputStream(
+                    new ByteArrayInputStream(serial, offset, serial.length - offset), 
+                    Cipher.DECRYPT_MODE, offset);
+            byte[] expected = new byte[data.length - offset];
+            System.arraycopy(data, offset, expected, 0, expected.length);
+            assertArrayEquals("Decryption at " + offset + " incorrect", expected, readAll(decryptedIn));
+        }
+    }
+
+    @Test
+    public void testFactoryRoundTrip() throws Exception {
+        Properties keyprops = new Properties();
+        keyprops.load(this.getClass().getClassLoader().getResourceAsStream("keys.properties"));
+        KeyPair masterKey = KeyUtils.rsaKeyPairFromBase64(
+                keyprops.getProperty("masterkey.public"),
+                keyprops.getProperty("masterkey.private"));
+
+        BasicEncryptionTransformFactory parallelFactory = new BasicEncryptionTransformFactory();
+        parallelFactory.setMasterEncryptionKey(masterKey);
+        parallelFactory.setEncryptionSettings(TRANSFORM, 128, null);
+        parallelFactory.setCipherPool(pool);
+
+        BasicEncryptionTransformFactory serialFactory = new BasicEncryptionTransformFactory();
+        serialFactory.setMasterEncryptionKey(masterKey);
+
+        // Encrypt in parallel (pull mode)
+        BasicEncryptionOutputTransform outTransform = parallelFactory.getOutputTransform(
+                new ByteArrayInputStream(data), new HashMap<String, String>());
+        byte[] encrypted = readAll(outTransform.getEncodedInputStream());
+        Map<String, String> metadata = outTransform.getEncodedMetadata();
+        assertEquals("" + data.length, metadata.get(TransformConstants.META_ENCRYPTION_UNENC_SIZE));
+        assertEquals(KeyUtils.toHexPadded(MessageDigest.getInstance("SHA1").digest(data)),
+                metadata.get(TransformConstants.META_ENCRYPTION_UNENC_SHA1));
+
+        // Decrypt serially and in parallel
+        InputTransform serialIn = serialFactory.getInputTransform(outTransform.getTransformConfig(), 
+                new ByteArrayInputStream(encrypted), metadata);
+        assertArrayEquals(data, readAll(serialIn.getDecodedInputStream()));
+        InputTransform parallelIn = parallelFactory.getInputTransform(outTransform.getTransformConfig(), 
+                new ByteArrayInputStream(encrypted), metadata);
+        assertArrayEquals(data, readAll(parallelIn.getDecodedInputStream()));
+    }
+
+    @Test
+    public void testShutdownLetsOpenStreamsFinish() throws Exception {
+        Cipher cipher = Cipher.getInstance(TRANSFORM);
+        cipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(iv));
+        byte[] serial = cipher.doFinal(data);
+
+        ParallelCtrCipher parallel = new ParallelCtrCipher(pool, TRANSFORM, key, iv, null);
+        InputStream encryptedIn = parallel.newInputStream(new ByteArrayInputStream(data), 
+                Cipher.ENCRYPT_MODE, 0);
+        byte[] first = new byte[10];
+        assertEquals(10, encryptedIn.read(first));
+
+        pool.shutdown();
+        try {
+            parallel.newInputStream(new ByteArrayInputStream(data), Cipher.ENCRYPT_MODE, 0);
+            fail("New streams should be rejected after shutdown");
+        } catch(IllegalStateException e) {
+            // expected
+        }
+
+        // The open stream still has all of its chunks encrypted.
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(first);
+        out.write(readAll(encryptedIn));
+        assertArrayEquals(serial, out.toByteArray());
+    }
+
+    private byte[] readAll(InputStream in) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[3000];
+        int c;
+        while((c = in.read(buffer)) != -1) {
+            out.write(buffer, 0, c);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+}
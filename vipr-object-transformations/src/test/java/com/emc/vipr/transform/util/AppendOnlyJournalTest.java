@@ -0,0 +1,104 @@
+package com.emc.vipr.transform.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class AppendOnlyJournalTest {
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("journal", ".log");
+        file.delete();
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void testAppendAndRead() throws Exception {
+        AppendOnlyJournal journal = new AppendOnlyJournal(file);
+        assertEquals(0, read(journal).size());
+        journal.append("one");
+        journal.append("two 2");
+        journal.close();
+
+        journal = new AppendOnlyJournal(file);
+        assertEquals(Arrays.asList("one", "two 2"), read(journal));
+        journal.append("three");
+        journal.close();
+        assertEquals(Arrays.asList("one", "two 2", "three"), read(new AppendOnlyJournal(file)));
+    }
+
+    @Test
+    public void testTornRecord() throws Exception {
+        AppendOnlyJournal journal = new AppendOnlyJournal(file);
+        journal.append("one");
+        journal.close();
+        FileOutputStream out = new FileOutputStream(file, true);
+        out.write("tw".getBytes("UTF-8"));
+        out.close();
+
+        journal = new AppendOnlyJournal(file);
+        assertEquals(Arrays.asList("one"), read(journal));
+        assertEquals(4, file.length());
+        journal.append("two");
+        journal.close();
+        assertEquals(Arrays.asList("one", "two"), read(new AppendOnlyJournal(file)));
+    }
+
+    @Test
+    public void testReset() throws Exception {
+        AppendOnlyJournal journal = new AppendOnlyJournal(file);
+        journal.append("one");
+        journal.reset();
+        journal.append("two");
+        journal.sync();
+        assertEquals(Arrays.asList("two"), read(new AppendOnlyJournal(file)));
+        journal.delete();
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void testInvalidRecord() throws Exception {
+        AppendOnlyJournal journal = new AppendOnlyJournal(file);
+        try {
+            journal.append("one\ntwo");
+            fail("records can't contain line breaks");
+        } catch(IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            journal.setSyncInterval(0);
+            fail("sync interval must be positive");
+        } catch(IllegalArgumentException e) {
+            // expected
+        }
+        journal.close();
+    }
+
+    private List<String> read(AppendOnlyJournal journal) throws IOException {
+        final List<String> records = new ArrayList<String>();
+        journal.read(new AppendOnlyJournal.RecordHandler() {
+            @Override
+            public void handle(String record) {
+                records.add(record);
+            }
+        });
+        return records;
+    }
+}
@@ -0,0 +1,96 @@
+package com.emc.vipr.transform.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.emc.vipr.transform.TransformConstants;
+import com.emc.vipr.transform.compression.CompressionOutputTransform;
+import com.emc.vipr.transform.compression.CompressionTransformFactory;
+import com.emc.vipr.transform.encryption.KeyUtils;
+
+public class DigestsTest {
+
+    @Test
+    public void testChecksums() throws Exception {
+        byte[] check = "123456789".getBytes("US-ASCII");
+
+        MessageDigest crc = Digests.newDigest("CRC32");
+        crc.update(check);
+        assertEquals("cbf43926", KeyUtils.toHexPadded(crc.digest()));
+
+        // Digests are reset after digest() so they can be reused.
+        MessageDigest adler = Digests.newDigest("adler32");
+        adler.update(check, 0, 4);
+        adler.digest();
+        adler.update(check);
+        assertEquals("091e01de", KeyUtils.toHexPadded(adler.digest()));
+
+        assertNull(Digests.newDigest(Digests.NONE));
+        assertNull(Digests.digest(null));
+    }
+
+    @Test
+    public void testPutDigest() throws Exception {
+        Map<String, String> metadata = new HashMap<String, String>();
+        Digests.putDigest(metadata, "sha1", "digest", "SHA1", new byte[] { 1, 2 });
+        Digests.putDigest(metadata, "sha1", "digest", "CRC32", new byte[] { 0, (byte) 0xff });
+        assertEquals("0102", metadata.get("sha1"));
+        assertEquals("CRC32:00ff", metadata.get("digest"));
+
+        metadata.clear();
+        Digests.putDigest(metadata, "sha1", "digest", Digests.NONE, null);
+        assertEquals(0, metadata.size());
+    }
+
+    @Test
+    public void testCompressionDigest() throws Exception {
+        byte[] data = "The quick brown fox jumps over the lazy dog".getBytes("US-ASCII");
+        CompressionTransformFactory factory = new CompressionTransformFactory();
+
+        factory.setDigestAlgorithm("CRC32");
+        Map<String, String> metadata = compress(factory, data, false);
+        assertFalse(metadata.containsKey(TransformConstants.META_COMPRESSION_UNCOMP_SHA1));
+        assertEquals("CRC32:414fa339",
+                metadata.get(TransformConstants.META_COMPRESSION_UNCOMP_DIGEST));
+        assertEquals("" + data.length,
+                metadata.get(TransformConstants.META_COMPRESSION_UNCOMP_SIZE));
+
+        factory.setDigestAlgorithm("SHA1");
+        metadata = compress(factory, data, false);
+        assertEquals("2fd4e1c67a2d28fced849ee1bb76e7391b93eb12",
+                metadata.get(TransformConstants.META_COMPRESSION_UNCOMP_SHA1));
+        assertFalse(metadata.containsKey(TransformConstants.META_COMPRESSION_UNCOMP_DIGEST));
+
+        // An intermediate transform skips the digest.
+        metadata = compress(factory, data, true);
+        assertFalse(metadata.containsKey(TransformConstants.META_COMPRESSION_UNCOMP_SHA1));
+        assertFalse(metadata.containsKey(TransformConstants.META_COMPRESSION_UNCOMP_DIGEST));
+        assertEquals("" + data.length,
+                metadata.get(TransformConstants.META_COMPRESSION_UNCOMP_SIZE));
+    }
+
+    private static Map<String, String> compress(CompressionTransformFactory factory,
+            byte[] data, boolean intermediate) throws Exception {
+        InputStream in = new ByteArrayInputStream(data);
+        Map<String, String> metadata = new HashMap<String, String>();
+        CompressionOutputTransform t = intermediate
+                ? factory.getIntermediateOutputTransform(in, metadata)
+                : factory.getOutputTransform(in, metadata);
+        InputStream encoded = t.getEncodedInputStream();
+        byte[] buffer = new byte[4096];
+        while(encoded.read(buffer) != -1) {
+            // discard
+        }
+        encoded.close();
+        return t.getEncodedMetadata();
+    }
+}
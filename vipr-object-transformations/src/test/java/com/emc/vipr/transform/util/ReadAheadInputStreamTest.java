@@ -0,0 +1,192 @@
+package com.emc.vipr.transform.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+public class ReadAheadInputStreamTest {
+
+    @Test
+    public void testReadAll() throws Exception {
+        byte[] data = new byte[1000000];
+        new Random(1).nextBytes(data);
+
+        // Small buffers so the ring wraps many times
+        InputStream in = new ReadAheadInputStream(new ByteArrayInputStream(data), 4096, 3);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1000];
+        int c;
+        while((c = in.read(buffer)) != -1) {
+            out.write(buffer, 0, c);
+        }
+        assertEquals("Read after EOF", -1, in.read());
+        in.close();
+        assertArrayEquals("Data differs", data, out.toByteArray());
+    }
+
+    @Test
+    public void testSingleBytesAndSkip() throws Exception {
+        byte[] data = new byte[10000];
+        new Random(2).nextBytes(data);
+
+        InputStream in = new ReadAheadInputStream(new ByteArrayInputStream(data), 100, 2);
+        assertEquals(data[0] & 0xff, in.read());
+        assertEquals(5000, in.skip(5000));
+        assertEquals(data[5001] & 0xff, in.read());
+        assertEquals(4998, in.skip(10000));
+        assertEquals(-1, in.read());
+        in.close();
+    }
+
+    @Test
+    public void testError() throws Exception {
+        InputStream failing = new InputStream() {
+            int count;
+
+            @Override
+            public int read() throws IOException {
+                if(count++ == 500) {
+                    throw new IOException("boom");
+                }
+                return 7;
+            }
+        };
+        InputStream in = new ReadAheadInputStream(failing, 100, 2);
+        int read = 0;
+        try {
+            while(in.read() != -1) {
+                read++;
+            }
+            fail("Error not rethrown");
+        } catch(IOException e) {
+            assertEquals("boom", e.getMessage());
+        }
+        // Only whole buffers read before the error are returned.
+        assertEquals(500, read);
+        in.close();
+    }
+
+    @Test
+    public void testCloseStopsWorker() throws Exception {
+        final boolean[] closed = new boolean[1];
+        InputStream endless = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                return 1;
+            }
+
+            @Override
+            public void close() throws IOException {
+                closed[0] = true;
+            }
+        };
+        InputStream in = new ReadAheadInputStream(endless, 100, 2);
+        assertEquals(1, in.read());
+        in.close();
+        assertTrue("Underlying stream not closed", closed[0]);
+        try {
+            in.read();
+            fail("Read after close");
+        } catch(IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testCloseWaitsForWorker() throws Exception {
+        // A read that ignores interrupts, like InflaterInputStream.
+        final CountDownLatch reading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final boolean[] readDone = new boolean[1];
+        final boolean[] closedDuringRead = new boolean[1];
+        InputStream slow = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                reading.countDown();
+                while(true) {
+                    try {
+                        release.await();
+                        break;
+                    } catch(InterruptedException e) {
+                        // ignored
+                    }
+                }
+                readDone[0] = true;
+                return 1;
+            }
+
+            @Override
+            public void close() throws IOException {
+                closedDuringRead[0] = !readDone[0];
+            }
+        };
+        final InputStream in = new ReadAheadInputStream(slow, 100, 2);
+        reading.await();
+
+        Thread closer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    in.close();
+                } catch(IOException e) {
+                    // ignored
+                }
+            }
+        };
+        closer.start();
+        closer.join(200);
+        assertTrue("Close returned while the worker was reading", closer.isAlive());
+        release.countDown();
+        closer.join(5000);
+        assertFalse("Close did not return", closer.isAlive());
+        assertFalse("Stream closed while the worker was reading", closedDuringRead[0]);
+    }
+
+    @Test
+    public void testCloseStalledRead() throws Exception {
+        // A stalled socket read only ends when the socket is closed.
+        final CountDownLatch reading = new CountDownLatch(1);
+        final CountDownLatch socketClosed = new CountDownLatch(1);
+        final boolean[] abandoned = new boolean[1];
+        InputStream stalled = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                reading.countDown();
+                while(true) {
+                    try {
+                        socketClosed.await();
+                        throw new IOException("Socket closed");
+                    } catch(InterruptedException e) {
+                        // ignored
+                    }
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                abandoned[0] = AbandonedLeases.isAbandoning();
+                socketClosed.countDown();
+            }
+        };
+        ReadAheadInputStream in = new ReadAheadInputStream(stalled, 100, 2);
+        in.setCloseTimeout(200);
+        reading.await();
+
+        long start = System.currentTimeMillis();
+        in.close();
+        assertTrue("Close did not wait for the worker", System.currentTimeMillis() - start >= 150);
+        assertTrue("Pooled objects returned while the worker was reading", abandoned[0]);
+        assertFalse("Abandoning outlived close", AbandonedLeases.isAbandoning());
+    }
+}